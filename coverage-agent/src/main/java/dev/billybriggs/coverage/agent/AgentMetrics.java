@@ -0,0 +1,178 @@
+package dev.billybriggs.coverage.agent;
+
+import dev.billybriggs.coverage.common.metrics.MetricsText;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+
+/**
+ * What the agent costs and how its reporting keeps up: per-class instrumentation time, registered
+ * probes, send buffer occupancy, dropped batches, flush latency and bytes sent. Read through JMX
+ * or, with {@code agent.metrics_port}, as plain text from {@code /metrics}.
+ */
+final class AgentMetrics implements AgentMetricsMXBean {
+
+    static final String OBJECT_NAME = "dev.billybriggs.coverage:type=Agent";
+
+    private final InstrumentationMetrics instrumentation;
+    private final CoverageReporter reporter;
+
+    AgentMetrics(InstrumentationMetrics instrumentation, CoverageReporter reporter) {
+        this.instrumentation = instrumentation;
+        this.reporter = reporter;
+    }
+
+    /**
+     * Registers with the platform MBean server; an agent attached twice keeps the first registration.
+     */
+    void register() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if (!server.isRegistered(name)) {
+                server.registerMBean(this, name);
+            }
+        } catch (JMException e) {
+            throw new IllegalStateException("Failed to register " + OBJECT_NAME, e);
+        }
+    }
+
+    @Override
+    public long getClassesTransformed() {
+        return instrumentation.typesTransformed();
+    }
+
+    @Override
+    public double getTransformMillisTotal() {
+        return instrumentation.transformNanos() / 1e6;
+    }
+
+    @Override
+    public double getTransformMillisMean() {
+        return instrumentation.transformLatency().meanMillis();
+    }
+
+    @Override
+    public double getTransformMillisP99() {
+        return instrumentation.transformLatency().quantileMillis(0.99);
+    }
+
+    @Override
+    public long getInstrumentationErrors() {
+        return instrumentation.errors();
+    }
+
+    @Override
+    public long getLoadedClassesFound() {
+        return instrumentation.loadedClassesFound();
+    }
+
+    @Override
+    public long getLoadedClassesRetransformed() {
+        return instrumentation.loadedClassesRetransformed();
+    }
+
+    @Override
+    public long getClassesRegistered() {
+        return ProbeRuntime.classCount();
+    }
+
+    @Override
+    public long getProbesRegistered() {
+        return ProbeRuntime.probeCount();
+    }
+
+    @Override
+    public long getBufferUsedBytes() {
+        return reporter.bufferUsedBytes();
+    }
+
+    @Override
+    public long getBufferCapacityBytes() {
+        return reporter.bufferCapacity();
+    }
+
+    @Override
+    public long getFlushes() {
+        return reporter.flushLatency().count();
+    }
+
+    @Override
+    public double getFlushMillisMean() {
+        return reporter.flushLatency().meanMillis();
+    }
+
+    @Override
+    public double getFlushMillisP99() {
+        return reporter.flushLatency().quantileMillis(0.99);
+    }
+
+    @Override
+    public long getBatchesSent() {
+        return reporter.batchesSent();
+    }
+
+    @Override
+    public long getBytesSent() {
+        return reporter.bytesSent();
+    }
+
+    @Override
+    public long getBatchesDropped() {
+        return reporter.droppedBatches();
+    }
+
+    @Override
+    public long getOverflowingFlushes() {
+        return reporter.overflowingFlushes();
+    }
+
+    @Override
+    public long getHeldBackFlushes() {
+        return reporter.heldBackFlushes();
+    }
+
+    @Override
+    public long getTestsDropped() {
+        return TestAttribution.droppedTests();
+    }
+
+    /**
+     * All metrics in the Prometheus text format.
+     */
+    String toText() {
+        MetricsText text = new MetricsText()
+                .gauge("coverage_agent_startup_seconds", "Time spent in agent start-up", instrumentation.agentStartupNanos() / 1e9)
+                .counter("coverage_agent_classes_considered_total", "Classes checked against the class filter",
+                        instrumentation.classesConsidered())
+                .counter("coverage_agent_classes_skipped_total", "Classes excluded by the class filter",
+                        instrumentation.classesSkipped())
+                .counter("coverage_agent_instrumentation_errors_total", "Classes that failed to instrument",
+                        getInstrumentationErrors())
+                .counter("coverage_agent_lazy_activations_total", "Lazily instrumented classes fully instrumented",
+                        instrumentation.lazyActivations())
+                .gauge("coverage_agent_loaded_classes_found", "Classes loaded before attach to be instrumented",
+                        getLoadedClassesFound())
+                .counter("coverage_agent_loaded_classes_retransformed_total",
+                        "Classes loaded before attach that were instrumented", getLoadedClassesRetransformed())
+                .gauge("coverage_agent_classes_registered", "Instrumented classes with probes", getClassesRegistered())
+                .gauge("coverage_agent_probes_registered", "Probes across instrumented classes", getProbesRegistered())
+                .gauge("coverage_agent_buffer_used_bytes", "Bytes queued in the send buffer", getBufferUsedBytes())
+                .gauge("coverage_agent_buffer_capacity_bytes", "Capacity of the send buffer", getBufferCapacityBytes())
+                .counter("coverage_agent_batches_sent_total", "Batches written to the collector or sink", getBatchesSent())
+                .counter("coverage_agent_bytes_sent_total", "Serialized bytes of the batches sent", getBytesSent())
+                .counter("coverage_agent_batches_dropped_total", "Batches encoded but never sent", getBatchesDropped())
+                .counter("coverage_agent_overflowing_flushes_total", "Flushes that applied the overflow policy",
+                        getOverflowingFlushes())
+                .counter("coverage_agent_held_back_flushes_total", "Scheduled flushes skipped for lack of credit",
+                        getHeldBackFlushes())
+                .counter("coverage_agent_tests_dropped_total", "Finished tests dropped from a full attribution queue",
+                        getTestsDropped());
+        instrumentation.transformLatency().appendTo(text, "coverage_agent_transform_seconds",
+                "Time to instrument each class");
+        reporter.flushLatency().appendTo(text, "coverage_agent_flush_seconds", "Time to encode and queue each flush");
+        return text.toString();
+    }
+}
@@ -0,0 +1,47 @@
+package dev.billybriggs.coverage.agent;
+
+/**
+ * Agent overhead and reporting metrics, registered as {@value AgentMetrics#OBJECT_NAME}.
+ */
+public interface AgentMetricsMXBean {
+
+    long getClassesTransformed();
+
+    double getTransformMillisTotal();
+
+    double getTransformMillisMean();
+
+    double getTransformMillisP99();
+
+    long getInstrumentationErrors();
+
+    long getLoadedClassesFound();
+
+    long getLoadedClassesRetransformed();
+
+    long getClassesRegistered();
+
+    long getProbesRegistered();
+
+    long getBufferUsedBytes();
+
+    long getBufferCapacityBytes();
+
+    long getFlushes();
+
+    double getFlushMillisMean();
+
+    double getFlushMillisP99();
+
+    long getBatchesSent();
+
+    long getBytesSent();
+
+    long getBatchesDropped();
+
+    long getOverflowingFlushes();
+
+    long getHeldBackFlushes();
+
+    long getTestsDropped();
+}
@@ -0,0 +1,193 @@
+package dev.billybriggs.coverage.agent;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.instrument.Instrumentation;
+import java.lang.instrument.UnmodifiableClassException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Instruments the classes an application had already loaded when the agent was attached to it.
+ *
+ * <p>Matching classes are retransformed in batches by a small pool of threads. The JVM runs class
+ * file transformers on the thread that calls {@code retransformClasses}, so the batches' bytecode
+ * is computed in parallel, while the redefinitions themselves, each a safepoint, are serialized
+ * by the JVM. Each thread pauses after every batch, which bounds how much of the application's
+ * time the attach can take: roughly {@code threads * batch cost / (batch cost + pause)}.
+ *
+ * <p>Progress is logged every tenth of the way and counted in {@link InstrumentationMetrics}. A
+ * batch the JVM rejects as a whole is retried one class at a time, so one unmodifiable class only
+ * leaves itself uninstrumented.
+ */
+final class AttachInstrumenter implements AutoCloseable {
+
+    private static final Logger logger = LoggerFactory.getLogger(AttachInstrumenter.class);
+
+    private final Instrumentation instrumentation;
+    private final CoverageTransformer transformer;
+    private final InstrumentationMetrics metrics;
+    private final int threads;
+    private final int batchSize;
+    private final long pauseMs;
+    private final AtomicInteger completed = new AtomicInteger();
+    private final AtomicInteger reportedDecile = new AtomicInteger();
+    private volatile ExecutorService pool;
+    private Thread worker;
+
+    AttachInstrumenter(Instrumentation instrumentation, CoverageTransformer transformer, InstrumentationMetrics metrics,
+                       int threads, int batchSize, long pauseMs) {
+        this.instrumentation = instrumentation;
+        this.transformer = transformer;
+        this.metrics = metrics;
+        this.threads = Math.max(1, threads);
+        this.batchSize = Math.max(1, batchSize);
+        this.pauseMs = Math.max(0, pauseMs);
+    }
+
+    /**
+     * Instruments the loaded classes in the background.
+     */
+    void start() {
+        worker = new Thread(() -> {
+            try {
+                instrumentLoadedClasses();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (RuntimeException e) {
+                logger.warn("Instrumenting loaded classes failed", e);
+            }
+        }, "coverage-attach-instrumenter");
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    /**
+     * Retransforms every loaded class the transformer matches and has not instrumented yet, and
+     * waits until all batches are done.
+     *
+     * @return the number of classes retransformed
+     */
+    int instrumentLoadedClasses() throws InterruptedException {
+        long startedAt = System.nanoTime();
+        List<Class<?>> classes = loadedClasses();
+        metrics.loadedClassesFound(classes.size());
+        if (classes.isEmpty()) {
+            return 0;
+        }
+        logger.info("Instrumenting {} loaded classes in batches of {} on {} threads",
+                classes.size(), batchSize, threads);
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(threads, batches(classes.size())), r -> {
+            Thread thread = new Thread(r, "coverage-attach-retransform");
+            thread.setDaemon(true);
+            return thread;
+        });
+        pool = executor;
+        int retransformed = 0;
+        try {
+            List<Future<Integer>> batches = new ArrayList<>();
+            for (int from = 0; from < classes.size(); from += batchSize) {
+                List<Class<?>> batch = classes.subList(from, Math.min(from + batchSize, classes.size()));
+                batches.add(executor.submit(() -> retransform(batch, classes.size())));
+            }
+            for (Future<Integer> batch : batches) {
+                retransformed += batch.get();
+            }
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof InterruptedException || executor.isShutdown()) {
+                throw stopped(retransformed, classes.size());
+            }
+            throw new IllegalStateException(e.getCause());
+        } catch (RejectedExecutionException e) {
+            if (executor.isShutdown()) {
+                throw stopped(retransformed, classes.size());
+            }
+            throw e;
+        } finally {
+            executor.shutdownNow();
+        }
+        logger.info("Instrumented {} of {} loaded classes in {} ms", retransformed, classes.size(),
+                (System.nanoTime() - startedAt) / 1_000_000);
+        return retransformed;
+    }
+
+    /**
+     * The pool was shut down by {@link #close()}, e.g. as the JVM exits: a batch interrupted in its
+     * pause, or one the pool no longer accepts, ends the attach like an interrupt of the worker does.
+     */
+    private static InterruptedException stopped(int retransformed, int total) {
+        logger.debug("Instrumenting loaded classes stopped after {} of {}", retransformed, total);
+        return new InterruptedException("Instrumenting loaded classes was stopped");
+    }
+
+    private int batches(int classCount) {
+        return (classCount + batchSize - 1) / batchSize;
+    }
+
+    /**
+     * Loaded classes that the transformer matches and has not instrumented, e.g. on a second attach.
+     */
+    private List<Class<?>> loadedClasses() {
+        ClassFilter classFilter = transformer.classFilter();
+        List<Class<?>> classes = new ArrayList<>();
+        for (Class<?> type : instrumentation.getAllLoadedClasses()) {
+            if (type.isArray() || type.isPrimitive() || type.isAnnotation() || type.isHidden()
+                    || !classFilter.isIncluded(type.getName().replace('.', '/'))
+                    || !instrumentation.isModifiableClass(type)
+                    || transformer.instrumentedClass(type.getClassLoader(), type.getName()) != null) {
+                continue;
+            }
+            classes.add(type);
+        }
+        return classes;
+    }
+
+    private int retransform(List<Class<?>> batch, int total) throws InterruptedException {
+        int retransformed = 0;
+        try {
+            instrumentation.retransformClasses(batch.toArray(new Class<?>[0]));
+            retransformed = batch.size();
+        } catch (UnmodifiableClassException | RuntimeException | LinkageError e) {
+            for (Class<?> type : batch) {
+                try {
+                    instrumentation.retransformClasses(type);
+                    retransformed++;
+                } catch (UnmodifiableClassException | RuntimeException | LinkageError single) {
+                    logger.debug("Could not instrument loaded class {}: {}", type.getName(), single.toString());
+                }
+            }
+        }
+        metrics.loadedClassesRetransformed(retransformed);
+        reportProgress(completed.addAndGet(batch.size()), total);
+        if (pauseMs > 0) {
+            Thread.sleep(pauseMs);
+        }
+        return retransformed;
+    }
+
+    private void reportProgress(int done, int total) {
+        int decile = (int) (done * 10L / total);
+        int reported = reportedDecile.get();
+        if (decile > reported && decile < 10 && reportedDecile.compareAndSet(reported, decile)) {
+            logger.info("Instrumented {}% of loaded classes ({} of {})", decile * 10, done, total);
+        }
+    }
+
+    @Override
+    public void close() {
+        ExecutorService executor = pool;
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+        if (worker != null) {
+            worker.interrupt();
+        }
+    }
+}
@@ -0,0 +1,52 @@
+package dev.billybriggs.coverage.agent;
+
+import dev.billybriggs.coverage.common.proto.CoverageProto.CoverageData;
+import dev.billybriggs.coverage.common.wire.CoverageDumpWriter;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Path;
+
+/**
+ * Where {@link CoverageReporter} writes batches when it does not stream to the collector itself.
+ * A sink holds one stream's worth of batches: layouts and symbols are declared once and referenced
+ * by every later batch, and a batch counts as delivered once written.
+ */
+interface BatchSink extends Closeable {
+
+    void write(CoverageData batch) throws IOException;
+
+    /**
+     * Whether writes may succeed again after one failed. The next write then starts a new stream,
+     * so the reporter must declare its layouts and symbols again.
+     */
+    boolean resumable();
+
+    /**
+     * Sink of {@code output.format: binary}.
+     */
+    static BatchSink dump(Path path) throws IOException {
+        CoverageDumpWriter writer = CoverageDumpWriter.create(path);
+        return new BatchSink() {
+            @Override
+            public void write(CoverageData batch) throws IOException {
+                writer.write(batch);
+            }
+
+            @Override
+            public boolean resumable() {
+                return false;
+            }
+
+            @Override
+            public void close() throws IOException {
+                writer.close();
+            }
+
+            @Override
+            public String toString() {
+                return writer.frames() + " batches (" + writer.size() + " bytes) in " + path;
+            }
+        };
+    }
+}
@@ -0,0 +1,335 @@
+package dev.billybriggs.coverage.agent;
+
+import dev.billybriggs.coverage.common.CoverageConfig;
+import dev.billybriggs.coverage.common.proto.CoverageProto.CoverageType;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.CodeSource;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.CRC32;
+
+/**
+ * On-disk cache of instrumented class files, so that restarting the same application skips ByteBuddy
+ * for every class it has instrumented before.
+ *
+ * <p>Entries are keyed by a SHA-256 of the instrumentation settings, the agent version and the
+ * original class bytes. Each entry holds the instrumented bytes, compiled with
+ * {@link CoverageTransformer#LINK_PLACEHOLDER} in place of the class id, the offsets of that constant
+ * in the constant pool, and the probe layout. A hit registers the layout with {@link ProbeRuntime}
+ * and patches the new class id into a copy of the bytes.
+ *
+ * <p>Every entry is its own file, written to a temporary name and atomically renamed into place,
+ * and read through a read-only mapping. Any number of JVMs on a node can therefore share one
+ * directory: readers never see a partial entry, concurrent writers of the same key write identical
+ * content, and with {@code readOnly} a pre-populated directory can be mounted without write access.
+ * Entries that fail their checksum are treated as misses.
+ */
+final class BytecodeCache {
+
+    private static final int MAGIC = 0x43564243; // "CVBC"
+    private static final int FORMAT_VERSION = 2;
+    private static final String SUFFIX = ".class-cache";
+
+    private final Path directory;
+    private final boolean readOnly;
+    private final byte[] configDigest;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder stores = new LongAdder();
+
+    /**
+     * What a cached class needs besides its bytes: the layout to register and where to link its id.
+     */
+    record Entry(String className, String filePath, List<ClassProbes.Probe> probes,
+                 Map<String, Integer> probeIndexes, int[] placeholderOffsets, byte[] classFile) {
+    }
+
+    private BytecodeCache(Path directory, boolean readOnly, byte[] configDigest) {
+        this.directory = directory;
+        this.readOnly = readOnly;
+        this.configDigest = configDigest;
+    }
+
+    static BytecodeCache open(Path directory, boolean readOnly, CoverageConfig config) throws IOException {
+        if (readOnly) {
+            if (!Files.isDirectory(directory)) {
+                throw new NoSuchFileException(directory.toString());
+            }
+        } else {
+            Files.createDirectories(directory);
+        }
+        return new BytecodeCache(directory, readOnly, configDigest(config));
+    }
+
+    /**
+     * Cache key of a class file under this cache's configuration, as a hex string.
+     */
+    String key(byte[] classFile) {
+        MessageDigest digest = sha256();
+        digest.update(configDigest);
+        digest.update(classFile);
+        return HexFormat.of().formatHex(digest.digest());
+    }
+
+    /**
+     * Reads the entry for {@code key}, or returns {@code null} if there is no intact one.
+     */
+    Entry load(String key) {
+        Path file = file(key);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            Entry entry = decode(mapped);
+            if (entry != null) {
+                hits.increment();
+                return entry;
+            }
+        } catch (NoSuchFileException e) {
+            // plain miss
+        } catch (IOException | RuntimeException e) {
+            // unreadable entry: fall back to instrumenting, and overwrite it if writable
+        }
+        misses.increment();
+        return null;
+    }
+
+    /**
+     * Writes an entry unless the cache is read-only. Failures are ignored: the cache is an optimisation.
+     */
+    void store(String key, Entry entry) {
+        if (readOnly) {
+            return;
+        }
+        Path file = file(key);
+        Path temporary = null;
+        try {
+            Files.createDirectories(file.getParent());
+            temporary = Files.createTempFile(file.getParent(), key, ".tmp");
+            Files.write(temporary, encode(entry));
+            try {
+                Files.move(temporary, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING);
+            }
+            stores.increment();
+        } catch (IOException e) {
+            if (temporary != null) {
+                try {
+                    Files.deleteIfExists(temporary);
+                } catch (IOException ignored) {
+                    // best effort
+                }
+            }
+        }
+    }
+
+    long hits() {
+        return hits.sum();
+    }
+
+    long misses() {
+        return misses.sum();
+    }
+
+    long stores() {
+        return stores.sum();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d hits, %d misses, %d stored", hits(), misses(), stores());
+    }
+
+    private Path file(String key) {
+        // fan out so that no directory holds every class of an application
+        return directory.resolve(key.substring(0, 2)).resolve(key.substring(2) + SUFFIX);
+    }
+
+    /**
+     * Offsets of every {@code CONSTANT_Integer} holding {@code value} in a class file's constant pool.
+     */
+    static int[] integerConstantOffsets(byte[] classFile, int value) {
+        ByteBuffer buffer = ByteBuffer.wrap(classFile);
+        buffer.position(8);
+        int count = Short.toUnsignedInt(buffer.getShort());
+        List<Integer> offsets = new ArrayList<>();
+        for (int index = 1; index < count; index++) {
+            int tag = Byte.toUnsignedInt(buffer.get());
+            switch (tag) {
+                case 1 -> {
+                    int length = Short.toUnsignedInt(buffer.getShort());
+                    buffer.position(buffer.position() + length);
+                }
+                case 3 -> {
+                    if (buffer.getInt(buffer.position()) == value) {
+                        offsets.add(buffer.position());
+                    }
+                    buffer.position(buffer.position() + 4);
+                }
+                case 4, 9, 10, 11, 12, 17, 18 -> buffer.position(buffer.position() + 4);
+                case 5, 6 -> {
+                    buffer.position(buffer.position() + 8);
+                    index++;
+                }
+                case 7, 8, 16, 19, 20 -> buffer.position(buffer.position() + 2);
+                case 15 -> buffer.position(buffer.position() + 3);
+                default -> throw new IllegalArgumentException("Unknown constant pool tag " + tag);
+            }
+        }
+        return offsets.stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    /**
+     * Returns a copy of {@code classFile} with the placeholder constants replaced by {@code classId}.
+     */
+    static byte[] link(byte[] classFile, int[] placeholderOffsets, int classId) {
+        byte[] linked = classFile.clone();
+        ByteBuffer buffer = ByteBuffer.wrap(linked);
+        for (int offset : placeholderOffsets) {
+            buffer.putInt(offset, classId);
+        }
+        return linked;
+    }
+
+    private static byte[] encode(Entry entry) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(entry.classFile().length + 256);
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeUTF(entry.className());
+            out.writeUTF(entry.filePath());
+            out.writeInt(entry.probes().size());
+            for (ClassProbes.Probe probe : entry.probes()) {
+                out.writeUTF(probe.methodName());
+                out.writeInt(probe.lineNumber());
+                out.writeInt(probe.type().getNumber());
+            }
+            out.writeInt(entry.probeIndexes().size());
+            for (Map.Entry<String, Integer> index : entry.probeIndexes().entrySet()) {
+                out.writeUTF(index.getKey());
+                out.writeInt(index.getValue());
+            }
+            out.writeInt(entry.placeholderOffsets().length);
+            for (int offset : entry.placeholderOffsets()) {
+                out.writeInt(offset);
+            }
+            out.writeInt(entry.classFile().length);
+            out.write(entry.classFile());
+        }
+        byte[] payload = bytes.toByteArray();
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        return ByteBuffer.allocate(Integer.BYTES * 3 + payload.length)
+                .putInt(MAGIC)
+                .putInt(FORMAT_VERSION)
+                .putInt((int) crc.getValue())
+                .put(payload)
+                .array();
+    }
+
+    private static Entry decode(ByteBuffer buffer) {
+        try {
+            if (buffer.getInt() != MAGIC || buffer.getInt() != FORMAT_VERSION) {
+                return null;
+            }
+            int checksum = buffer.getInt();
+            CRC32 crc = new CRC32();
+            crc.update(buffer.duplicate());
+            if ((int) crc.getValue() != checksum) {
+                return null;
+            }
+            String className = readUtf(buffer);
+            String filePath = readUtf(buffer);
+            int probeCount = buffer.getInt();
+            List<ClassProbes.Probe> probes = new ArrayList<>(probeCount);
+            for (int i = 0; i < probeCount; i++) {
+                String methodName = readUtf(buffer);
+                int lineNumber = buffer.getInt();
+                CoverageType type = CoverageType.forNumber(buffer.getInt());
+                probes.add(new ClassProbes.Probe(methodName, lineNumber,
+                        type != null ? type : CoverageType.COVERAGE_TYPE_UNSPECIFIED));
+            }
+            int indexCount = buffer.getInt();
+            Map<String, Integer> probeIndexes = new HashMap<>(indexCount * 2);
+            for (int i = 0; i < indexCount; i++) {
+                probeIndexes.put(readUtf(buffer), buffer.getInt());
+            }
+            int[] offsets = new int[buffer.getInt()];
+            for (int i = 0; i < offsets.length; i++) {
+                offsets[i] = buffer.getInt();
+            }
+            byte[] classFile = new byte[buffer.getInt()];
+            buffer.get(classFile);
+            return new Entry(className, filePath, probes, probeIndexes, offsets, classFile);
+        } catch (BufferUnderflowException | IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Reads a string written by {@link DataOutputStream#writeUTF}; modified UTF-8 equals UTF-8 for
+     * the identifiers stored here, which never contain NUL or supplementary characters.
+     */
+    private static String readUtf(ByteBuffer buffer) {
+        byte[] bytes = new byte[Short.toUnsignedInt(buffer.getShort())];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static byte[] configDigest(CoverageConfig config) {
+        CoverageConfig.InstrumentationSettings settings = config.getInstrumentation();
+        String description = String.join("\n",
+                "format=" + FORMAT_VERSION,
+                "agent=" + agentBuild(),
+                "include=" + settings.getIncludePatterns(),
+                "exclude=" + settings.getExcludePatterns(),
+                "types=" + settings.getCoverageTypes(),
+                "sampled=" + ProbeSampler.isSampling(settings.getSamplingRate(), settings.getSamplingPauseMs()));
+        return sha256().digest(description.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Identifies the agent build: its version plus the size and modification time of its jar, so
+     * that rebuilding the agent never reuses bytecode produced by an older one.
+     */
+    private static String agentBuild() {
+        String version = CoverageAgent.class.getPackage().getImplementationVersion();
+        String build = version != null ? version : "dev";
+        try {
+            CodeSource source = CoverageAgent.class.getProtectionDomain().getCodeSource();
+            if (source != null && source.getLocation() != null) {
+                Path jar = Path.of(source.getLocation().toURI());
+                build += "@" + Files.size(jar) + ":" + Files.getLastModifiedTime(jar).toMillis();
+            }
+        } catch (IOException | URISyntaxException | RuntimeException e) {
+            // unversioned build location; the version alone has to do
+        }
+        return build;
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is required by the Java platform", e);
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package dev.billybriggs.coverage.agent;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.instrument.ClassFileTransformer;
+import java.lang.instrument.IllegalClassFormatException;
+import java.security.ProtectionDomain;
+
+/**
+ * Serves first-time class loads from a {@link BytecodeCache} and falls back to the ByteBuddy
+ * transformer on a miss, storing what it produces.
+ *
+ * <p>Only classes the {@link ClassFilter} accepts are hashed. Retransformations always go to the
+ * delegate, as do classes whose constant pool already holds
+ * {@link CoverageTransformer#LINK_PLACEHOLDER}, since their output could not be relinked.
+ */
+final class CachingTransformer implements ClassFileTransformer {
+
+    private static final Logger logger = LoggerFactory.getLogger(CachingTransformer.class);
+
+    private final ClassFileTransformer delegate;
+    private final CoverageTransformer transformer;
+    private final BytecodeCache cache;
+
+    CachingTransformer(ClassFileTransformer delegate, CoverageTransformer transformer, BytecodeCache cache) {
+        this.delegate = delegate;
+        this.transformer = transformer;
+        this.cache = cache;
+    }
+
+    @Override
+    public byte[] transform(Module module, ClassLoader loader, String className, Class<?> classBeingRedefined,
+                            ProtectionDomain protectionDomain, byte[] classfileBuffer) throws IllegalClassFormatException {
+        if (classBeingRedefined != null || className == null || !transformer.classFilter().isIncluded(className)) {
+            return delegate(module, loader, className, classBeingRedefined, protectionDomain, classfileBuffer);
+        }
+        String binaryName = className.replace('/', '.');
+        String key;
+        try {
+            if (BytecodeCache.integerConstantOffsets(classfileBuffer, CoverageTransformer.LINK_PLACEHOLDER).length > 0) {
+                return delegate(module, loader, className, null, protectionDomain, classfileBuffer);
+            }
+            key = cache.key(classfileBuffer);
+            BytecodeCache.Entry cached = cache.load(key);
+            if (cached != null && cached.className().equals(binaryName)) {
+                InstrumentedClass restored = transformer.restore(loader, binaryName, cached.filePath(),
+                        cached.probes(), cached.probeIndexes());
+                return BytecodeCache.link(cached.classFile(), cached.placeholderOffsets(), restored.layout().classId());
+            }
+        } catch (RuntimeException e) {
+            // malformed input: let ByteBuddy deal with it as it would without the cache
+            logger.debug("Bytecode cache skipped for {}: {}", className, e.toString());
+            return delegate(module, loader, className, null, protectionDomain, classfileBuffer);
+        }
+
+        boolean previous = transformer.bindPlaceholder(true);
+        byte[] transformed;
+        try {
+            transformed = delegate(module, loader, className, null, protectionDomain, classfileBuffer);
+        } finally {
+            transformer.bindPlaceholder(previous);
+        }
+        InstrumentedClass registered = transformer.instrumentedClass(loader, binaryName);
+        if (transformed == null || registered == null) {
+            return transformed;
+        }
+        int[] offsets = BytecodeCache.integerConstantOffsets(transformed, CoverageTransformer.LINK_PLACEHOLDER);
+        cache.store(key, new BytecodeCache.Entry(binaryName, registered.layout().filePath(),
+                registered.layout().probes(), registered.probeIndexes(), offsets, transformed));
+        return BytecodeCache.link(transformed, offsets, registered.layout().classId());
+    }
+
+    private byte[] delegate(Module module, ClassLoader loader, String className, Class<?> classBeingRedefined,
+                            ProtectionDomain protectionDomain, byte[] classfileBuffer) throws IllegalClassFormatException {
+        return module != null
+                ? delegate.transform(module, loader, className, classBeingRedefined, protectionDomain, classfileBuffer)
+                : delegate.transform(loader, className, classBeingRedefined, protectionDomain, classfileBuffer);
+    }
+
+    @Override
+    public byte[] transform(ClassLoader loader, String className, Class<?> classBeingRedefined,
+                            ProtectionDomain protectionDomain, byte[] classfileBuffer) throws IllegalClassFormatException {
+        return transform(null, loader, className, classBeingRedefined, protectionDomain, classfileBuffer);
+    }
+}
@@ -0,0 +1,224 @@
+package dev.billybriggs.coverage.agent;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Decides which classes are instrumented from the include/exclude globs in the agent configuration.
+ * Globs are matched against internal class names such as {@code com/example/Calculator}.
+ *
+ * <p>Every loaded class passes through here, so the globs are compiled once into per-package rules.
+ * A glob whose last segment has no {@code **} splits into a package part and a simple-name part, and
+ * the package part is evaluated only the first time a package is seen. Most packages then resolve
+ * to a constant decision (all JDK and framework packages outside the includes, for example); the
+ * others keep only the simple-name globs that apply to them, joined into a single pattern. Globs
+ * that cannot be split are matched against the full name.
+ */
+public class ClassFilter {
+
+    private static final String AGENT_PACKAGE = "dev/billybriggs/coverage/";
+
+    private static final PackageRule INCLUDE_ALL = (internalName, nameStart) -> true;
+    private static final PackageRule EXCLUDE_ALL = (internalName, nameStart) -> false;
+
+    private final List<Glob> includes;
+    private final List<Glob> excludes;
+    private final ConcurrentMap<String, PackageRule> packages = new ConcurrentHashMap<>();
+    private final LongAdder considered = new LongAdder();
+    private final LongAdder skipped = new LongAdder();
+
+    public ClassFilter(List<String> includePatterns, List<String> excludePatterns) {
+        this.includes = includePatterns.stream().map(Glob::of).toList();
+        this.excludes = excludePatterns.stream().map(Glob::of).toList();
+    }
+
+    /**
+     * @param internalName class name with {@code /} separators
+     */
+    public boolean matches(String internalName) {
+        considered.increment();
+        if (isIncluded(internalName)) {
+            return true;
+        }
+        skipped.increment();
+        return false;
+    }
+
+    /**
+     * {@link #matches} without counting the class, for callers that check ahead of the transformer.
+     */
+    boolean isIncluded(String internalName) {
+        int nameStart = internalName.lastIndexOf('/') + 1;
+        String packageName = internalName.substring(0, nameStart);
+        PackageRule rule = packages.get(packageName);
+        if (rule == null) {
+            rule = packages.computeIfAbsent(packageName, this::compileRule);
+        }
+        return rule.matches(internalName, nameStart);
+    }
+
+    /** Classes checked against the filter. */
+    public long classesConsidered() {
+        return considered.sum();
+    }
+
+    /** Classes the filter rejected. */
+    public long classesSkipped() {
+        return skipped.sum();
+    }
+
+    /** Packages with a compiled rule. */
+    int packagesCached() {
+        return packages.size();
+    }
+
+    /**
+     * @param packageName package with a trailing {@code /}, or empty for the default package
+     */
+    private PackageRule compileRule(String packageName) {
+        if (packageName.startsWith(AGENT_PACKAGE)) {
+            return EXCLUDE_ALL;
+        }
+        Patterns excluded = Patterns.applicable(excludes, packageName);
+        if (excluded.anyName) {
+            return EXCLUDE_ALL;
+        }
+        Patterns included = includes.isEmpty() ? Patterns.ANY : Patterns.applicable(includes, packageName);
+        if (included.isEmpty()) {
+            return EXCLUDE_ALL;
+        }
+        if (included.anyName && excluded.isEmpty()) {
+            return INCLUDE_ALL;
+        }
+        return new NameRule(included, excluded);
+    }
+
+    /**
+     * Decision for the classes of one package. {@code nameStart} is the index of the simple name.
+     */
+    @FunctionalInterface
+    private interface PackageRule {
+        boolean matches(String internalName, int nameStart);
+    }
+
+    private record NameRule(Patterns included, Patterns excluded) implements PackageRule {
+
+        @Override
+        public boolean matches(String internalName, int nameStart) {
+            return included.matches(internalName, nameStart) && !excluded.matches(internalName, nameStart);
+        }
+    }
+
+    /**
+     * The globs that can match classes of one package: whether one accepts any simple name, the
+     * simple-name patterns of the others, and the globs matched against full names.
+     */
+    private record Patterns(boolean anyName, Pattern names, Pattern fullNames) {
+
+        static final Patterns ANY = new Patterns(true, null, null);
+
+        static Patterns applicable(List<Glob> globs, String packageName) {
+            List<String> names = new ArrayList<>();
+            List<String> fullNames = new ArrayList<>();
+            for (Glob glob : globs) {
+                if (glob.packagePattern() == null) {
+                    fullNames.add(glob.regex());
+                } else if (glob.packagePattern().matcher(packageName).matches()) {
+                    if (glob.anyName()) {
+                        return ANY;
+                    }
+                    names.add(glob.nameRegex());
+                }
+            }
+            return new Patterns(false, union(names), union(fullNames));
+        }
+
+        boolean isEmpty() {
+            return !anyName && names == null && fullNames == null;
+        }
+
+        boolean matches(String internalName, int nameStart) {
+            if (anyName) {
+                return true;
+            }
+            if (names != null) {
+                Matcher matcher = names.matcher(internalName).region(nameStart, internalName.length());
+                if (matcher.matches()) {
+                    return true;
+                }
+            }
+            return fullNames != null && fullNames.matcher(internalName).matches();
+        }
+
+        private static Pattern union(List<String> regexes) {
+            if (regexes.isEmpty()) {
+                return null;
+            }
+            return Pattern.compile(String.join("|", regexes.stream().map(r -> "(?:" + r + ")").toList()));
+        }
+    }
+
+    /**
+     * A compiled glob. {@code packagePattern} is {@code null} when the glob cannot be split at its
+     * last {@code /}, in which case it is matched as a whole.
+     */
+    private record Glob(String regex, Pattern packagePattern, String nameRegex, boolean anyName) {
+
+        static Glob of(String glob) {
+            String regex = toRegex(glob);
+            int nameStart = glob.lastIndexOf('/') + 1;
+            String packageGlob = glob.substring(0, nameStart);
+            String nameGlob = glob.substring(nameStart);
+            if (nameGlob.contains("**") || !wholeSegmentWildcards(packageGlob)) {
+                return new Glob(regex, null, null, false);
+            }
+            boolean anyName = !nameGlob.isEmpty() && nameGlob.chars().allMatch(c -> c == '*');
+            return new Glob(regex, Pattern.compile(toRegex(packageGlob)), toRegex(nameGlob), anyName);
+        }
+
+        /**
+         * Whether every {@code **} in a package glob is a whole segment, so it can only match whole
+         * packages and never part of the simple name.
+         */
+        private static boolean wholeSegmentWildcards(String packageGlob) {
+            for (int i = packageGlob.indexOf("**"); i >= 0; i = packageGlob.indexOf("**", i + 2)) {
+                boolean segmentStart = i == 0 || packageGlob.charAt(i - 1) == '/';
+                boolean segmentEnd = i + 2 < packageGlob.length() && packageGlob.charAt(i + 2) == '/';
+                if (!segmentStart || !segmentEnd) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    private static String toRegex(String glob) {
+        StringBuilder regex = new StringBuilder();
+        for (int i = 0; i < glob.length(); i++) {
+            char c = glob.charAt(i);
+            if (c == '*') {
+                if (i + 1 < glob.length() && glob.charAt(i + 1) == '*') {
+                    i++;
+                    if (i + 1 < glob.length() && glob.charAt(i + 1) == '/') {
+                        i++;
+                        regex.append("(?:.*/)?");
+                    } else {
+                        regex.append(".*");
+                    }
+                } else {
+                    regex.append("[^/]*");
+                }
+            } else if (c == '?') {
+                regex.append("[^/]");
+            } else {
+                regex.append(Pattern.quote(String.valueOf(c)));
+            }
+        }
+        return regex.toString();
+    }
+}
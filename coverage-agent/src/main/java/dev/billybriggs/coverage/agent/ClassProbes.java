@@ -0,0 +1,56 @@
+package dev.billybriggs.coverage.agent;
+
+import dev.billybriggs.coverage.common.proto.CoverageProto.CoverageType;
+
+import java.util.List;
+
+/**
+ * Static description of the probes inserted into one instrumented class.
+ * The mutable hit counters live in {@link ProbeRuntime}, indexed by {@link #classId()}.
+ */
+public final class ClassProbes {
+
+    /**
+     * A single probe slot: what it measures and where it sits in the source.
+     */
+    public record Probe(String methodName, int lineNumber, CoverageType type) {
+    }
+
+    private final int classId;
+    private final String className;
+    private final String filePath;
+    private final List<Probe> probes;
+
+    ClassProbes(int classId, String className, String filePath, List<Probe> probes) {
+        this.classId = classId;
+        this.className = className;
+        this.filePath = filePath;
+        this.probes = List.copyOf(probes);
+    }
+
+    public int classId() {
+        return classId;
+    }
+
+    /**
+     * Binary class name, e.g. {@code com.example.Calculator}.
+     */
+    public String className() {
+        return className;
+    }
+
+    /**
+     * Source path relative to the source root, e.g. {@code com/example/Calculator.java}.
+     */
+    public String filePath() {
+        return filePath;
+    }
+
+    public List<Probe> probes() {
+        return probes;
+    }
+
+    public int probeCount() {
+        return probes.size();
+    }
+}
@@ -0,0 +1,230 @@
+package dev.billybriggs.coverage.agent;
+
+import dev.billybriggs.coverage.common.CoverageConfig;
+import dev.billybriggs.coverage.common.metrics.MetricsEndpoint;
+import dev.billybriggs.coverage.common.proto.CoverageProto.CoverageType;
+import net.bytebuddy.agent.builder.AgentBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.lang.instrument.ClassFileTransformer;
+import java.lang.instrument.Instrumentation;
+import java.nio.file.Path;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Java agent entry point. Attach with {@code -javaagent:coverage-agent.jar[=config.yml]}, or load
+ * into a running JVM through the attach API, in which case the classes it has already loaded are
+ * instrumented in the background by an {@link AttachInstrumenter}.
+ */
+public final class CoverageAgent {
+
+    private static final Logger logger = LoggerFactory.getLogger(CoverageAgent.class);
+
+    static final String DEFAULT_CONFIG = "coverage-agent.yml";
+
+    private CoverageAgent() {
+    }
+
+    public static void premain(String agentArgs, Instrumentation instrumentation) {
+        start(agentArgs, instrumentation, false);
+    }
+
+    public static void agentmain(String agentArgs, Instrumentation instrumentation) {
+        start(agentArgs, instrumentation, true);
+    }
+
+    private static void start(String agentArgs, Instrumentation instrumentation, boolean attached) {
+        long startedAt = System.nanoTime();
+        CoverageConfig config;
+        try {
+            config = loadConfig(agentArgs);
+        } catch (IOException e) {
+            logger.error("Failed to load coverage agent configuration, agent disabled", e);
+            return;
+        }
+        if (!config.getAgent().isEnabled() || !config.getInstrumentation().isEnabled()) {
+            logger.info("Coverage agent disabled by configuration");
+            return;
+        }
+
+        CoverageConfig.InstrumentationSettings settings = config.getInstrumentation();
+        if (!(settings.getSamplingRate() > 0 && settings.getSamplingRate() <= 1)) {
+            logger.warn("sampling_rate {} is outside (0, 1]; counting every hit", settings.getSamplingRate());
+            settings.setSamplingRate(1.0);
+        }
+        if (ProbeSampler.isSampling(settings.getSamplingRate(), settings.getSamplingPauseMs())) {
+            ProbeSampler.configure(settings.getSamplingRate(), settings.getSamplingWindowMs(), settings.getSamplingPauseMs());
+        }
+        boolean retransforming = instrumentation.isRetransformClassesSupported();
+        if (!retransforming && (settings.isDeinstrumentSaturated() || settings.isLazy())) {
+            logger.warn("Retransformation is not supported by this JVM; instrumenting eagerly and keeping saturated probes");
+        }
+        if (!retransforming && attached) {
+            logger.warn("Retransformation is not supported by this JVM; classes loaded before attach stay uninstrumented");
+        }
+        boolean deinstrument = retransforming && settings.isDeinstrumentSaturated();
+        boolean lazy = retransforming && settings.isLazy();
+        boolean instrumentLoaded = retransforming && attached;
+        CoverageTransformer transformer = newTransformer(config, deinstrument, lazy);
+        InstrumentationMetrics metrics = new InstrumentationMetrics(transformer.classFilter());
+        AgentBuilder builder = agentBuilder(transformer, deinstrument || lazy || instrumentLoaded).with(metrics);
+        BytecodeCache cache = null;
+        if (lazy && !settings.getBytecodeCachePath().isBlank()) {
+            logger.info("Bytecode cache is not used with lazy instrumentation");
+        } else {
+            cache = openBytecodeCache(config);
+        }
+        if (cache != null) {
+            instrumentation.addTransformer(new CachingTransformer(builder.makeRaw(), transformer, cache),
+                    deinstrument || instrumentLoaded);
+        } else {
+            builder.installOn(instrumentation);
+        }
+
+        CoverageReporter reporter = new CoverageReporter(config);
+        reporter.start();
+        MetricsEndpoint metricsEndpoint = exposeMetrics(config, new AgentMetrics(metrics, reporter));
+        Deinstrumenter deinstrumenter = null;
+        if (deinstrument) {
+            deinstrumenter = new Deinstrumenter(instrumentation, transformer, settings.getSaturationScanIntervalMs());
+            deinstrumenter.start();
+        }
+        LazyInstrumenter lazyInstrumenter = null;
+        if (lazy) {
+            lazyInstrumenter = new LazyInstrumenter(instrumentation, transformer, metrics);
+            lazyInstrumenter.start();
+        }
+        AttachInstrumenter attachInstrumenter = null;
+        if (instrumentLoaded) {
+            attachInstrumenter = new AttachInstrumenter(instrumentation, transformer, metrics,
+                    settings.getAttachThreads(), settings.getAttachBatchSize(), settings.getAttachBatchPauseMs());
+            attachInstrumenter.start();
+        }
+        AttachInstrumenter startedAttachInstrumenter = attachInstrumenter;
+        Deinstrumenter startedDeinstrumenter = deinstrumenter;
+        LazyInstrumenter startedLazyInstrumenter = lazyInstrumenter;
+        BytecodeCache startedCache = cache;
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            if (metricsEndpoint != null) {
+                metricsEndpoint.close();
+            }
+            if (startedAttachInstrumenter != null) {
+                startedAttachInstrumenter.close();
+            }
+            if (startedLazyInstrumenter != null) {
+                startedLazyInstrumenter.close();
+            }
+            if (startedDeinstrumenter != null) {
+                startedDeinstrumenter.close();
+            }
+            reporter.close();
+            logger.info("Coverage instrumentation: {}", metrics);
+            if (startedCache != null) {
+                logger.info("Bytecode cache: {}", startedCache);
+            }
+        }, "coverage-reporter-shutdown"));
+
+        metrics.agentStarted(System.nanoTime() - startedAt);
+        logger.info("Coverage agent {} started in {} ms{}", config.getAgent().getId(),
+                metrics.agentStartupNanos() / 1_000_000, lazy ? " (lazy instrumentation)" : "");
+    }
+
+    /**
+     * Registers the agent's MBean and starts its text endpoint if one is configured. Returns the
+     * endpoint, or {@code null} if there is none.
+     */
+    static MetricsEndpoint exposeMetrics(CoverageConfig config, AgentMetrics metrics) {
+        try {
+            metrics.register();
+        } catch (IllegalStateException e) {
+            logger.warn("Coverage agent metrics are not available over JMX: {}", e.getMessage());
+        }
+        int port = config.getAgent().getMetricsPort();
+        if (port <= 0) {
+            return null;
+        }
+        try {
+            MetricsEndpoint endpoint = MetricsEndpoint.start("0.0.0.0", port, metrics::toText, () -> true);
+            logger.info("Coverage agent metrics on port {}", endpoint.port());
+            return endpoint;
+        } catch (IOException | RuntimeException e) {
+            logger.warn("Cannot serve coverage agent metrics on port {}: {}", port, e.toString());
+            return null;
+        }
+    }
+
+    /**
+     * Opens the configured bytecode cache, or returns {@code null} if there is none or it cannot be used.
+     */
+    static BytecodeCache openBytecodeCache(CoverageConfig config) {
+        CoverageConfig.InstrumentationSettings settings = config.getInstrumentation();
+        if (settings.getBytecodeCachePath() == null || settings.getBytecodeCachePath().isBlank()) {
+            return null;
+        }
+        try {
+            return BytecodeCache.open(Path.of(settings.getBytecodeCachePath()), settings.isBytecodeCacheReadOnly(), config);
+        } catch (IOException | RuntimeException e) {
+            logger.warn("Bytecode cache at {} is unavailable, instrumenting without it: {}",
+                    settings.getBytecodeCachePath(), e.toString());
+            return null;
+        }
+    }
+
+    /**
+     * Returns the coverage transformation as a plain {@link ClassFileTransformer}, for hosts that
+     * define classes themselves (such as benchmarks) rather than installing the agent.
+     */
+    public static ClassFileTransformer newClassFileTransformer(CoverageConfig config) {
+        return agentBuilder(newTransformer(config, false, false), false).makeRaw();
+    }
+
+    static CoverageTransformer newTransformer(CoverageConfig config, boolean removeSaturatedProbes, boolean lazy) {
+        CoverageConfig.InstrumentationSettings settings = config.getInstrumentation();
+        ClassFilter classFilter = new ClassFilter(settings.getIncludePatterns(), settings.getExcludePatterns());
+        boolean sampled = ProbeSampler.isSampling(settings.getSamplingRate(), settings.getSamplingPauseMs());
+        return new CoverageTransformer(classFilter, removeSaturatedProbes, lazy, sampled,
+                probeTypes(settings.getCoverageTypes()));
+    }
+
+    /**
+     * Parses {@code coverage_types}, e.g. {@code [line, branch, method]}.
+     */
+    static Set<CoverageType> probeTypes(List<String> names) {
+        Set<CoverageType> types = EnumSet.of(CoverageType.COVERAGE_TYPE_METHOD);
+        for (String name : names) {
+            try {
+                types.add(CoverageType.valueOf("COVERAGE_TYPE_" + name.trim().toUpperCase(Locale.ROOT)));
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("Unknown coverage type '" + name + "'", e);
+            }
+        }
+        return types;
+    }
+
+    /**
+     * @param retransforming register for retransformation; classes already loaded are left alone
+     */
+    static AgentBuilder agentBuilder(CoverageTransformer transformer, boolean retransforming) {
+        AgentBuilder builder = new AgentBuilder.Default();
+        if (retransforming) {
+            builder = builder.disableClassFormatChanges()
+                    .with(AgentBuilder.RedefinitionStrategy.RETRANSFORMATION)
+                    .with(new AgentBuilder.RedefinitionStrategy.DiscoveryStrategy.Explicit());
+        } else {
+            builder = builder.with(AgentBuilder.TypeStrategy.Default.REDEFINE);
+        }
+        return builder.type(transformer.rawMatcher()).transform(transformer);
+    }
+
+    static CoverageConfig loadConfig(String agentArgs) throws IOException {
+        CoverageConfig config = agentArgs != null && !agentArgs.isBlank()
+                ? CoverageConfig.load(Path.of(agentArgs.trim()))
+                : CoverageConfig.loadResource(DEFAULT_CONFIG, CoverageAgent.class.getClassLoader());
+        return config.applyEnvironment(System.getenv());
+    }
+}
@@ -0,0 +1,244 @@
+package dev.billybriggs.coverage.agent;
+
+import dev.billybriggs.coverage.common.CoverageConfig;
+import dev.billybriggs.coverage.common.proto.CoverageProto.CoverageData;
+import dev.billybriggs.coverage.common.proto.CoverageProto.CoverageType;
+import dev.billybriggs.coverage.common.wire.DictionaryDecoder;
+import dev.billybriggs.coverage.common.wire.ProbeVisitor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.IntStream;
+
+/**
+ * Host-local relay between agents and the collector:
+ * {@code java -cp coverage-agent.jar dev.billybriggs.coverage.agent.CoverageRelay [config.yml]}.
+ *
+ * <p>Agents with {@code collector.relay_socket} set write their delta batches to this relay over a
+ * Unix domain socket instead of registering and streaming themselves. The relay adds every agent's
+ * hits into one table of class counters, so a class loaded by a hundred JVMs on the host is one set
+ * of counters here, and a single {@link CoverageReporter} streams that table to the collector as
+ * one session per host. The collector sees one connection per host, and each JVM skips the gRPC
+ * channel and its threads.
+ *
+ * <p>Classes are matched by file, name and probe layout; a class whose layout differs between JVMs
+ * (another version of it) is kept separately.
+ */
+public final class CoverageRelay implements AutoCloseable {
+
+    private static final Logger logger = LoggerFactory.getLogger(CoverageRelay.class);
+
+    /** Largest batch accepted from an agent; bigger frames mean a confused peer. */
+    static final int MAX_FRAME_BYTES = 64 * 1024 * 1024;
+
+    private final Path socket;
+    private final CoverageReporter reporter;
+    private final Map<LayoutKey, ClassProbes> classes = new ConcurrentHashMap<>();
+    private final Set<SocketChannel> connections = ConcurrentHashMap.newKeySet();
+    private ServerSocketChannel server;
+    private Thread acceptor;
+
+    /**
+     * @param config settings of the relay; it listens on {@code collector.relay_socket}, which is then
+     *               cleared so the relay's own reporter streams to the collector
+     */
+    public CoverageRelay(CoverageConfig config) {
+        this.socket = Path.of(config.getCollector().getRelaySocket());
+        // the relay itself streams to the collector
+        config.getCollector().setRelaySocket("");
+        config.getCollector().setWireFormat("delta");
+        config.getOutput().setFormat("json");
+        this.reporter = new CoverageReporter(config);
+    }
+
+    /**
+     * Listens for agents and starts streaming to the collector.
+     */
+    public void start() throws IOException {
+        listen();
+        reporter.start();
+    }
+
+    void listen() throws IOException {
+        // a socket file left by a relay that did not shut down cleanly would make bind fail
+        Files.deleteIfExists(socket);
+        server = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+        server.bind(UnixDomainSocketAddress.of(socket));
+        acceptor = new Thread(this::acceptLoop, "coverage-relay-acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        logger.info("Coverage relay listening on {}", socket);
+    }
+
+    private void acceptLoop() {
+        while (server.isOpen()) {
+            try {
+                SocketChannel connection = server.accept();
+                connections.add(connection);
+                if (!server.isOpen()) {
+                    // accepted while closing, after close() went through the connections
+                    connection.close();
+                    connections.remove(connection);
+                    return;
+                }
+                Thread reader = new Thread(() -> read(connection), "coverage-relay-agent");
+                reader.setDaemon(true);
+                reader.start();
+            } catch (ClosedChannelException e) {
+                return;
+            } catch (IOException e) {
+                logger.warn("Failed to accept agent connection: {}", e.toString());
+            }
+        }
+    }
+
+    /**
+     * Merges the batches of one agent connection until it closes.
+     */
+    private void read(SocketChannel connection) {
+        DictionaryDecoder decoder = new DictionaryDecoder();
+        AgentBatches agent = new AgentBatches();
+        try (connection; InputStream stream = Channels.newInputStream(connection)) {
+            DataInputStream in = new DataInputStream(stream);
+            while (true) {
+                int size;
+                try {
+                    size = in.readInt();
+                } catch (EOFException e) {
+                    return;
+                }
+                if (size <= 0 || size > MAX_FRAME_BYTES) {
+                    throw new IOException("Invalid frame length " + size);
+                }
+                byte[] frame = new byte[size];
+                in.readFully(frame);
+                decoder.decode(CoverageData.parseFrom(frame), agent);
+                agent.queueTests();
+            }
+        } catch (IOException | IllegalArgumentException e) {
+            if (server.isOpen()) {
+                logger.warn("Dropping agent connection: {}", e.toString());
+            }
+        } finally {
+            connections.remove(connection);
+        }
+    }
+
+    /**
+     * The relay's class for a layout declared by an agent, registered on first use.
+     */
+    ClassProbes classFor(String filePath, String className, List<ClassProbes.Probe> probes) {
+        return classes.computeIfAbsent(new LayoutKey(filePath, className, probes),
+                key -> ProbeRuntime.register(className, filePath, probes));
+    }
+
+    /** Agent connections currently open. */
+    int connections() {
+        return connections.size();
+    }
+
+    /**
+     * Stops accepting agents and sends what has been merged.
+     */
+    @Override
+    public void close() {
+        try {
+            if (server != null) {
+                server.close();
+            }
+            for (SocketChannel connection : connections) {
+                connection.close();
+            }
+            Files.deleteIfExists(socket);
+        } catch (IOException e) {
+            logger.warn("Failed to close coverage relay socket: {}", e.toString());
+        }
+        reporter.close();
+    }
+
+    public static void main(String[] args) throws Exception {
+        CoverageConfig config = CoverageAgent.loadConfig(args.length > 0 ? args[0] : null);
+        if (config.getCollector().getRelaySocket().isBlank()) {
+            System.err.println("Set collector.relay_socket to the socket path to listen on");
+            System.exit(2);
+        }
+        CoverageRelay relay = new CoverageRelay(config);
+        relay.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(relay::close, "coverage-relay-shutdown"));
+        Thread.currentThread().join();
+    }
+
+    private record LayoutKey(String filePath, String className, List<ClassProbes.Probe> probes) {
+    }
+
+    /**
+     * Decodes one agent's stream into the relay's counters.
+     */
+    private final class AgentBatches implements ProbeVisitor {
+
+        @Override
+        public Object bindLayout(String filePath, String className, String[] methodNames, int[] lineNumbers,
+                                 CoverageType[] types) {
+            List<ClassProbes.Probe> probes = new ArrayList<>(methodNames.length);
+            for (int i = 0; i < methodNames.length; i++) {
+                probes.add(new ClassProbes.Probe(methodNames[i], lineNumbers[i], types[i]));
+            }
+            return classFor(filePath, className, List.copyOf(probes)).classId();
+        }
+
+        @Override
+        public void visitProbe(Object binding, int probe, long hitCount) {
+            if (hitCount != 0) {
+                ProbeRuntime.add((Integer) binding, probe, hitCount);
+            }
+        }
+
+        /** Probes of each test in the batch being decoded, by relay class id. */
+        private final Map<String, SortedMap<Integer, int[]>> tests = new LinkedHashMap<>();
+
+        @Override
+        public void visitTestProbes(String testId, Object binding, int[] probes) {
+            // two of the agent's classes may be one class here
+            tests.computeIfAbsent(testId, id -> new TreeMap<>()).merge((Integer) binding, probes,
+                    (merged, more) -> IntStream.concat(Arrays.stream(merged), Arrays.stream(more)).sorted().distinct().toArray());
+        }
+
+        /**
+         * Queues the tests of the batch just decoded, one entry per test however many classes it ran,
+         * so tests rather than classes count against {@link TestAttribution#MAX_PENDING_TESTS}.
+         */
+        void queueTests() {
+            tests.forEach((testId, classes) -> TestAttribution.add(new TestAttribution.FinishedTest(testId,
+                    classes.keySet().stream().mapToInt(Integer::intValue).toArray(),
+                    classes.values().toArray(new int[0][]))));
+            tests.clear();
+        }
+
+        @Override
+        public void visit(String filePath, String className, String methodName, int lineNumber, CoverageType type,
+                          long hitCount) {
+            throw new IllegalArgumentException("The relay accepts delta batches only");
+        }
+    }
+}
@@ -0,0 +1,960 @@
+package dev.billybriggs.coverage.agent;
+
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.Timestamp;
+import dev.billybriggs.coverage.common.CoverageConfig;
+import dev.billybriggs.coverage.common.proto.CoverageProto.AgentRegistration;
+import dev.billybriggs.coverage.common.proto.CoverageProto.AgentRegistrationResponse;
+import dev.billybriggs.coverage.common.proto.CoverageProto.ClassLayout;
+import dev.billybriggs.coverage.common.proto.CoverageProto.CoverageData;
+import dev.billybriggs.coverage.common.proto.CoverageProto.CoverageResponse;
+import dev.billybriggs.coverage.common.proto.CoverageProto.ExecutionPoint;
+import dev.billybriggs.coverage.common.proto.CoverageServiceGrpc;
+import dev.billybriggs.coverage.common.metrics.LatencyHistogram;
+import dev.billybriggs.coverage.common.wire.DictionaryEncoder;
+import io.grpc.ManagedChannel;
+import io.grpc.ManagedChannelBuilder;
+import io.grpc.stub.ClientCallStreamObserver;
+import io.grpc.stub.ClientResponseObserver;
+import io.grpc.stub.StreamObserver;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Streams coverage to the collector.
+ *
+ * <p>Instrumented code only bumps counters in {@link ProbeRuntime}; this reporter periodically
+ * compares those counters with what it has already sent and turns the difference into
+ * {@link ExecutionPoint} batches. All protobuf allocation therefore happens on the reporter thread at
+ * flush time, never on application threads.
+ *
+ * <p>By default batches use the delta wire format: file, class and method names and each class's
+ * probe layout cross the wire once per stream, and each flush carries only the probes that changed
+ * since the last batch the collector acknowledged, as a compressed bitmap per class. The
+ * {@code dictionary} and {@code legacy} formats send every probe hit since the previous flush and,
+ * like deltas, send again whatever the collector did not acknowledge. Per-test coverage from
+ * {@link TestAttribution} travels only in the delta format, and like the deltas is sent again if its
+ * batch is not acknowledged.
+ *
+ * <p>Flushes never write to the gRPC stream themselves. Encoded batches go into a bounded off-heap
+ * {@link FrameRing}, drained by a single sender thread that writes to the stream only while it is
+ * ready for more. A slow collector therefore fills the ring rather than the heap, and once the ring
+ * is half full flushes follow the configured {@link OverflowPolicy}. Each frame is tagged with the
+ * stream it was encoded for; frames left over from a failed stream are discarded, as its batches
+ * were encoded against that stream's symbol table. A flush holds this reporter's lock only while it
+ * collects batches, not while it waits for room in the ring: responses free that room, and handling
+ * them acknowledges batches under the same lock.
+ *
+ * <p>The collector grants credit in its responses: a window of batches this reporter may have sent
+ * without a response, and the largest batch it wants. The sender writes only while it holds credit
+ * and the stream is ready, waking on gRPC's ready callback and on responses rather than polling.
+ * Responses are requested one at a time as they are handled. While the window is used up and
+ * batches are still queued, scheduled flushes back off up to {@value #MAX_FLUSH_BACKOFF} doublings
+ * of {@code flush_interval_ms}; the counters keep accumulating meanwhile, so nothing is lost.
+ *
+ * <p>With {@code output.format: binary} or {@code collector.relay_socket} the reporter never
+ * connects: each flush writes its batches to a {@link BatchSink}, a dump for the collector to import
+ * later or a host-local {@link CoverageRelay}, and counts them as acknowledged.
+ */
+public class CoverageReporter implements AutoCloseable {
+
+    private static final Logger logger = LoggerFactory.getLogger(CoverageReporter.class);
+
+    private static final long SEND_POLL_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+    /** Upper bound on how long the sender sleeps without a wake-up, to notice shutdown. */
+    private static final long SEND_IDLE_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+    /** How long a hit that read the counters before an epoch swap has to land in them. */
+    private static final long EPOCH_GRACE_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    /** Metadata key of the coverage epoch a batch's counts belong to. */
+    static final String EPOCH_METADATA = "epoch";
+    /** Metadata key, set to {@code "true"}, of the last batch of an ended epoch. */
+    static final String EPOCH_COMPLETE_METADATA = "epoch_complete";
+    /** Window of a new stream until the collector advertises one. */
+    static final int INITIAL_WINDOW = 4;
+    static final int MAX_FLUSH_BACKOFF = 3;
+
+    private final CoverageConfig config;
+    private final ScheduledExecutorService scheduler;
+    private final OverflowPolicy overflowPolicy;
+    private final FrameRing ring;
+    private final LongAdder overflowingFlushes = new LongAdder();
+    /**
+     * Held from collecting a flush's batches until they are all in the ring, so batches enter it in
+     * sequence order. Taken before {@code this}, never while holding it.
+     */
+    private final Object queueLock = new Object();
+
+    private volatile ManagedChannel channel;
+    /** Address of the collector {@link #channel} points at. */
+    private String target;
+    private volatile String sessionId;
+    private volatile StreamObserver<CoverageData> stream;
+    /** Tag of frames encoded for the current stream. */
+    private volatile int streamGeneration;
+    private volatile ResponseObserver flow;
+    private volatile boolean sending;
+    private Thread sender;
+    /** Frame taken from the ring that is waiting for credit. Sender thread only. */
+    private CoverageData pending;
+    private int pendingGeneration;
+    /** Batch size advertised by the collector, 0 if none. */
+    private volatile int advertisedBatchPoints;
+    private int flushBackoff;
+    private final LongAdder heldBackFlushes = new LongAdder();
+    private final LatencyHistogram flushLatency = new LatencyHistogram();
+    private final LongAdder batchesSent = new LongAdder();
+    private final LongAdder bytesSent = new LongAdder();
+    /** Batches encoded but never sent: abandoned with their stream, or corrupt. */
+    private final LongAdder droppedBatches = new LongAdder();
+    /** Where batches go instead of the collector, null once closed. Guarded by {@code this}. */
+    private BatchSink sink;
+    private boolean offline;
+
+    /** Symbol dictionary of the current stream. Guarded by {@code this}. */
+    private final DictionaryEncoder encoder = new DictionaryEncoder();
+
+    /**
+     * Counter values sent and acknowledged, in every wire format. Guarded by {@code this}, like the
+     * rest of the delta mode state.
+     */
+    private final DeltaTracker deltas = new DeltaTracker();
+    /** Classes whose full probe set the legacy and dictionary formats have sent. Guarded by {@code this}. */
+    private final BitSet reportedClasses = new BitSet();
+    private final BitSet declaredClasses = new BitSet();
+    private long sequence;
+    /** Epoch of the counters being collected, stamped on each batch. */
+    private long batchEpoch;
+    private volatile long lastSnapshotId;
+    /** Tests added to the batch being encoded, and tests sent but not acknowledged, by batch. */
+    private List<TestAttribution.FinishedTest> openTests = new ArrayList<>();
+    private final Deque<SentTests> unacknowledgedTests = new ArrayDeque<>();
+
+    private record SentTests(long sequence, List<TestAttribution.FinishedTest> tests) {
+    }
+
+    public CoverageReporter(CoverageConfig config) {
+        this.config = config;
+        this.overflowPolicy = OverflowPolicy.parse(config.getCollector().getOverflowPolicy());
+        this.ring = new FrameRing(config.getCollector().getBufferBytes());
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "coverage-reporter");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Connects to the collector and schedules periodic flushes.
+     */
+    public void start() {
+        CoverageConfig.CollectorSettings collector = config.getCollector();
+        if (openSink()) {
+            scheduler.schedule(this::scheduledFlush, collector.getFlushIntervalMs(), TimeUnit.MILLISECONDS);
+            logger.info("Coverage reporter writing {}", sink);
+            return;
+        }
+        target = collector.getHost() + ":" + collector.getPort();
+        channel = openChannel(ManagedChannelBuilder.forAddress(collector.getHost(), collector.getPort()));
+
+        sending = true;
+        sender = new Thread(this::sendLoop, "coverage-sender");
+        sender.setDaemon(true);
+        sender.start();
+
+        scheduler.schedule(this::scheduledFlush, collector.getFlushIntervalMs(), TimeUnit.MILLISECONDS);
+        logger.info("Coverage reporter started for collector {}:{}", collector.getHost(), collector.getPort());
+    }
+
+    /**
+     * Queues the probes that changed since the previous flush for sending.
+     */
+    public void flush() {
+        long startedAt = System.nanoTime();
+        try {
+            synchronized (queueLock) {
+                enqueue(batchesToQueue());
+            }
+        } finally {
+            flushLatency.record(System.nanoTime() - startedAt);
+        }
+    }
+
+    /**
+     * Collects the batches of a flush, or writes them to the sink straight away when offline.
+     *
+     * @return batches for the ring, none if there is nowhere to send them
+     */
+    private synchronized List<CoverageData> batchesToQueue() {
+        if (offline) {
+            if (sink != null) {
+                writeSink(collectBatches());
+            }
+            return List.of();
+        }
+        if (!ensureStream()) {
+            return List.of();
+        }
+        boolean overflowing = ring.usedBytes() * 2 >= ring.capacity();
+        if (overflowing) {
+            overflowingFlushes.increment();
+            logger.debug("Send buffer is half full, applying overflow policy {}", overflowPolicy);
+        }
+        return collectBatches(overflowing);
+    }
+
+    /**
+     * Puts batches into the ring, waiting up to {@code connection_timeout_ms} for space. Called
+     * holding {@link #queueLock} but not {@code this}: space is only freed as responses come in, and
+     * handling a response acknowledges batches under {@code this}.
+     *
+     * @return whether every batch was queued; if not, the stream is reset and what was not
+     *         acknowledged is sent again on the next one
+     */
+    private boolean enqueue(List<CoverageData> batches) {
+        int generation = streamGeneration;
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(config.getCollector().getConnectionTimeoutMs());
+        for (int i = 0; i < batches.size(); i++) {
+            byte[] frame = batches.get(i).toByteArray();
+            if (frame.length > ring.maxPayload()) {
+                logger.warn("Coverage batch of {} bytes exceeds the send buffer; lower batch_size or raise buffer_bytes",
+                        frame.length);
+                droppedBatches.add(batches.size() - i);
+                resetStream();
+                return false;
+            }
+            // only this thread waits here: application threads never touch the ring
+            while (!ring.offer(generation, frame)) {
+                if (System.nanoTime() - deadline > 0) {
+                    logger.warn("Collector is not draining coverage batches; reopening the stream");
+                    droppedBatches.add(batches.size() - i);
+                    resetStream();
+                    return false;
+                }
+                LockSupport.unpark(sender);
+                LockSupport.parkNanos(SEND_POLL_NANOS);
+            }
+        }
+        if (!batches.isEmpty()) {
+            LockSupport.unpark(sender);
+            logger.debug("Queued {} coverage batches", batches.size());
+        }
+        return true;
+    }
+
+    private synchronized boolean openSink() {
+        String relaySocket = config.getCollector().getRelaySocket();
+        if (relaySocket != null && !relaySocket.isBlank()) {
+            try {
+                sink = RelaySink.connect(Path.of(relaySocket));
+                if (!config.getCollector().isDeltaWireFormat()) {
+                    logger.info("Coverage relay needs the delta wire format, using it instead of {}",
+                            config.getCollector().getWireFormat());
+                    config.getCollector().setWireFormat("delta");
+                }
+                offline = true;
+                return true;
+            } catch (IOException e) {
+                logger.warn("Coverage relay {} is unavailable, reporting to the collector instead: {}",
+                        relaySocket, e.toString());
+            }
+        }
+        if (config.getOutput().isBinaryDump()) {
+            Path path = dumpPath(config.getOutput().getFilePath());
+            try {
+                sink = BatchSink.dump(path);
+                offline = true;
+                return true;
+            } catch (IOException e) {
+                logger.warn("Cannot write coverage dump {}, reporting to the collector instead: {}", path, e.toString());
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Ends the current coverage epoch and sends everything it counted, the way the collector's
+     * {@code SnapshotCoverage} asks for. Counting carries on from zero in the next epoch; instrumented
+     * code is never blocked, since the swap only replaces the arrays that hits are looked up in.
+     *
+     * @return the id of the epoch that ended, or -1 if there is nowhere to send it and the epoch goes
+     *         on, or if its batches could not be queued and what it counted goes out with the next one
+     */
+    public long snapshot() {
+        synchronized (queueLock) {
+            List<CoverageData> batches;
+            long ended;
+            boolean queued;
+            synchronized (this) {
+                if (offline ? sink == null : !ensureStream()) {
+                    logger.warn("Cannot snapshot coverage: no collector stream or sink is available");
+                    return -1;
+                }
+                batches = endEpoch();
+                ended = batchEpoch;
+                queued = offline && writeSink(batches);
+            }
+            if (!offline) {
+                // like a flush, waits for room in the ring without holding this reporter's lock
+                queued = enqueue(batches);
+            }
+            if (!queued) {
+                logger.warn("Ended coverage epoch {} but could not send it; its counts go out with the next epoch", ended);
+                return -1;
+            }
+            logger.info("Ended coverage epoch {} in {} batches", ended, batches.size());
+            return ended;
+        }
+    }
+
+    /**
+     * Swaps in a new epoch and converts what the ended one counted since the previous flush into
+     * batches, the last of them marked {@value #EPOCH_COMPLETE_METADATA}. What was already sent is
+     * restated against the new epoch's counters, which start from zero.
+     */
+    synchronized List<CoverageData> endEpoch() {
+        ProbeRuntime.Epoch live = ProbeRuntime.swapEpoch();
+        // a hit that read the counters just before the swap may still be writing to them; a hit
+        // later than this is lost, rather than left to corrupt the baseline taken below
+        LockSupport.parkNanos(EPOCH_GRACE_NANOS);
+        long[][] offsets = new long[live.classCount()][];
+        for (int classId = 0; classId < live.classCount(); classId++) {
+            long[] counters = live.counters()[classId];
+            ClassProbes layout = ProbeRuntime.layout(classId);
+            if (layout != null && counters.length == layout.probeCount()) {
+                // a removed probe reads as one in every epoch, so that one goes out again with the next
+                offsets[classId] = ProbeRuntime.withRemovedProbes(classId, counters.clone());
+            }
+        }
+        ProbeRuntime.Epoch ended = new ProbeRuntime.Epoch(live.id(), offsets, live.classCount());
+        List<CoverageData> batches = new ArrayList<>(collectBatches(ended, false));
+        if (batches.isEmpty()) {
+            batches.add(toCoverageData(List.of()));
+        }
+        int last = batches.size() - 1;
+        batches.set(last, batches.get(last).toBuilder().putMetadata(EPOCH_COMPLETE_METADATA, "true").build());
+        deltas.rebase(offsets);
+        return batches;
+    }
+
+    /**
+     * @return whether every batch was written
+     */
+    private boolean writeSink(List<CoverageData> batches) {
+        for (CoverageData batch : batches) {
+            try {
+                sink.write(batch);
+                sent(batch);
+            } catch (IOException e) {
+                if (!sink.resumable()) {
+                    // later batches would build on this one, so the sink ends with the last complete batch
+                    logger.error("Failed to write coverage to {}, no further coverage is recorded: {}", sink, e.toString());
+                    closeSink();
+                    return false;
+                }
+                // the next write opens a new stream: declare everything again and resend what was not written
+                logger.warn("Failed to write coverage to {}, retrying on the next flush: {}", sink, e.toString());
+                encoder.reset();
+                declaredClasses.clear();
+                rollback();
+                return false;
+            }
+            acknowledge(batch.getSequence());
+        }
+        return true;
+    }
+
+    static Path dumpPath(String filePath) {
+        return Path.of(filePath.replace("{pid}", String.valueOf(ProcessHandle.current().pid())));
+    }
+
+    /**
+     * Flushes that found the send buffer at least half full and applied the overflow policy.
+     */
+    long overflowingFlushes() {
+        return overflowingFlushes.sum();
+    }
+
+    /**
+     * Scheduled flushes skipped because the collector had not granted credit for queued batches.
+     */
+    long heldBackFlushes() {
+        return heldBackFlushes.sum();
+    }
+
+    LatencyHistogram flushLatency() {
+        return flushLatency;
+    }
+
+    long batchesSent() {
+        return batchesSent.sum();
+    }
+
+    long bytesSent() {
+        return bytesSent.sum();
+    }
+
+    long droppedBatches() {
+        return droppedBatches.sum();
+    }
+
+    long bufferUsedBytes() {
+        return ring.usedBytes();
+    }
+
+    long bufferCapacity() {
+        return ring.capacity();
+    }
+
+    private void sent(CoverageData batch) {
+        batchesSent.increment();
+        bytesSent.add(batch.getSerializedSize());
+    }
+
+    private void scheduledFlush() {
+        ResponseObserver current = flow;
+        if (current != null && !current.hasCredit() && ring.usedBytes() > 0) {
+            heldBackFlushes.increment();
+            flushBackoff = Math.min(MAX_FLUSH_BACKOFF, flushBackoff + 1);
+        } else {
+            flushBackoff = 0;
+            flushQuietly();
+        }
+        if (!scheduler.isShutdown()) {
+            try {
+                scheduler.schedule(this::scheduledFlush, config.getCollector().getFlushIntervalMs() << flushBackoff,
+                        TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                // closing
+            }
+        }
+    }
+
+    private void sendLoop() {
+        FrameRing.FrameHandler take = (generation, frame) -> {
+            try {
+                pending = CoverageData.parseFrom(frame);
+                pendingGeneration = generation;
+            } catch (InvalidProtocolBufferException e) {
+                droppedBatches.increment();
+                logger.warn("Discarding corrupt coverage frame", e);
+            }
+        };
+        while (sending || pending != null || ring.usedBytes() > 0) {
+            if (pending != null && pendingGeneration != streamGeneration) {
+                droppedBatches.increment();
+                pending = null;
+            }
+            ResponseObserver current = flow;
+            boolean ready = current != null && current.generation == streamGeneration && current.canSend();
+            if (!ready && !sending) {
+                return;
+            }
+            if (ready && (pending != null || ring.poll(take)) && pending != null) {
+                CoverageData batch = pending;
+                pending = null;
+                if (pendingGeneration == current.generation) {
+                    current.send(batch);
+                } else {
+                    droppedBatches.increment();
+                }
+            } else if (!ready || ring.usedBytes() == 0) {
+                // woken by flushes, responses and the stream's ready callback
+                LockSupport.parkNanos(this, SEND_IDLE_NANOS);
+            }
+        }
+    }
+
+    /**
+     * Abandons the current stream and everything queued for it; the next flush opens a new one.
+     */
+    private synchronized void resetStream() {
+        StreamObserver<CoverageData> current = stream;
+        if (current instanceof ClientCallStreamObserver<?> call) {
+            call.cancel("Coverage send buffer overflow", null);
+        }
+        stream = null;
+        rollback();
+    }
+
+    /**
+     * Converts counter increments since the last call into batches of at most {@code batch_size} points.
+     * The first time a class is seen all of its probes are sent, including unexecuted ones, so the
+     * collector learns the class's full probe set.
+     */
+    synchronized List<CoverageData> collectBatches() {
+        return collectBatches(false);
+    }
+
+    /**
+     * @param overflowing apply the {@link OverflowPolicy} instead of sending every change
+     */
+    synchronized List<CoverageData> collectBatches(boolean overflowing) {
+        return collectBatches(ProbeRuntime.currentEpoch(), overflowing);
+    }
+
+    private List<CoverageData> collectBatches(ProbeRuntime.Epoch epoch, boolean overflowing) {
+        batchEpoch = epoch.id();
+        OverflowPolicy overflow = overflowing ? overflowPolicy : null;
+        if (overflow == OverflowPolicy.COALESCE) {
+            return List.of();
+        }
+        int batchSize = Math.max(1, config.getCollector().getBatchSize());
+        int advertised = advertisedBatchPoints;
+        if (advertised > 0) {
+            batchSize = Math.min(batchSize, advertised);
+        }
+        if (config.getCollector().isDeltaWireFormat()) {
+            return collectDeltaBatches(epoch, batchSize, overflow);
+        }
+        boolean dictionary = config.getCollector().isDictionaryWireFormat();
+        List<CoverageData> batches = new ArrayList<>();
+        List<ExecutionPoint> points = new ArrayList<>();
+
+        // increments are tracked per batch like deltas, so batches that are never acknowledged,
+        // dropped with their stream or still in the ring when it is reset, are sent again
+        int classCount = epoch.classCount();
+        for (int classId = 0; classId < classCount; classId++) {
+            ClassProbes layout = ProbeRuntime.layout(classId);
+            long[] counters = epoch.counters()[classId];
+            if (layout == null || counters.length != layout.probeCount()) {
+                // reserved by a transformation still in progress, or defined after the epoch ended
+                continue;
+            }
+            counters = ProbeRuntime.withRemovedProbes(classId, counters);
+            boolean firstFlush = !reportedClasses.get(classId);
+            if (overflow == OverflowPolicy.DROP) {
+                // nothing reported yet of a new class, so nothing to discard; it goes out in full later
+                if (!firstFlush) {
+                    deltas.discardCounts(classId, counters);
+                }
+                continue;
+            }
+            DeltaTracker.Delta delta = overflow == OverflowPolicy.BITS_ONLY && !firstFlush
+                    ? deltas.diffCoverage(classId, counters)
+                    : deltas.diff(classId, counters, false);
+            reportedClasses.set(classId);
+            int changed = 0;
+            for (int probe = 0; probe < counters.length; probe++) {
+                long hits;
+                if (delta != null && changed < delta.count() && delta.probes()[changed] == probe) {
+                    hits = delta.countDeltas()[changed++];
+                } else if (firstFlush) {
+                    hits = 0;
+                } else {
+                    continue;
+                }
+                if (dictionary) {
+                    ClassProbes.Probe descriptor = layout.probes().get(probe);
+                    encoder.add(layout.filePath(), layout.className(), descriptor.methodName(),
+                            descriptor.lineNumber(), descriptor.type(), hits);
+                } else {
+                    points.add(toExecutionPoint(layout, probe, hits));
+                }
+                if (points.size() + encoder.pendingCount() == batchSize) {
+                    batches.add(toCoverageData(points));
+                    points = new ArrayList<>();
+                }
+            }
+        }
+        if (!points.isEmpty() || encoder.hasPending()) {
+            batches.add(toCoverageData(points));
+        }
+        return batches;
+    }
+
+    /**
+     * Delta mode: declares each class's probe layout once per stream, then sends only the probes that
+     * changed since they were last sent, as a bitmap per class plus optional count increments. Tests
+     * finished since the previous flush follow, each with the probes {@link TestAttribution} credited
+     * to it.
+     */
+    private List<CoverageData> collectDeltaBatches(ProbeRuntime.Epoch epoch, int batchSize, OverflowPolicy overflow) {
+        boolean bitsOnly = !config.getCollector().isCountDeltas() || overflow == OverflowPolicy.BITS_ONLY;
+        List<CoverageData> batches = new ArrayList<>();
+        int classCount = epoch.classCount();
+        for (int classId = 0; classId < classCount; classId++) {
+            ClassProbes layout = ProbeRuntime.layout(classId);
+            long[] counters = epoch.counters()[classId];
+            if (layout == null || counters.length != layout.probeCount()) {
+                continue;
+            }
+            counters = ProbeRuntime.withRemovedProbes(classId, counters);
+            if (overflow == OverflowPolicy.DROP) {
+                deltas.discardCounts(classId, counters);
+                continue;
+            }
+            if (!declaredClasses.get(classId)) {
+                declare(layout);
+                declaredClasses.set(classId);
+            }
+            DeltaTracker.Delta delta = overflow == OverflowPolicy.BITS_ONLY
+                    ? deltas.diffCoverage(classId, counters)
+                    : deltas.diff(classId, counters, bitsOnly);
+            if (delta != null) {
+                encoder.addDelta(classId, delta.probes(), bitsOnly ? null : delta.countDeltas(), delta.count());
+            }
+            if (encoder.pendingCount() >= batchSize) {
+                batches.add(toCoverageData(List.of()));
+            }
+        }
+        if (overflow != OverflowPolicy.DROP) {
+            for (TestAttribution.FinishedTest test : TestAttribution.drain()) {
+                for (int classId : test.classIds()) {
+                    if (!declaredClasses.get(classId)) {
+                        declare(ProbeRuntime.layout(classId));
+                        declaredClasses.set(classId);
+                    }
+                }
+                encoder.addTestCoverage(test.testId(), test.classIds(), test.probes());
+                openTests.add(test);
+                if (encoder.pendingCount() >= batchSize) {
+                    batches.add(toCoverageData(List.of()));
+                }
+            }
+        }
+        if (encoder.hasPending()) {
+            batches.add(toCoverageData(List.of()));
+        }
+        return batches;
+    }
+
+    private void declare(ClassProbes layout) {
+        ClassLayout.Builder declaration = encoder.newLayout(layout.classId(), layout.filePath(), layout.className());
+        for (ClassProbes.Probe probe : layout.probes()) {
+            declaration.addMethodIds(encoder.symbol(probe.methodName()))
+                    .addLineNumbers(probe.lineNumber())
+                    .addTypes(probe.type());
+        }
+        encoder.addLayout(declaration);
+    }
+
+    /**
+     * Marks every batch up to {@code sequence} as merged by the collector.
+     */
+    synchronized void acknowledge(long sequence) {
+        deltas.acknowledge(sequence);
+        while (!unacknowledgedTests.isEmpty() && unacknowledgedTests.peekFirst().sequence() <= sequence) {
+            unacknowledgedTests.pollFirst();
+        }
+    }
+
+    /**
+     * Forgets everything sent but not acknowledged, so the next flush sends it again.
+     */
+    private synchronized void rollback() {
+        deltas.rollback();
+        // the batches that listed a class in full may be among those lost
+        reportedClasses.clear();
+        List<TestAttribution.FinishedTest> unsent = new ArrayList<>();
+        for (SentTests sent : unacknowledgedTests) {
+            unsent.addAll(sent.tests());
+        }
+        unacknowledgedTests.clear();
+        TestAttribution.requeue(unsent);
+    }
+
+    /**
+     * Applies the batch size advertised in a collector response.
+     */
+    void advertise(CoverageResponse response) {
+        advertisedBatchPoints = response.getMaxBatchPoints();
+    }
+
+    /**
+     * Runs a snapshot the collector asked for off the gRPC thread, once per snapshot id.
+     */
+    private void snapshotRequested(long snapshotId) {
+        if (snapshotId == lastSnapshotId) {
+            return;
+        }
+        lastSnapshotId = snapshotId;
+        try {
+            scheduler.execute(() -> {
+                try {
+                    snapshot();
+                } catch (RuntimeException e) {
+                    logger.warn("Coverage snapshot failed", e);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // closing: the final flush sends what is left
+        }
+    }
+
+    private synchronized void streamFailed(ResponseObserver failed) {
+        // read under the lock: ensureStream assigns requests while holding it
+        if (stream != null && stream == failed.requests) {
+            stream = null;
+            rollback();
+        }
+    }
+
+    private static ExecutionPoint toExecutionPoint(ClassProbes layout, int probe, long hits) {
+        ClassProbes.Probe descriptor = layout.probes().get(probe);
+        return ExecutionPoint.newBuilder()
+                .setFilePath(layout.filePath())
+                .setClassName(layout.className())
+                .setMethodName(descriptor.methodName())
+                .setLineNumber(descriptor.lineNumber())
+                .setType(descriptor.type())
+                .setHitCount(hits)
+                .build();
+    }
+
+    private CoverageData toCoverageData(List<ExecutionPoint> points) {
+        long batchSequence = ++sequence;
+        deltas.seal(batchSequence);
+        if (!openTests.isEmpty()) {
+            unacknowledgedTests.add(new SentTests(batchSequence, openTests));
+            openTests = new ArrayList<>();
+            if (unacknowledgedTests.size() > DeltaTracker.MAX_UNACKNOWLEDGED_BATCHES) {
+                // as for deltas: a collector that never acknowledges must not hold tests forever
+                unacknowledgedTests.pollFirst();
+            }
+        }
+        CoverageData.Builder data = CoverageData.newBuilder()
+                .setSequence(batchSequence)
+                .setSessionId(sessionId != null ? sessionId : "")
+                .setAgentId(config.getAgent().getId())
+                .setLanguage(config.getAgent().getLanguage())
+                .addAllExecutionPoints(points)
+                .setTimestamp(now())
+                .putAllMetadata(config.getAgent().getMetadata())
+                .putMetadata(EPOCH_METADATA, String.valueOf(batchEpoch));
+        return encoder.finish(data).build();
+    }
+
+    private boolean ensureStream() {
+        if (channel == null) {
+            return false;
+        }
+        if (sessionId == null && !register()) {
+            return false;
+        }
+        if (stream == null) {
+            // the collector keeps one symbol table and set of class layouts per stream
+            encoder.reset();
+            declaredClasses.clear();
+            ResponseObserver responses = new ResponseObserver(++streamGeneration);
+            responses.requests = CoverageServiceGrpc.newStub(channel).streamCoverageData(responses);
+            stream = responses.requests;
+            flow = responses;
+        }
+        return true;
+    }
+
+    private boolean register() {
+        AgentRegistration registration = AgentRegistration.newBuilder()
+                .setAgentId(config.getAgent().getId())
+                .setLanguage(config.getAgent().getLanguage())
+                .setVersion(config.getAgent().getVersion())
+                .setHostname(hostname())
+                .setProcessId(String.valueOf(ProcessHandle.current().pid()))
+                .putAllMetadata(config.getAgent().getMetadata())
+                .setTimestamp(now())
+                .build();
+
+        int attempts = Math.max(1, config.getCollector().getRetryAttempts());
+        for (int attempt = 1; attempt <= attempts; attempt++) {
+            try {
+                AgentRegistrationResponse response = CoverageServiceGrpc.newBlockingStub(channel)
+                        .withDeadlineAfter(config.getCollector().getConnectionTimeoutMs(), TimeUnit.MILLISECONDS)
+                        .registerAgent(registration);
+                if (response.getSuccess()) {
+                    sessionId = response.getSessionId();
+                    logger.info("Registered with collector, session {}", sessionId);
+                    String owner = response.getOwnerAddress();
+                    if (!owner.isEmpty() && !owner.equals(target)) {
+                        redirect(owner);
+                    }
+                    return true;
+                }
+                logger.warn("Collector rejected registration: {}", response.getMessage());
+                return false;
+            } catch (RuntimeException e) {
+                logger.warn("Registration attempt {}/{} failed: {}", attempt, attempts, e.getMessage());
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Moves to the collector that owns this agent's session in a cluster.
+     */
+    private void redirect(String owner) {
+        logger.info("Session {} is owned by collector {}", sessionId, owner);
+        ManagedChannel previous = channel;
+        channel = openChannel(ManagedChannelBuilder.forTarget(owner));
+        target = owner;
+        previous.shutdown();
+    }
+
+    private ManagedChannel openChannel(ManagedChannelBuilder<?> builder) {
+        if (config.getCollector().isTlsEnabled()) {
+            builder.useTransportSecurity();
+        } else {
+            builder.usePlaintext();
+        }
+        return builder.build();
+    }
+
+    private void flushQuietly() {
+        try {
+            flush();
+        } catch (RuntimeException e) {
+            logger.warn("Coverage flush failed", e);
+        }
+    }
+
+    @Override
+    public void close() {
+        scheduler.shutdown();
+        flushQuietly();
+        // let the sender drain what is queued while the stream accepts it, then stop it
+        sending = false;
+        if (sender != null) {
+            LockSupport.unpark(sender);
+            try {
+                sender.join(config.getCollector().getConnectionTimeoutMs());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        StreamObserver<CoverageData> current = stream;
+        if (current != null) {
+            current.onCompleted();
+        }
+        closeSink();
+        if (channel != null) {
+            channel.shutdown();
+            try {
+                channel.awaitTermination(config.getCollector().getConnectionTimeoutMs(), TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private synchronized void closeSink() {
+        if (sink != null) {
+            try {
+                sink.close();
+                logger.info("Wrote {}", sink);
+            } catch (IOException e) {
+                logger.warn("Failed to close {}", sink, e);
+            }
+            sink = null;
+        }
+    }
+
+    private static Timestamp now() {
+        Instant now = Instant.now();
+        return Timestamp.newBuilder().setSeconds(now.getEpochSecond()).setNanos(now.getNano()).build();
+    }
+
+    private static String hostname() {
+        try {
+            return InetAddress.getLocalHost().getHostName();
+        } catch (Exception e) {
+            return "unknown";
+        }
+    }
+
+    /**
+     * Responses of one stream, and the flow control credit it holds.
+     */
+    private class ResponseObserver implements ClientResponseObserver<CoverageData, CoverageResponse> {
+
+        private final int generation;
+        private StreamObserver<CoverageData> requests;
+        private ClientCallStreamObserver<CoverageData> call;
+        /** Batches sent without a response yet. */
+        private final AtomicInteger outstanding = new AtomicInteger();
+        private volatile int window = INITIAL_WINDOW;
+
+        ResponseObserver(int generation) {
+            this.generation = generation;
+        }
+
+        @Override
+        public void beforeStart(ClientCallStreamObserver<CoverageData> requestStream) {
+            call = requestStream;
+            requestStream.disableAutoRequestWithInitial(1);
+            requestStream.setOnReadyHandler(() -> LockSupport.unpark(sender));
+        }
+
+        boolean hasCredit() {
+            return outstanding.get() < window;
+        }
+
+        boolean canSend() {
+            return hasCredit() && (call == null || call.isReady());
+        }
+
+        void send(CoverageData batch) {
+            outstanding.incrementAndGet();
+            try {
+                requests.onNext(batch);
+                sent(batch);
+            } catch (RuntimeException e) {
+                // this observer reports the failure and the flush thread reopens the stream
+                logger.debug("Coverage send failed: {}", e.toString());
+            }
+        }
+
+        @Override
+        public void onNext(CoverageResponse response) {
+            if (response.getSnapshotId() != 0) {
+                // sent unprompted: not a reply to a batch, so the window stays as it is
+                snapshotRequested(response.getSnapshotId());
+                if (call != null) {
+                    call.request(1);
+                }
+                return;
+            }
+            // credit first: it takes no lock, while acknowledging waits for any flush that is collecting
+            outstanding.decrementAndGet();
+            // a collector that advertises no window leaves the stream unlimited, as before
+            window = response.getWindowBatches() > 0 ? response.getWindowBatches() : Integer.MAX_VALUE;
+            advertise(response);
+            LockSupport.unpark(sender);
+            if (!response.getSuccess()) {
+                logger.warn("Collector reported failure: {}", response.getMessage());
+            } else if (response.getAcknowledgedSequence() > 0) {
+                acknowledge(response.getAcknowledgedSequence());
+            }
+            if (call != null) {
+                call.request(1);
+            }
+        }
+
+        @Override
+        public void onError(Throwable t) {
+            logger.warn("Coverage stream failed: {}", t.getMessage());
+            streamFailed(this);
+        }
+
+        @Override
+        public void onCompleted() {
+            streamFailed(this);
+        }
+    }
+}
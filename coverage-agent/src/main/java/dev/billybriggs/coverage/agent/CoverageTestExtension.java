@@ -0,0 +1,31 @@
+package dev.billybriggs.coverage.agent;
+
+import org.junit.jupiter.api.extension.AfterEachCallback;
+import org.junit.jupiter.api.extension.BeforeEachCallback;
+import org.junit.jupiter.api.extension.ExtensionContext;
+
+/**
+ * JUnit 5 extension that credits coverage to the running test through {@link TestAttribution}.
+ *
+ * <p>Register it with {@code @ExtendWith(CoverageTestExtension.class)}, or for every test by
+ * running with {@code junit.jupiter.extensions.autodetection.enabled=true} while the agent jar is
+ * on the test classpath. Tests are identified as {@code ClassName#methodName}, so the invocations of
+ * a parameterized or repeated test share one id. Surefire forks should not run tests in parallel
+ * within a JVM; see {@link TestAttribution}.
+ */
+public class CoverageTestExtension implements BeforeEachCallback, AfterEachCallback {
+
+    @Override
+    public void beforeEach(ExtensionContext context) {
+        TestAttribution.testStarted(testId(context));
+    }
+
+    @Override
+    public void afterEach(ExtensionContext context) {
+        TestAttribution.testFinished();
+    }
+
+    static String testId(ExtensionContext context) {
+        return context.getRequiredTestClass().getName() + "#" + context.getRequiredTestMethod().getName();
+    }
+}
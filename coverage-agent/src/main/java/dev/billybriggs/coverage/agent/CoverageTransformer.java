@@ -0,0 +1,282 @@
+package dev.billybriggs.coverage.agent;
+
+import dev.billybriggs.coverage.common.proto.CoverageProto.CoverageType;
+import net.bytebuddy.agent.builder.AgentBuilder;
+import net.bytebuddy.description.method.MethodDescription;
+import net.bytebuddy.description.type.TypeDescription;
+import net.bytebuddy.dynamic.DynamicType;
+import net.bytebuddy.matcher.ElementMatcher;
+import net.bytebuddy.utility.JavaModule;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.security.ProtectionDomain;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+
+import static net.bytebuddy.matcher.ElementMatchers.isAbstract;
+import static net.bytebuddy.matcher.ElementMatchers.isConstructor;
+import static net.bytebuddy.matcher.ElementMatchers.isDefaultMethod;
+import static net.bytebuddy.matcher.ElementMatchers.isMethod;
+import static net.bytebuddy.matcher.ElementMatchers.isNative;
+import static net.bytebuddy.matcher.ElementMatchers.isStatic;
+import static net.bytebuddy.matcher.ElementMatchers.isSynthetic;
+import static net.bytebuddy.matcher.ElementMatchers.not;
+
+/**
+ * ByteBuddy transformer that inserts probes into matching classes.
+ *
+ * <p>Each transformed class gets a probe at entry to every method, plus line and branch probes as
+ * the configured coverage types ask. {@link ProbeInserter} writes them into the bytecode as calls to
+ * {@link ProbeRuntime#hit(int, int)} (or {@link ProbeRuntime#sampledHit(int, int)} when sampling)
+ * with the class id and probe index baked in as constants, so the hot path never builds an
+ * {@code ExecutionPoint} or touches a string, and registers the class layout with
+ * {@link ProbeRuntime} before the class is defined.
+ *
+ * <p>Instrumented classes are remembered per class loader. When a class is retransformed it keeps
+ * its id and counters; with {@code removeSaturatedProbes}, probes that have already fired are left
+ * out, and a class whose every probe has fired is not matched at all, so the JVM restores its
+ * original bytecode.
+ *
+ * <p>In lazy mode a class first gets only entry probes on its constructors, static and default
+ * methods, the code paths through which a class can first be used. The first entry hands the class
+ * to {@link LazyInstrumenter}, which retransforms it with full probes in the background.
+ *
+ * <p>For {@link BytecodeCache}, first-time instrumentation can bind {@link #LINK_PLACEHOLDER} in
+ * place of the class id, so the output can be stored and relinked to a fresh id in a later run.
+ */
+public class CoverageTransformer implements AgentBuilder.Transformer {
+
+    private static final Logger logger = LoggerFactory.getLogger(CoverageTransformer.class);
+
+    static final ElementMatcher.Junction<MethodDescription> PROBED_METHODS = isMethod().or(isConstructor())
+            .and(not(isAbstract()))
+            .and(not(isNative()))
+            .and(not(isSynthetic()));
+
+    /** Methods through which a class can first be entered: instance methods need a constructor to run first. */
+    static final ElementMatcher.Junction<MethodDescription> ENTRY_METHODS = PROBED_METHODS
+            .and(isConstructor().or(isStatic()).or(isDefaultMethod()));
+
+    /**
+     * Class id bound while {@link #bindPlaceholder} is set. Large enough to be loaded with
+     * {@code ldc}, so it appears exactly once in the constant pool, where it can be patched.
+     */
+    static final int LINK_PLACEHOLDER = 0x5EC0DE17;
+
+    private final ClassFilter classFilter;
+    private final boolean removeSaturatedProbes;
+    private final boolean lazy;
+    private final boolean sampled;
+    private final boolean lineProbes;
+    private final boolean branchProbes;
+    private final Map<ClassLoader, Map<String, InstrumentedClass>> instrumented = new WeakHashMap<>();
+    private final Map<ClassLoader, Map<String, InstrumentedClass>> deferred = new WeakHashMap<>();
+    private final Map<Integer, InstrumentedClass> deferredById = new HashMap<>();
+    private final ThreadLocal<Boolean> placeholder = ThreadLocal.withInitial(() -> Boolean.FALSE);
+
+    public CoverageTransformer(ClassFilter classFilter) {
+        this(classFilter, false, false, false);
+    }
+
+    /**
+     * @param removeSaturatedProbes on retransformation, drop probes that have already fired
+     * @param lazy                  add only entry probes at load time; full probes once the class is used
+     * @param sampled               count hits through {@link ProbeSampler}; first hits stay exact
+     */
+    public CoverageTransformer(ClassFilter classFilter, boolean removeSaturatedProbes, boolean lazy, boolean sampled) {
+        this(classFilter, removeSaturatedProbes, lazy, sampled, EnumSet.of(CoverageType.COVERAGE_TYPE_METHOD,
+                CoverageType.COVERAGE_TYPE_LINE, CoverageType.COVERAGE_TYPE_BRANCH));
+    }
+
+    /**
+     * @param probeTypes kinds of probes to insert; method probes are inserted regardless, since
+     *                   lazy mode, de-instrumentation and the bytecode cache key on them
+     */
+    public CoverageTransformer(ClassFilter classFilter, boolean removeSaturatedProbes, boolean lazy, boolean sampled,
+                               Set<CoverageType> probeTypes) {
+        this.classFilter = classFilter;
+        this.removeSaturatedProbes = removeSaturatedProbes;
+        this.lazy = lazy;
+        this.sampled = sampled;
+        this.lineProbes = probeTypes.contains(CoverageType.COVERAGE_TYPE_LINE);
+        this.branchProbes = probeTypes.contains(CoverageType.COVERAGE_TYPE_BRANCH);
+    }
+
+    ClassFilter classFilter() {
+        return classFilter;
+    }
+
+    /**
+     * Sets whether classes instrumented for the first time on this thread bind
+     * {@link #LINK_PLACEHOLDER} instead of their class id.
+     *
+     * @return the previous setting, to be restored afterwards
+     */
+    boolean bindPlaceholder(boolean enabled) {
+        boolean previous = placeholder.get();
+        placeholder.set(enabled);
+        return previous;
+    }
+
+    /**
+     * The instrumented class registered for a binary class name, or {@code null}.
+     */
+    InstrumentedClass instrumentedClass(ClassLoader classLoader, String className) {
+        return lookup(instrumented, classLoader, className);
+    }
+
+    /**
+     * Registers a class whose instrumented bytecode came from {@link BytecodeCache} rather than
+     * from this transformer, so that it is reported and retransformed like any other.
+     */
+    InstrumentedClass restore(ClassLoader classLoader, String className, String filePath,
+                              List<ClassProbes.Probe> probes, Map<String, Integer> probeIndexes) {
+        return register(instrumented, className, filePath, classLoader, probes, probeIndexes);
+    }
+
+    /**
+     * Matcher for the types this transformer should be applied to.
+     */
+    public ElementMatcher<TypeDescription> typeMatcher() {
+        // the name is known without parsing the class file; isAnnotation() is not
+        return type -> classFilter.matches(type.getInternalName()) && !type.isAnnotation();
+    }
+
+    /**
+     * {@link #typeMatcher()} that also declines to retransform fully saturated classes when
+     * {@code removeSaturatedProbes} is set.
+     */
+    public AgentBuilder.RawMatcher rawMatcher() {
+        ElementMatcher<TypeDescription> types = typeMatcher();
+        return (type, classLoader, module, classBeingRedefined, protectionDomain) -> {
+            if (!types.matches(type)) {
+                return false;
+            }
+            if (removeSaturatedProbes && classBeingRedefined != null) {
+                InstrumentedClass existing = lookup(instrumented, classLoader, type.getName());
+                if (existing != null && existing.isFullySaturated()) {
+                    // declining restores the original bytecode, which has none of the probes
+                    existing.removeAllProbes();
+                    return false;
+                }
+                return true;
+            }
+            return true;
+        };
+    }
+
+    /**
+     * Snapshot of every class instrumented so far.
+     */
+    List<InstrumentedClass> instrumentedClasses() {
+        synchronized (instrumented) {
+            List<InstrumentedClass> classes = new ArrayList<>();
+            instrumented.values().forEach(byName -> classes.addAll(byName.values()));
+            return classes;
+        }
+    }
+
+    /**
+     * The entry-probed class with the given id, or {@code null} if there is none.
+     */
+    InstrumentedClass deferredClass(int classId) {
+        synchronized (deferred) {
+            return deferredById.get(classId);
+        }
+    }
+
+    @Override
+    public DynamicType.Builder<?> transform(DynamicType.Builder<?> builder,
+                                            TypeDescription typeDescription,
+                                            ClassLoader classLoader,
+                                            JavaModule module,
+                                            ProtectionDomain protectionDomain) {
+        InstrumentedClass target = lookup(instrumented, classLoader, typeDescription.getName());
+        if (target == null && lazy) {
+            InstrumentedClass entry = lookup(deferred, classLoader, typeDescription.getName());
+            if (entry == null) {
+                entry = register(deferred, typeDescription, classLoader, ENTRY_METHODS);
+                if (entry != null) {
+                    LazyProbes.track(entry.layout().classId());
+                    synchronized (deferred) {
+                        deferredById.put(entry.layout().classId(), entry);
+                    }
+                }
+            }
+            if (entry != null && !LazyProbes.isActivated(entry.layout().classId())) {
+                return builder.visit(ProbeInserter.entryProbes(ProbeInserter.Hook.FIRST_ENTRY, entry));
+            }
+        }
+
+        ProbeInserter.Hook hook = sampled ? ProbeInserter.Hook.SAMPLED_HIT : ProbeInserter.Hook.HIT;
+        if (target == null) {
+            return builder.visit(ProbeInserter.firstTime(hook, lineProbes, branchProbes, placeholder.get(),
+                    (layout, probeIndexes) -> register(instrumented, layout, probeIndexes, classLoader)));
+        }
+        if (removeSaturatedProbes) {
+            logger.debug("Retransforming {} without {} saturated probes",
+                    typeDescription.getName(), target.saturatedProbeCount());
+        }
+        return builder.visit(ProbeInserter.retransform(hook, target, lineProbes, branchProbes, removeSaturatedProbes));
+    }
+
+    private static InstrumentedClass register(Map<ClassLoader, Map<String, InstrumentedClass>> registry,
+                                              TypeDescription typeDescription, ClassLoader classLoader,
+                                              ElementMatcher<MethodDescription> probedMethods) {
+        List<ClassProbes.Probe> probes = new ArrayList<>();
+        Map<String, Integer> probeIndexes = new HashMap<>();
+        for (MethodDescription.InDefinedShape method : typeDescription.getDeclaredMethods().filter(probedMethods)) {
+            probeIndexes.put(signature(method), probes.size());
+            probes.add(new ClassProbes.Probe(method.getInternalName(), 0, CoverageType.COVERAGE_TYPE_METHOD));
+        }
+        if (probes.isEmpty()) {
+            return null;
+        }
+        return register(registry, typeDescription.getName(), sourcePath(typeDescription), classLoader, probes, probeIndexes);
+    }
+
+    private static InstrumentedClass register(Map<ClassLoader, Map<String, InstrumentedClass>> registry,
+                                              String className, String filePath, ClassLoader classLoader,
+                                              List<ClassProbes.Probe> probes, Map<String, Integer> probeIndexes) {
+        return register(registry, ProbeRuntime.register(className, filePath, probes), probeIndexes, classLoader);
+    }
+
+    private static InstrumentedClass register(Map<ClassLoader, Map<String, InstrumentedClass>> registry,
+                                              ClassProbes layout, Map<String, Integer> probeIndexes,
+                                              ClassLoader classLoader) {
+        logger.debug("Instrumenting {} with {} probes (class id {})",
+                layout.className(), layout.probeCount(), layout.classId());
+        InstrumentedClass registered = new InstrumentedClass(layout, probeIndexes, classLoader);
+        synchronized (registry) {
+            registry.computeIfAbsent(classLoader, loader -> new HashMap<>()).put(layout.className(), registered);
+        }
+        return registered;
+    }
+
+    private static InstrumentedClass lookup(Map<ClassLoader, Map<String, InstrumentedClass>> registry,
+                                            ClassLoader classLoader, String className) {
+        synchronized (registry) {
+            Map<String, InstrumentedClass> byName = registry.get(classLoader);
+            return byName != null ? byName.get(className) : null;
+        }
+    }
+
+    /**
+     * Best-effort source path derived from the outermost class name, e.g. {@code com/example/Calculator.java}.
+     */
+    static String sourcePath(TypeDescription type) {
+        String internalName = type.getInternalName();
+        int nested = internalName.indexOf('$');
+        return (nested > 0 ? internalName.substring(0, nested) : internalName) + ".java";
+    }
+
+    private static String signature(MethodDescription method) {
+        return method.getInternalName() + method.getDescriptor();
+    }
+}
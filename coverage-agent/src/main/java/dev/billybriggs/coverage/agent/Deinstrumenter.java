@@ -0,0 +1,107 @@
+package dev.billybriggs.coverage.agent;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.instrument.Instrumentation;
+import java.lang.instrument.UnmodifiableClassException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Removes probes that can no longer change coverage. Periodically scans instrumented classes and
+ * retransforms those with probes that fired since their last retransformation; the transformer
+ * then leaves out saturated probes and restores fully saturated classes to their
+ * original bytecode.
+ *
+ * <p>The counters of removed probes stop at whatever they held at that point: coverage stays exact,
+ * hit counts become lower bounds. After an epoch swap a removed probe reads as executed once, as
+ * {@link ProbeRuntime} keeps track of removed probes apart from the counters.
+ */
+final class Deinstrumenter implements AutoCloseable {
+
+    private static final Logger logger = LoggerFactory.getLogger(Deinstrumenter.class);
+
+    private final Instrumentation instrumentation;
+    private final CoverageTransformer transformer;
+    private final long scanIntervalMs;
+    private ScheduledExecutorService scheduler;
+    private long retransformedClasses;
+
+    Deinstrumenter(Instrumentation instrumentation, CoverageTransformer transformer, long scanIntervalMs) {
+        this.instrumentation = instrumentation;
+        this.transformer = transformer;
+        this.scanIntervalMs = scanIntervalMs;
+    }
+
+    void start() {
+        scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "coverage-deinstrumenter");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleWithFixedDelay(this::scanQuietly, scanIntervalMs, scanIntervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Retransforms every class that gained saturated probes since it was last retransformed.
+     *
+     * @return the number of classes retransformed
+     */
+    synchronized int scan() {
+        List<Class<?>> classes = new ArrayList<>();
+        List<InstrumentedClass> targets = new ArrayList<>();
+        List<Integer> saturation = new ArrayList<>();
+        for (InstrumentedClass candidate : transformer.instrumentedClasses()) {
+            int saturated = candidate.saturatedProbeCount();
+            if (saturated <= candidate.removedProbes()) {
+                continue;
+            }
+            Class<?> type = candidate.loadedClass();
+            if (type != null && instrumentation.isModifiableClass(type)) {
+                classes.add(type);
+                targets.add(candidate);
+                saturation.add(saturated);
+            }
+        }
+        int retransformed = 0;
+        for (int i = 0; i < classes.size(); i++) {
+            try {
+                instrumentation.retransformClasses(classes.get(i));
+                targets.get(i).removedProbes(saturation.get(i));
+                retransformed++;
+            } catch (UnmodifiableClassException | RuntimeException | LinkageError e) {
+                // leave the probes in place and stop considering the class
+                targets.get(i).removedProbes(targets.get(i).layout().probeCount());
+                logger.debug("Could not de-instrument {}: {}", classes.get(i).getName(), e.toString());
+            }
+        }
+        if (retransformed > 0) {
+            retransformedClasses += retransformed;
+            logger.debug("De-instrumented saturated probes in {} classes ({} total)", retransformed, retransformedClasses);
+        }
+        return retransformed;
+    }
+
+    synchronized long retransformedClasses() {
+        return retransformedClasses;
+    }
+
+    private void scanQuietly() {
+        try {
+            scan();
+        } catch (RuntimeException e) {
+            logger.warn("Saturation scan failed", e);
+        }
+    }
+
+    @Override
+    public void close() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,221 @@
+package dev.billybriggs.coverage.agent;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * Tracks which probe values the collector has acknowledged, for delta flushes.
+ *
+ * <p>{@link #diff} compares live counters against the values already sent and returns only the
+ * probes that changed. The changes are grouped per batch by {@link #seal(long)}; when the collector
+ * acknowledges a batch its values become the new acknowledged baseline. If the stream fails, the
+ * sent values fall back to that baseline so the next flush re-sends everything that was not
+ * acknowledged. Delivery is therefore at-least-once: a batch merged by the collector whose
+ * acknowledgement was lost is counted twice. Coverage bits are unaffected.
+ *
+ * <p>Not thread-safe; callers synchronize.
+ */
+final class DeltaTracker {
+
+    /**
+     * Changed probes of one class: indexes in increasing order and their count increments.
+     */
+    record Delta(int[] probes, long[] countDeltas, int count) {
+    }
+
+    private record Change(int classId, int[] probes, long[] values, int count) {
+    }
+
+    private record Batch(long sequence, List<Change> changes) {
+    }
+
+    /** Batches kept for re-sending; beyond this the oldest is assumed delivered. */
+    static final int MAX_UNACKNOWLEDGED_BATCHES = 4096;
+
+    private long[][] sent = new long[0][];
+    private long[][] acknowledged = new long[0][];
+    private final Deque<Batch> unacknowledged = new ArrayDeque<>();
+    private List<Change> open = new ArrayList<>();
+
+    /**
+     * Returns the probes of {@code classId} that changed since they were last sent, or {@code null}.
+     *
+     * @param bitsOnly report only probes that went from unexecuted to executed
+     */
+    Delta diff(int classId, long[] counters, boolean bitsOnly) {
+        long[] previous = sentFor(classId, counters.length);
+        int[] probes = null;
+        long[] deltas = null;
+        long[] values = null;
+        int count = 0;
+        for (int probe = 0; probe < counters.length; probe++) {
+            long current = counters[probe];
+            boolean changed = bitsOnly ? current != 0 && previous[probe] == 0 : current != previous[probe];
+            if (!changed) {
+                continue;
+            }
+            if (probes == null) {
+                probes = new int[Math.min(counters.length, 16)];
+                deltas = new long[probes.length];
+                values = new long[probes.length];
+            } else if (count == probes.length) {
+                probes = Arrays.copyOf(probes, Math.min(counters.length, count * 2));
+                deltas = Arrays.copyOf(deltas, probes.length);
+                values = Arrays.copyOf(values, probes.length);
+            }
+            probes[count] = probe;
+            deltas[count] = current - previous[probe];
+            values[count] = current;
+            previous[probe] = current;
+            count++;
+        }
+        if (count == 0) {
+            return null;
+        }
+        open.add(new Change(classId, probes, values, count));
+        return new Delta(probes, deltas, count);
+    }
+
+    /**
+     * Returns the probes of {@code classId} executed for the first time since they were last sent,
+     * or {@code null}. They are recorded as sent with a count of one, so the rest of their count
+     * goes out with a later {@link #diff}.
+     */
+    Delta diffCoverage(int classId, long[] counters) {
+        long[] previous = sentFor(classId, counters.length);
+        int[] probes = new int[counters.length];
+        int count = 0;
+        for (int probe = 0; probe < counters.length; probe++) {
+            if (counters[probe] != 0 && previous[probe] == 0) {
+                probes[count++] = probe;
+                previous[probe] = 1;
+            }
+        }
+        if (count == 0) {
+            return null;
+        }
+        long[] values = new long[count];
+        Arrays.fill(values, 1);
+        open.add(new Change(classId, Arrays.copyOf(probes, count), values, count));
+        return new Delta(probes, values, count);
+    }
+
+    /**
+     * Marks the counts of probes already sent as covered as sent, without sending them. Probes not
+     * yet sent are left alone so their coverage still goes out.
+     */
+    void discardCounts(int classId, long[] counters) {
+        long[] previous = sentFor(classId, counters.length);
+        for (int probe = 0; probe < counters.length; probe++) {
+            if (previous[probe] != 0) {
+                previous[probe] = counters[probe];
+            }
+        }
+    }
+
+    /**
+     * Assigns every change diffed since the previous seal to the batch with {@code sequence}.
+     */
+    void seal(long sequence) {
+        if (!open.isEmpty()) {
+            unacknowledged.add(new Batch(sequence, open));
+            open = new ArrayList<>();
+        }
+        if (unacknowledged.size() > MAX_UNACKNOWLEDGED_BATCHES) {
+            // collectors that predate acknowledgements never ack; bound the memory held for them
+            acknowledge(unacknowledged.peekFirst().sequence());
+        }
+    }
+
+    /**
+     * Promotes all batches up to and including {@code sequence} to the acknowledged baseline.
+     */
+    void acknowledge(long sequence) {
+        while (!unacknowledged.isEmpty() && unacknowledged.peekFirst().sequence() <= sequence) {
+            for (Change change : unacknowledged.pollFirst().changes()) {
+                long[] baseline = acknowledgedFor(change.classId(), sentFor(change.classId(), 0).length);
+                for (int i = 0; i < change.count(); i++) {
+                    baseline[change.probes()[i]] = change.values()[i];
+                }
+            }
+        }
+    }
+
+    /**
+     * Forgets everything sent but not acknowledged; the next diff reports it again.
+     */
+    void rollback() {
+        unacknowledged.clear();
+        open = new ArrayList<>();
+        for (int classId = 0; classId < sent.length; classId++) {
+            if (sent[classId] != null) {
+                long[] baseline = acknowledgedFor(classId, sent[classId].length);
+                sent[classId] = Arrays.copyOf(baseline, baseline.length);
+            }
+        }
+    }
+
+    /**
+     * Restates everything tracked relative to the final counter values of an epoch that has
+     * ended, for counters that restart from zero; {@code offsets[classId]} is {@code null} for
+     * classes to leave alone. Values sent but not acknowledged end up below zero, so if they have
+     * to be sent again after a {@link #rollback()}, they go out as part of the new epoch.
+     */
+    void rebase(long[][] offsets) {
+        for (int classId = 0; classId < offsets.length && classId < sent.length; classId++) {
+            if (offsets[classId] != null && sent[classId] != null) {
+                subtract(sent[classId], offsets[classId]);
+                // a baseline not created yet is all zeros, which must be restated too
+                subtract(acknowledgedFor(classId, sent[classId].length), offsets[classId]);
+            }
+        }
+        for (Batch batch : unacknowledged) {
+            rebase(batch.changes(), offsets);
+        }
+        rebase(open, offsets);
+    }
+
+    private static void rebase(List<Change> changes, long[][] offsets) {
+        for (Change change : changes) {
+            long[] offset = change.classId() < offsets.length ? offsets[change.classId()] : null;
+            if (offset != null) {
+                for (int i = 0; i < change.count(); i++) {
+                    change.values()[i] -= offset[change.probes()[i]];
+                }
+            }
+        }
+    }
+
+    private static void subtract(long[] values, long[] offset) {
+        for (int probe = 0; probe < values.length && probe < offset.length; probe++) {
+            values[probe] -= offset[probe];
+        }
+    }
+
+    int unacknowledgedBatches() {
+        return unacknowledged.size();
+    }
+
+    private long[] sentFor(int classId, int probeCount) {
+        if (sent.length <= classId) {
+            sent = Arrays.copyOf(sent, Math.max(classId + 1, sent.length * 2));
+        }
+        if (sent[classId] == null) {
+            sent[classId] = new long[probeCount];
+        }
+        return sent[classId];
+    }
+
+    private long[] acknowledgedFor(int classId, int probeCount) {
+        if (acknowledged.length <= classId) {
+            acknowledged = Arrays.copyOf(acknowledged, Math.max(classId + 1, acknowledged.length * 2));
+        }
+        if (acknowledged[classId] == null) {
+            acknowledged[classId] = new long[probeCount];
+        }
+        return acknowledged[classId];
+    }
+}
@@ -0,0 +1,152 @@
+package dev.billybriggs.coverage.agent;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounded multi-producer, single-consumer ring of tagged byte frames in one direct buffer.
+ *
+ * <p>Producers claim space with a compare-and-set on the tail, copy their frame in and publish it
+ * by writing its length last with release semantics; the consumer reads the length with acquire
+ * semantics, so it never sees a partly written frame. The consumer zeroes what it has read before
+ * advancing the head, which keeps unpublished slots at length zero. Neither side takes a lock or
+ * allocates on the heap for the buffer itself, and memory is fixed at construction.
+ *
+ * <p>Each record is {@code length, tag, payload}, padded to 8 bytes. A frame that would straddle
+ * the end of the buffer is preceded by a padding record and written at the start.
+ */
+final class FrameRing {
+
+    /** Functional interface for {@link #poll}. */
+    @FunctionalInterface
+    interface FrameHandler {
+        void onFrame(int tag, byte[] payload);
+    }
+
+    private static final VarHandle INT = MethodHandles.byteBufferViewVarHandle(int[].class, ByteOrder.nativeOrder());
+
+    private static final int HEADER_BYTES = 8;
+    private static final int ALIGNMENT = 8;
+    private static final int PADDING_TAG = Integer.MIN_VALUE;
+
+    private final ByteBuffer buffer;
+    private final int capacity;
+    private final int mask;
+    private final AtomicLong tail = new AtomicLong();
+    private volatile long head;
+    private final LongAdder rejected = new LongAdder();
+
+    /**
+     * @param capacityBytes rounded up to a power of two, at least 64 bytes
+     */
+    FrameRing(int capacityBytes) {
+        int size = capacityBytes <= 64 ? 64 : Integer.highestOneBit(capacityBytes - 1) << 1;
+        if (size < 0) {
+            throw new IllegalArgumentException("Ring capacity too large: " + capacityBytes);
+        }
+        capacity = size;
+        mask = size - 1;
+        buffer = ByteBuffer.allocateDirect(size).order(ByteOrder.nativeOrder());
+    }
+
+    int capacity() {
+        return capacity;
+    }
+
+    /**
+     * Bytes currently claimed by frames not yet consumed, including padding.
+     */
+    long usedBytes() {
+        return tail.get() - head;
+    }
+
+    /**
+     * Frames refused because the ring was full.
+     */
+    long rejectedFrames() {
+        return rejected.sum();
+    }
+
+    /**
+     * Largest payload that fits in an empty ring.
+     */
+    int maxPayload() {
+        return capacity / 2 - HEADER_BYTES;
+    }
+
+    /**
+     * Appends a frame, or returns {@code false} without blocking if there is no room.
+     *
+     * @param tag any value except {@link Integer#MIN_VALUE}
+     */
+    boolean offer(int tag, byte[] payload) {
+        if (tag == PADDING_TAG || payload.length > maxPayload()) {
+            throw new IllegalArgumentException("Frame of " + payload.length + " bytes with tag " + tag);
+        }
+        int length = HEADER_BYTES + payload.length;
+        int aligned = align(length);
+        while (true) {
+            long currentHead = head;
+            long currentTail = tail.get();
+            int offset = (int) (currentTail & mask);
+            int toEnd = capacity - offset;
+            int required = aligned > toEnd ? toEnd + aligned : aligned;
+            if (required > capacity - (currentTail - currentHead)) {
+                rejected.increment();
+                return false;
+            }
+            if (!tail.compareAndSet(currentTail, currentTail + required)) {
+                continue;
+            }
+            if (aligned > toEnd) {
+                buffer.putInt(offset + Integer.BYTES, PADDING_TAG);
+                INT.setRelease(buffer, offset, toEnd);
+                offset = 0;
+            }
+            buffer.putInt(offset + Integer.BYTES, tag);
+            buffer.put(offset + HEADER_BYTES, payload);
+            INT.setRelease(buffer, offset, length);
+            return true;
+        }
+    }
+
+    /**
+     * Hands the oldest published frame to {@code handler}. Must only be called by the consumer.
+     *
+     * @return {@code false} if no frame was ready
+     */
+    boolean poll(FrameHandler handler) {
+        while (true) {
+            long currentHead = head;
+            int offset = (int) (currentHead & mask);
+            int length = (int) INT.getAcquire(buffer, offset);
+            if (length == 0) {
+                return false;
+            }
+            int tag = buffer.getInt(offset + Integer.BYTES);
+            byte[] payload = null;
+            if (tag != PADDING_TAG) {
+                payload = new byte[length - HEADER_BYTES];
+                buffer.get(offset + HEADER_BYTES, payload);
+            }
+            int aligned = align(length);
+            for (int i = 0; i < aligned; i += Long.BYTES) {
+                buffer.putLong(offset + i, 0L);
+            }
+            // the volatile write publishes the zeroed slots before producers can claim them
+            head = currentHead + aligned;
+            if (payload != null) {
+                handler.onFrame(tag, payload);
+                return true;
+            }
+        }
+    }
+
+    private static int align(int length) {
+        return (length + ALIGNMENT - 1) & -ALIGNMENT;
+    }
+}
@@ -0,0 +1,149 @@
+package dev.billybriggs.coverage.agent;
+
+import dev.billybriggs.coverage.common.metrics.LatencyHistogram;
+import net.bytebuddy.agent.builder.AgentBuilder;
+import net.bytebuddy.description.type.TypeDescription;
+import net.bytebuddy.dynamic.DynamicType;
+import net.bytebuddy.utility.JavaModule;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts what the agent costs the application at class-load time: classes considered and skipped by
+ * the {@link ClassFilter}, classes transformed and the time spent on them, how many lazily
+ * instrumented classes were later activated, and how far instrumenting the classes loaded before a
+ * dynamic attach has got.
+ *
+ * <p>Transformation time is measured from discovery to completion of each transformed type on the
+ * loading thread. Types loaded while another is being transformed are timed separately.
+ */
+final class InstrumentationMetrics extends AgentBuilder.Listener.Adapter {
+
+    private final ClassFilter classFilter;
+    private final LongAdder typesSeen = new LongAdder();
+    private final LongAdder typesTransformed = new LongAdder();
+    private final LongAdder transformNanos = new LongAdder();
+    private final LatencyHistogram transformLatency = new LatencyHistogram();
+    private final LongAdder errors = new LongAdder();
+    private final LongAdder lazyActivations = new LongAdder();
+    private final LongAdder loadedClassesRetransformed = new LongAdder();
+    private volatile long loadedClassesFound;
+    private final ThreadLocal<Deque<long[]>> inFlight = ThreadLocal.withInitial(ArrayDeque::new);
+    private volatile long agentStartupNanos;
+
+    InstrumentationMetrics(ClassFilter classFilter) {
+        this.classFilter = classFilter;
+    }
+
+    @Override
+    public void onDiscovery(String typeName, ClassLoader classLoader, JavaModule module, boolean loaded) {
+        typesSeen.increment();
+        // {start, transformed}
+        inFlight.get().push(new long[]{System.nanoTime(), 0});
+    }
+
+    @Override
+    public void onTransformation(TypeDescription typeDescription, ClassLoader classLoader, JavaModule module,
+                                 boolean loaded, DynamicType dynamicType) {
+        long[] current = inFlight.get().peek();
+        if (current != null) {
+            current[1] = 1;
+        }
+    }
+
+    @Override
+    public void onError(String typeName, ClassLoader classLoader, JavaModule module, boolean loaded, Throwable throwable) {
+        errors.increment();
+    }
+
+    @Override
+    public void onComplete(String typeName, ClassLoader classLoader, JavaModule module, boolean loaded) {
+        long[] current = inFlight.get().poll();
+        if (current != null && current[1] != 0) {
+            typesTransformed.increment();
+            long nanos = System.nanoTime() - current[0];
+            transformNanos.add(nanos);
+            transformLatency.record(nanos);
+        }
+    }
+
+    void agentStarted(long startupNanos) {
+        agentStartupNanos = startupNanos;
+    }
+
+    void classActivated() {
+        lazyActivations.increment();
+    }
+
+    void loadedClassesFound(int count) {
+        loadedClassesFound = count;
+    }
+
+    void loadedClassesRetransformed(int count) {
+        loadedClassesRetransformed.add(count);
+    }
+
+    long typesSeen() {
+        return typesSeen.sum();
+    }
+
+    long classesConsidered() {
+        return classFilter.classesConsidered();
+    }
+
+    long classesSkipped() {
+        return classFilter.classesSkipped();
+    }
+
+    long typesTransformed() {
+        return typesTransformed.sum();
+    }
+
+    long transformNanos() {
+        return transformNanos.sum();
+    }
+
+    /**
+     * Distribution of the time taken to transform each class.
+     */
+    LatencyHistogram transformLatency() {
+        return transformLatency;
+    }
+
+    long errors() {
+        return errors.sum();
+    }
+
+    long lazyActivations() {
+        return lazyActivations.sum();
+    }
+
+    /**
+     * Classes already loaded when the agent was attached that it set out to instrument.
+     */
+    long loadedClassesFound() {
+        return loadedClassesFound;
+    }
+
+    long loadedClassesRetransformed() {
+        return loadedClassesRetransformed.sum();
+    }
+
+    /**
+     * Time spent in the agent's own start-up, before the application's main method runs.
+     */
+    long agentStartupNanos() {
+        return agentStartupNanos;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("agent start-up %.1f ms, %d classes considered, %d skipped, %d transformed in %.1f ms, "
+                        + "%d errors, %d lazy activations, %d of %d loaded classes retransformed",
+                agentStartupNanos / 1e6, classesConsidered(), classesSkipped(), typesTransformed(),
+                transformNanos() / 1e6, errors(), lazyActivations(), loadedClassesRetransformed(),
+                loadedClassesFound());
+    }
+}
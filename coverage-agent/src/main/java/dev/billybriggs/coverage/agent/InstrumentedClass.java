@@ -0,0 +1,96 @@
+package dev.billybriggs.coverage.agent;
+
+import java.lang.ref.WeakReference;
+import java.util.Map;
+
+/**
+ * A class the transformer has instrumented: its registered layout, which method owns which probe,
+ * and the loader that defined it. Kept so that retransformation reuses the class id and counters
+ * instead of registering the class again.
+ */
+final class InstrumentedClass {
+
+    private final ClassProbes layout;
+    private final Map<String, Integer> probeIndexes;
+    private final WeakReference<ClassLoader> classLoader;
+    private final boolean bootstrap;
+    private volatile int removedProbes;
+
+    InstrumentedClass(ClassProbes layout, Map<String, Integer> probeIndexes, ClassLoader classLoader) {
+        this.layout = layout;
+        this.probeIndexes = Map.copyOf(probeIndexes);
+        this.classLoader = new WeakReference<>(classLoader);
+        this.bootstrap = classLoader == null;
+    }
+
+    ClassProbes layout() {
+        return layout;
+    }
+
+    /**
+     * Probe index of a method, keyed by name plus descriptor, or {@code null} if it has none.
+     */
+    Integer probeIndex(String signature) {
+        return probeIndexes.get(signature);
+    }
+
+    /**
+     * Probe indexes keyed by method name plus descriptor.
+     */
+    Map<String, Integer> probeIndexes() {
+        return probeIndexes;
+    }
+
+    /**
+     * Probes that fired in the current epoch or were removed after firing in an earlier one.
+     */
+    int saturatedProbeCount() {
+        int saturated = 0;
+        for (int probe = 0; probe < layout.probeCount(); probe++) {
+            if (ProbeRuntime.isSaturated(layout.classId(), probe)) {
+                saturated++;
+            }
+        }
+        return saturated;
+    }
+
+    boolean isFullySaturated() {
+        return saturatedProbeCount() == layout.probeCount();
+    }
+
+    /**
+     * Number of probes dropped by the last de-instrumenting retransformation.
+     */
+    int removedProbes() {
+        return removedProbes;
+    }
+
+    void removedProbes(int removedProbes) {
+        this.removedProbes = removedProbes;
+    }
+
+    /**
+     * Records every probe as removed, for a class restored to its original bytecode.
+     */
+    void removeAllProbes() {
+        for (int probe = 0; probe < layout.probeCount(); probe++) {
+            ProbeRuntime.markRemoved(layout.classId(), probe);
+        }
+    }
+
+    /**
+     * Resolves the loaded class, or {@code null} if its loader has been collected.
+     */
+    Class<?> loadedClass() {
+        ClassLoader loader = classLoader.get();
+        if (loader == null && !bootstrap) {
+            return null;
+        }
+        try {
+            Class<?> type = Class.forName(layout.className(), false, loader);
+            return type.getClassLoader() == loader ? type : null;
+        } catch (ClassNotFoundException | LinkageError e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package dev.billybriggs.coverage.agent;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.instrument.Instrumentation;
+import java.lang.instrument.UnmodifiableClassException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Replaces the entry probes of lazily instrumented classes with full probes once they are used.
+ * Classes are retransformed in the background as {@link LazyProbes} reports their first entry, so
+ * application threads never wait for instrumentation.
+ *
+ * <p>Between a class's first entry and the end of its retransformation, hits on methods without
+ * an entry probe are not recorded. Constructors and static methods always carry one, so a class
+ * that was used is never reported as unused.
+ */
+final class LazyInstrumenter implements AutoCloseable {
+
+    private static final Logger logger = LoggerFactory.getLogger(LazyInstrumenter.class);
+
+    private final Instrumentation instrumentation;
+    private final CoverageTransformer transformer;
+    private final InstrumentationMetrics metrics;
+    private Thread worker;
+    private volatile boolean running;
+
+    LazyInstrumenter(Instrumentation instrumentation, CoverageTransformer transformer, InstrumentationMetrics metrics) {
+        this.instrumentation = instrumentation;
+        this.transformer = transformer;
+        this.metrics = metrics;
+    }
+
+    void start() {
+        running = true;
+        worker = new Thread(this::run, "coverage-lazy-instrumenter");
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    private void run() {
+        while (running) {
+            try {
+                Integer first = LazyProbes.nextActivation(1, TimeUnit.SECONDS);
+                if (first != null) {
+                    activate(first);
+                    activatePending();
+                }
+            } catch (InterruptedException e) {
+                return;
+            } catch (RuntimeException e) {
+                logger.warn("Lazy instrumentation failed", e);
+            }
+        }
+    }
+
+    /**
+     * Retransforms every class activated since the last call.
+     *
+     * @return the number of classes retransformed
+     */
+    synchronized int activatePending() {
+        List<Integer> classIds = new ArrayList<>();
+        for (Integer classId = LazyProbes.pollActivation(); classId != null; classId = LazyProbes.pollActivation()) {
+            classIds.add(classId);
+        }
+        int retransformed = 0;
+        for (int classId : classIds) {
+            retransformed += activate(classId);
+        }
+        return retransformed;
+    }
+
+    private synchronized int activate(int classId) {
+        InstrumentedClass entry = transformer.deferredClass(classId);
+        Class<?> type = entry != null ? entry.loadedClass() : null;
+        if (type == null || !instrumentation.isModifiableClass(type)) {
+            return 0;
+        }
+        try {
+            instrumentation.retransformClasses(type);
+            metrics.classActivated();
+            return 1;
+        } catch (UnmodifiableClassException | RuntimeException | LinkageError e) {
+            // the entry probes stay in place, so the class still counts as covered
+            logger.debug("Could not fully instrument {}: {}", type.getName(), e.toString());
+            return 0;
+        }
+    }
+
+    @Override
+    public void close() {
+        running = false;
+        if (worker != null) {
+            worker.interrupt();
+        }
+    }
+}
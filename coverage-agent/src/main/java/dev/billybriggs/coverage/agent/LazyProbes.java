@@ -0,0 +1,76 @@
+package dev.billybriggs.coverage.agent;
+
+import java.util.Arrays;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runtime side of lazy instrumentation. At load time a class gets only entry probes that call
+ * {@link #enter(int, int)}; the first entry marks the class active and queues it for
+ * {@link LazyInstrumenter}, which retransforms it with full probes.
+ *
+ * <p>After the first entry the check is a single array load of a flag that no longer changes.
+ */
+public final class LazyProbes {
+
+    private static final Object LOCK = new Object();
+
+    private static volatile boolean[] activated = new boolean[1024];
+    private static final BlockingQueue<Integer> pending = new LinkedBlockingQueue<>();
+
+    private LazyProbes() {
+    }
+
+    /**
+     * Records an entry probe and requests full instrumentation on the class's first use. Called
+     * from instrumented code.
+     */
+    public static void enter(int classId, int probe) {
+        ProbeRuntime.hit(classId, probe);
+        if (!activated[classId]) {
+            activate(classId);
+        }
+    }
+
+    private static void activate(int classId) {
+        synchronized (LOCK) {
+            if (activated[classId]) {
+                return;
+            }
+            activated[classId] = true;
+        }
+        pending.add(classId);
+    }
+
+    /**
+     * Makes room for a class id. Must be called before the entry-probed class is defined.
+     */
+    static void track(int classId) {
+        synchronized (LOCK) {
+            boolean[] flags = activated;
+            if (classId >= flags.length) {
+                activated = Arrays.copyOf(flags, Math.max(classId + 1, flags.length * 2));
+            }
+        }
+    }
+
+    static boolean isActivated(int classId) {
+        boolean[] flags = activated;
+        return classId < flags.length && flags[classId];
+    }
+
+    /**
+     * Waits up to {@code timeout} for the next activated class id, or returns {@code null}.
+     */
+    static Integer nextActivation(long timeout, TimeUnit unit) throws InterruptedException {
+        return pending.poll(timeout, unit);
+    }
+
+    /**
+     * Returns the next activated class id without waiting, or {@code null}.
+     */
+    static Integer pollActivation() {
+        return pending.poll();
+    }
+}
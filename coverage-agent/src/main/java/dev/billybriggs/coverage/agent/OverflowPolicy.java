@@ -0,0 +1,31 @@
+package dev.billybriggs.coverage.agent;
+
+import java.util.Locale;
+
+/**
+ * What {@link CoverageReporter} does with a flush while its send buffer is at least half full, that
+ * is, while the collector or the network is not keeping up. Counters in {@link ProbeRuntime} have a
+ * fixed size, so every policy keeps agent memory bounded; they differ in what reaches the collector.
+ */
+enum OverflowPolicy {
+
+    /** Skip the flush; changes stay in the counters and go out merged once the buffer drains. */
+    COALESCE,
+
+    /** Send only probes executed for the first time, with a count of one; counts follow later. */
+    BITS_ONLY,
+
+    /** Skip the flush and discard hit counts of probes already reported; new coverage is kept. */
+    DROP;
+
+    static OverflowPolicy parse(String value) {
+        if (value == null || value.isBlank()) {
+            return COALESCE;
+        }
+        try {
+            return valueOf(value.trim().toUpperCase(Locale.ROOT).replace('-', '_'));
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Unknown overflow_policy '" + value + "'", e);
+        }
+    }
+}
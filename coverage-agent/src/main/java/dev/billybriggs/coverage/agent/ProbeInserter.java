@@ -0,0 +1,486 @@
+package dev.billybriggs.coverage.agent;
+
+import dev.billybriggs.coverage.common.proto.CoverageProto.CoverageType;
+import net.bytebuddy.asm.AsmVisitorWrapper;
+import net.bytebuddy.description.field.FieldDescription;
+import net.bytebuddy.description.field.FieldList;
+import net.bytebuddy.description.method.MethodList;
+import net.bytebuddy.description.type.TypeDescription;
+import net.bytebuddy.implementation.Implementation;
+import net.bytebuddy.jar.asm.ClassReader;
+import net.bytebuddy.jar.asm.ClassVisitor;
+import net.bytebuddy.jar.asm.Handle;
+import net.bytebuddy.jar.asm.Label;
+import net.bytebuddy.jar.asm.MethodVisitor;
+import net.bytebuddy.jar.asm.Opcodes;
+import net.bytebuddy.jar.asm.Type;
+import net.bytebuddy.pool.TypePool;
+import net.bytebuddy.utility.OpenedClassReader;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Inserts probes directly into the bytecode of a class as ByteBuddy writes it.
+ *
+ * <p>A probe is a static call with the class id and probe index pushed as constants, e.g.
+ * {@code ProbeRuntime.hit(classId, probe)}: a handful of bytes per probe, so instrumented methods
+ * stay close to their original size and within the JIT's inlining thresholds. Probes are placed
+ * <ul>
+ *   <li>at method entry ({@code METHOD}),</li>
+ *   <li>at the first instruction of each line number entry, after any stack map frame there
+ *       ({@code LINE}; one probe per line of a method, shared by all its entries),</li>
+ *   <li>on both edges of each conditional jump ({@code BRANCH}): the fall-through edge right after
+ *       the jump, the taken edge in a trampoline appended to the method that records the hit and
+ *       jumps on to the original target.</li>
+ * </ul>
+ * Branch probes are named after their method with the edge number appended, {@code divide#0} for
+ * the first jump's taken edge and {@code divide#1} for its fall-through. A trampoline reuses the
+ * stack map frame of its target, which is why class files are read with expanded frames: nothing
+ * has to be computed, and no class has to be loaded to do it.
+ *
+ * <p>Probes are numbered in the order they are met, so the same class file always yields the same
+ * layout. First-time instrumentation reserves a class id when it emits the first probe and defines
+ * the layout once the whole class has been visited. Retransformation checks each probe against the
+ * layout already registered and stops inserting at the first mismatch rather than bind a probe to
+ * the wrong counter.
+ */
+final class ProbeInserter extends AsmVisitorWrapper.AbstractBase {
+
+    private static final Logger logger = LoggerFactory.getLogger(ProbeInserter.class);
+
+    /**
+     * Static {@code (int classId, int probe)} method a probe calls.
+     */
+    enum Hook {
+        HIT(ProbeRuntime.class, "hit"),
+        SAMPLED_HIT(ProbeRuntime.class, "sampledHit"),
+        FIRST_ENTRY(LazyProbes.class, "enter");
+
+        private final String owner;
+        private final String name;
+
+        Hook(Class<?> owner, String name) {
+            this.owner = Type.getInternalName(owner);
+            this.name = name;
+        }
+    }
+
+    /**
+     * Receives the layout of a class instrumented for the first time.
+     */
+    interface Registrar {
+        void register(ClassProbes layout, Map<String, Integer> probeIndexes);
+    }
+
+    private final Hook hook;
+    private final InstrumentedClass target;
+    private final boolean entryOnly;
+    private final boolean lines;
+    private final boolean branches;
+    private final boolean skipSaturated;
+    private final boolean placeholder;
+    private final Registrar registrar;
+
+    private ProbeInserter(Hook hook, InstrumentedClass target, boolean entryOnly, boolean lines, boolean branches,
+                          boolean skipSaturated, boolean placeholder, Registrar registrar) {
+        this.hook = hook;
+        this.target = target;
+        this.entryOnly = entryOnly;
+        this.lines = lines;
+        this.branches = branches;
+        this.skipSaturated = skipSaturated;
+        this.placeholder = placeholder;
+        this.registrar = registrar;
+    }
+
+    /**
+     * Full probes for a class seen for the first time.
+     *
+     * @param placeholder bind {@link CoverageTransformer#LINK_PLACEHOLDER} instead of the class id
+     */
+    static ProbeInserter firstTime(Hook hook, boolean lines, boolean branches, boolean placeholder,
+                                   Registrar registrar) {
+        return new ProbeInserter(hook, null, false, lines, branches, false, placeholder, registrar);
+    }
+
+    /**
+     * Full probes for a class already registered, reusing its layout.
+     */
+    static ProbeInserter retransform(Hook hook, InstrumentedClass target, boolean lines, boolean branches,
+                                     boolean skipSaturated) {
+        return new ProbeInserter(hook, target, false, lines, branches, skipSaturated, false, null);
+    }
+
+    /**
+     * Method probes only, on the methods {@code target} allocated one for.
+     */
+    static ProbeInserter entryProbes(Hook hook, InstrumentedClass target) {
+        return new ProbeInserter(hook, target, true, false, false, false, false, null);
+    }
+
+    @Override
+    public int mergeReader(int flags) {
+        return flags | ClassReader.EXPAND_FRAMES;
+    }
+
+    @Override
+    public ClassVisitor wrap(TypeDescription instrumentedType, ClassVisitor classVisitor,
+                             Implementation.Context implementationContext, TypePool typePool,
+                             FieldList<FieldDescription.InDefinedShape> fields, MethodList<?> methods,
+                             int writerFlags, int readerFlags) {
+        return new ClassProbeVisitor(classVisitor, instrumentedType);
+    }
+
+    private static boolean isConditionalJump(int opcode) {
+        return opcode >= Opcodes.IFEQ && opcode <= Opcodes.IF_ACMPNE
+                || opcode == Opcodes.IFNULL || opcode == Opcodes.IFNONNULL;
+    }
+
+    /**
+     * Allocates probes for one class and defines or checks its layout.
+     */
+    private final class ClassProbeVisitor extends ClassVisitor {
+
+        private final TypeDescription type;
+        private final List<ClassProbes.Probe> probes = new ArrayList<>();
+        private final Map<String, Integer> probeIndexes = new HashMap<>();
+        private int classId;
+        private boolean consistent = true;
+
+        ClassProbeVisitor(ClassVisitor classVisitor, TypeDescription type) {
+            super(OpenedClassReader.ASM_API, classVisitor);
+            this.type = type;
+            this.classId = target != null ? target.layout().classId() : -1;
+        }
+
+        @Override
+        public MethodVisitor visitMethod(int access, String name, String descriptor, String signature,
+                                         String[] exceptions) {
+            MethodVisitor methodVisitor = super.visitMethod(access, name, descriptor, signature, exceptions);
+            if (methodVisitor == null) {
+                return null;
+            }
+            if (entryOnly) {
+                Integer probe = target.probeIndex(name + descriptor);
+                return probe != null ? new EntryProbeVisitor(methodVisitor, this, probe) : methodVisitor;
+            }
+            if ((access & (Opcodes.ACC_ABSTRACT | Opcodes.ACC_NATIVE | Opcodes.ACC_SYNTHETIC)) != 0
+                    || "<clinit>".equals(name)) {
+                return methodVisitor;
+            }
+            return new MethodProbeVisitor(methodVisitor, this, name, descriptor);
+        }
+
+        /**
+         * Allocates the next probe; returns its index, or -1 if it is not to be inserted.
+         */
+        int allocate(String methodName, int lineNumber, CoverageType probeType) {
+            ClassProbes.Probe probe = new ClassProbes.Probe(methodName, lineNumber, probeType);
+            int index = probes.size();
+            probes.add(probe);
+            if (target == null) {
+                if (classId < 0) {
+                    classId = ProbeRuntime.reserve();
+                }
+                return index;
+            }
+            List<ClassProbes.Probe> layout = target.layout().probes();
+            if (!consistent || index >= layout.size() || !layout.get(index).equals(probe)) {
+                consistent = false;
+                return -1;
+            }
+            if (skipSaturated && ProbeRuntime.isSaturated(classId, index)) {
+                // kept across epochs, so the probe is neither put back nor read as unexecuted later
+                ProbeRuntime.markRemoved(classId, index);
+                return -1;
+            }
+            return index;
+        }
+
+        int classIdConstant() {
+            return placeholder ? CoverageTransformer.LINK_PLACEHOLDER : classId;
+        }
+
+        @Override
+        public void visitEnd() {
+            if (target == null && !probes.isEmpty()) {
+                ClassProbes layout = ProbeRuntime.define(classId, type.getName(),
+                        CoverageTransformer.sourcePath(type), probes);
+                registrar.register(layout, probeIndexes);
+            } else if (!consistent) {
+                logger.warn("Class file of {} no longer matches its probe layout; "
+                        + "probes after index {} were not inserted", type.getName(), firstMismatch());
+            }
+            super.visitEnd();
+        }
+
+        private int firstMismatch() {
+            List<ClassProbes.Probe> layout = target.layout().probes();
+            for (int i = 0; i < probes.size(); i++) {
+                if (i >= layout.size() || !layout.get(i).equals(probes.get(i))) {
+                    return i;
+                }
+            }
+            return probes.size();
+        }
+    }
+
+    /**
+     * Pushes an int with the shortest encoding and calls the hook.
+     */
+    private static void emitHit(MethodVisitor methodVisitor, Hook hook, int classId, int probe) {
+        pushInt(methodVisitor, classId);
+        pushInt(methodVisitor, probe);
+        methodVisitor.visitMethodInsn(Opcodes.INVOKESTATIC, hook.owner, hook.name, "(II)V", false);
+    }
+
+    private static void pushInt(MethodVisitor methodVisitor, int value) {
+        if (value >= -1 && value <= 5) {
+            methodVisitor.visitInsn(Opcodes.ICONST_0 + value);
+        } else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+            methodVisitor.visitIntInsn(Opcodes.BIPUSH, value);
+        } else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+            methodVisitor.visitIntInsn(Opcodes.SIPUSH, value);
+        } else {
+            methodVisitor.visitLdcInsn(value);
+        }
+    }
+
+    /**
+     * Lazy mode's load-time probe: one call at entry into a method that may be the class's first.
+     */
+    private final class EntryProbeVisitor extends MethodVisitor {
+
+        private final ClassProbeVisitor owner;
+        private final int probe;
+
+        EntryProbeVisitor(MethodVisitor methodVisitor, ClassProbeVisitor owner, int probe) {
+            super(OpenedClassReader.ASM_API, methodVisitor);
+            this.owner = owner;
+            this.probe = probe;
+        }
+
+        @Override
+        public void visitCode() {
+            super.visitCode();
+            emitHit(mv, hook, owner.classIdConstant(), probe);
+        }
+
+        @Override
+        public void visitMaxs(int maxStack, int maxLocals) {
+            super.visitMaxs(maxStack + 2, maxLocals);
+        }
+    }
+
+    /**
+     * Inserts the method, line and branch probes of one method.
+     */
+    private final class MethodProbeVisitor extends MethodVisitor {
+
+        private final ClassProbeVisitor owner;
+        private final String name;
+        private final String descriptor;
+        private final Map<Integer, Integer> lineProbes = new HashMap<>();
+        /** Expanded frame at each label visited so far, for trampolines to jump targets. */
+        private final Map<Label, Frame> frames = new HashMap<>();
+        private final List<Label> labelsSinceInstruction = new ArrayList<>();
+        private final List<Trampoline> trampolines = new ArrayList<>();
+        private int line;
+        private int pendingLine = -1;
+        private int edges;
+
+        MethodProbeVisitor(MethodVisitor methodVisitor, ClassProbeVisitor owner, String name, String descriptor) {
+            super(OpenedClassReader.ASM_API, methodVisitor);
+            this.owner = owner;
+            this.name = name;
+            this.descriptor = descriptor;
+        }
+
+        @Override
+        public void visitCode() {
+            super.visitCode();
+            owner.probeIndexes.put(name + descriptor, owner.probes.size());
+            hit(owner.allocate(name, 0, CoverageType.COVERAGE_TYPE_METHOD));
+        }
+
+        @Override
+        public void visitLabel(Label label) {
+            super.visitLabel(label);
+            labelsSinceInstruction.add(label);
+        }
+
+        @Override
+        public void visitLineNumber(int line, Label start) {
+            super.visitLineNumber(line, start);
+            this.line = line;
+            if (lines) {
+                pendingLine = line;
+            }
+        }
+
+        @Override
+        public void visitFrame(int type, int numLocal, Object[] local, int numStack, Object[] stack) {
+            super.visitFrame(type, numLocal, local, numStack, stack);
+            if (type == Opcodes.F_NEW) {
+                Frame frame = new Frame(copy(local, numLocal), copy(stack, numStack));
+                for (Label label : labelsSinceInstruction) {
+                    frames.put(label, frame);
+                }
+            }
+            labelsSinceInstruction.clear();
+        }
+
+        private Object[] copy(Object[] values, int count) {
+            Object[] copy = new Object[count];
+            if (count > 0) {
+                System.arraycopy(values, 0, copy, 0, count);
+            }
+            return copy;
+        }
+
+        /**
+         * Called before every original instruction: inserts the line probe owed to it, if any.
+         */
+        private void instruction() {
+            labelsSinceInstruction.clear();
+            if (pendingLine >= 0) {
+                int lineNumber = pendingLine;
+                pendingLine = -1;
+                Integer probe = lineProbes.get(lineNumber);
+                if (probe == null) {
+                    probe = owner.allocate(name, lineNumber, CoverageType.COVERAGE_TYPE_LINE);
+                    lineProbes.put(lineNumber, probe);
+                }
+                hit(probe);
+            }
+        }
+
+        private void hit(int probe) {
+            if (probe >= 0) {
+                emitHit(mv, hook, owner.classIdConstant(), probe);
+            }
+        }
+
+        @Override
+        public void visitJumpInsn(int opcode, Label label) {
+            instruction();
+            if (!branches || !isConditionalJump(opcode)) {
+                super.visitJumpInsn(opcode, label);
+                return;
+            }
+            int taken = owner.allocate(name + "#" + edges++, line, CoverageType.COVERAGE_TYPE_BRANCH);
+            int fallThrough = owner.allocate(name + "#" + edges++, line, CoverageType.COVERAGE_TYPE_BRANCH);
+            if (taken >= 0) {
+                Label trampoline = new Label();
+                trampolines.add(new Trampoline(trampoline, label, taken));
+                super.visitJumpInsn(opcode, trampoline);
+            } else {
+                super.visitJumpInsn(opcode, label);
+            }
+            hit(fallThrough);
+        }
+
+        @Override
+        public void visitMaxs(int maxStack, int maxLocals) {
+            for (Trampoline trampoline : trampolines) {
+                super.visitLabel(trampoline.label());
+                // absent only in class files without stack map frames
+                Frame frame = frames.get(trampoline.target());
+                if (frame != null) {
+                    super.visitFrame(Opcodes.F_NEW, frame.locals().length, frame.locals(),
+                            frame.stack().length, frame.stack());
+                }
+                hit(trampoline.probe());
+                super.visitJumpInsn(Opcodes.GOTO, trampoline.target());
+            }
+            super.visitMaxs(maxStack + 2, maxLocals);
+        }
+
+        @Override
+        public void visitInsn(int opcode) {
+            instruction();
+            super.visitInsn(opcode);
+        }
+
+        @Override
+        public void visitIntInsn(int opcode, int operand) {
+            instruction();
+            super.visitIntInsn(opcode, operand);
+        }
+
+        @Override
+        public void visitVarInsn(int opcode, int varIndex) {
+            instruction();
+            super.visitVarInsn(opcode, varIndex);
+        }
+
+        @Override
+        public void visitTypeInsn(int opcode, String type) {
+            instruction();
+            super.visitTypeInsn(opcode, type);
+        }
+
+        @Override
+        public void visitFieldInsn(int opcode, String owner, String name, String descriptor) {
+            instruction();
+            super.visitFieldInsn(opcode, owner, name, descriptor);
+        }
+
+        @Override
+        public void visitMethodInsn(int opcode, String owner, String name, String descriptor, boolean isInterface) {
+            instruction();
+            super.visitMethodInsn(opcode, owner, name, descriptor, isInterface);
+        }
+
+        @Override
+        public void visitInvokeDynamicInsn(String name, String descriptor, Handle bootstrapMethodHandle,
+                                           Object... bootstrapMethodArguments) {
+            instruction();
+            super.visitInvokeDynamicInsn(name, descriptor, bootstrapMethodHandle, bootstrapMethodArguments);
+        }
+
+        @Override
+        public void visitLdcInsn(Object value) {
+            instruction();
+            super.visitLdcInsn(value);
+        }
+
+        @Override
+        public void visitIincInsn(int varIndex, int increment) {
+            instruction();
+            super.visitIincInsn(varIndex, increment);
+        }
+
+        @Override
+        public void visitTableSwitchInsn(int min, int max, Label dflt, Label... labels) {
+            instruction();
+            super.visitTableSwitchInsn(min, max, dflt, labels);
+        }
+
+        @Override
+        public void visitLookupSwitchInsn(Label dflt, int[] keys, Label[] labels) {
+            instruction();
+            super.visitLookupSwitchInsn(dflt, keys, labels);
+        }
+
+        @Override
+        public void visitMultiANewArrayInsn(String descriptor, int numDimensions) {
+            instruction();
+            super.visitMultiANewArrayInsn(descriptor, numDimensions);
+        }
+    }
+
+    private record Frame(Object[] locals, Object[] stack) {
+    }
+
+    /**
+     * Code appended to a method for the taken edge of a jump: records {@code probe}, then jumps on.
+     */
+    private record Trampoline(Label label, Label target, int probe) {
+    }
+}
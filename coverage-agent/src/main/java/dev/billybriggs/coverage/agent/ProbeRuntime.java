@@ -0,0 +1,266 @@
+package dev.billybriggs.coverage.agent;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Holds the probe counters that instrumented code writes to.
+ *
+ * <p>Every instrumented class is assigned a dense integer id at transformation time and owns one
+ * {@code long[]} of hit counters. Injected code calls {@link #hit(int, int)} with both indexes as
+ * constants, so recording a hit is two array loads and an increment: nothing is allocated and no
+ * lock is taken. Increments are deliberately unsynchronized; concurrent hits on the same probe may
+ * lose counts, but a probe that was executed never reads as zero.
+ *
+ * <p>The counters are kept here rather than in a synthetic static field on each class so that
+ * instrumented classes keep their original shape and stay retransformable.
+ *
+ * <p>An id can be {@linkplain #reserve() reserved} before the class's probes are known, so the
+ * instrumenter can bake it into bytecode while it is still discovering probes. Until the layout is
+ * {@linkplain #define defined}, {@link #layout(int)} returns {@code null} and the counters are
+ * empty; readers iterating over all classes skip such ids.
+ *
+ * <p>Counters are grouped into epochs. {@link #swapEpoch()} publishes a fresh, zeroed set of
+ * counter arrays and hands back the previous set, so coverage can be read and restarted without
+ * instrumented code ever taking a lock: a hit picks up whichever set is current when it reads
+ * {@link #counters}. A hit that read the old set just before the swap still lands in it, so the
+ * ended epoch should be read after a short grace period.
+ *
+ * <p>Probes that a retransformation {@linkplain #markRemoved removed} from their class's bytecode
+ * can no longer count, so which probes were removed is kept apart from the counters and survives
+ * swaps: in every later epoch such a probe reads as executed once.
+ */
+public final class ProbeRuntime {
+
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private static final Object LOCK = new Object();
+
+    private static final long[] PENDING = new long[0];
+
+    private static volatile long[][] counters = new long[INITIAL_CAPACITY][];
+    private static volatile ClassProbes[] classes = new ClassProbes[INITIAL_CAPACITY];
+    /** Bitmap words of removed probes per class id, {@code null} for a class with none. */
+    private static volatile long[][] removed = new long[INITIAL_CAPACITY][];
+    private static int classCount;
+    private static long probeCount;
+    private static long epoch;
+
+    /**
+     * The counter arrays of one epoch, indexed by class id up to {@code classCount}. An entry of a
+     * class defined after the epoch ended is empty.
+     */
+    record Epoch(long id, long[][] counters, int classCount) {
+    }
+
+    private ProbeRuntime() {
+    }
+
+    /**
+     * Records one execution of a probe. Called from instrumented code.
+     */
+    public static void hit(int classId, int probe) {
+        counters[classId][probe]++;
+    }
+
+    /**
+     * Records one execution of a probe under {@link ProbeSampler}. The first hit is always recorded,
+     * so coverage stays exact; later hits are counted only when sampled, scaled by their weight.
+     * Called from instrumented code.
+     */
+    public static void sampledHit(int classId, int probe) {
+        long[] probes = counters[classId];
+        if (probes[probe] == 0) {
+            probes[probe] = 1;
+            return;
+        }
+        long weight = ProbeSampler.sample();
+        if (weight != 0) {
+            probes[probe] += weight;
+        }
+    }
+
+    /**
+     * Adds executions reported by another process, as a {@link CoverageRelay} does. Concurrent adds
+     * to one class are serialised; unlike {@link #hit} this is not called from instrumented code.
+     */
+    static void add(int classId, int probe, long hits) {
+        long[] probes = counters[classId];
+        synchronized (probes) {
+            probes[probe] += hits;
+        }
+    }
+
+    /**
+     * Registers a class layout and returns its id. Must be called before the instrumented class is defined.
+     */
+    public static ClassProbes register(String className, String filePath, List<ClassProbes.Probe> probes) {
+        synchronized (LOCK) {
+            return define(reserve(), className, filePath, probes);
+        }
+    }
+
+    /**
+     * Allocates a class id whose layout is supplied later through {@link #define}.
+     */
+    static int reserve() {
+        synchronized (LOCK) {
+            int id = classCount;
+            long[][] table = counters;
+            ClassProbes[] layouts = classes;
+            if (id == table.length) {
+                table = Arrays.copyOf(table, id * 2);
+                layouts = Arrays.copyOf(layouts, id * 2);
+                removed = Arrays.copyOf(removed, id * 2);
+            }
+            table[id] = PENDING;
+            counters = table;
+            classes = layouts;
+            classCount = id + 1;
+            return id;
+        }
+    }
+
+    /**
+     * Gives a reserved id its layout and counters. Must be called before the instrumented class is defined.
+     */
+    static ClassProbes define(int classId, String className, String filePath, List<ClassProbes.Probe> probes) {
+        synchronized (LOCK) {
+            if (classes[classId] != null) {
+                throw new IllegalStateException("Class id " + classId + " is already defined");
+            }
+            ClassProbes layout = new ClassProbes(classId, className, filePath, probes);
+            long[][] table = counters;
+            ClassProbes[] layouts = classes;
+            table[classId] = new long[layout.probeCount()];
+            layouts[classId] = layout;
+            // volatile writes publish the counters before the layout, and both before the class can execute
+            counters = table;
+            classes = layouts;
+            probeCount += layout.probeCount();
+            return layout;
+        }
+    }
+
+    /**
+     * Returns the live counters of a class in the current epoch. Callers must treat the array as read-only.
+     */
+    public static long[] counters(int classId) {
+        return counters[classId];
+    }
+
+    /**
+     * Records that a probe was left out of its class's bytecode, after it fired, and never counts again.
+     */
+    static void markRemoved(int classId, int probe) {
+        synchronized (LOCK) {
+            long[][] table = removed;
+            long[] words = table[classId];
+            if (words == null) {
+                words = table[classId] = new long[(classes[classId].probeCount() + 63) >>> 6];
+            }
+            words[probe >>> 6] |= 1L << probe;
+            // the volatile write publishes the bit to readers that read the table first
+            removed = table;
+        }
+    }
+
+    static boolean isRemoved(int classId, int probe) {
+        long[] words = removed[classId];
+        return words != null && (words[probe >>> 6] & 1L << probe) != 0;
+    }
+
+    /**
+     * Whether a probe fired in the current epoch or was removed after firing in an earlier one.
+     */
+    static boolean isSaturated(int classId, int probe) {
+        return counters[classId][probe] != 0 || isRemoved(classId, probe);
+    }
+
+    /**
+     * Counters of a class as coverage reads them: removed probes that are zero, as they always are
+     * in epochs after the removal, read as one. Returns {@code counters} itself unless a probe of it
+     * reads differently, otherwise a copy.
+     */
+    static long[] withRemovedProbes(int classId, long[] counters) {
+        long[] words = removed[classId];
+        if (words == null) {
+            return counters;
+        }
+        long[] adjusted = counters;
+        for (int word = 0; word < words.length; word++) {
+            for (long bits = words[word]; bits != 0; bits &= bits - 1) {
+                int probe = (word << 6) + Long.numberOfTrailingZeros(bits);
+                if (probe < counters.length && counters[probe] == 0) {
+                    if (adjusted == counters) {
+                        adjusted = counters.clone();
+                    }
+                    adjusted[probe] = 1;
+                }
+            }
+        }
+        return adjusted;
+    }
+
+    /**
+     * Layout of a class, or {@code null} while its id is reserved but not yet defined.
+     */
+    public static ClassProbes layout(int classId) {
+        return classes[classId];
+    }
+
+    /**
+     * The current epoch; its counters keep counting.
+     */
+    static Epoch currentEpoch() {
+        synchronized (LOCK) {
+            return new Epoch(epoch, counters, classCount);
+        }
+    }
+
+    /**
+     * Starts a new epoch with every counter at zero and returns the one that ended.
+     */
+    static Epoch swapEpoch() {
+        synchronized (LOCK) {
+            long[][] ended = counters;
+            long[][] fresh = new long[ended.length][];
+            for (int id = 0; id < classCount; id++) {
+                fresh[id] = ended[id] == PENDING ? PENDING : new long[ended[id].length];
+            }
+            counters = fresh;
+            return new Epoch(epoch++, ended, classCount);
+        }
+    }
+
+    /**
+     * Probes of all registered classes.
+     */
+    public static long probeCount() {
+        synchronized (LOCK) {
+            return probeCount;
+        }
+    }
+
+    public static int classCount() {
+        synchronized (LOCK) {
+            return classCount;
+        }
+    }
+
+    /**
+     * Snapshot of all defined class layouts, ordered by id.
+     */
+    public static List<ClassProbes> layouts() {
+        synchronized (LOCK) {
+            List<ClassProbes> layouts = new ArrayList<>(classCount);
+            for (int id = 0; id < classCount; id++) {
+                if (classes[id] != null) {
+                    layouts.add(classes[id]);
+                }
+            }
+            return layouts;
+        }
+    }
+}
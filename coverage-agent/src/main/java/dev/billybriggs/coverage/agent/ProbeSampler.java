@@ -0,0 +1,147 @@
+package dev.billybriggs.coverage.agent;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decides which probe hits are counted when {@code sampling_rate} is below 1 or counting windows
+ * are configured. Used only through {@link ProbeRuntime#sampledHit(int, int)}, which records the
+ * first hit of every probe exactly, so coverage is never sampled, only hit counts.
+ *
+ * <p>Each thread counts down its own interval and the hit that ends the interval is counted with a
+ * weight equal to the interval length, so totals are unbiased and no state is shared between
+ * threads. Interval lengths are drawn from a per-thread xorshift generator, uniform with a mean of
+ * {@code 1 / rate}, so sampling does not lock into step with loops in the application.
+ *
+ * <p>With a pause configured, counting alternates between {@code window} of sampling and
+ * {@code pause} of recording first hits only; weights are scaled by the inverse duty cycle.
+ * Threads pick up a new configuration when their current interval ends. The window timer toggles
+ * under the class lock and only while its configuration is current, so a reconfiguration never
+ * races a toggle.
+ */
+public final class ProbeSampler {
+
+    private static final int COUNTDOWN = 0;
+    private static final int WEIGHT = 1;
+    private static final int RANDOM = 2;
+
+    private static volatile int meanInterval = 1;
+    private static volatile double weightScale = 1.0;
+    private static volatile boolean counting = true;
+
+    private static final ThreadLocal<long[]> state = ThreadLocal.withInitial(ProbeSampler::newState);
+
+    private static ScheduledExecutorService windows;
+    // bumped by every configure, under the class lock, so the window timers it replaces stand down
+    private static long windowGeneration;
+
+    private ProbeSampler() {
+    }
+
+    /**
+     * Returns the weight to add for a hit on an already covered probe, or 0 if the hit is skipped.
+     * Called from instrumented code through {@link ProbeRuntime#sampledHit(int, int)}.
+     */
+    public static long sample() {
+        if (!counting) {
+            return 0;
+        }
+        long[] thread = state.get();
+        if (--thread[COUNTDOWN] > 0) {
+            return 0;
+        }
+        long weight = thread[WEIGHT];
+        nextInterval(thread);
+        return weight;
+    }
+
+    /**
+     * Whether a configuration needs sampled probes at all.
+     */
+    static boolean isSampling(double rate, long pauseMs) {
+        return rate > 0 && rate < 1 || pauseMs > 0;
+    }
+
+    /**
+     * @param rate     fraction of hits counted, in (0, 1]
+     * @param windowMs length of each counting window; ignored without a pause
+     * @param pauseMs  length of the pause between windows, or 0 to count continuously
+     */
+    static synchronized void configure(double rate, long windowMs, long pauseMs) {
+        if (!(rate > 0 && rate <= 1)) {
+            throw new IllegalArgumentException("sampling_rate must be in (0, 1], got " + rate);
+        }
+        stopWindows();
+        long generation = ++windowGeneration;
+        meanInterval = (int) Math.max(1, Math.round(1 / rate));
+        boolean windowed = pauseMs > 0 && windowMs > 0;
+        weightScale = windowed ? (double) (windowMs + pauseMs) / windowMs : 1.0;
+        counting = true;
+        if (windowed) {
+            ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "coverage-sampling-window");
+                thread.setDaemon(true);
+                return thread;
+            });
+            windows = executor;
+            executor.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    synchronized (ProbeSampler.class) {
+                        // a later configure has stopped this timer: counting is no longer its to flip
+                        if (generation != windowGeneration) {
+                            return;
+                        }
+                        counting = !counting;
+                        executor.schedule(this, counting ? windowMs : pauseMs, TimeUnit.MILLISECONDS);
+                    }
+                }
+            }, windowMs, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Restores full counting and stops the window timer.
+     */
+    static synchronized void reset() {
+        configure(1.0, 0, 0);
+    }
+
+    static boolean isCounting() {
+        return counting;
+    }
+
+    static void setCounting(boolean enabled) {
+        counting = enabled;
+    }
+
+    private static void stopWindows() {
+        if (windows != null) {
+            windows.shutdownNow();
+            windows = null;
+        }
+    }
+
+    private static long[] newState() {
+        long seed = Thread.currentThread().getId() * 0x9E3779B97F4A7C15L ^ System.nanoTime();
+        long[] thread = {0, 0, seed != 0 ? seed : 1};
+        nextInterval(thread);
+        return thread;
+    }
+
+    private static void nextInterval(long[] thread) {
+        int mean = meanInterval;
+        long interval = 1;
+        if (mean > 1) {
+            long random = thread[RANDOM];
+            random ^= random << 13;
+            random ^= random >>> 7;
+            random ^= random << 17;
+            thread[RANDOM] = random;
+            interval = 1 + Long.remainderUnsigned(random, 2L * mean - 1);
+        }
+        thread[COUNTDOWN] = interval;
+        thread[WEIGHT] = Math.round(interval * weightScale);
+    }
+}
@@ -0,0 +1,84 @@
+package dev.billybriggs.coverage.agent;
+
+import dev.billybriggs.coverage.common.proto.CoverageProto.CoverageData;
+
+import java.io.IOException;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Path;
+
+/**
+ * Sends batches to a {@link CoverageRelay} over its Unix domain socket, framed like a coverage dump:
+ * a 4-byte length followed by the serialized batch. Each connection is one stream; a failed write
+ * drops the connection and the next write opens another.
+ */
+final class RelaySink implements BatchSink {
+
+    private final Path socket;
+    private SocketChannel channel;
+    private long batches;
+
+    private RelaySink(Path socket) {
+        this.socket = socket;
+    }
+
+    /**
+     * @throws IOException if the relay is not listening
+     */
+    static RelaySink connect(Path socket) throws IOException {
+        RelaySink sink = new RelaySink(socket);
+        sink.channel = open(socket);
+        return sink;
+    }
+
+    private static SocketChannel open(Path socket) throws IOException {
+        SocketChannel channel = SocketChannel.open(StandardProtocolFamily.UNIX);
+        try {
+            channel.connect(UnixDomainSocketAddress.of(socket));
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        return channel;
+    }
+
+    @Override
+    public void write(CoverageData batch) throws IOException {
+        if (channel == null) {
+            channel = open(socket);
+        }
+        byte[] payload = batch.toByteArray();
+        ByteBuffer[] frame = {ByteBuffer.allocate(4).putInt(0, payload.length), ByteBuffer.wrap(payload)};
+        try {
+            while (frame[1].hasRemaining()) {
+                channel.write(frame);
+            }
+        } catch (IOException e) {
+            SocketChannel failed = channel;
+            channel = null;
+            failed.close();
+            throw e;
+        }
+        batches++;
+    }
+
+    @Override
+    public boolean resumable() {
+        return true;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (channel != null) {
+            channel.close();
+            channel = null;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return batches + " batches to relay " + socket;
+    }
+}
@@ -0,0 +1,173 @@
+package dev.billybriggs.coverage.agent;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Attributes executed probes to the test running at the time, for test impact analysis.
+ *
+ * <p>A test harness marks each test with {@link #testStarted(String)} and {@link #testFinished()},
+ * directly or through the JUnit 5 {@code CoverageTestExtension}. Starting a test snapshots every
+ * probe counter; finishing it records the probes whose counters moved since, per class. The
+ * counters themselves are never reset for a test, so the reporter's cumulative deltas are
+ * unaffected; when a snapshot ends the counters' epoch mid-test, the probes that moved in the
+ * ended epoch or ran in the new one are the test's. The {@link CoverageReporter} sends finished
+ * tests with its next delta batch.
+ *
+ * <p>Attribution assumes tests run one at a time in this JVM: probes executed by a concurrent test
+ * or background thread are credited to whichever test is open. A test that finishes without
+ * having started is ignored, as is a start while another test is open, which abandons it.
+ */
+public final class TestAttribution {
+
+    /**
+     * Probes one test executed: per class id, the probe indexes in increasing order.
+     */
+    record FinishedTest(String testId, int[] classIds, int[][] probes) {
+    }
+
+    /** Finished tests kept for sending; beyond this the oldest are dropped. */
+    static final int MAX_PENDING_TESTS = 4096;
+
+    private static final LongAdder dropped = new LongAdder();
+
+    private static final Object LOCK = new Object();
+
+    /** Guarded by {@link #LOCK}. */
+    private static String current;
+    private static long[][] baseline;
+    private static ProbeRuntime.Epoch baselineEpoch;
+    private static final Deque<FinishedTest> finished = new ArrayDeque<>();
+
+    private TestAttribution() {
+    }
+
+    /**
+     * Marks the start of a test; probes executed until {@link #testFinished()} are credited to it.
+     */
+    public static void testStarted(String testId) {
+        ProbeRuntime.Epoch epoch = ProbeRuntime.currentEpoch();
+        long[][] snapshot = new long[epoch.classCount()][];
+        for (int classId = 0; classId < epoch.classCount(); classId++) {
+            long[] counters = epoch.counters()[classId];
+            snapshot[classId] = Arrays.copyOf(counters, counters.length);
+        }
+        synchronized (LOCK) {
+            current = testId;
+            baseline = snapshot;
+            baselineEpoch = epoch;
+        }
+    }
+
+    /**
+     * Marks the end of the current test and queues the probes it executed for reporting.
+     */
+    public static void testFinished() {
+        String testId;
+        long[][] snapshot;
+        ProbeRuntime.Epoch started;
+        synchronized (LOCK) {
+            testId = current;
+            snapshot = baseline;
+            started = baselineEpoch;
+            current = null;
+            baseline = null;
+            baselineEpoch = null;
+        }
+        if (testId == null) {
+            return;
+        }
+        ProbeRuntime.Epoch epoch = ProbeRuntime.currentEpoch();
+        boolean sameEpoch = epoch.id() == started.id();
+        List<Integer> classIds = new ArrayList<>();
+        List<int[]> probes = new ArrayList<>();
+        for (int classId = 0; classId < epoch.classCount(); classId++) {
+            long[] counters = epoch.counters()[classId];
+            // classes loaded during the test have no snapshot, or an empty one taken while their id
+            // was only reserved: every probe they ran is the test's
+            long[] before = classId < snapshot.length && snapshot[classId].length == counters.length
+                    ? snapshot[classId] : null;
+            // after a snapshot the counters restart from zero, and the test's earlier hits are in
+            // the epoch it started in
+            long[] earlier = !sameEpoch && before != null ? started.counters()[classId] : null;
+            int[] moved = null;
+            int count = 0;
+            for (int probe = 0; probe < counters.length; probe++) {
+                boolean ran = sameEpoch
+                        ? counters[probe] != (before != null ? before[probe] : 0)
+                        : counters[probe] != 0 || earlier != null && earlier[probe] != before[probe];
+                if (ran) {
+                    if (moved == null) {
+                        moved = new int[counters.length];
+                    }
+                    moved[count++] = probe;
+                }
+            }
+            if (count > 0) {
+                classIds.add(classId);
+                probes.add(Arrays.copyOf(moved, count));
+            }
+        }
+        add(new FinishedTest(testId, classIds.stream().mapToInt(Integer::intValue).toArray(),
+                probes.toArray(new int[0][])));
+    }
+
+    /**
+     * Queues probes of a test that ran elsewhere, as a {@link CoverageRelay} does for its agents.
+     */
+    static void add(FinishedTest test) {
+        synchronized (LOCK) {
+            finished.addLast(test);
+            if (finished.size() > MAX_PENDING_TESTS) {
+                finished.pollFirst();
+                dropped.increment();
+            }
+        }
+    }
+
+    /**
+     * Finished tests dropped, oldest first, because more than {@value #MAX_PENDING_TESTS} were waiting.
+     */
+    static long droppedTests() {
+        return dropped.sum();
+    }
+
+    /**
+     * Id of the test currently open, or {@code null}.
+     */
+    public static String currentTest() {
+        synchronized (LOCK) {
+            return current;
+        }
+    }
+
+    /**
+     * Removes and returns the finished tests not yet taken, oldest first.
+     */
+    static List<FinishedTest> drain() {
+        synchronized (LOCK) {
+            List<FinishedTest> tests = new ArrayList<>(finished);
+            finished.clear();
+            return tests;
+        }
+    }
+
+    /**
+     * Puts tests taken by {@link #drain()} but never delivered back in front of the queue.
+     */
+    static void requeue(List<FinishedTest> tests) {
+        synchronized (LOCK) {
+            for (int i = tests.size() - 1; i >= 0; i--) {
+                finished.addFirst(tests.get(i));
+            }
+            while (finished.size() > MAX_PENDING_TESTS) {
+                finished.pollFirst();
+                dropped.increment();
+            }
+        }
+    }
+}
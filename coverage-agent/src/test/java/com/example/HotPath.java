@@ -0,0 +1,17 @@
+package com.example;
+
+/**
+ * Instrumentation target for agent tests; lives outside the agent's own (always excluded) package.
+ */
+public class HotPath {
+
+    private int calls;
+
+    public int first() {
+        return ++calls;
+    }
+
+    public int second() {
+        return ++calls;
+    }
+}
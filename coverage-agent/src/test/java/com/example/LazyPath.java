@@ -0,0 +1,17 @@
+package com.example;
+
+/**
+ * Lazy instrumentation target for agent tests.
+ */
+public class LazyPath {
+
+    private int calls;
+
+    public static LazyPath create() {
+        return new LazyPath();
+    }
+
+    public int call() {
+        return ++calls;
+    }
+}
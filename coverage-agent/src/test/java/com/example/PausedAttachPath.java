@@ -0,0 +1,19 @@
+package com.example;
+
+/**
+ * Instrumentation targets loaded before the agent is installed, retransformed one per batch while
+ * the attach is closed.
+ */
+public class PausedAttachPath {
+
+    public static int first(int value) {
+        return Second.next(value) + 1;
+    }
+
+    public static class Second {
+
+        public static int next(int value) {
+            return value + 1;
+        }
+    }
+}
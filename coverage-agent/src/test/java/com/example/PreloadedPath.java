@@ -0,0 +1,15 @@
+package com.example;
+
+/**
+ * Instrumentation target loaded before the agent is installed, as on a dynamic attach.
+ */
+public class PreloadedPath {
+
+    public static int twice(int value) {
+        return value * 2;
+    }
+
+    public static int thrice(int value) {
+        return value * 3;
+    }
+}
@@ -0,0 +1,17 @@
+package com.example;
+
+/**
+ * Instrumentation target for de-instrumentation across coverage epochs.
+ */
+public class SnapshotPath {
+
+    private int calls;
+
+    public int first() {
+        return ++calls;
+    }
+
+    public int second() {
+        return ++calls;
+    }
+}
@@ -0,0 +1,94 @@
+package dev.billybriggs.coverage.agent;
+
+import com.example.PausedAttachPath;
+import com.example.PreloadedPath;
+import dev.billybriggs.coverage.common.CoverageConfig;
+import net.bytebuddy.agent.ByteBuddyAgent;
+import net.bytebuddy.agent.builder.AgentBuilder;
+import net.bytebuddy.agent.builder.ResettableClassFileTransformer;
+import org.junit.jupiter.api.Test;
+
+import java.lang.instrument.Instrumentation;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+
+/**
+ * Unit tests for AttachInstrumenter.
+ */
+class AttachInstrumenterTest {
+
+    @Test
+    void classesLoadedBeforeAttachAreInstrumentedInBatches() throws Exception {
+        assertEquals(4, PreloadedPath.twice(2));
+        Instrumentation instrumentation = ByteBuddyAgent.install();
+        CoverageConfig config = new CoverageConfig();
+        config.getInstrumentation().setIncludePatterns(List.of("com/example/PreloadedPath"));
+        CoverageTransformer transformer = CoverageAgent.newTransformer(config, false, false);
+        InstrumentationMetrics metrics = new InstrumentationMetrics(transformer.classFilter());
+        ResettableClassFileTransformer installed = CoverageAgent.agentBuilder(transformer, true).installOn(instrumentation);
+        AttachInstrumenter attach = new AttachInstrumenter(instrumentation, transformer, metrics, 2, 1, 0);
+        try {
+            assertEquals(1, attach.instrumentLoadedClasses());
+            assertEquals(1, metrics.loadedClassesFound());
+            assertEquals(1, metrics.loadedClassesRetransformed());
+
+            InstrumentedClass instrumented = transformer.instrumentedClass(PreloadedPath.class.getClassLoader(),
+                    PreloadedPath.class.getName());
+            assertNotNull(instrumented);
+            assertEquals(6, PreloadedPath.twice(3));
+            long[] counters = ProbeRuntime.counters(instrumented.layout().classId());
+            assertEquals(1, counters[instrumented.probeIndex("twice(I)I")]);
+            assertEquals(0, counters[instrumented.probeIndex("thrice(I)I")]);
+
+            // already instrumented, so a second pass finds nothing to do
+            assertEquals(0, attach.instrumentLoadedClasses());
+        } finally {
+            attach.close();
+            installed.reset(instrumentation, AgentBuilder.RedefinitionStrategy.DISABLED);
+        }
+    }
+
+    @Test
+    void closingDuringAPauseStopsTheAttachAsAnInterrupt() throws Exception {
+        assertEquals(3, PausedAttachPath.first(1));
+        Instrumentation instrumentation = ByteBuddyAgent.install();
+        CoverageConfig config = new CoverageConfig();
+        config.getInstrumentation().setIncludePatterns(List.of("com/example/PausedAttachPath*"));
+        CoverageTransformer transformer = CoverageAgent.newTransformer(config, false, false);
+        InstrumentationMetrics metrics = new InstrumentationMetrics(transformer.classFilter());
+        ResettableClassFileTransformer installed = CoverageAgent.agentBuilder(transformer, true).installOn(instrumentation);
+        AttachInstrumenter attach = new AttachInstrumenter(instrumentation, transformer, metrics, 1, 1, 60_000);
+        try {
+            AtomicReference<Exception> failure = new AtomicReference<>();
+            Thread run = new Thread(() -> {
+                try {
+                    attach.instrumentLoadedClasses();
+                } catch (Exception e) {
+                    failure.set(e);
+                }
+            });
+            run.start();
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+            while (metrics.loadedClassesRetransformed() == 0 && System.nanoTime() < deadline) {
+                Thread.sleep(5);
+            }
+            assertEquals(2, metrics.loadedClassesFound());
+            assertEquals(1, metrics.loadedClassesRetransformed());
+
+            // the first batch is in its pause and the second queued behind it, as on a JVM exit mid-attach
+            attach.close();
+            run.join(10_000);
+            assertFalse(run.isAlive());
+            assertInstanceOf(InterruptedException.class, failure.get());
+        } finally {
+            attach.close();
+            installed.reset(instrumentation, AgentBuilder.RedefinitionStrategy.DISABLED);
+        }
+    }
+}
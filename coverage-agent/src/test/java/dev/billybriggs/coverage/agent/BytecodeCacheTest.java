@@ -0,0 +1,135 @@
+package dev.billybriggs.coverage.agent;
+
+import com.example.HotPath;
+import dev.billybriggs.coverage.common.CoverageConfig;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+/**
+ * Unit tests for BytecodeCache.
+ */
+class BytecodeCacheTest {
+
+    @Test
+    void cachedBytecodeIsRelinkedToANewClassId(@TempDir Path directory) throws Exception {
+        CoverageConfig config = new CoverageConfig();
+        config.getInstrumentation().setIncludePatterns(List.of("com/example/HotPath"));
+        byte[] original = classFile(HotPath.class);
+
+        // first run instruments with ByteBuddy and stores the result
+        Run first = new Run(config, directory);
+        Class<?> firstType = first.load(original);
+        assertEquals(0, first.cache.hits());
+        assertEquals(1, first.cache.stores());
+        assertEquals(1, first.metrics.typesTransformed());
+        ClassProbes firstLayout = first.transformer.instrumentedClasses().get(0).layout();
+        firstType.getMethod("first").invoke(firstType.getConstructor().newInstance());
+        assertEquals(1, ProbeRuntime.counters(firstLayout.classId())[ProbeLayouts.probeIndex(firstLayout, "first")]);
+
+        // a restarted agent skips ByteBuddy and registers the class under a fresh id
+        Run second = new Run(config, directory);
+        Class<?> secondType = second.load(original);
+        assertEquals(1, second.cache.hits());
+        assertEquals(0, second.metrics.typesTransformed());
+        ClassProbes secondLayout = second.transformer.instrumentedClasses().get(0).layout();
+        assertEquals(firstLayout.probes(), secondLayout.probes());
+        Object hot = secondType.getConstructor().newInstance();
+        secondType.getMethod("second").invoke(hot);
+        secondType.getMethod("second").invoke(hot);
+        assertEquals(2, ProbeRuntime.counters(secondLayout.classId())[ProbeLayouts.probeIndex(secondLayout, "second")]);
+        assertEquals(0, ProbeRuntime.counters(firstLayout.classId())[ProbeLayouts.probeIndex(firstLayout, "second")]);
+    }
+
+    @Test
+    void readOnlyCacheNeverStoresAndChangedConfigMisses(@TempDir Path directory) throws Exception {
+        CoverageConfig config = new CoverageConfig();
+        byte[] original = classFile(HotPath.class);
+        BytecodeCache writable = BytecodeCache.open(directory, false, config);
+        BytecodeCache readOnly = BytecodeCache.open(directory, true, config);
+        String key = readOnly.key(original);
+        BytecodeCache.Entry entry = new BytecodeCache.Entry("com.example.HotPath", "com/example/HotPath.java",
+                List.of(), Map.of(), new int[0], original);
+
+        readOnly.store(key, entry);
+        assertNull(readOnly.load(key));
+        writable.store(key, entry);
+        BytecodeCache.Entry loaded = readOnly.load(key);
+        assertNotNull(loaded);
+        assertArrayEquals(original, loaded.classFile());
+
+        config.getInstrumentation().setExcludePatterns(List.of("**/Hot*"));
+        BytecodeCache reconfigured = BytecodeCache.open(directory, true, config);
+        assertNull(reconfigured.load(reconfigured.key(original)));
+    }
+
+    @Test
+    void linkPatchesEveryPlaceholderConstant() throws IOException {
+        byte[] classFile = classFile(Placeholder.class);
+        int[] offsets = BytecodeCache.integerConstantOffsets(classFile, CoverageTransformer.LINK_PLACEHOLDER);
+        assertEquals(1, offsets.length);
+
+        byte[] linked = BytecodeCache.link(classFile, offsets, 0x01020304);
+        assertEquals(0, BytecodeCache.integerConstantOffsets(linked, CoverageTransformer.LINK_PLACEHOLDER).length);
+        assertArrayEquals(offsets, BytecodeCache.integerConstantOffsets(linked, 0x01020304));
+    }
+
+    static class Placeholder {
+        long wide = 0x1234_5678_9ABC_DEF0L;
+
+        int value() {
+            return CoverageTransformer.LINK_PLACEHOLDER + (int) wide;
+        }
+    }
+
+    /**
+     * One agent start: a fresh transformer, cache instance and class loader over a shared directory.
+     */
+    private static final class Run {
+        final CoverageTransformer transformer;
+        final InstrumentationMetrics metrics;
+        final BytecodeCache cache;
+        final CachingTransformer caching;
+
+        Run(CoverageConfig config, Path directory) throws IOException {
+            transformer = CoverageAgent.newTransformer(config, false, false);
+            metrics = new InstrumentationMetrics(transformer.classFilter());
+            cache = BytecodeCache.open(directory, false, config);
+            caching = new CachingTransformer(CoverageAgent.agentBuilder(transformer, false).with(metrics).makeRaw(),
+                    transformer, cache);
+        }
+
+        Class<?> load(byte[] original) throws Exception {
+            DefiningClassLoader loader = new DefiningClassLoader();
+            byte[] transformed = caching.transform(loader, "com/example/HotPath", null, null, original);
+            return loader.define("com.example.HotPath", transformed);
+        }
+    }
+
+    private static final class DefiningClassLoader extends ClassLoader {
+        DefiningClassLoader() {
+            super(BytecodeCacheTest.class.getClassLoader());
+        }
+
+        Class<?> define(String name, byte[] classFile) {
+            return defineClass(name, classFile, 0, classFile.length);
+        }
+    }
+
+    private static byte[] classFile(Class<?> type) throws IOException {
+        String resource = type.getName().substring(type.getName().lastIndexOf('.') + 1) + ".class";
+        try (InputStream in = type.getResourceAsStream(resource)) {
+            return in.readAllBytes();
+        }
+    }
+}
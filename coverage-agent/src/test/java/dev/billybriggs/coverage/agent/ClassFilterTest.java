@@ -0,0 +1,59 @@
+package dev.billybriggs.coverage.agent;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Unit tests for ClassFilter.
+ */
+class ClassFilterTest {
+
+    @Test
+    void decisionsAreCachedPerPackage() {
+        ClassFilter filter = new ClassFilter(List.of("com/example/**/*"), List.of("**/*Test*", "java/**/*"));
+
+        assertTrue(filter.matches("com/example/Calculator"));
+        assertTrue(filter.matches("com/example/Service$Inner"));
+        assertFalse(filter.matches("com/example/CalculatorTest"));
+        assertTrue(filter.matches("com/example/web/Controller"));
+        assertFalse(filter.matches("java/lang/String"));
+        assertFalse(filter.matches("java/lang/Object"));
+        assertFalse(filter.matches("org/other/Calculator"));
+        assertFalse(filter.matches("Main"));
+
+        assertEquals(5, filter.packagesCached());
+        assertEquals(8, filter.classesConsidered());
+        assertEquals(5, filter.classesSkipped());
+    }
+
+    @Test
+    void globsThatSpanSegmentsAreMatchedOnFullNames() {
+        ClassFilter filter = new ClassFilter(List.of("com/example/**", "org/acme/Api**", "a**/*X"), List.of("**/internal**"));
+
+        assertTrue(filter.matches("com/example/deep/nested/Type"));
+        assertFalse(filter.matches("com/example/internal/Type"));
+        assertFalse(filter.matches("com/example/internalType"));
+        assertTrue(filter.matches("org/acme/ApiClient"));
+        assertFalse(filter.matches("org/acme/Client"));
+        // "a**/" is not a whole-segment wildcard, so it also reaches into the default package
+        assertTrue(filter.matches("aFooX"));
+        assertTrue(filter.matches("ab/c/FooX"));
+        assertFalse(filter.matches("b/FooX"));
+    }
+
+    @Test
+    void emptyIncludesAcceptEverythingButTheAgent() {
+        ClassFilter filter = new ClassFilter(List.of(), List.of("**/Generated?"));
+
+        assertTrue(filter.matches("Main"));
+        assertTrue(filter.matches("org/other/Generated"));
+        assertFalse(filter.matches("org/other/Generated1"));
+        assertTrue(filter.matches("org/other/Generated12"));
+        assertFalse(filter.matches("dev/billybriggs/coverage/agent/ProbeRuntime"));
+    }
+}
@@ -0,0 +1,148 @@
+package dev.billybriggs.coverage.agent;
+
+import dev.billybriggs.coverage.common.CoverageConfig;
+import dev.billybriggs.coverage.common.proto.CoverageProto.ClassLayout;
+import dev.billybriggs.coverage.common.proto.CoverageProto.CoverageData;
+import dev.billybriggs.coverage.common.proto.CoverageProto.CoverageType;
+import dev.billybriggs.coverage.common.wire.DictionaryEncoder;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+
+/**
+ * Unit tests for CoverageRelay and RelaySink.
+ */
+class CoverageRelayTest {
+
+    private static final List<ClassProbes.Probe> PROBES = List.of(
+            new ClassProbes.Probe("run", 0, CoverageType.COVERAGE_TYPE_METHOD),
+            new ClassProbes.Probe("run", 12, CoverageType.COVERAGE_TYPE_LINE),
+            new ClassProbes.Probe("stop", 0, CoverageType.COVERAGE_TYPE_METHOD));
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void relayAddsEveryAgentsHitsIntoOneClass() throws Exception {
+        CoverageRelay relay = relay(directory.resolve("relay.sock"));
+        relay.listen();
+        try (RelaySink first = RelaySink.connect(directory.resolve("relay.sock"));
+             RelaySink second = RelaySink.connect(directory.resolve("relay.sock"))) {
+            DictionaryEncoder firstEncoder = new DictionaryEncoder();
+            DictionaryEncoder secondEncoder = new DictionaryEncoder();
+            // the agents number the class differently; the relay matches it by layout
+            first.write(batch(firstEncoder, 3, PROBES, new int[]{0, 1}, new long[]{2, 5}));
+            second.write(batch(secondEncoder, 9, PROBES, new int[]{0, 2}, new long[]{1, 1}));
+            firstEncoder.addDelta(3, new int[]{1}, new long[]{4}, 1);
+            first.write(firstEncoder.finish(CoverageData.newBuilder().setSequence(2)).build());
+
+            ClassProbes merged = relay.classFor("com/example/Relayed.java", "com.example.Relayed", PROBES);
+            awaitCounters(merged.classId(), new long[]{3, 9, 1});
+
+            List<ClassProbes.Probe> otherVersion = List.of(PROBES.get(0));
+            second.write(batch(secondEncoder, 10, otherVersion, new int[]{0}, new long[]{7}));
+            ClassProbes other = relay.classFor("com/example/Relayed.java", "com.example.Relayed", otherVersion);
+            assertNotEquals(merged.classId(), other.classId());
+            awaitCounters(other.classId(), new long[]{7});
+        } finally {
+            relay.close();
+        }
+    }
+
+    @Test
+    void sinkReconnectsAfterTheRelayRestarts() throws Exception {
+        Path socket = directory.resolve("restart.sock");
+        CoverageRelay relay = relay(socket);
+        relay.listen();
+        RelaySink sink = RelaySink.connect(socket);
+        relay.close();
+
+        CoverageRelay restarted = relay(socket);
+        restarted.listen();
+        try {
+            List<ClassProbes.Probe> probes = List.of(new ClassProbes.Probe("restart", 0, CoverageType.COVERAGE_TYPE_METHOD));
+            DictionaryEncoder encoder = new DictionaryEncoder();
+            CoverageData data = batch(encoder, 0, probes, new int[]{0}, new long[]{1});
+            for (int attempt = 0; attempt < 3; attempt++) {
+                try {
+                    sink.write(data);
+                    break;
+                } catch (IOException e) {
+                    // the old connection fails first; the next write connects to the new relay
+                }
+            }
+            awaitCounters(restarted.classFor("com/example/Relayed.java", "com.example.Relayed", probes).classId(),
+                    new long[]{1});
+        } finally {
+            sink.close();
+            restarted.close();
+        }
+    }
+
+    @Test
+    void eachTestIsQueuedOnceWithAllTheClassesItRan() throws Exception {
+        CoverageRelay relay = relay(directory.resolve("tests.sock"));
+        relay.listen();
+        TestAttribution.drain();
+        try (RelaySink sink = RelaySink.connect(directory.resolve("tests.sock"))) {
+            DictionaryEncoder encoder = new DictionaryEncoder();
+            List<ClassProbes.Probe> otherProbes = List.of(new ClassProbes.Probe("other", 0, CoverageType.COVERAGE_TYPE_METHOD));
+            sink.write(batch(encoder, 1, PROBES, new int[]{0}, new long[]{1}));
+            ClassLayout.Builder other = encoder.newLayout(2, "com/example/Other.java", "com.example.Other");
+            other.addMethodIds(encoder.symbol("other")).addLineNumbers(0).addTypes(CoverageType.COVERAGE_TYPE_METHOD);
+            encoder.addLayout(other);
+            encoder.addTestCoverage("com.example.RelayedTest#run", new int[]{1, 2}, new int[][]{{0, 2}, {0}});
+            sink.write(encoder.finish(CoverageData.newBuilder().setSequence(2)).build());
+
+            List<TestAttribution.FinishedTest> tests = new ArrayList<>();
+            long deadline = System.nanoTime() + 5_000_000_000L;
+            while (tests.isEmpty() && System.nanoTime() < deadline) {
+                Thread.sleep(5);
+                tests.addAll(TestAttribution.drain());
+            }
+            assertEquals(1, tests.size());
+            TestAttribution.FinishedTest test = tests.get(0);
+            assertEquals("com.example.RelayedTest#run", test.testId());
+            int relayed = relay.classFor("com/example/Relayed.java", "com.example.Relayed", PROBES).classId();
+            int otherId = relay.classFor("com/example/Other.java", "com.example.Other", otherProbes).classId();
+            assertArrayEquals(new int[]{Math.min(relayed, otherId), Math.max(relayed, otherId)}, test.classIds());
+        } finally {
+            relay.close();
+        }
+    }
+
+    private static CoverageRelay relay(Path socket) {
+        CoverageConfig config = new CoverageConfig();
+        config.getCollector().setRelaySocket(socket.toString());
+        return new CoverageRelay(config);
+    }
+
+    private static CoverageData batch(DictionaryEncoder encoder, int classKey, List<ClassProbes.Probe> probes,
+                                      int[] hit, long[] counts) {
+        ClassLayout.Builder layout = encoder.newLayout(classKey, "com/example/Relayed.java", "com.example.Relayed");
+        for (ClassProbes.Probe probe : probes) {
+            layout.addMethodIds(encoder.symbol(probe.methodName())).addLineNumbers(probe.lineNumber()).addTypes(probe.type());
+        }
+        encoder.addLayout(layout);
+        encoder.addDelta(classKey, hit, counts, hit.length);
+        return encoder.finish(CoverageData.newBuilder().setSequence(1)).build();
+    }
+
+    private static void awaitCounters(int classId, long[] expected) throws InterruptedException {
+        long deadline = System.nanoTime() + 5_000_000_000L;
+        while (!Arrays.equals(expected, ProbeRuntime.counters(classId)) && System.nanoTime() < deadline) {
+            Thread.sleep(5);
+        }
+        assertArrayEquals(expected, ProbeRuntime.counters(classId));
+        assertEquals(expected.length, ProbeRuntime.layout(classId).probeCount());
+    }
+}
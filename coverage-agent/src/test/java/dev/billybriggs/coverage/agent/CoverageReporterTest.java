@@ -0,0 +1,442 @@
+package dev.billybriggs.coverage.agent;
+
+import dev.billybriggs.coverage.common.CoverageConfig;
+import dev.billybriggs.coverage.common.proto.CoverageProto.AgentRegistration;
+import dev.billybriggs.coverage.common.proto.CoverageProto.AgentRegistrationResponse;
+import dev.billybriggs.coverage.common.proto.CoverageProto.CoverageData;
+import dev.billybriggs.coverage.common.proto.CoverageProto.CoverageResponse;
+import dev.billybriggs.coverage.common.proto.CoverageProto.CoverageType;
+import dev.billybriggs.coverage.common.proto.CoverageProto.ExecutionPoint;
+import dev.billybriggs.coverage.common.proto.CoverageServiceGrpc;
+import dev.billybriggs.coverage.common.wire.CoverageDumpReader;
+import dev.billybriggs.coverage.common.wire.DictionaryDecoder;
+import io.grpc.Server;
+import io.grpc.ServerBuilder;
+import io.grpc.Status;
+import io.grpc.stub.StreamObserver;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Unit tests for CoverageReporter flush conversion.
+ */
+class CoverageReporterTest {
+
+    @Test
+    void flushReportsOnlyIncrementsSinceLastFlush() {
+        ClassProbes layout = ProbeRuntime.register("com.example.ReporterFixture", "com/example/ReporterFixture.java", List.of(
+                new ClassProbes.Probe("first", 0, CoverageType.COVERAGE_TYPE_METHOD),
+                new ClassProbes.Probe("second", 0, CoverageType.COVERAGE_TYPE_METHOD)));
+        CoverageConfig config = new CoverageConfig();
+        config.getCollector().setWireFormat("dictionary");
+        config.getCollector().setBatchSize(1);
+        CoverageReporter reporter = new CoverageReporter(config);
+        DictionaryDecoder decoder = new DictionaryDecoder();
+
+        ProbeRuntime.hit(layout.classId(), 0);
+        ProbeRuntime.hit(layout.classId(), 0);
+        ProbeRuntime.hit(layout.classId(), 1);
+
+        List<ExecutionPoint> points = pointsFor(decoder, reporter.collectBatches(), layout.className());
+        assertEquals(2, points.size());
+        assertEquals("first", points.get(0).getMethodName());
+        assertEquals(2, points.get(0).getHitCount());
+        assertEquals("com/example/ReporterFixture.java", points.get(0).getFilePath());
+        assertEquals(1, points.get(1).getHitCount());
+
+        ProbeRuntime.hit(layout.classId(), 1);
+        points = pointsFor(decoder, reporter.collectBatches(), layout.className());
+        assertEquals(1, points.size());
+        assertEquals("second", points.get(0).getMethodName());
+        assertEquals(1, points.get(0).getHitCount());
+
+        assertTrue(pointsFor(decoder, reporter.collectBatches(), layout.className()).isEmpty());
+    }
+
+    @Test
+    void deltaFlushesDeclareLayoutOnceAndSendOnlyChangedProbes() {
+        ClassProbes layout = ProbeRuntime.register("com.example.DeltaFixture", "com/example/DeltaFixture.java", List.of(
+                new ClassProbes.Probe("a", 0, CoverageType.COVERAGE_TYPE_METHOD),
+                new ClassProbes.Probe("b", 0, CoverageType.COVERAGE_TYPE_METHOD),
+                new ClassProbes.Probe("c", 0, CoverageType.COVERAGE_TYPE_METHOD)));
+        CoverageReporter reporter = new CoverageReporter(new CoverageConfig());
+        DictionaryDecoder decoder = new DictionaryDecoder();
+        ProbeRuntime.hit(layout.classId(), 2);
+
+        List<CoverageData> first = reporter.collectBatches();
+        assertTrue(first.stream().anyMatch(batch -> batch.getClassLayoutsCount() > 0));
+        List<ExecutionPoint> points = decodeAll(decoder, first, layout.className());
+        assertEquals(4, points.size());
+        assertEquals(3, points.stream().filter(point -> point.getHitCount() == 0).count());
+        reporter.acknowledge(first.get(first.size() - 1).getSequence());
+
+        ProbeRuntime.hit(layout.classId(), 0);
+        ProbeRuntime.hit(layout.classId(), 0);
+        List<CoverageData> second = reporter.collectBatches();
+        assertTrue(second.stream().allMatch(batch -> batch.getClassLayoutsCount() == 0));
+        points = decodeAll(decoder, second, layout.className());
+        assertEquals(1, points.size());
+        assertEquals("a", points.get(0).getMethodName());
+        assertEquals(2, points.get(0).getHitCount());
+    }
+
+    @Test
+    void endingAnEpochDrainsItAndRestartsCountingFromZero() {
+        ClassProbes layout = ProbeRuntime.register("com.example.EpochFixture", "com/example/EpochFixture.java", List.of(
+                new ClassProbes.Probe("a", 0, CoverageType.COVERAGE_TYPE_METHOD),
+                new ClassProbes.Probe("b", 0, CoverageType.COVERAGE_TYPE_METHOD)));
+        CoverageReporter reporter = new CoverageReporter(new CoverageConfig());
+        DictionaryDecoder decoder = new DictionaryDecoder();
+        ProbeRuntime.hit(layout.classId(), 0);
+        ProbeRuntime.hit(layout.classId(), 0);
+        List<CoverageData> first = reporter.collectBatches();
+        decodeAll(decoder, first, layout.className());
+        reporter.acknowledge(first.get(first.size() - 1).getSequence());
+
+        ProbeRuntime.hit(layout.classId(), 0);
+        ProbeRuntime.hit(layout.classId(), 1);
+        List<CoverageData> ended = reporter.endEpoch();
+        String epoch = first.get(0).getMetadataOrThrow(CoverageReporter.EPOCH_METADATA);
+        assertTrue(ended.stream().allMatch(batch -> epoch.equals(batch.getMetadataOrThrow(CoverageReporter.EPOCH_METADATA))));
+        assertEquals("true", ended.get(ended.size() - 1).getMetadataOrThrow(CoverageReporter.EPOCH_COMPLETE_METADATA));
+        List<ExecutionPoint> points = decodeAll(decoder, ended, layout.className());
+        assertEquals(List.of("a", "b"), points.stream().map(ExecutionPoint::getMethodName).toList());
+        assertTrue(points.stream().allMatch(point -> point.getHitCount() == 1));
+        assertArrayEquals(new long[2], ProbeRuntime.counters(layout.classId()));
+
+        ProbeRuntime.hit(layout.classId(), 1);
+        List<CoverageData> next = reporter.collectBatches();
+        assertEquals(String.valueOf(Long.parseLong(epoch) + 1), next.get(0).getMetadataOrThrow(CoverageReporter.EPOCH_METADATA));
+        assertTrue(next.stream().noneMatch(batch -> batch.containsMetadata(CoverageReporter.EPOCH_COMPLETE_METADATA)));
+        points = decodeAll(decoder, next, layout.className());
+        assertEquals(1, points.size());
+        assertEquals("b", points.get(0).getMethodName());
+        assertEquals(1, points.get(0).getHitCount());
+    }
+
+    @Test
+    void legacyWireFormatSendsExecutionPoints() {
+        ClassProbes layout = ProbeRuntime.register("com.example.LegacyFixture", "com/example/LegacyFixture.java", List.of(
+                new ClassProbes.Probe("run", 0, CoverageType.COVERAGE_TYPE_METHOD)));
+        CoverageConfig config = new CoverageConfig();
+        config.getCollector().setWireFormat("legacy");
+        ProbeRuntime.hit(layout.classId(), 0);
+
+        List<CoverageData> batches = new CoverageReporter(config).collectBatches();
+        assertTrue(batches.stream().noneMatch(CoverageData::hasPackedPoints));
+        assertTrue(batches.stream()
+                .flatMap(batch -> batch.getExecutionPointsList().stream())
+                .anyMatch(point -> point.getClassName().equals(layout.className()) && point.getHitCount() == 1));
+    }
+
+    @Test
+    void overflowingFlushesFollowPolicy() {
+        ClassProbes layout = ProbeRuntime.register("com.example.OverflowFixture", "com/example/OverflowFixture.java", List.of(
+                new ClassProbes.Probe("warm", 0, CoverageType.COVERAGE_TYPE_METHOD),
+                new ClassProbes.Probe("cold", 0, CoverageType.COVERAGE_TYPE_METHOD)));
+        CoverageConfig config = new CoverageConfig();
+        config.getCollector().setWireFormat("dictionary");
+        config.getCollector().setBatchSize(1);
+        config.getCollector().setOverflowPolicy("bits_only");
+        CoverageReporter reporter = new CoverageReporter(config);
+        DictionaryDecoder decoder = new DictionaryDecoder();
+        ProbeRuntime.hit(layout.classId(), 0);
+        assertEquals(2, pointsFor(decoder, reporter.collectBatches(), layout.className()).size());
+
+        // under overflow only newly covered probes go out, counted once
+        ProbeRuntime.hit(layout.classId(), 0);
+        ProbeRuntime.hit(layout.classId(), 1);
+        ProbeRuntime.hit(layout.classId(), 1);
+        List<ExecutionPoint> points = pointsFor(decoder, reporter.collectBatches(true), layout.className());
+        assertEquals(1, points.size());
+        assertEquals("cold", points.get(0).getMethodName());
+        assertEquals(1, points.get(0).getHitCount());
+
+        // the counts held back are sent once the buffer has drained
+        points = pointsFor(decoder, reporter.collectBatches(), layout.className());
+        assertEquals(2, points.size());
+        assertEquals(1, points.get(0).getHitCount());
+        assertEquals(1, points.get(1).getHitCount());
+
+        config.getCollector().setOverflowPolicy("coalesce");
+        ProbeRuntime.hit(layout.classId(), 0);
+        CoverageReporter coalescing = new CoverageReporter(config);
+        assertTrue(coalescing.collectBatches(true).isEmpty());
+        assertEquals(2, pointsFor(new DictionaryDecoder(), coalescing.collectBatches(), layout.className()).size());
+    }
+
+    @Test
+    void advertisedBatchSizeCapsBatches() {
+        ClassProbes layout = ProbeRuntime.register("com.example.WindowFixture", "com/example/WindowFixture.java", List.of(
+                new ClassProbes.Probe("a", 0, CoverageType.COVERAGE_TYPE_METHOD),
+                new ClassProbes.Probe("b", 0, CoverageType.COVERAGE_TYPE_METHOD),
+                new ClassProbes.Probe("c", 0, CoverageType.COVERAGE_TYPE_METHOD)));
+        CoverageConfig config = new CoverageConfig();
+        config.getCollector().setWireFormat("legacy");
+        CoverageReporter reporter = new CoverageReporter(config);
+        reporter.collectBatches();
+
+        reporter.advertise(CoverageResponse.newBuilder().setSuccess(true).setMaxBatchPoints(1).build());
+        for (int probe = 0; probe < 3; probe++) {
+            ProbeRuntime.hit(layout.classId(), probe);
+        }
+        List<CoverageData> batches = reporter.collectBatches();
+        assertTrue(batches.stream().allMatch(batch -> batch.getExecutionPointsCount() == 1));
+        assertEquals(3, batches.stream()
+                .filter(batch -> batch.getExecutionPoints(0).getClassName().equals(layout.className())).count());
+    }
+
+    @Test
+    void binaryOutputWritesBatchesToADumpInsteadOfTheCollector(@TempDir Path directory) throws IOException {
+        ClassProbes layout = ProbeRuntime.register("com.example.DumpFixture", "com/example/DumpFixture.java", List.of(
+                new ClassProbes.Probe("a", 0, CoverageType.COVERAGE_TYPE_METHOD),
+                new ClassProbes.Probe("b", 0, CoverageType.COVERAGE_TYPE_METHOD)));
+        CoverageConfig config = new CoverageConfig();
+        config.getCollector().setPort(1);
+        config.getCollector().setFlushIntervalMs(60_000);
+        config.getOutput().setFormat("binary");
+        config.getOutput().setFilePath(directory.resolve("coverage-{pid}.cvd").toString());
+        CoverageReporter reporter = new CoverageReporter(config);
+        reporter.start();
+
+        ProbeRuntime.hit(layout.classId(), 0);
+        reporter.flush();
+        ProbeRuntime.hit(layout.classId(), 0);
+        ProbeRuntime.hit(layout.classId(), 1);
+        reporter.close();
+
+        List<CoverageData> batches = new ArrayList<>();
+        CoverageDumpReader.read(CoverageReporter.dumpPath(config.getOutput().getFilePath()), batches::add);
+        assertEquals(1, batches.stream().filter(batch -> batch.getClassLayoutsCount() > 0).count());
+        Map<String, Long> hits = new HashMap<>();
+        decodeAll(new DictionaryDecoder(), batches, layout.className())
+                .forEach(point -> hits.merge(point.getMethodName(), point.getHitCount(), Long::sum));
+        assertEquals(Map.of("a", 2L, "b", 1L), hits);
+        assertEquals(batches.size(), reporter.batchesSent());
+        assertEquals(batches.stream().mapToLong(CoverageData::getSerializedSize).sum(), reporter.bytesSent());
+        assertEquals(2, reporter.flushLatency().count());
+        assertEquals(0, reporter.droppedBatches());
+    }
+
+    @Test
+    void responsesAreHandledWhileAFlushWaitsForRoomInTheRing() throws Exception {
+        List<ClassProbes.Probe> probes = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            probes.add(new ClassProbes.Probe("m" + i, i, CoverageType.COVERAGE_TYPE_LINE));
+        }
+        ClassProbes layout = ProbeRuntime.register("com.example.CreditFixture", "com/example/CreditFixture.java", probes);
+        for (int i = 0; i < probes.size(); i++) {
+            ProbeRuntime.hit(layout.classId(), i);
+        }
+        try (FakeCollector collector = new FakeCollector()) {
+            CoverageConfig config = collector.config();
+            config.getCollector().setWireFormat("legacy");
+            config.getCollector().setBatchSize(1);
+            config.getCollector().setBufferBytes(4096);
+            CoverageReporter reporter = new CoverageReporter(config);
+            reporter.start();
+            CompletableFuture<Void> flushed = CompletableFuture.runAsync(reporter::flush);
+
+            // credit is withheld until the flush is left waiting on a full ring
+            await(() -> collector.received().size() == CoverageReporter.INITIAL_WINDOW
+                    && reporter.bufferUsedBytes() * 2 >= reporter.bufferCapacity());
+            assertFalse(flushed.isDone());
+            for (CoverageData batch : collector.received()) {
+                collector.respond(CoverageResponse.newBuilder().setSuccess(true)
+                        .setAcknowledgedSequence(batch.getSequence()).setWindowBatches(1024).build());
+            }
+            flushed.get(5, TimeUnit.SECONDS);
+            await(() -> collector.received().stream().flatMap(batch -> batch.getExecutionPointsList().stream())
+                    .filter(point -> point.getClassName().equals(layout.className())).count() == probes.size());
+            assertEquals(0, reporter.droppedBatches());
+            reporter.close();
+        }
+    }
+
+    @Test
+    void legacyBatchesLostWithTheirStreamAreSentAgain() throws Exception {
+        List<ClassProbes.Probe> probes = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            probes.add(new ClassProbes.Probe("m" + i, i, CoverageType.COVERAGE_TYPE_LINE));
+        }
+        ClassProbes layout = ProbeRuntime.register("com.example.ResentFixture", "com/example/ResentFixture.java", probes);
+        Map<String, Long> expected = new HashMap<>();
+        for (int i = 0; i < probes.size(); i++) {
+            for (int hit = 0; hit <= i; hit++) {
+                ProbeRuntime.hit(layout.classId(), i);
+            }
+            expected.put("m" + i, i + 1L);
+        }
+        try (FakeCollector collector = new FakeCollector()) {
+            CoverageConfig config = collector.config();
+            config.getCollector().setWireFormat("legacy");
+            config.getCollector().setBatchSize(1);
+            CoverageReporter reporter = new CoverageReporter(config);
+            reporter.start();
+
+            // the first window goes out unacknowledged, the rest waits in the ring as the stream fails
+            reporter.flush();
+            await(() -> collector.received().size() == CoverageReporter.INITIAL_WINDOW);
+            collector.failStream();
+            collector.received().clear();
+            collector.acknowledgeAll();
+
+            Map<String, Long> hits = new HashMap<>();
+            await(() -> {
+                reporter.flush();
+                hits.clear();
+                collector.received().stream().flatMap(batch -> batch.getExecutionPointsList().stream())
+                        .filter(point -> point.getClassName().equals(layout.className()))
+                        .forEach(point -> hits.merge(point.getMethodName(), point.getHitCount(), Long::sum));
+                return hits.equals(expected);
+            });
+            reporter.close();
+        }
+    }
+
+    @Test
+    void snapshotFailsWhenItsBatchesCannotBeQueued() throws Exception {
+        List<ClassProbes.Probe> probes = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            probes.add(new ClassProbes.Probe("m" + i, i, CoverageType.COVERAGE_TYPE_LINE));
+        }
+        ProbeRuntime.register("com.example.StalledSnapshotFixture", "com/example/StalledSnapshotFixture.java", probes);
+        try (FakeCollector collector = new FakeCollector()) {
+            CoverageConfig config = collector.config();
+            config.getCollector().setWireFormat("legacy");
+            config.getCollector().setBatchSize(1);
+            config.getCollector().setBufferBytes(4096);
+            config.getCollector().setConnectionTimeoutMs(500);
+            CoverageReporter reporter = new CoverageReporter(config);
+            reporter.start();
+
+            // the collector never grants more credit, so the ended epoch cannot all fit in the ring
+            assertEquals(-1, reporter.snapshot());
+            assertTrue(reporter.droppedBatches() > 0);
+            reporter.close();
+        }
+    }
+
+    private static List<ExecutionPoint> decodeAll(DictionaryDecoder decoder, List<CoverageData> batches, String className) {
+        List<ExecutionPoint> points = new ArrayList<>();
+        for (CoverageData batch : batches) {
+            decoder.decode(batch, (file, name, method, line, type, hits) -> points.add(ExecutionPoint.newBuilder()
+                    .setFilePath(file).setClassName(name).setMethodName(method)
+                    .setLineNumber(line).setType(type).setHitCount(hits).build()));
+        }
+        return points.stream().filter(point -> point.getClassName().equals(className)).toList();
+    }
+
+    private static List<ExecutionPoint> pointsFor(DictionaryDecoder decoder, List<CoverageData> batches, String className) {
+        List<ExecutionPoint> points = new ArrayList<>();
+        for (CoverageData batch : batches) {
+            assertTrue(decoder.decode(batch, (file, name, method, line, type, hits) -> points.add(ExecutionPoint.newBuilder()
+                    .setFilePath(file).setClassName(name).setMethodName(method)
+                    .setLineNumber(line).setType(type).setHitCount(hits).build())) <= 1);
+        }
+        return points.stream().filter(point -> point.getClassName().equals(className)).toList();
+    }
+    private static void await(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (!condition.getAsBoolean()) {
+            assertTrue(System.nanoTime() < deadline, "timed out");
+            Thread.sleep(5);
+        }
+    }
+
+    /**
+     * A collector on a local port that records the batches it receives and responds only when told to.
+     */
+    private static final class FakeCollector extends CoverageServiceGrpc.CoverageServiceImplBase implements AutoCloseable {
+
+        private final List<CoverageData> received = new CopyOnWriteArrayList<>();
+        private volatile StreamObserver<CoverageResponse> responses;
+        private volatile boolean acknowledging;
+        private final Server server;
+
+        FakeCollector() throws IOException {
+            server = ServerBuilder.forPort(0).addService(this).build().start();
+        }
+
+        CoverageConfig config() {
+            CoverageConfig config = new CoverageConfig();
+            config.getCollector().setHost("localhost");
+            config.getCollector().setPort(server.getPort());
+            config.getCollector().setFlushIntervalMs(60_000);
+            config.getCollector().setConnectionTimeoutMs(30_000);
+            return config;
+        }
+
+        List<CoverageData> received() {
+            return received;
+        }
+
+        synchronized void respond(CoverageResponse response) {
+            responses.onNext(response);
+        }
+
+        /**
+         * From now on acknowledges every batch as it arrives, with a window that never runs out.
+         */
+        void acknowledgeAll() {
+            acknowledging = true;
+        }
+
+        synchronized void failStream() {
+            responses.onError(Status.UNAVAILABLE.asRuntimeException());
+        }
+
+        @Override
+        public void registerAgent(AgentRegistration request, StreamObserver<AgentRegistrationResponse> response) {
+            response.onNext(AgentRegistrationResponse.newBuilder().setSuccess(true).setSessionId("session").build());
+            response.onCompleted();
+        }
+
+        @Override
+        public StreamObserver<CoverageData> streamCoverageData(StreamObserver<CoverageResponse> responses) {
+            this.responses = responses;
+            return new StreamObserver<>() {
+                @Override
+                public void onNext(CoverageData batch) {
+                    received.add(batch);
+                    if (acknowledging) {
+                        respond(CoverageResponse.newBuilder().setSuccess(true)
+                                .setAcknowledgedSequence(batch.getSequence()).setWindowBatches(1024).build());
+                    }
+                }
+
+                @Override
+                public void onError(Throwable t) {
+                }
+
+                @Override
+                public void onCompleted() {
+                    synchronized (FakeCollector.this) {
+                        responses.onCompleted();
+                    }
+                }
+            };
+        }
+
+        @Override
+        public void close() {
+            server.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,143 @@
+package dev.billybriggs.coverage.agent;
+
+import dev.billybriggs.coverage.common.proto.CoverageProto.CoverageType;
+import net.bytebuddy.ByteBuddy;
+import net.bytebuddy.description.type.TypeDescription;
+import net.bytebuddy.dynamic.loading.ClassLoadingStrategy;
+import org.junit.jupiter.api.Test;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Unit tests for CoverageTransformer.
+ */
+class CoverageTransformerTest {
+
+    public static class Fixture {
+        public int add(int a, int b) {
+            return a + b;
+        }
+
+        public int unused() {
+            return 0;
+        }
+    }
+
+    public static class BranchFixture {
+        public int divide(int a, int b) {
+            if (b == 0) {
+                throw new ArithmeticException("divide by zero");
+            }
+            return a / b;
+        }
+
+        public boolean isPrime(int n) {
+            if (n < 2) {
+                return false;
+            }
+            for (int i = 2; i * i <= n; i++) {
+                if (n % i == 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    @Test
+    void instrumentedMethodsIncrementTheirProbe() throws Exception {
+        CoverageTransformer transformer = new CoverageTransformer(new ClassFilter(List.of(), List.of()));
+        int before = ProbeRuntime.classCount();
+
+        Class<?> type = transformer.transform(new ByteBuddy().redefine(Fixture.class),
+                        TypeDescription.ForLoadedType.of(Fixture.class), Fixture.class.getClassLoader(), null, null)
+                .make()
+                .load(Fixture.class.getClassLoader(), ClassLoadingStrategy.Default.CHILD_FIRST)
+                .getLoaded();
+
+        assertEquals(before + 1, ProbeRuntime.classCount());
+        ClassProbes layout = ProbeRuntime.layout(before);
+        assertEquals(Fixture.class.getName(), layout.className());
+        assertEquals("dev/billybriggs/coverage/agent/CoverageTransformerTest.java", layout.filePath());
+
+        Object instance = type.getConstructor().newInstance();
+        Method add = type.getMethod("add", int.class, int.class);
+        assertEquals(5, add.invoke(instance, 2, 3));
+        assertEquals(7, add.invoke(instance, 3, 4));
+
+        long[] counters = ProbeRuntime.counters(layout.classId());
+        assertEquals(2, counters[ProbeLayouts.probeIndex(layout, "add")]);
+        assertEquals(1, counters[ProbeLayouts.probeIndex(layout, "<init>")]);
+        assertEquals(0, counters[ProbeLayouts.probeIndex(layout, "unused")]);
+    }
+
+    @Test
+    void lineAndBranchProbesCountEachLineAndJumpEdge() throws Exception {
+        CoverageTransformer transformer = new CoverageTransformer(new ClassFilter(List.of(), List.of()));
+        Class<?> type = transformer.transform(new ByteBuddy().redefine(BranchFixture.class),
+                        TypeDescription.ForLoadedType.of(BranchFixture.class), BranchFixture.class.getClassLoader(),
+                        null, null)
+                .make()
+                .load(BranchFixture.class.getClassLoader(), ClassLoadingStrategy.Default.CHILD_FIRST)
+                .getLoaded();
+        ClassProbes layout = transformer.instrumentedClass(BranchFixture.class.getClassLoader(),
+                BranchFixture.class.getName()).layout();
+        Object instance = type.getConstructor().newInstance();
+        Method divide = type.getMethod("divide", int.class, int.class);
+
+        assertEquals(2, divide.invoke(instance, 6, 3));
+        // the if, throw and return lines
+        assertEquals(List.of(1L, 0L, 1L), hits(layout, "divide", CoverageType.COVERAGE_TYPE_LINE));
+        List<Long> edges = hits(layout, "divide", CoverageType.COVERAGE_TYPE_BRANCH);
+        assertEquals(2, edges.size());
+        assertEquals(1, edges.get(0) + edges.get(1));
+
+        InvocationTargetException thrown = assertThrows(InvocationTargetException.class,
+                () -> divide.invoke(instance, 1, 0));
+        assertTrue(thrown.getCause() instanceof ArithmeticException);
+        assertEquals(List.of(2L, 1L, 1L), hits(layout, "divide", CoverageType.COVERAGE_TYPE_LINE));
+        assertEquals(List.of(1L, 1L), hits(layout, "divide", CoverageType.COVERAGE_TYPE_BRANCH));
+
+        assertEquals(false, type.getMethod("isPrime", int.class).invoke(instance, 9));
+        // n < 2 once, the loop condition for i = 2 and 3, and n % i for i = 2 and 3
+        List<Long> loopEdges = hits(layout, "isPrime", CoverageType.COVERAGE_TYPE_BRANCH);
+        assertEquals(6, loopEdges.size());
+        assertEquals(List.of(1L, 2L, 2L), List.of(loopEdges.get(0) + loopEdges.get(1),
+                loopEdges.get(2) + loopEdges.get(3), loopEdges.get(4) + loopEdges.get(5)));
+    }
+
+    @Test
+    void classFilterAppliesIncludeAndExcludeGlobs() {
+        ClassFilter filter = new ClassFilter(List.of("com/example/**/*"), List.of("**/*Test*"));
+
+        assertTrue(filter.matches("com/example/Calculator"));
+        assertTrue(filter.matches("com/example/controller/CalculatorController"));
+        assertFalse(filter.matches("com/example/CalculatorTest"));
+        assertFalse(filter.matches("org/other/Calculator"));
+        assertFalse(filter.matches("dev/billybriggs/coverage/agent/ProbeRuntime"));
+    }
+
+    /**
+     * Hit counts of a method's probes of one type, in probe order.
+     */
+    private static List<Long> hits(ClassProbes layout, String methodName, CoverageType type) {
+        long[] counters = ProbeRuntime.counters(layout.classId());
+        List<Long> hits = new ArrayList<>();
+        for (int i = 0; i < layout.probeCount(); i++) {
+            ClassProbes.Probe probe = layout.probes().get(i);
+            String method = probe.methodName();
+            if (probe.type() == type && (method.equals(methodName) || method.startsWith(methodName + "#"))) {
+                hits.add(counters[i]);
+            }
+        }
+        return hits;
+    }
+}
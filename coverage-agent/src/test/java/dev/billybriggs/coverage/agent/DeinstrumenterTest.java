@@ -0,0 +1,114 @@
+package dev.billybriggs.coverage.agent;
+
+import com.example.HotPath;
+import com.example.SnapshotPath;
+import dev.billybriggs.coverage.common.CoverageConfig;
+import dev.billybriggs.coverage.common.wire.CoverageDumpReader;
+import dev.billybriggs.coverage.common.wire.DictionaryDecoder;
+import net.bytebuddy.agent.ByteBuddyAgent;
+import net.bytebuddy.agent.builder.AgentBuilder;
+import net.bytebuddy.agent.builder.ResettableClassFileTransformer;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.lang.instrument.Instrumentation;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Unit tests for Deinstrumenter.
+ */
+class DeinstrumenterTest {
+
+    @Test
+    void saturatedProbesAreRemovedAndTheirCountsFrozen() {
+        Instrumentation instrumentation = ByteBuddyAgent.install();
+        CoverageConfig config = new CoverageConfig();
+        config.getInstrumentation().setIncludePatterns(List.of("com/example/HotPath"));
+        CoverageTransformer transformer = CoverageAgent.newTransformer(config, true, false);
+        ResettableClassFileTransformer installed = CoverageAgent.agentBuilder(transformer, true).installOn(instrumentation);
+        Deinstrumenter deinstrumenter = new Deinstrumenter(instrumentation, transformer, 60_000);
+        try {
+            HotPath hot = new HotPath();
+            hot.first();
+            ClassProbes layout = transformer.instrumentedClasses().get(0).layout();
+            long[] counters = ProbeRuntime.counters(layout.classId());
+            assertEquals(HotPath.class.getName(), layout.className());
+            assertEquals(1, counters[ProbeLayouts.probeIndex(layout, "first")]);
+
+            // <init> and first() are saturated; second() keeps its probe
+            assertEquals(1, deinstrumenter.scan());
+            hot.first();
+            hot.second();
+            assertEquals(1, counters[ProbeLayouts.probeIndex(layout, "first")]);
+            assertEquals(1, counters[ProbeLayouts.probeIndex(layout, "second")]);
+
+            // now fully saturated: original bytecode restored, counts stay frozen
+            assertEquals(1, deinstrumenter.scan());
+            hot.second();
+            assertEquals(5, hot.second());
+            assertEquals(1, counters[ProbeLayouts.probeIndex(layout, "second")]);
+            assertEquals(0, deinstrumenter.scan());
+            assertEquals(2, deinstrumenter.retransformedClasses());
+        } finally {
+            deinstrumenter.close();
+            installed.reset(instrumentation, AgentBuilder.RedefinitionStrategy.DISABLED);
+        }
+    }
+
+    @Test
+    void removedProbesStayCoveredInLaterEpochs(@TempDir Path directory) throws IOException {
+        Instrumentation instrumentation = ByteBuddyAgent.install();
+        CoverageConfig config = new CoverageConfig();
+        config.getInstrumentation().setIncludePatterns(List.of("com/example/SnapshotPath"));
+        config.getCollector().setFlushIntervalMs(60_000);
+        config.getOutput().setFormat("binary");
+        config.getOutput().setFilePath(directory.resolve("coverage.cvd").toString());
+        CoverageTransformer transformer = CoverageAgent.newTransformer(config, true, false);
+        ResettableClassFileTransformer installed = CoverageAgent.agentBuilder(transformer, true).installOn(instrumentation);
+        Deinstrumenter deinstrumenter = new Deinstrumenter(instrumentation, transformer, 60_000);
+        CoverageReporter reporter = new CoverageReporter(config);
+        try {
+            reporter.start();
+            SnapshotPath path = new SnapshotPath();
+            path.first();
+            InstrumentedClass instrumented = transformer.instrumentedClasses().get(0);
+            ClassProbes layout = instrumented.layout();
+            assertEquals(1, deinstrumenter.scan());
+            assertTrue(reporter.snapshot() >= 0);
+
+            // <init> and first() no longer count, but neither reads as unexecuted nor gets its probe back
+            assertEquals(4, instrumented.removedProbes());
+            assertEquals(4, instrumented.saturatedProbeCount());
+            path.second();
+            assertTrue(instrumented.isFullySaturated());
+            assertEquals(1, deinstrumenter.scan());
+            path.first();
+            long epoch = reporter.snapshot();
+            reporter.close();
+
+            Map<String, Long> hits = new HashMap<>();
+            DictionaryDecoder decoder = new DictionaryDecoder();
+            CoverageDumpReader.read(CoverageReporter.dumpPath(config.getOutput().getFilePath()), batch -> {
+                boolean inEpoch = String.valueOf(epoch).equals(batch.getMetadataOrDefault(CoverageReporter.EPOCH_METADATA, ""));
+                decoder.decode(batch, (file, name, method, line, type, count) -> {
+                    if (inEpoch && name.equals(layout.className())) {
+                        hits.merge(method, count, Long::sum);
+                    }
+                });
+            });
+            // a method probe and a line probe per method, each executed once as far as this epoch can tell
+            assertEquals(Map.of("<init>", 2L, "first", 2L, "second", 2L), hits);
+        } finally {
+            reporter.close();
+            deinstrumenter.close();
+            installed.reset(instrumentation, AgentBuilder.RedefinitionStrategy.DISABLED);
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package dev.billybriggs.coverage.agent;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+/**
+ * Unit tests for DeltaTracker.
+ */
+class DeltaTrackerTest {
+
+    @Test
+    void reportsOnlyChangedProbes() {
+        DeltaTracker tracker = new DeltaTracker();
+        long[] counters = {0, 3, 0, 1};
+
+        DeltaTracker.Delta first = tracker.diff(0, counters, false);
+        assertArrayEquals(new int[]{1, 3}, Arrays.copyOf(first.probes(), first.count()));
+        assertArrayEquals(new long[]{3, 1}, Arrays.copyOf(first.countDeltas(), first.count()));
+        tracker.seal(1);
+        tracker.acknowledge(1);
+
+        assertNull(tracker.diff(0, counters, false));
+
+        counters[1] = 5;
+        DeltaTracker.Delta second = tracker.diff(0, counters, false);
+        assertEquals(1, second.count());
+        assertEquals(2, second.countDeltas()[0]);
+    }
+
+    @Test
+    void rollbackResendsUnacknowledgedChanges() {
+        DeltaTracker tracker = new DeltaTracker();
+        long[] counters = {1, 0};
+        tracker.diff(0, counters, false);
+        tracker.seal(1);
+        tracker.acknowledge(1);
+
+        counters[0] = 4;
+        counters[1] = 2;
+        tracker.diff(0, counters, false);
+        tracker.seal(2);
+        assertEquals(1, tracker.unacknowledgedBatches());
+
+        tracker.rollback();
+        DeltaTracker.Delta resent = tracker.diff(0, counters, false);
+        assertArrayEquals(new int[]{0, 1}, Arrays.copyOf(resent.probes(), resent.count()));
+        assertArrayEquals(new long[]{3, 2}, Arrays.copyOf(resent.countDeltas(), resent.count()));
+    }
+
+    @Test
+    void bitsOnlyReportsNewlyCoveredProbes() {
+        DeltaTracker tracker = new DeltaTracker();
+        long[] counters = {2, 0};
+        assertEquals(1, tracker.diff(0, counters, true).count());
+
+        counters[0] = 9;
+        assertNull(tracker.diff(0, counters, true));
+
+        counters[1] = 1;
+        DeltaTracker.Delta delta = tracker.diff(0, counters, true);
+        assertEquals(1, delta.probes()[0]);
+    }
+}
@@ -0,0 +1,94 @@
+package dev.billybriggs.coverage.agent;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Unit tests for FrameRing.
+ */
+class FrameRingTest {
+
+    @Test
+    void wrapsAroundWithPaddingAndRejectsWhenFull() {
+        FrameRing ring = new FrameRing(64);
+        assertEquals(64, ring.capacity());
+        List<byte[]> received = new ArrayList<>();
+        FrameRing.FrameHandler collect = (tag, payload) -> received.add(payload);
+
+        assertTrue(ring.offer(1, new byte[20]));
+        assertTrue(ring.offer(2, new byte[20]));
+        assertFalse(ring.offer(3, new byte[20]));
+        assertEquals(1, ring.rejectedFrames());
+
+        assertTrue(ring.poll(collect));
+        // 32 bytes used at offset 32: the next frame pads to the end and starts at 0
+        assertTrue(ring.offer(3, new byte[] {7, 8, 9}));
+        assertTrue(ring.poll(collect));
+        assertTrue(ring.poll(collect));
+        assertFalse(ring.poll(collect));
+        assertEquals(0, ring.usedBytes());
+        assertArrayEquals(new byte[] {7, 8, 9}, received.get(2));
+
+        assertThrows(IllegalArgumentException.class, () -> ring.offer(1, new byte[ring.maxPayload() + 1]));
+    }
+
+    @Test
+    void concurrentProducersLoseNothingAndKeepPerProducerOrder() throws InterruptedException {
+        FrameRing ring = new FrameRing(1024);
+        int producers = 4;
+        int frames = 20_000;
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<>();
+        for (int p = 0; p < producers; p++) {
+            int producer = p;
+            Thread thread = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                for (int i = 0; i < frames; i++) {
+                    byte[] payload = ByteBuffer.allocate(Integer.BYTES * (1 + i % 5)).putInt(i).array();
+                    while (!ring.offer(producer, payload)) {
+                        Thread.yield();
+                    }
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+
+        int[] next = new int[producers];
+        FrameRing.FrameHandler check = (tag, payload) -> {
+            assertEquals(next[tag], ByteBuffer.wrap(payload).getInt());
+            assertEquals(Integer.BYTES * (1 + next[tag] % 5), payload.length);
+            next[tag]++;
+        };
+        start.countDown();
+        int received = 0;
+        while (received < producers * frames) {
+            if (ring.poll(check)) {
+                received++;
+            } else {
+                Thread.yield();
+            }
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertFalse(ring.poll(check));
+        for (int count : next) {
+            assertEquals(frames, count);
+        }
+    }
+}
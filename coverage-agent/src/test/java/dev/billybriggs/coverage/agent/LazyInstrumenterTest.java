@@ -0,0 +1,58 @@
+package dev.billybriggs.coverage.agent;
+
+import com.example.LazyPath;
+import dev.billybriggs.coverage.common.CoverageConfig;
+import net.bytebuddy.agent.ByteBuddyAgent;
+import net.bytebuddy.agent.builder.AgentBuilder;
+import net.bytebuddy.agent.builder.ResettableClassFileTransformer;
+import org.junit.jupiter.api.Test;
+
+import java.lang.instrument.Instrumentation;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Unit tests for LazyInstrumenter.
+ */
+class LazyInstrumenterTest {
+
+    @Test
+    void firstEntryInstallsFullProbes() {
+        Instrumentation instrumentation = ByteBuddyAgent.install();
+        CoverageConfig config = new CoverageConfig();
+        config.getInstrumentation().setIncludePatterns(List.of("com/example/LazyPath"));
+        CoverageTransformer transformer = CoverageAgent.newTransformer(config, false, true);
+        InstrumentationMetrics metrics = new InstrumentationMetrics(transformer.classFilter());
+        ResettableClassFileTransformer installed = CoverageAgent.agentBuilder(transformer, true)
+                .with(metrics)
+                .installOn(instrumentation);
+        LazyInstrumenter lazyInstrumenter = new LazyInstrumenter(instrumentation, transformer, metrics);
+        try {
+            // only entry probes so far: create() and <init>, not call()
+            LazyPath path = LazyPath.create();
+            assertTrue(transformer.instrumentedClasses().isEmpty());
+            path.call();
+
+            assertEquals(1, lazyInstrumenter.activatePending());
+            assertEquals(1, metrics.lazyActivations());
+            assertTrue(metrics.typesTransformed() >= 2);
+            ClassProbes full = transformer.instrumentedClasses().get(0).layout();
+            assertEquals(LazyPath.class.getName(), full.className());
+            ClassProbes entry = ProbeRuntime.layout(full.classId() - 1);
+            assertEquals(2, entry.probeCount());
+            assertEquals(1, ProbeRuntime.counters(entry.classId())[ProbeLayouts.probeIndex(entry, "create")]);
+
+            path.call();
+            LazyPath.create();
+            long[] counters = ProbeRuntime.counters(full.classId());
+            assertEquals(1, counters[ProbeLayouts.probeIndex(full, "call")]);
+            assertEquals(1, counters[ProbeLayouts.probeIndex(full, "create")]);
+            assertEquals(0, lazyInstrumenter.activatePending());
+        } finally {
+            lazyInstrumenter.close();
+            installed.reset(instrumentation, AgentBuilder.RedefinitionStrategy.DISABLED);
+        }
+    }
+}
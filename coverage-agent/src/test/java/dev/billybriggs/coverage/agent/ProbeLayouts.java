@@ -0,0 +1,22 @@
+package dev.billybriggs.coverage.agent;
+
+/**
+ * Lookups into registered probe layouts shared by the instrumentation tests.
+ */
+final class ProbeLayouts {
+
+    private ProbeLayouts() {
+    }
+
+    /**
+     * Index of the first probe of {@code methodName} in the layout.
+     */
+    static int probeIndex(ClassProbes layout, String methodName) {
+        for (int i = 0; i < layout.probeCount(); i++) {
+            if (layout.probes().get(i).methodName().equals(methodName)) {
+                return i;
+            }
+        }
+        throw new AssertionError("No probe for " + methodName);
+    }
+}
@@ -0,0 +1,103 @@
+package dev.billybriggs.coverage.agent;
+
+import dev.billybriggs.coverage.common.proto.CoverageProto.CoverageType;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Unit tests for ProbeSampler.
+ */
+class ProbeSamplerTest {
+
+    @AfterEach
+    void resetSampler() {
+        ProbeSampler.reset();
+    }
+
+    @Test
+    void sampledCountsAreScaledAndFirstHitsExact() throws InterruptedException {
+        ProbeSampler.configure(0.01, 0, 0);
+        int classId = register(3);
+        int hitsPerThread = 500_000;
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            Thread thread = new Thread(() -> {
+                for (int i = 0; i < hitsPerThread; i++) {
+                    ProbeRuntime.sampledHit(classId, 0);
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        ProbeRuntime.sampledHit(classId, 1);
+
+        long[] counters = ProbeRuntime.counters(classId);
+        // increments are unsynchronized, so allow for lost updates as well as sampling error
+        long expected = 4L * hitsPerThread;
+        assertTrue(counters[0] > expected * 0.8 && counters[0] < expected * 1.1, "count " + counters[0]);
+        assertEquals(1, counters[1]);
+        assertEquals(0, counters[2]);
+    }
+
+    @Test
+    void pausedSamplingStillRecordsCoverage() {
+        ProbeSampler.configure(0.5, 60_000, 60_000);
+        int classId = register(2);
+        ProbeSampler.setCounting(false);
+        for (int i = 0; i < 1_000; i++) {
+            ProbeRuntime.sampledHit(classId, 0);
+        }
+        assertEquals(1, ProbeRuntime.counters(classId)[0]);
+
+        ProbeSampler.setCounting(true);
+        for (int i = 0; i < 10_000; i++) {
+            ProbeRuntime.sampledHit(classId, 0);
+        }
+        // a 50% duty cycle doubles each sampled weight
+        long count = ProbeRuntime.counters(classId)[0];
+        assertTrue(count > 15_000 && count < 25_000, "count " + count);
+    }
+
+    @Test
+    void reconfiguringDuringAToggleLeavesCountingOn() throws InterruptedException {
+        for (int i = 0; i < 1_000; i++) {
+            ProbeSampler.configure(1.0, 1, 1);
+            Thread.sleep(0, (i % 10) * 100_000);
+            ProbeSampler.configure(1.0, 60_000, 60_000);
+            Thread.sleep(2);
+            assertTrue(ProbeSampler.isCounting(), "counting off after reconfiguration " + i);
+        }
+        ProbeSampler.reset();
+        Thread.sleep(5);
+        assertTrue(ProbeSampler.isCounting());
+    }
+
+    @Test
+    void configurationIsValidated() {
+        assertThrows(IllegalArgumentException.class, () -> ProbeSampler.configure(0, 0, 0));
+        assertThrows(IllegalArgumentException.class, () -> ProbeSampler.configure(1.5, 0, 0));
+        assertFalse(ProbeSampler.isSampling(1.0, 0));
+        assertTrue(ProbeSampler.isSampling(0.5, 0));
+        assertTrue(ProbeSampler.isSampling(1.0, 100));
+        assertTrue(ProbeSampler.isCounting());
+    }
+
+    private static int register(int probes) {
+        List<ClassProbes.Probe> layout = new ArrayList<>();
+        for (int i = 0; i < probes; i++) {
+            layout.add(new ClassProbes.Probe("m" + i, 0, CoverageType.COVERAGE_TYPE_METHOD));
+        }
+        return ProbeRuntime.register("com.example.Sampled", "com/example/Sampled.java", layout).classId();
+    }
+}
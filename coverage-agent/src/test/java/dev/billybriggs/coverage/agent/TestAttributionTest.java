@@ -0,0 +1,98 @@
+package dev.billybriggs.coverage.agent;
+
+import dev.billybriggs.coverage.common.CoverageConfig;
+import dev.billybriggs.coverage.common.proto.CoverageProto.CoverageData;
+import dev.billybriggs.coverage.common.proto.CoverageProto.CoverageType;
+import dev.billybriggs.coverage.common.wire.DictionaryDecoder;
+import dev.billybriggs.coverage.common.wire.ProbeVisitor;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Unit tests for TestAttribution and the per-test coverage delta batches carry.
+ */
+class TestAttributionTest {
+
+    @Test
+    void eachTestIsCreditedWithTheProbesItRan() {
+        ClassProbes layout = ProbeRuntime.register("com.example.AttributedFixture", "com/example/AttributedFixture.java", List.of(
+                new ClassProbes.Probe("a", 0, CoverageType.COVERAGE_TYPE_METHOD),
+                new ClassProbes.Probe("b", 0, CoverageType.COVERAGE_TYPE_METHOD),
+                new ClassProbes.Probe("c", 0, CoverageType.COVERAGE_TYPE_METHOD)));
+        CoverageReporter reporter = new CoverageReporter(new CoverageConfig());
+        ProbeRuntime.hit(layout.classId(), 0);
+
+        TestAttribution.testStarted("com.example.FixtureTest#first");
+        assertEquals("com.example.FixtureTest#first", TestAttribution.currentTest());
+        ProbeRuntime.hit(layout.classId(), 1);
+        ProbeRuntime.hit(layout.classId(), 2);
+        TestAttribution.testFinished();
+        TestAttribution.testStarted("com.example.FixtureTest#second");
+        ProbeRuntime.hit(layout.classId(), 0);
+        TestAttribution.testFinished();
+        assertNull(TestAttribution.currentTest());
+        // a finish without a start is ignored
+        TestAttribution.testFinished();
+
+        RecordingVisitor visitor = new RecordingVisitor();
+        DictionaryDecoder decoder = new DictionaryDecoder();
+        List<CoverageData> batches = reporter.collectBatches();
+        batches.forEach(batch -> decoder.decode(batch, visitor));
+        assertEquals(Set.of("b", "c"), visitor.tests.get("com.example.FixtureTest#first"));
+        assertEquals(Set.of("a"), visitor.tests.get("com.example.FixtureTest#second"));
+        assertEquals(2, visitor.tests.size());
+
+        // the counters kept counting across test boundaries
+        assertEquals(2, ProbeRuntime.counters(layout.classId())[0]);
+        reporter.acknowledge(batches.get(batches.size() - 1).getSequence());
+        assertTrue(reporter.collectBatches().stream().allMatch(batch -> batch.getTestCoveragesCount() == 0));
+    }
+
+    @Test
+    void testsBeyondTheQueueLimitAreDroppedOldestFirstAndCounted() {
+        TestAttribution.drain();
+        long dropped = TestAttribution.droppedTests();
+        for (int i = 0; i <= TestAttribution.MAX_PENDING_TESTS; i++) {
+            TestAttribution.add(new TestAttribution.FinishedTest("com.example.QueuedTest#" + i, new int[0], new int[0][]));
+        }
+        List<TestAttribution.FinishedTest> queued = TestAttribution.drain();
+        assertEquals(TestAttribution.MAX_PENDING_TESTS, queued.size());
+        assertEquals("com.example.QueuedTest#1", queued.get(0).testId());
+        assertEquals(dropped + 1, TestAttribution.droppedTests());
+    }
+
+    private static final class RecordingVisitor implements ProbeVisitor {
+        final Map<String, Set<String>> tests = new TreeMap<>();
+
+        @Override
+        public Object bindLayout(String filePath, String className, String[] methodNames, int[] lineNumbers,
+                                 CoverageType[] types) {
+            return methodNames;
+        }
+
+        @Override
+        public void visitProbe(Object binding, int probe, long hitCount) {
+        }
+
+        @Override
+        public void visitTestProbes(String testId, Object binding, int[] probes) {
+            for (int probe : probes) {
+                tests.computeIfAbsent(testId, id -> new TreeSet<>()).add(((String[]) binding)[probe]);
+            }
+        }
+
+        @Override
+        public void visit(String filePath, String className, String methodName, int lineNumber, CoverageType type,
+                          long hitCount) {
+        }
+    }
+}
@@ -0,0 +1,112 @@
+package dev.billybriggs.coverage.benchmarks;
+
+import com.example.Calculator;
+import dev.billybriggs.coverage.agent.CoverageAgent;
+import dev.billybriggs.coverage.common.CoverageConfig;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.instrument.ClassFileTransformer;
+import java.lang.instrument.IllegalClassFormatException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Agent hot-path overhead: the sample application's {@code Calculator} with and without coverage
+ * probes.
+ *
+ * <p>Both variants are defined from the same class file in their own class loader and called
+ * through a {@link MethodHandle}, so the difference between them is the probe cost alone.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@State(Scope.Thread)
+public class CalculatorBenchmark {
+
+    private static final String CALCULATOR = "com/example/Calculator";
+
+    @Param({"false", "true"})
+    public boolean instrumented;
+
+    @Param({"7919"})
+    public int prime;
+
+    @Param({"12"})
+    public int factorialOf;
+
+    private Object calculator;
+    private MethodHandle isPrime;
+    private MethodHandle factorial;
+
+    @Setup
+    public void setUp() throws Throwable {
+        byte[] classFile = readClassFile();
+        if (instrumented) {
+            CoverageConfig config = new CoverageConfig();
+            config.getInstrumentation().setIncludePatterns(List.of("com/example/**/*"));
+            classFile = instrument(CoverageAgent.newClassFileTransformer(config), classFile);
+        }
+        Class<?> type = new DefiningClassLoader(getClass().getClassLoader())
+                .define(CALCULATOR.replace('/', '.'), classFile);
+        calculator = type.getConstructor().newInstance();
+        MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+        isPrime = lookup.findVirtual(type, "isPrime", MethodType.methodType(boolean.class, int.class))
+                .asType(MethodType.methodType(boolean.class, Object.class, int.class));
+        factorial = lookup.findVirtual(type, "factorial", MethodType.methodType(int.class, int.class))
+                .asType(MethodType.methodType(int.class, Object.class, int.class));
+    }
+
+    @Benchmark
+    public boolean isPrime() throws Throwable {
+        return (boolean) isPrime.invokeExact(calculator, prime);
+    }
+
+    @Benchmark
+    public int factorial() throws Throwable {
+        return (int) factorial.invokeExact(calculator, factorialOf);
+    }
+
+    private static byte[] readClassFile() throws IOException {
+        try (InputStream in = Calculator.class.getClassLoader().getResourceAsStream(CALCULATOR + ".class")) {
+            if (in == null) {
+                throw new IllegalStateException("Missing " + CALCULATOR + ".class");
+            }
+            return in.readAllBytes();
+        }
+    }
+
+    private static byte[] instrument(ClassFileTransformer transformer, byte[] classFile) throws IllegalClassFormatException {
+        byte[] transformed = transformer.transform(Calculator.class.getClassLoader(), CALCULATOR, null, null, classFile);
+        if (transformed == null) {
+            throw new IllegalStateException(CALCULATOR + " was not instrumented");
+        }
+        return transformed;
+    }
+
+    private static final class DefiningClassLoader extends ClassLoader {
+        DefiningClassLoader(ClassLoader parent) {
+            super(parent);
+        }
+
+        Class<?> define(String name, byte[] classFile) {
+            return defineClass(name, classFile, 0, classFile.length);
+        }
+    }
+}
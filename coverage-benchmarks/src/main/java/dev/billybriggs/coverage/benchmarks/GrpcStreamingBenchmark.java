@@ -0,0 +1,96 @@
+package dev.billybriggs.coverage.benchmarks;
+
+import dev.billybriggs.coverage.collector.CoverageDataStore;
+import dev.billybriggs.coverage.collector.CoverageServiceImpl;
+import dev.billybriggs.coverage.common.proto.CoverageProto.CoverageData;
+import dev.billybriggs.coverage.common.proto.CoverageProto.CoverageResponse;
+import dev.billybriggs.coverage.common.proto.CoverageServiceGrpc;
+import dev.billybriggs.coverage.common.wire.DictionaryEncoder;
+import io.grpc.ManagedChannel;
+import io.grpc.Server;
+import io.grpc.inprocess.InProcessChannelBuilder;
+import io.grpc.inprocess.InProcessServerBuilder;
+import io.grpc.stub.StreamObserver;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * End-to-end streaming: one agent stream sends a steady-state delta batch to an in-process
+ * collector and waits for its acknowledgement. Covers stub, serialization, decoding and merging,
+ * without network latency.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class GrpcStreamingBenchmark {
+
+    @Param({"100", "1000", "10000"})
+    public int points;
+
+    private Server server;
+    private ManagedChannel channel;
+    private StreamObserver<CoverageData> requests;
+    private final Semaphore acknowledgements = new Semaphore(0);
+    private CoverageData batch;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        String name = InProcessServerBuilder.generateName();
+        server = InProcessServerBuilder.forName(name)
+                .addService(new CoverageServiceImpl(new CoverageDataStore()))
+                .build()
+                .start();
+        channel = InProcessChannelBuilder.forName(name).build();
+        requests = CoverageServiceGrpc.newStub(channel).streamCoverageData(new StreamObserver<>() {
+            @Override
+            public void onNext(CoverageResponse response) {
+                acknowledgements.release();
+            }
+
+            @Override
+            public void onError(Throwable t) {
+                throw new IllegalStateException("Coverage stream failed", t);
+            }
+
+            @Override
+            public void onCompleted() {
+            }
+        });
+
+        DictionaryEncoder encoder = new DictionaryEncoder();
+        requests.onNext(SyntheticCoverage.layouts(encoder, points));
+        acknowledgements.acquire();
+        batch = SyntheticCoverage.deltas(encoder, points);
+    }
+
+    @Benchmark
+    public void sendBatch() throws InterruptedException {
+        requests.onNext(batch);
+        acknowledgements.acquire();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException, InterruptedException {
+        requests.onCompleted();
+        channel.shutdown().awaitTermination(5, TimeUnit.SECONDS);
+        server.shutdown().awaitTermination(5, TimeUnit.SECONDS);
+    }
+}
@@ -0,0 +1,141 @@
+package dev.billybriggs.coverage.benchmarks;
+
+import dev.billybriggs.coverage.collector.CoverageDataStore;
+import dev.billybriggs.coverage.common.proto.CoverageProto.CoverageType;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * {@link CoverageDataStore} merge throughput with eight threads writing to one session, the
+ * contention pattern of many agents reporting into the same test run. Compares the bound-layout
+ * path used by delta streams with merging by name, on the in-memory and the memory-mapped store.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(8)
+public class StoreMergeBenchmark {
+
+    static final int PROBES = SyntheticCoverage.PROBES_PER_CLASS;
+    static final int CLASSES = 64;
+    static final int BATCH = 128;
+
+    @State(Scope.Benchmark)
+    public static class Store {
+        @Param({"false", "true"})
+        public boolean persistent;
+
+        CoverageDataStore dataStore;
+        Path directory;
+
+        @Setup(Level.Trial)
+        public void setUp() throws IOException {
+            if (persistent) {
+                directory = Files.createTempDirectory("coverage-store-bench");
+                dataStore = CoverageDataStore.open(directory, false);
+            } else {
+                dataStore = new CoverageDataStore();
+            }
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws IOException {
+            dataStore.close();
+            if (directory != null) {
+                try (Stream<Path> files = Files.walk(directory)) {
+                    for (Path file : (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator) {
+                        Files.delete(file);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * One agent stream: its own writer with every class layout bound, as after the first flush.
+     */
+    @State(Scope.Thread)
+    public static class AgentStream {
+        CoverageDataStore.Writer writer;
+        Object[] bindings;
+        final String[] filePaths = new String[CLASSES];
+        final String[] classNames = new String[CLASSES];
+        final String[] methodNames = new String[PROBES];
+        int next;
+
+        @Setup(Level.Trial)
+        public void setUp(Store store) {
+            writer = store.dataStore.writer("bench");
+            bindings = new Object[CLASSES];
+            int[] lines = new int[PROBES];
+            CoverageType[] types = new CoverageType[PROBES];
+            for (int probe = 0; probe < PROBES; probe++) {
+                methodNames[probe] = SyntheticCoverage.methodName(probe);
+                lines[probe] = probe + 1;
+                types[probe] = CoverageType.COVERAGE_TYPE_LINE;
+            }
+            for (int classIndex = 0; classIndex < CLASSES; classIndex++) {
+                filePaths[classIndex] = SyntheticCoverage.filePath(classIndex);
+                classNames[classIndex] = SyntheticCoverage.className(classIndex);
+                bindings[classIndex] = writer.bindLayout(filePaths[classIndex], classNames[classIndex], methodNames, lines, types);
+            }
+            next = ThreadLocalRandom.current().nextInt(CLASSES * PROBES);
+        }
+    }
+
+    /**
+     * A batch of {@value #BATCH} probe deltas through bound layouts, then one commit.
+     */
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void mergeBound(AgentStream stream) {
+        int position = stream.next;
+        for (int i = 0; i < BATCH; i++) {
+            position = (position + 7) % (CLASSES * PROBES);
+            stream.writer.visitProbe(stream.bindings[position / PROBES], position % PROBES, 1);
+        }
+        stream.next = position;
+        stream.writer.commit();
+    }
+
+    /**
+     * The same batch merged point by point with names, as legacy and dictionary batches are.
+     */
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void mergeByName(AgentStream stream) {
+        int position = stream.next;
+        for (int i = 0; i < BATCH; i++) {
+            position = (position + 7) % (CLASSES * PROBES);
+            int classIndex = position / PROBES;
+            int probe = position % PROBES;
+            stream.writer.visit(stream.filePaths[classIndex], stream.classNames[classIndex],
+                    stream.methodNames[probe], probe + 1, CoverageType.COVERAGE_TYPE_LINE, 1);
+        }
+        stream.next = position;
+        stream.writer.commit();
+    }
+}
@@ -0,0 +1,100 @@
+package dev.billybriggs.coverage.benchmarks;
+
+import dev.billybriggs.coverage.common.proto.CoverageProto.ClassLayout;
+import dev.billybriggs.coverage.common.proto.CoverageProto.CoverageData;
+import dev.billybriggs.coverage.common.proto.CoverageProto.CoverageType;
+import dev.billybriggs.coverage.common.proto.CoverageProto.ExecutionPoint;
+import dev.billybriggs.coverage.common.wire.DictionaryEncoder;
+
+/**
+ * Deterministic coverage shaped like a real application: classes of {@value #PROBES_PER_CLASS}
+ * probes spread over a handful of methods, with every other probe changed per flush.
+ */
+final class SyntheticCoverage {
+
+    static final int PROBES_PER_CLASS = 50;
+    private static final int METHODS_PER_CLASS = 10;
+
+    private SyntheticCoverage() {
+    }
+
+    static int classCount(int points) {
+        return Math.max(1, points / PROBES_PER_CLASS);
+    }
+
+    static String filePath(int classIndex) {
+        return "com/example/generated/Type" + classIndex + ".java";
+    }
+
+    static String className(int classIndex) {
+        return "com.example.generated.Type" + classIndex;
+    }
+
+    static String methodName(int probe) {
+        return "method" + probe % METHODS_PER_CLASS;
+    }
+
+    /**
+     * One {@code ExecutionPoint} message per point.
+     */
+    static CoverageData legacy(int points) {
+        CoverageData.Builder data = CoverageData.newBuilder().setSessionId("bench");
+        for (int i = 0; i < points; i++) {
+            int classIndex = i / PROBES_PER_CLASS;
+            int probe = i % PROBES_PER_CLASS;
+            data.addExecutionPoints(ExecutionPoint.newBuilder()
+                    .setFilePath(filePath(classIndex))
+                    .setClassName(className(classIndex))
+                    .setMethodName(methodName(probe))
+                    .setLineNumber(probe + 1)
+                    .setType(CoverageType.COVERAGE_TYPE_LINE)
+                    .setHitCount(i + 1));
+        }
+        return data.build();
+    }
+
+    /**
+     * Symbol table plus packed columns.
+     */
+    static CoverageData dictionary(DictionaryEncoder encoder, int points) {
+        for (int i = 0; i < points; i++) {
+            int classIndex = i / PROBES_PER_CLASS;
+            int probe = i % PROBES_PER_CLASS;
+            encoder.add(filePath(classIndex), className(classIndex), methodName(probe), probe + 1,
+                    CoverageType.COVERAGE_TYPE_LINE, i + 1);
+        }
+        return encoder.finish(CoverageData.newBuilder().setSessionId("bench")).build();
+    }
+
+    /**
+     * Layout declarations for every class, as sent once per stream.
+     */
+    static CoverageData layouts(DictionaryEncoder encoder, int points) {
+        for (int classIndex = 0; classIndex < classCount(points); classIndex++) {
+            ClassLayout.Builder layout = encoder.newLayout(classIndex, filePath(classIndex), className(classIndex));
+            for (int probe = 0; probe < PROBES_PER_CLASS; probe++) {
+                layout.addMethodIds(encoder.symbol(methodName(probe)))
+                        .addLineNumbers(probe + 1)
+                        .addTypes(CoverageType.COVERAGE_TYPE_LINE);
+            }
+            encoder.addLayout(layout);
+        }
+        return encoder.finish(CoverageData.newBuilder().setSessionId("bench")).build();
+    }
+
+    /**
+     * A steady-state delta flush: every other probe of every class changed by one hit.
+     */
+    static CoverageData deltas(DictionaryEncoder encoder, int points) {
+        int[] probes = new int[PROBES_PER_CLASS / 2];
+        long[] counts = new long[probes.length];
+        for (int i = 0; i < probes.length; i++) {
+            probes[i] = i * 2;
+            counts[i] = 1;
+        }
+        for (int classIndex = 0; classIndex < classCount(points); classIndex++) {
+            encoder.addDelta(classIndex, probes, counts, probes.length);
+        }
+        return encoder.finish(CoverageData.newBuilder().setSessionId("bench")).build();
+    }
+}
@@ -0,0 +1,99 @@
+package dev.billybriggs.coverage.benchmarks;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.InvalidProtocolBufferException;
+import dev.billybriggs.coverage.common.proto.CoverageProto.CoverageData;
+import dev.billybriggs.coverage.common.proto.CoverageProto.CoverageType;
+import dev.billybriggs.coverage.common.wire.DictionaryDecoder;
+import dev.billybriggs.coverage.common.wire.DictionaryEncoder;
+import dev.billybriggs.coverage.common.wire.ProbeVisitor;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of one steady-state {@code CoverageData} batch in each wire format: building and serializing
+ * it on the agent, and parsing and decoding it on the collector. Symbols and class layouts are
+ * assumed to have been sent earlier on the stream, as they are after the first flush.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class WireFormatBenchmark {
+
+    @Param({"legacy", "dictionary", "delta"})
+    public String format;
+
+    @Param({"100", "1000", "10000"})
+    public int points;
+
+    private DictionaryEncoder encoder;
+    private DictionaryDecoder decoder;
+    private ByteString batch;
+    private final Sink sink = new Sink();
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        encoder = new DictionaryEncoder();
+        decoder = new DictionaryDecoder();
+        // the first batch carries the symbols and layouts; decode it so the decoder is in steady state
+        switch (format) {
+            case "dictionary" -> decoder.decode(SyntheticCoverage.dictionary(encoder, points), sink);
+            case "delta" -> decoder.decode(SyntheticCoverage.layouts(encoder, points), sink);
+            default -> {
+            }
+        }
+        batch = encode();
+    }
+
+    @Benchmark
+    public ByteString encode() {
+        CoverageData data = switch (format) {
+            case "legacy" -> SyntheticCoverage.legacy(points);
+            case "dictionary" -> SyntheticCoverage.dictionary(encoder, points);
+            case "delta" -> SyntheticCoverage.deltas(encoder, points);
+            default -> throw new IllegalArgumentException("Unknown format " + format);
+        };
+        return data.toByteString();
+    }
+
+    @Benchmark
+    public long decode() throws InvalidProtocolBufferException {
+        sink.hits = 0;
+        decoder.decode(CoverageData.parseFrom(batch), sink);
+        return sink.hits;
+    }
+
+    private static final class Sink implements ProbeVisitor {
+        long hits;
+
+        @Override
+        public void visit(String filePath, String className, String methodName, int lineNumber, CoverageType type, long hitCount) {
+            hits += hitCount;
+        }
+
+        @Override
+        public Object bindLayout(String filePath, String className, String[] methodNames, int[] lineNumbers, CoverageType[] types) {
+            return className;
+        }
+
+        @Override
+        public void visitProbe(Object binding, int probe, long hitCount) {
+            hits += hitCount;
+        }
+    }
+}
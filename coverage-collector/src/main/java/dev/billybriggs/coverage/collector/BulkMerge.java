@@ -0,0 +1,212 @@
+package dev.billybriggs.coverage.collector;
+
+import dev.billybriggs.coverage.common.proto.CoverageProto.CoverageType;
+import dev.billybriggs.coverage.common.wire.CoverageDumpReader;
+import dev.billybriggs.coverage.common.wire.DictionaryDecoder;
+import dev.billybriggs.coverage.common.wire.ProbeVisitor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.stream.Stream;
+
+/**
+ * Merges many coverage dumps into one session with fork-join parallelism:
+ * {@code java -cp coverage-collector.jar dev.billybriggs.coverage.collector.BulkMerge
+ * <store_path> <session> [--parallelism <n>] <dump or directory>...}.
+ *
+ * <p>Every dump is streamed batch by batch from its memory mapping; class layouts are bound once per
+ * dump to the target session's slots, and hits are summed into a plain {@code long[]} indexed by
+ * slot. Leaves of up to {@value #LEAF_DUMPS} dumps each fill one array, and the arrays are
+ * tree-reduced by element-wise addition, so the session's atomic counters and journal see a single
+ * batch at the end rather than one per dump batch. Memory is bounded by a few arrays per worker,
+ * whatever the number of dumps.
+ *
+ * <p>Dumps are the files written with {@code output.format: binary}; directories contribute their
+ * {@code .cvd} files.
+ */
+public final class BulkMerge {
+
+    private static final Logger logger = LoggerFactory.getLogger(BulkMerge.class);
+
+    static final int LEAF_DUMPS = 8;
+    static final String DUMP_SUFFIX = ".cvd";
+
+    private BulkMerge() {
+    }
+
+    /**
+     * Adds the coverage of every dump to {@code sessionId}.
+     *
+     * @return the total number of hits merged
+     * @throws IOException if a dump cannot be read or does not decode
+     */
+    public static long merge(CoverageDataStore store, String sessionId, List<Path> dumps, ForkJoinPool pool)
+            throws IOException {
+        SessionCoverage session = store.session(sessionId);
+        long[] totals;
+        try {
+            totals = pool.invoke(new MergeTask(session, dumps, 0, dumps.size()));
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        SessionWriter writer = new SessionWriter(session);
+        long hits = 0;
+        for (int slot = 0; slot < totals.length; slot++) {
+            if (totals[slot] != 0) {
+                writer.merge(slot, totals[slot]);
+                hits += totals[slot];
+            }
+        }
+        writer.commit();
+        return hits;
+    }
+
+    /**
+     * Expands directories to the dumps directly inside them, in name order.
+     */
+    static List<Path> dumps(List<Path> inputs) throws IOException {
+        List<Path> dumps = new ArrayList<>();
+        for (Path input : inputs) {
+            if (!Files.isDirectory(input)) {
+                dumps.add(input);
+                continue;
+            }
+            try (Stream<Path> children = Files.list(input)) {
+                children.filter(child -> child.getFileName().toString().endsWith(DUMP_SUFFIX))
+                        .sorted()
+                        .forEach(dumps::add);
+            }
+        }
+        return dumps;
+    }
+
+    /**
+     * Sums a range of dumps into an array of per-slot hit counts.
+     */
+    private static final class MergeTask extends RecursiveTask<long[]> {
+
+        private final SessionCoverage session;
+        private final List<Path> dumps;
+        private final int from;
+        private final int to;
+
+        MergeTask(SessionCoverage session, List<Path> dumps, int from, int to) {
+            this.session = session;
+            this.dumps = dumps;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected long[] compute() {
+            if (to - from <= LEAF_DUMPS) {
+                SlotTotals totals = new SlotTotals(session);
+                for (int i = from; i < to; i++) {
+                    totals.read(dumps.get(i));
+                }
+                return totals.totals;
+            }
+            int middle = (from + to) >>> 1;
+            MergeTask left = new MergeTask(session, dumps, from, middle);
+            left.fork();
+            long[] right = new MergeTask(session, dumps, middle, to).compute();
+            return add(left.join(), right);
+        }
+
+        private static long[] add(long[] a, long[] b) {
+            long[] into = a.length >= b.length ? a : b;
+            long[] from = into == a ? b : a;
+            for (int slot = 0; slot < from.length; slot++) {
+                into[slot] += from[slot];
+            }
+            return into;
+        }
+    }
+
+    /**
+     * Decodes dumps into hit counts per session slot. Binding a layout allocates its slots in the
+     * session, so probes that were never hit are still declared there.
+     */
+    private static final class SlotTotals implements ProbeVisitor {
+
+        private final SessionCoverage session;
+        private long[] totals = new long[1024];
+
+        SlotTotals(SessionCoverage session) {
+            this.session = session;
+        }
+
+        void read(Path dump) {
+            // symbols and layouts are declared per dump, as on a stream
+            DictionaryDecoder decoder = new DictionaryDecoder();
+            try {
+                CoverageDumpReader.read(dump, batch -> decoder.decode(batch, this));
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            } catch (IllegalArgumentException e) {
+                throw new UncheckedIOException(new IOException("Coverage dump " + dump + " does not decode: "
+                        + e.getMessage(), e));
+            }
+        }
+
+        @Override
+        public void visit(String filePath, String className, String methodName, int lineNumber, CoverageType type,
+                          long hitCount) {
+            add(session.slot(filePath, className, methodName, lineNumber, type), hitCount);
+        }
+
+        @Override
+        public Object bindLayout(String filePath, String className, String[] methodNames, int[] lineNumbers,
+                                 CoverageType[] types) {
+            return session.bindLayout(filePath, className, methodNames, lineNumbers, types);
+        }
+
+        @Override
+        public void visitProbe(Object binding, int probe, long hitCount) {
+            add(((int[]) binding)[probe], hitCount);
+        }
+
+        private void add(int slot, long hits) {
+            if (slot >= totals.length) {
+                totals = Arrays.copyOf(totals, Math.max(slot + 1, totals.length * 2));
+            }
+            totals[slot] += hits;
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        int parallelism = Runtime.getRuntime().availableProcessors();
+        List<Path> inputs = new ArrayList<>();
+        for (int i = 2; i < args.length; i++) {
+            if (args[i].equals("--parallelism") && i + 1 < args.length) {
+                parallelism = Integer.parseInt(args[++i]);
+            } else {
+                inputs.add(Path.of(args[i]));
+            }
+        }
+        if (inputs.isEmpty()) {
+            System.err.println("Usage: BulkMerge <store_path> <session> [--parallelism <n>] <dump or directory>...");
+            System.exit(2);
+        }
+        List<Path> dumps = dumps(inputs);
+        long startedAt = System.nanoTime();
+        ForkJoinPool pool = new ForkJoinPool(Math.max(1, parallelism));
+        try (CoverageDataStore store = CoverageDataStore.open(Path.of(args[0]), false)) {
+            long hits = merge(store, args[1], dumps, pool);
+            store.checkpoint();
+            logger.info("Merged {} hits from {} dumps into session {} in {} ms", hits, dumps.size(), args[1],
+                    (System.nanoTime() - startedAt) / 1_000_000);
+        } finally {
+            pool.shutdown();
+        }
+    }
+}
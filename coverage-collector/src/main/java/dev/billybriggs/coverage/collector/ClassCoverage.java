@@ -0,0 +1,106 @@
+package dev.billybriggs.coverage.collector;
+
+import dev.billybriggs.coverage.common.proto.CoverageProto.CoverageType;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Probe slots of one class within a session.
+ *
+ * <p>Each distinct (method, line, type) probe owns a slot in the session's {@link ProbeCounters}.
+ * Slot lookup goes through a concurrent map keyed by a packed {@code long}; callers that merge
+ * repeatedly, such as stream layout bindings, resolve slots once and then add to the counters
+ * directly.
+ */
+final class ClassCoverage {
+
+    private final SessionCoverage session;
+    private final int classId;
+    private final int fileId;
+    private final FileIndex file;
+    private final Map<Long, Integer> slots = new ConcurrentHashMap<>();
+
+    ClassCoverage(SessionCoverage session, int classId, int fileId, FileIndex file) {
+        this.session = session;
+        this.classId = classId;
+        this.fileId = fileId;
+        this.file = file;
+    }
+
+    int classId() {
+        return classId;
+    }
+
+    int fileId() {
+        return fileId;
+    }
+
+    FileIndex file() {
+        return file;
+    }
+
+    /**
+     * Returns the slot of a probe, allocating it on first use.
+     */
+    int slot(int methodId, int lineNumber, CoverageType type) {
+        long key = probeKey(methodId, lineNumber, type);
+        Integer slot = slots.get(key);
+        if (slot != null) {
+            return slot;
+        }
+        return slots.computeIfAbsent(key, k -> session.allocateSlot(this, k));
+    }
+
+    /**
+     * Re-attaches a slot allocated by a previous run of a persistent store.
+     */
+    void restoreSlot(long key, int slot) {
+        slots.put(key, slot);
+    }
+
+    int probeCount() {
+        return slots.size();
+    }
+
+    /**
+     * Receives a probe's packed key (decode with the static accessors) and its current hit count.
+     */
+    @FunctionalInterface
+    interface ProbeConsumer {
+        void accept(long key, long hitCount);
+    }
+
+    void forEachProbe(ProbeConsumer consumer) {
+        slots.forEach((key, slot) -> consumer.accept(key, session.count(slot)));
+    }
+
+    /**
+     * Receives a probe's packed key and its slot.
+     */
+    @FunctionalInterface
+    interface SlotConsumer {
+        void accept(long key, int slot);
+    }
+
+    void forEachSlot(SlotConsumer consumer) {
+        slots.forEach(consumer::accept);
+    }
+
+    static long probeKey(int methodId, int lineNumber, CoverageType type) {
+        return ((long) methodId << 36) | ((long) (type.getNumber() & 0xF) << 32) | (lineNumber & 0xFFFFFFFFL);
+    }
+
+    static int methodId(long key) {
+        return (int) (key >>> 36);
+    }
+
+    static int lineNumber(long key) {
+        return (int) key;
+    }
+
+    static CoverageType type(long key) {
+        CoverageType type = CoverageType.forNumber((int) (key >>> 32) & 0xF);
+        return type != null ? type : CoverageType.COVERAGE_TYPE_UNSPECIFIED;
+    }
+}
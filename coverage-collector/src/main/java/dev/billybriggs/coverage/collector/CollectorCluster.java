@@ -0,0 +1,277 @@
+package dev.billybriggs.coverage.collector;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import dev.billybriggs.coverage.common.CoverageConfig;
+import dev.billybriggs.coverage.common.proto.CoverageProto.CoverageStats;
+import dev.billybriggs.coverage.common.proto.CoverageProto.CoverageSummary;
+import dev.billybriggs.coverage.common.proto.CoverageProto.CoverageSummaryChunk;
+import dev.billybriggs.coverage.common.proto.CoverageProto.CoverageSummaryRequest;
+import dev.billybriggs.coverage.common.proto.CoverageProto.CoverageType;
+import dev.billybriggs.coverage.common.proto.CoverageProto.ExecutionPoint;
+import dev.billybriggs.coverage.common.proto.CoverageProto.FileCoverage;
+import dev.billybriggs.coverage.common.proto.CoverageProto.ImpactedTestsRequest;
+import dev.billybriggs.coverage.common.proto.CoverageProto.ImpactedTestsResponse;
+import dev.billybriggs.coverage.common.proto.CoverageProto.SnapshotRequest;
+import dev.billybriggs.coverage.common.proto.CoverageProto.SnapshotResponse;
+import dev.billybriggs.coverage.common.proto.CoverageProto.StreamCoverageSummaryRequest;
+import dev.billybriggs.coverage.common.proto.CoverageServiceGrpc;
+import io.grpc.ManagedChannel;
+import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
+import io.grpc.netty.shaded.io.grpc.netty.NettyChannelBuilder;
+import io.grpc.stub.ClientCallStreamObserver;
+import io.grpc.stub.ClientResponseObserver;
+import io.grpc.stub.ServerCallStreamObserver;
+import io.grpc.stub.StreamObserver;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
+
+/**
+ * Membership of a collector in a sharded cluster. Sessions are partitioned across the nodes listed
+ * in {@code cluster_nodes} by a {@link HashRing} over the session id: the collector that registers an
+ * agent names the owning node, and the agent streams there.
+ *
+ * <p>Summaries are gathered from every node rather than only the owner, so coverage streamed to the
+ * wrong node (by an agent that ignores the owner, or across a membership change) is still counted.
+ * Each node summarises its own shard with the request's filters, and the parts are merged here.
+ * Summary streams and impacted tests queries are answered by the owner alone.
+ */
+final class CollectorCluster implements Closeable {
+
+    private final String self;
+    private final HashRing ring;
+    private final Map<String, ManagedChannel> peers = new LinkedHashMap<>();
+    private final long timeoutMs;
+
+    /**
+     * @param channels opens a channel to a peer's address
+     */
+    CollectorCluster(String self, List<String> nodes, Function<String, ManagedChannel> channels, long timeoutMs) {
+        if (!nodes.contains(self)) {
+            throw new IllegalArgumentException("Node " + self + " is not one of cluster_nodes " + nodes);
+        }
+        this.self = self;
+        this.ring = new HashRing(nodes, HashRing.DEFAULT_VIRTUAL_NODES);
+        this.timeoutMs = timeoutMs;
+        for (String node : nodes) {
+            if (!node.equals(self)) {
+                peers.put(node, channels.apply(node));
+            }
+        }
+    }
+
+    /**
+     * Joins the cluster configured in {@code settings}, or returns {@code null} if none is.
+     */
+    static CollectorCluster join(CoverageConfig.CollectorSettings settings, int port) {
+        List<String> nodes = settings.getClusterNodes();
+        if (nodes == null || nodes.isEmpty()) {
+            return null;
+        }
+        String self = settings.getNodeAddress() == null || settings.getNodeAddress().isBlank()
+                ? settings.getHost() + ":" + port
+                : settings.getNodeAddress();
+        return new CollectorCluster(self, nodes,
+                address -> NettyChannelBuilder.forTarget(address).usePlaintext().build(),
+                settings.getConnectionTimeoutMs());
+    }
+
+    String self() {
+        return self;
+    }
+
+    /**
+     * Address of the node owning {@code sessionId}.
+     */
+    String owner(String sessionId) {
+        return ring.owner(sessionId);
+    }
+
+    /**
+     * Combines the local summary with those of every peer. Peers that do not know the session are
+     * skipped; an unreachable peer fails the request, as its shard could hold part of the session.
+     *
+     * @return empty if no node knows the session
+     * @throws StatusRuntimeException {@code UNAVAILABLE} if a peer could not be asked
+     */
+    Optional<CoverageSummary> gather(CoverageSummaryRequest request, Optional<CoverageSummary> local) {
+        CoverageSummaryRequest shardRequest = request.toBuilder().setLocalOnly(true).build();
+        Map<String, ListenableFuture<CoverageSummary>> calls = new LinkedHashMap<>();
+        for (Map.Entry<String, ManagedChannel> peer : peers.entrySet()) {
+            calls.put(peer.getKey(), CoverageServiceGrpc.newFutureStub(peer.getValue())
+                    .withDeadlineAfter(timeoutMs, TimeUnit.MILLISECONDS)
+                    .getCoverageSummary(shardRequest));
+        }
+        List<CoverageSummary> parts = new ArrayList<>();
+        local.ifPresent(parts::add);
+        for (Map.Entry<String, ListenableFuture<CoverageSummary>> call : calls.entrySet()) {
+            try {
+                parts.add(call.getValue().get());
+            } catch (ExecutionException e) {
+                Status status = Status.fromThrowable(e.getCause());
+                if (status.getCode() != Status.Code.NOT_FOUND) {
+                    throw Status.UNAVAILABLE.withDescription("Collector " + call.getKey() + " did not answer: "
+                            + status.getCode() + " " + status.getDescription()).asRuntimeException();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw Status.CANCELLED.withDescription("Interrupted gathering summaries").asRuntimeException();
+            }
+        }
+        if (parts.isEmpty()) {
+            return Optional.empty();
+        }
+        return Optional.of(parts.size() == 1 ? parts.get(0) : merge(request.getSessionId(), parts));
+    }
+
+    /**
+     * Forwards a summary stream to the owner of its session. Only the owner's shard is streamed;
+     * coverage that reached other nodes shows up in {@code GetCoverageSummary} only.
+     */
+    void relaySummary(StreamCoverageSummaryRequest request, StreamObserver<CoverageSummaryChunk> responses) {
+        String owner = owner(request.getQuery().getSessionId());
+        StreamCoverageSummaryRequest forwarded = request.toBuilder()
+                .setQuery(request.getQuery().toBuilder().setLocalOnly(true))
+                .build();
+        ServerCallStreamObserver<CoverageSummaryChunk> call =
+                responses instanceof ServerCallStreamObserver<CoverageSummaryChunk> server ? server : null;
+        CoverageServiceGrpc.newStub(peers.get(owner)).streamCoverageSummary(forwarded,
+                new ClientResponseObserver<StreamCoverageSummaryRequest, CoverageSummaryChunk>() {
+                    private ClientCallStreamObserver<StreamCoverageSummaryRequest> upstream;
+                    // whether a chunk has been requested from the owner and not yet received
+                    private final AtomicBoolean requested = new AtomicBoolean(true);
+
+                    @Override
+                    public void beforeStart(ClientCallStreamObserver<StreamCoverageSummaryRequest> requestStream) {
+                        // pull from the owner only as fast as the client reads, one chunk at a time
+                        upstream = requestStream;
+                        requestStream.disableAutoRequestWithInitial(1);
+                        if (call != null) {
+                            call.setOnCancelHandler(() -> requestStream.cancel("Client cancelled", null));
+                            call.setOnReadyHandler(this::requestIfReady);
+                        }
+                    }
+
+                    @Override
+                    public void onNext(CoverageSummaryChunk chunk) {
+                        responses.onNext(chunk);
+                        requested.set(false);
+                        requestIfReady();
+                    }
+
+                    /**
+                     * Runs from both the client's readiness and the owner's chunks, so only requests
+                     * when no chunk is outstanding.
+                     */
+                    private void requestIfReady() {
+                        if ((call == null || call.isReady()) && requested.compareAndSet(false, true)) {
+                            upstream.request(1);
+                        }
+                    }
+
+                    @Override
+                    public void onError(Throwable t) {
+                        responses.onError(t);
+                    }
+
+                    @Override
+                    public void onCompleted() {
+                        responses.onCompleted();
+                    }
+                });
+    }
+
+    /**
+     * Forwards an impacted tests query to the owner of its session, whose stream carried the tests.
+     */
+    void relayImpactedTests(ImpactedTestsRequest request, StreamObserver<ImpactedTestsResponse> responses) {
+        CoverageServiceGrpc.newStub(peers.get(owner(request.getSessionId())))
+                .withDeadlineAfter(timeoutMs, TimeUnit.MILLISECONDS)
+                .getImpactedTests(request, responses);
+    }
+
+    /**
+     * Forwards a snapshot request to the node owning the session, whose streams reach its agents.
+     */
+    void relaySnapshot(SnapshotRequest request, StreamObserver<SnapshotResponse> responses) {
+        CoverageServiceGrpc.newStub(peers.get(owner(request.getSessionId())))
+                .withDeadlineAfter(timeoutMs, TimeUnit.MILLISECONDS)
+                .snapshotCoverage(request, responses);
+    }
+
+    /**
+     * Sums the hit counts of identical points across shard summaries and recomputes the statistics.
+     */
+    static CoverageSummary merge(String sessionId, List<CoverageSummary> parts) {
+        Map<String, Map<PointKey, Long>> byFile = new TreeMap<>();
+        for (CoverageSummary part : parts) {
+            for (FileCoverage file : part.getFileCoveragesList()) {
+                Map<PointKey, Long> points = byFile.computeIfAbsent(file.getFilePath(), f -> new LinkedHashMap<>());
+                for (ExecutionPoint point : file.getExecutionPointsList()) {
+                    points.merge(PointKey.of(point), point.getHitCount(), Long::sum);
+                }
+            }
+        }
+        CoverageSummary.Builder summary = CoverageSummary.newBuilder()
+                .setSessionId(sessionId)
+                .setGeneratedAt(CoverageDataStore.now());
+        List<ExecutionPoint> all = new ArrayList<>();
+        for (Map.Entry<String, Map<PointKey, Long>> file : byFile.entrySet()) {
+            List<ExecutionPoint> filePoints = new ArrayList<>(file.getValue().size());
+            file.getValue().forEach((key, hits) -> filePoints.add(key.toPoint(file.getKey(), hits)));
+            filePoints.sort(CoverageDataStore.POINT_ORDER);
+            CoverageStats stats = CoverageDataStore.stats(filePoints);
+            summary.addFileCoverages(FileCoverage.newBuilder()
+                    .setFilePath(file.getKey())
+                    .addAllExecutionPoints(filePoints)
+                    .setStats(stats));
+            all.addAll(filePoints);
+        }
+        return summary.setOverallStats(CoverageDataStore.stats(all)).build();
+    }
+
+    @Override
+    public void close() {
+        for (ManagedChannel channel : peers.values()) {
+            channel.shutdown();
+        }
+        for (ManagedChannel channel : peers.values()) {
+            try {
+                if (!channel.awaitTermination(timeoutMs, TimeUnit.MILLISECONDS)) {
+                    channel.shutdownNow();
+                }
+            } catch (InterruptedException e) {
+                channel.shutdownNow();
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private record PointKey(String className, String methodName, int lineNumber, CoverageType type) {
+
+        static PointKey of(ExecutionPoint point) {
+            return new PointKey(point.getClassName(), point.getMethodName(), point.getLineNumber(), point.getType());
+        }
+
+        ExecutionPoint toPoint(String filePath, long hits) {
+            return ExecutionPoint.newBuilder()
+                    .setFilePath(filePath)
+                    .setClassName(className)
+                    .setMethodName(methodName)
+                    .setLineNumber(lineNumber)
+                    .setType(type)
+                    .setHitCount(hits)
+                    .build();
+        }
+    }
+}
@@ -0,0 +1,188 @@
+package dev.billybriggs.coverage.collector;
+
+import dev.billybriggs.coverage.common.metrics.LatencyHistogram;
+import dev.billybriggs.coverage.common.metrics.MetricsText;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntSupplier;
+
+/**
+ * What the collector ingests and how long merging takes: a latency histogram over every merged batch
+ * (decode, merge and journal) and per-agent point counts and rates. Read through JMX or as plain text
+ * from {@code /metrics} on the health port.
+ *
+ * <p>Agents are keyed by agent id; one idle for {@value #IDLE_AGENT_MINUTES} minutes is forgotten.
+ */
+final class CollectorMetrics implements CollectorMetricsMXBean {
+
+    static final String OBJECT_NAME = "dev.billybriggs.coverage:type=Collector";
+    static final int RATE_WINDOW_SECONDS = 10;
+    static final long IDLE_AGENT_MINUTES = 15;
+
+    private final CoverageDataStore dataStore;
+    private final IntSupplier openStreams;
+    private final LatencyHistogram mergeLatency = new LatencyHistogram();
+    private final LongAdder batches = new LongAdder();
+    private final LongAdder points = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final Map<String, AgentIngest> agents = new ConcurrentHashMap<>();
+
+    CollectorMetrics(CoverageDataStore dataStore, IntSupplier openStreams) {
+        this.dataStore = dataStore;
+        this.openStreams = openStreams;
+    }
+
+    /**
+     * Registers with the platform MBean server, replacing a previous collector's registration.
+     */
+    void register() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+            server.registerMBean(this, name);
+        } catch (JMException e) {
+            throw new IllegalStateException("Failed to register " + OBJECT_NAME, e);
+        }
+    }
+
+    void batchMerged(String agentId, int pointCount, long nanos) {
+        mergeLatency.record(nanos);
+        batches.increment();
+        points.add(pointCount);
+        agents.computeIfAbsent(agentId, id -> new AgentIngest()).add(pointCount, System.nanoTime());
+    }
+
+    void batchRejected() {
+        rejected.increment();
+    }
+
+    LatencyHistogram mergeLatency() {
+        return mergeLatency;
+    }
+
+    @Override
+    public long getBatchesReceived() {
+        return batches.sum();
+    }
+
+    @Override
+    public long getPointsReceived() {
+        return points.sum();
+    }
+
+    @Override
+    public long getBatchesRejected() {
+        return rejected.sum();
+    }
+
+    @Override
+    public int getOpenStreams() {
+        return openStreams.getAsInt();
+    }
+
+    @Override
+    public int getSessions() {
+        return dataStore.sessionIds().size();
+    }
+
+    @Override
+    public double getMergeMillisMean() {
+        return mergeLatency.meanMillis();
+    }
+
+    @Override
+    public double getMergeMillisP50() {
+        return mergeLatency.quantileMillis(0.5);
+    }
+
+    @Override
+    public double getMergeMillisP99() {
+        return mergeLatency.quantileMillis(0.99);
+    }
+
+    @Override
+    public Map<String, Double> getAgentIngestRates() {
+        long now = System.nanoTime();
+        Map<String, Double> rates = new TreeMap<>();
+        agents.entrySet().removeIf(entry -> entry.getValue().idleSince(now));
+        agents.forEach((agentId, ingest) -> rates.put(agentId, ingest.rate(now)));
+        return rates;
+    }
+
+    /**
+     * All metrics in the Prometheus text format.
+     */
+    String toText() {
+        MetricsText text = new MetricsText()
+                .counter("coverage_collector_batches_total", "Coverage batches merged", getBatchesReceived())
+                .counter("coverage_collector_points_total", "Execution points and probe deltas merged", getPointsReceived())
+                .counter("coverage_collector_batches_rejected_total", "Batches that failed to decode or persist",
+                        getBatchesRejected())
+                .gauge("coverage_collector_open_streams", "Agent coverage streams currently open", getOpenStreams())
+                .gauge("coverage_collector_sessions", "Coverage sessions held", getSessions());
+        mergeLatency.appendTo(text, "coverage_collector_merge_seconds", "Time to decode, merge and journal each batch");
+        Map<String, Double> rates = getAgentIngestRates();
+        text.type("coverage_collector_agent_points_total", "counter", "Points merged per agent");
+        rates.keySet().forEach(agentId -> {
+            AgentIngest ingest = agents.get(agentId);
+            if (ingest != null) {
+                text.sample("coverage_collector_agent_points_total", "agent", agentId, ingest.total.sum());
+            }
+        });
+        text.type("coverage_collector_agent_points_per_second", "gauge",
+                "Points per second per agent over the last " + RATE_WINDOW_SECONDS + " s");
+        rates.forEach((agentId, rate) -> text.sample("coverage_collector_agent_points_per_second", "agent", agentId, rate));
+        return text.toString();
+    }
+
+    /**
+     * Points of one agent, in total and in one-second buckets over the rate window.
+     */
+    private static final class AgentIngest {
+
+        private final LongAdder total = new LongAdder();
+        private final long[] bucketSecond = new long[RATE_WINDOW_SECONDS];
+        private final long[] bucketPoints = new long[RATE_WINDOW_SECONDS];
+        private volatile long lastNanos;
+
+        void add(int pointCount, long now) {
+            total.add(pointCount);
+            lastNanos = now;
+            long second = TimeUnit.NANOSECONDS.toSeconds(now);
+            int bucket = (int) Math.floorMod(second, (long) RATE_WINDOW_SECONDS);
+            synchronized (this) {
+                if (bucketSecond[bucket] != second) {
+                    bucketSecond[bucket] = second;
+                    bucketPoints[bucket] = 0;
+                }
+                bucketPoints[bucket] += pointCount;
+            }
+        }
+
+        synchronized double rate(long now) {
+            long second = TimeUnit.NANOSECONDS.toSeconds(now);
+            long sum = 0;
+            for (int bucket = 0; bucket < RATE_WINDOW_SECONDS; bucket++) {
+                if (second - bucketSecond[bucket] < RATE_WINDOW_SECONDS) {
+                    sum += bucketPoints[bucket];
+                }
+            }
+            return (double) sum / RATE_WINDOW_SECONDS;
+        }
+
+        boolean idleSince(long now) {
+            return now - lastNanos > TimeUnit.MINUTES.toNanos(IDLE_AGENT_MINUTES);
+        }
+    }
+}
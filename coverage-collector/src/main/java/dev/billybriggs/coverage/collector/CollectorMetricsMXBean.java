@@ -0,0 +1,30 @@
+package dev.billybriggs.coverage.collector;
+
+import java.util.Map;
+
+/**
+ * Ingest metrics of a collector, registered as {@value CollectorMetrics#OBJECT_NAME}.
+ */
+public interface CollectorMetricsMXBean {
+
+    long getBatchesReceived();
+
+    long getPointsReceived();
+
+    long getBatchesRejected();
+
+    int getOpenStreams();
+
+    int getSessions();
+
+    double getMergeMillisMean();
+
+    double getMergeMillisP50();
+
+    double getMergeMillisP99();
+
+    /**
+     * Points per second each agent sent over the last {@value CollectorMetrics#RATE_WINDOW_SECONDS} seconds.
+     */
+    Map<String, Double> getAgentIngestRates();
+}
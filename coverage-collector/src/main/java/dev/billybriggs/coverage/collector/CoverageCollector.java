@@ -0,0 +1,177 @@
+package dev.billybriggs.coverage.collector;
+
+import dev.billybriggs.coverage.common.CoverageConfig;
+import dev.billybriggs.coverage.common.metrics.MetricsEndpoint;
+import io.grpc.Server;
+import io.grpc.netty.shaded.io.grpc.netty.NettyServerBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Optional;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Collector server entry point: {@code java -jar coverage-collector.jar [config.yml]}.
+ *
+ * <p>With {@code output.format} set to a {@link ReportFormat}, stopping the collector writes a
+ * report of every session it holds into {@code output.file_path}.
+ */
+public class CoverageCollector {
+
+    private static final Logger logger = LoggerFactory.getLogger(CoverageCollector.class);
+
+    static final String DEFAULT_CONFIG = "coverage-collector.yml";
+
+    private final CoverageConfig config;
+    private final CoverageDataStore dataStore;
+    private Server server;
+    private CollectorCluster cluster;
+    private ScheduledExecutorService checkpoints;
+    private MetricsEndpoint healthEndpoint;
+
+    public CoverageCollector(CoverageConfig config) throws IOException {
+        this.config = config;
+        this.dataStore = openDataStore(config.getCollector());
+    }
+
+    private static CoverageDataStore openDataStore(CoverageConfig.CollectorSettings settings) throws IOException {
+        String storePath = settings.getStorePath();
+        if (storePath == null || storePath.isBlank()) {
+            return new CoverageDataStore();
+        }
+        CoverageDataStore store = CoverageDataStore.open(Path.of(storePath), settings.isSyncWrites());
+        logger.info("Recovered {} coverage sessions from {}", store.sessionIds().size(), storePath);
+        return store;
+    }
+
+    public void start() throws IOException {
+        CoverageConfig.CollectorSettings settings = config.getCollector();
+        if (dataStore.isPersistent() && settings.getCheckpointIntervalMs() > 0) {
+            checkpoints = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "coverage-checkpoint");
+                thread.setDaemon(true);
+                return thread;
+            });
+            checkpoints.scheduleWithFixedDelay(this::checkpoint, settings.getCheckpointIntervalMs(),
+                    settings.getCheckpointIntervalMs(), TimeUnit.MILLISECONDS);
+        }
+        cluster = CollectorCluster.join(settings, settings.getPort());
+        CoverageServiceImpl service = new CoverageServiceImpl(dataStore, settings.getFlowControlWindow(),
+                settings.getBatchSize(), cluster);
+        server = NettyServerBuilder.forAddress(new InetSocketAddress(settings.getHost(), settings.getPort()))
+                .addService(service)
+                .build()
+                .start();
+        logger.info("Coverage collector listening on {}:{}", settings.getHost(), server.getPort());
+        CollectorMetrics metrics = service.metrics();
+        try {
+            metrics.register();
+        } catch (IllegalStateException e) {
+            logger.warn("Collector metrics are not available over JMX: {}", e.getMessage());
+        }
+        if (settings.getHealthPort() > 0) {
+            healthEndpoint = MetricsEndpoint.start(settings.getHost(), settings.getHealthPort(), metrics::toText,
+                    () -> !server.isShutdown());
+            logger.info("Health and metrics on http://{}:{}/health and /metrics", settings.getHost(), healthEndpoint.port());
+        }
+        if (cluster != null) {
+            logger.info("Collector {} is one of {} cluster nodes", cluster.self(), settings.getClusterNodes().size());
+        }
+    }
+
+    public int getPort() {
+        return server.getPort();
+    }
+
+    public CoverageDataStore getDataStore() {
+        return dataStore;
+    }
+
+    private void checkpoint() {
+        try {
+            dataStore.checkpoint();
+        } catch (IOException e) {
+            logger.error("Coverage store checkpoint failed", e);
+        }
+    }
+
+    public void stop() {
+        if (checkpoints != null) {
+            checkpoints.shutdownNow();
+        }
+        stopServer();
+        if (healthEndpoint != null) {
+            healthEndpoint.close();
+        }
+        if (cluster != null) {
+            cluster.close();
+        }
+        writeReports();
+        try {
+            dataStore.close();
+        } catch (IOException e) {
+            logger.error("Failed to close coverage store", e);
+        }
+    }
+
+    private void writeReports() {
+        CoverageConfig.OutputSettings output = config.getOutput();
+        Optional<ReportFormat> format = ReportFormat.forName(output.getFormat());
+        if (format.isEmpty() || output.getFilePath() == null || output.getFilePath().isBlank()) {
+            return;
+        }
+        ForkJoinPool pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+        try {
+            ReportExporter.exportAll(dataStore, format.get(), Path.of(output.getFilePath()), pool);
+        } catch (IOException | RuntimeException e) {
+            logger.error("Failed to write coverage reports to {}", output.getFilePath(), e);
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    private void stopServer() {
+        if (server != null) {
+            server.shutdown();
+            try {
+                if (!server.awaitTermination(10, TimeUnit.SECONDS)) {
+                    server.shutdownNow();
+                }
+            } catch (InterruptedException e) {
+                server.shutdownNow();
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    public void blockUntilShutdown() throws InterruptedException {
+        if (server != null) {
+            server.awaitTermination();
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        CoverageCollector collector = new CoverageCollector(loadConfig(args));
+        collector.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(collector::stop, "coverage-collector-shutdown"));
+        collector.blockUntilShutdown();
+    }
+
+    static CoverageConfig loadConfig(String[] args) throws IOException {
+        if (args.length > 0) {
+            return CoverageConfig.load(Path.of(args[0]));
+        }
+        Path local = Path.of(DEFAULT_CONFIG);
+        if (Files.isRegularFile(local)) {
+            return CoverageConfig.load(local);
+        }
+        return CoverageConfig.loadResource(DEFAULT_CONFIG, CoverageCollector.class.getClassLoader());
+    }
+}
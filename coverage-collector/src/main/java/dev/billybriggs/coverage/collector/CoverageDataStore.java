@@ -0,0 +1,359 @@
+package dev.billybriggs.coverage.collector;
+
+import com.google.protobuf.Timestamp;
+import dev.billybriggs.coverage.common.proto.CoverageProto.ChangedLines;
+import dev.billybriggs.coverage.common.proto.CoverageProto.CoverageStats;
+import dev.billybriggs.coverage.common.proto.CoverageProto.CoverageSummary;
+import dev.billybriggs.coverage.common.proto.CoverageProto.CoverageSummaryRequest;
+import dev.billybriggs.coverage.common.proto.CoverageProto.CoverageType;
+import dev.billybriggs.coverage.common.proto.CoverageProto.ExecutionPoint;
+import dev.billybriggs.coverage.common.proto.CoverageProto.FileCoverage;
+import dev.billybriggs.coverage.common.proto.CoverageProto.ImpactedTestsRequest;
+import dev.billybriggs.coverage.common.proto.CoverageProto.ImpactedTestsResponse;
+import dev.billybriggs.coverage.common.wire.ProbeVisitor;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Base64;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Stream;
+
+/**
+ * In-memory aggregation of coverage, keyed by session.
+ *
+ * <p>File, class and method names are interned once into integer ids shared by all sessions. Each
+ * session keeps a {@link ClassCoverage} per class id whose probes are primitive atomic counters, so
+ * concurrent streams merge without any store-wide lock. Streams should merge through
+ * {@link #writer(String)}, which resolves each declared class layout to counter slots once and
+ * then applies probe deltas as plain atomic adds.
+ *
+ * <p>A store created with {@link #open(Path, boolean)} is persistent: each session's counters live
+ * in a memory-mapped file under its own directory, alongside append-only logs of slot allocations
+ * and merged batches (see {@link SessionJournal}). Reopening the directory maps the counters and
+ * replays the log tail, so a restarted collector resumes without agents re-streaming.
+ */
+public class CoverageDataStore implements Closeable {
+
+    /**
+     * Merge target for one session. Each stream keeps its own writer and calls {@link #commit()}
+     * after every batch; for persistent stores that appends the batch to the session's log.
+     */
+    public interface Writer extends ProbeVisitor {
+        void commit();
+    }
+
+    private final SymbolInterner symbols = new SymbolInterner();
+    private final Map<String, SessionCoverage> sessions = new ConcurrentHashMap<>();
+    private final Path directory;
+    private final boolean syncWrites;
+
+    /**
+     * Creates an in-memory store.
+     */
+    public CoverageDataStore() {
+        this(null, false);
+    }
+
+    private CoverageDataStore(Path directory, boolean syncWrites) {
+        this.directory = directory;
+        this.syncWrites = syncWrites;
+    }
+
+    /**
+     * Opens a persistent store in {@code directory}, recovering every session found there.
+     *
+     * @param syncWrites force each batch to disk before it is acknowledged
+     */
+    public static CoverageDataStore open(Path directory, boolean syncWrites) throws IOException {
+        Files.createDirectories(directory);
+        CoverageDataStore store = new CoverageDataStore(directory, syncWrites);
+        try (Stream<Path> children = Files.list(directory)) {
+            for (Path child : (Iterable<Path>) children.filter(Files::isDirectory)::iterator) {
+                String sessionId = decodeSessionId(child.getFileName().toString());
+                if (sessionId != null) {
+                    store.sessions.put(sessionId, store.openSession(sessionId, child));
+                }
+            }
+        }
+        return store;
+    }
+
+    public boolean isPersistent() {
+        return directory != null;
+    }
+
+    /**
+     * Adds {@code hitCount} executions of a point to a session. A zero count declares the point as
+     * coverable without marking it covered.
+     */
+    public void merge(String sessionId, String filePath, String className, String methodName,
+                      int lineNumber, CoverageType type, long hitCount) {
+        Writer writer = writer(sessionId);
+        writer.visit(filePath, className, methodName, lineNumber, type, hitCount);
+        writer.commit();
+    }
+
+    /**
+     * Returns a merge target for a session, creating the session on first use. Callers should
+     * keep the writer for the lifetime of a stream so layout bindings are reused.
+     */
+    public Writer writer(String sessionId) {
+        return new SessionWriter(session(sessionId));
+    }
+
+    public Set<String> sessionIds() {
+        return Set.copyOf(sessions.keySet());
+    }
+
+    public boolean hasSession(String sessionId) {
+        return sessions.containsKey(sessionId);
+    }
+
+    /**
+     * Forces every persistent session to disk and truncates its batch log. A no-op in memory.
+     */
+    public void checkpoint() throws IOException {
+        for (SessionCoverage session : sessions.values()) {
+            if (session.journal() != null) {
+                session.journal().checkpoint();
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        IOException failure = null;
+        for (SessionCoverage session : sessions.values()) {
+            if (session.journal() != null) {
+                try {
+                    session.journal().close();
+                } catch (IOException e) {
+                    failure = e;
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * The session with {@code sessionId}, or {@code null}; unlike {@link #session(String)} it is
+     * never created.
+     */
+    SessionCoverage existingSession(String sessionId) {
+        return sessions.get(sessionId);
+    }
+
+    SymbolInterner symbols() {
+        return symbols;
+    }
+
+    SessionCoverage session(String sessionId) {
+        SessionCoverage session = sessions.get(sessionId);
+        return session != null ? session : sessions.computeIfAbsent(sessionId, this::createSession);
+    }
+
+    private SessionCoverage createSession(String sessionId) {
+        if (directory == null) {
+            return new SessionCoverage(sessionId, symbols);
+        }
+        try {
+            return openSession(sessionId, directory.resolve(encodeSessionId(sessionId)));
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to create session " + sessionId, e);
+        }
+    }
+
+    private SessionCoverage openSession(String sessionId, Path sessionDirectory) throws IOException {
+        SessionJournal journal = SessionJournal.open(sessionDirectory, syncWrites);
+        SessionCoverage session = new SessionCoverage(sessionId, symbols, journal.counters(), journal);
+        journal.recover(session);
+        session.recountCovered();
+        return session;
+    }
+
+    static String encodeSessionId(String sessionId) {
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(sessionId.getBytes(StandardCharsets.UTF_8));
+    }
+
+    static String decodeSessionId(String directoryName) {
+        try {
+            return new String(Base64.getUrlDecoder().decode(directoryName), StandardCharsets.UTF_8);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Snapshot of a session, honouring the request's file and type filters. File filters are
+     * looked up in the session's file index, statistics come from the incrementally maintained
+     * tallies, and only files written to since the previous summary are rebuilt.
+     */
+    public Optional<CoverageSummary> summary(CoverageSummaryRequest request) {
+        SessionCoverage session = sessions.get(request.getSessionId());
+        if (session == null) {
+            return Optional.empty();
+        }
+        CoverageSummary.Builder summary = CoverageSummary.newBuilder()
+                .setSessionId(request.getSessionId())
+                .setGeneratedAt(now());
+        for (FileIndex file : files(session, request, null)) {
+            summary.addFileCoverages(file.snapshot(request.getTypeFilter(), symbols));
+        }
+        return Optional.of(summary.setOverallStats(overallStats(session, request)).build());
+    }
+
+    /**
+     * The files of a session selected by {@code request} that sort after {@code afterPath}, in path
+     * order, each snapshotted only when the iterator reaches it.
+     *
+     * @param afterPath last file already seen, or {@code null} to start at the first
+     * @param statsOnly leave out execution points, which also skips building them
+     * @return empty if the session is unknown
+     */
+    Optional<Iterator<FileCoverage>> fileCoverages(CoverageSummaryRequest request, String afterPath, boolean statsOnly) {
+        SessionCoverage session = sessions.get(request.getSessionId());
+        if (session == null) {
+            return Optional.empty();
+        }
+        CoverageType typeFilter = request.getTypeFilter();
+        Iterator<FileIndex> files = files(session, request, afterPath).iterator();
+        return Optional.of(new Iterator<>() {
+            @Override
+            public boolean hasNext() {
+                return files.hasNext();
+            }
+
+            @Override
+            public FileCoverage next() {
+                FileIndex file = files.next();
+                return statsOnly ? file.stats(typeFilter) : file.snapshot(typeFilter, symbols);
+            }
+        });
+    }
+
+    /**
+     * Statistics over every file {@code request} selects, or empty if the session is unknown.
+     */
+    Optional<CoverageStats> overallStats(CoverageSummaryRequest request) {
+        SessionCoverage session = sessions.get(request.getSessionId());
+        return session == null ? Optional.empty() : Optional.of(overallStats(session, request));
+    }
+
+    /**
+     * The tests of a session whose recorded coverage executed any of the requested lines, or empty
+     * if the session is unknown. Lines are matched against every probe type on them.
+     */
+    public Optional<ImpactedTestsResponse> impactedTests(ImpactedTestsRequest request) {
+        SessionCoverage session = sessions.get(request.getSessionId());
+        if (session == null) {
+            return Optional.empty();
+        }
+        BitSet slots = new BitSet();
+        for (ChangedLines changes : request.getChangesList()) {
+            Set<Integer> lines = changes.getLineNumbersCount() == 0 ? null : new HashSet<>(changes.getLineNumbersList());
+            for (FileIndex file : session.files(List.of(changes.getFilePath()))) {
+                for (ClassCoverage coverage : file.classes()) {
+                    coverage.forEachSlot((key, slot) -> {
+                        if (lines == null || lines.contains(ClassCoverage.lineNumber(key))) {
+                            slots.set(slot);
+                        }
+                    });
+                }
+            }
+        }
+        TestIndex tests = session.tests();
+        return Optional.of(ImpactedTestsResponse.newBuilder()
+                .setSessionId(request.getSessionId())
+                .addAllTestIds(tests.touching(slots))
+                .setTestsIndexed(tests.size())
+                .build());
+    }
+
+    private static Collection<FileIndex> files(SessionCoverage session, CoverageSummaryRequest request, String afterPath) {
+        if (request.getFilePathsCount() == 0) {
+            return session.files(afterPath);
+        }
+        List<FileIndex> selected = session.files(request.getFilePathsList());
+        if (afterPath != null) {
+            selected.removeIf(file -> file.filePath().compareTo(afterPath) <= 0);
+        }
+        return selected;
+    }
+
+    private static CoverageStats overallStats(SessionCoverage session, CoverageSummaryRequest request) {
+        if (request.getFilePathsCount() == 0) {
+            return session.tally().stats(request.getTypeFilter());
+        }
+        int[] totals = new int[CoverageTally.TYPES];
+        int[] covereds = new int[CoverageTally.TYPES];
+        for (FileIndex file : session.files(request.getFilePathsList())) {
+            file.tally().addTo(totals, covereds);
+        }
+        return CoverageTally.stats(totals, covereds, request.getTypeFilter());
+    }
+
+    static final Comparator<ExecutionPoint> POINT_ORDER = Comparator
+            .comparing(ExecutionPoint::getClassName)
+            .thenComparingInt(ExecutionPoint::getLineNumber)
+            .thenComparing(ExecutionPoint::getMethodName)
+            .thenComparing(ExecutionPoint::getType);
+
+    static CoverageStats stats(List<ExecutionPoint> points) {
+        int totalLines = 0, coveredLines = 0, totalBranches = 0, coveredBranches = 0, totalMethods = 0, coveredMethods = 0;
+        for (ExecutionPoint point : points) {
+            boolean covered = point.getHitCount() > 0;
+            switch (point.getType()) {
+                case COVERAGE_TYPE_LINE -> {
+                    totalLines++;
+                    coveredLines += covered ? 1 : 0;
+                }
+                case COVERAGE_TYPE_BRANCH -> {
+                    totalBranches++;
+                    coveredBranches += covered ? 1 : 0;
+                }
+                case COVERAGE_TYPE_METHOD -> {
+                    totalMethods++;
+                    coveredMethods += covered ? 1 : 0;
+                }
+                default -> {
+                }
+            }
+        }
+        return CoverageStats.newBuilder()
+                .setTotalLines(totalLines)
+                .setCoveredLines(coveredLines)
+                .setTotalBranches(totalBranches)
+                .setCoveredBranches(coveredBranches)
+                .setTotalMethods(totalMethods)
+                .setCoveredMethods(coveredMethods)
+                .setLineCoveragePercentage(percentage(coveredLines, totalLines))
+                .setBranchCoveragePercentage(percentage(coveredBranches, totalBranches))
+                .setMethodCoveragePercentage(percentage(coveredMethods, totalMethods))
+                .build();
+    }
+
+    static double percentage(int covered, int total) {
+        return total == 0 ? 0.0 : covered * 100.0 / total;
+    }
+
+    static Timestamp now() {
+        Instant now = Instant.now();
+        return Timestamp.newBuilder().setSeconds(now.getEpochSecond()).setNanos(now.getNano()).build();
+    }
+}
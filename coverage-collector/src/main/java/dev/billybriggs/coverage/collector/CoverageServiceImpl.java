@@ -0,0 +1,407 @@
+package dev.billybriggs.coverage.collector;
+
+import dev.billybriggs.coverage.common.proto.CoverageProto.AgentRegistration;
+import dev.billybriggs.coverage.common.proto.CoverageProto.AgentRegistrationResponse;
+import dev.billybriggs.coverage.common.proto.CoverageProto.CoverageData;
+import dev.billybriggs.coverage.common.proto.CoverageProto.CoverageResponse;
+import dev.billybriggs.coverage.common.proto.CoverageProto.CoverageSummary;
+import dev.billybriggs.coverage.common.proto.CoverageProto.CoverageSummaryChunk;
+import dev.billybriggs.coverage.common.proto.CoverageProto.CoverageSummaryRequest;
+import dev.billybriggs.coverage.common.proto.CoverageProto.FileCoverage;
+import dev.billybriggs.coverage.common.proto.CoverageProto.ImpactedTestsRequest;
+import dev.billybriggs.coverage.common.proto.CoverageProto.ImpactedTestsResponse;
+import dev.billybriggs.coverage.common.proto.CoverageProto.SnapshotRequest;
+import dev.billybriggs.coverage.common.proto.CoverageProto.SnapshotResponse;
+import dev.billybriggs.coverage.common.proto.CoverageProto.StreamCoverageSummaryRequest;
+import dev.billybriggs.coverage.common.proto.CoverageProto.SummaryProjection;
+import dev.billybriggs.coverage.common.proto.CoverageServiceGrpc;
+import dev.billybriggs.coverage.common.wire.DictionaryDecoder;
+import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
+import io.grpc.stub.ServerCallStreamObserver;
+import io.grpc.stub.StreamObserver;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.UncheckedIOException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * gRPC endpoint used by agents to register and stream coverage.
+ *
+ * <p>Each {@code StreamCoverageData} call owns a {@link DictionaryDecoder}, so batches in the
+ * original string-per-point form and in the dictionary- and delta-encoded forms are all accepted,
+ * even interleaved on the same stream. Every merged batch is acknowledged with its sequence number
+ * so delta-mode agents can advance their baseline.
+ *
+ * <p>Streams use manual inbound flow control: the next batch is requested only once the previous one
+ * is merged and the agent is reading responses, so a collector that falls behind holds agents back
+ * through gRPC's transport window instead of buffering their batches. Every response also grants the
+ * agent a window of unacknowledged batches, an equal share of {@code flow_control_window} across the
+ * open streams, and the largest batch size the collector wants.
+ *
+ * <p>In a cluster, registration names the node owning the new session, and summaries are gathered
+ * from every node's shard (see {@link CollectorCluster}). Summary streams are served by the owner,
+ * through a relay when they reach another node, and so are impacted tests queries.
+ *
+ * <p>{@code SnapshotCoverage} reaches agents over their open coverage streams: the collector sends
+ * each stream of the session an unprompted response carrying a snapshot id, and the agent answers
+ * by ending its coverage epoch and streaming what that epoch counted.
+ */
+public class CoverageServiceImpl extends CoverageServiceGrpc.CoverageServiceImplBase {
+
+    private static final Logger logger = LoggerFactory.getLogger(CoverageServiceImpl.class);
+
+    private static final int DEFAULT_WINDOW = 1024;
+
+    private final CoverageDataStore dataStore;
+    private final Map<String, AgentRegistration> agents = new ConcurrentHashMap<>();
+    private final int windowBudget;
+    private final int maxBatchPoints;
+    private final AtomicInteger openStreams = new AtomicInteger();
+    private final CollectorCluster cluster;
+    private final CollectorMetrics metrics;
+    /** Open coverage streams by the session of their latest batch. */
+    private final Map<String, Set<AgentStream>> sessionStreams = new ConcurrentHashMap<>();
+    private final AtomicLong snapshotIds = new AtomicLong();
+
+    public CoverageServiceImpl(CoverageDataStore dataStore) {
+        this(dataStore, DEFAULT_WINDOW, 0);
+    }
+
+    /**
+     * @param windowBudget   batches all streams together may have in flight
+     * @param maxBatchPoints batch size advertised to agents, or 0 for none
+     */
+    public CoverageServiceImpl(CoverageDataStore dataStore, int windowBudget, int maxBatchPoints) {
+        this(dataStore, windowBudget, maxBatchPoints, null);
+    }
+
+    /**
+     * @param cluster the cluster this collector is a node of, or {@code null} when it runs alone
+     */
+    CoverageServiceImpl(CoverageDataStore dataStore, int windowBudget, int maxBatchPoints, CollectorCluster cluster) {
+        this.dataStore = dataStore;
+        this.windowBudget = Math.max(1, windowBudget);
+        this.maxBatchPoints = Math.max(0, maxBatchPoints);
+        this.cluster = cluster;
+        this.metrics = new CollectorMetrics(dataStore, openStreams::get);
+    }
+
+    /** Ingest metrics of this service. */
+    CollectorMetrics metrics() {
+        return metrics;
+    }
+
+    /**
+     * Window granted to each stream while {@code streams} are open.
+     */
+    int windowFor(int streams) {
+        return Math.max(1, windowBudget / Math.max(1, streams));
+    }
+
+    @Override
+    public void registerAgent(AgentRegistration request, StreamObserver<AgentRegistrationResponse> responseObserver) {
+        String sessionId = UUID.randomUUID().toString();
+        agents.put(sessionId, request);
+        logger.info("Registered {} agent {} on {} (pid {}), session {}", request.getLanguage(),
+                request.getAgentId(), request.getHostname(), request.getProcessId(), sessionId);
+
+        responseObserver.onNext(AgentRegistrationResponse.newBuilder()
+                .setSuccess(true)
+                .setMessage("Registered")
+                .setSessionId(sessionId)
+                .setOwnerAddress(cluster != null ? cluster.owner(sessionId) : "")
+                .build());
+        responseObserver.onCompleted();
+    }
+
+    @Override
+    public StreamObserver<CoverageData> streamCoverageData(StreamObserver<CoverageResponse> responseObserver) {
+        ServerCallStreamObserver<CoverageResponse> call =
+                responseObserver instanceof ServerCallStreamObserver<CoverageResponse> server ? server : null;
+        openStreams.incrementAndGet();
+        AgentStream agent = new AgentStream(responseObserver);
+        StreamObserver<CoverageData> requests = new StreamObserver<>() {
+            private final DictionaryDecoder decoder = new DictionaryDecoder();
+            private String sessionId;
+            private CoverageDataStore.Writer writer;
+            private boolean failed;
+            private boolean closed;
+            /** A batch is owed to the agent once its responses are being read again. */
+            private boolean awaitingReady;
+
+            {
+                if (call != null) {
+                    // callbacks of one call are serialised, so this never races with onNext
+                    call.setOnReadyHandler(() -> {
+                        if (awaitingReady && call.isReady()) {
+                            awaitingReady = false;
+                            call.request(1);
+                        }
+                    });
+                }
+            }
+
+            @Override
+            public void onNext(CoverageData data) {
+                if (failed) {
+                    return;
+                }
+                long startedAt = System.nanoTime();
+                int processed;
+                try {
+                    String batchSession = sessionOf(data);
+                    if (!batchSession.equals(sessionId)) {
+                        writer = dataStore.writer(batchSession);
+                        unregister();
+                        sessionId = batchSession;
+                        sessionStreams.computeIfAbsent(sessionId, id -> ConcurrentHashMap.newKeySet()).add(agent);
+                    }
+                    processed = decoder.decode(data, writer);
+                } catch (UncheckedIOException e) {
+                    storageFailed(e);
+                    return;
+                } catch (IllegalArgumentException e) {
+                    // points merged before the failure are real; journal them before rejecting
+                    metrics.batchRejected();
+                    if (commit()) {
+                        // the symbol table is out of sync; the agent must reopen the stream and resend symbols
+                        failed = true;
+                        close();
+                        logger.warn("Rejecting coverage stream from {}: {}", data.getAgentId(), e.getMessage());
+                        agent.fail(Status.INVALID_ARGUMENT.withDescription(e.getMessage()).asRuntimeException());
+                    }
+                    return;
+                }
+                if (!commit()) {
+                    return;
+                }
+                metrics.batchMerged(data.getAgentId().isEmpty() ? sessionId : data.getAgentId(), processed,
+                        System.nanoTime() - startedAt);
+                agent.send(CoverageResponse.newBuilder()
+                        .setSuccess(true)
+                        .setPointsProcessed(processed)
+                        .setAcknowledgedSequence(data.getSequence())
+                        .setWindowBatches(windowFor(openStreams.get()))
+                        .setMaxBatchPoints(maxBatchPoints)
+                        .build());
+                if (call != null) {
+                    if (call.isReady()) {
+                        call.request(1);
+                    } else {
+                        awaitingReady = true;
+                    }
+                }
+            }
+
+            private void close() {
+                if (!closed) {
+                    closed = true;
+                    openStreams.decrementAndGet();
+                    unregister();
+                }
+            }
+
+            private void unregister() {
+                if (sessionId != null) {
+                    sessionStreams.computeIfPresent(sessionId, (id, streams) -> {
+                        streams.remove(agent);
+                        return streams.isEmpty() ? null : streams;
+                    });
+                }
+            }
+
+            private boolean commit() {
+                try {
+                    writer.commit();
+                    return true;
+                } catch (UncheckedIOException e) {
+                    storageFailed(e);
+                    return false;
+                }
+            }
+
+            private void storageFailed(UncheckedIOException e) {
+                // not acknowledged, so the agent re-sends the batch on its next stream
+                metrics.batchRejected();
+                failed = true;
+                close();
+                logger.error("Failed to persist coverage batch for session {}", sessionId, e);
+                agent.fail(Status.INTERNAL.withDescription("Failed to persist coverage").asRuntimeException());
+            }
+
+            @Override
+            public void onError(Throwable t) {
+                close();
+                logger.debug("Coverage stream closed by agent: {}", t.getMessage());
+            }
+
+            @Override
+            public void onCompleted() {
+                close();
+                if (!failed) {
+                    agent.complete();
+                }
+            }
+        };
+        if (call != null) {
+            call.disableAutoRequest();
+            call.request(1);
+        }
+        return requests;
+    }
+
+    /** Coverage streams currently open. */
+    int openStreams() {
+        return openStreams.get();
+    }
+
+    @Override
+    public void getCoverageSummary(CoverageSummaryRequest request, StreamObserver<CoverageSummary> responseObserver) {
+        Optional<CoverageSummary> summary = dataStore.summary(request);
+        if (cluster != null && !request.getLocalOnly()) {
+            try {
+                summary = cluster.gather(request, summary);
+            } catch (StatusRuntimeException e) {
+                responseObserver.onError(e);
+                return;
+            }
+        }
+        summary.ifPresentOrElse(result -> {
+            responseObserver.onNext(result);
+            responseObserver.onCompleted();
+        }, () -> responseObserver.onError(Status.NOT_FOUND
+                .withDescription("Unknown session " + request.getSessionId())
+                .asRuntimeException()));
+    }
+
+    @Override
+    public void streamCoverageSummary(StreamCoverageSummaryRequest request,
+                                      StreamObserver<CoverageSummaryChunk> responseObserver) {
+        CoverageSummaryRequest query = request.getQuery();
+        if (cluster != null && !query.getLocalOnly() && !cluster.self().equals(cluster.owner(query.getSessionId()))) {
+            cluster.relaySummary(request, responseObserver);
+            return;
+        }
+        String afterPath;
+        try {
+            afterPath = SummaryStreamer.resumeAfter(request.getResumeToken());
+        } catch (IllegalArgumentException e) {
+            responseObserver.onError(Status.INVALID_ARGUMENT.withDescription("Malformed resume token").asRuntimeException());
+            return;
+        }
+        boolean statsOnly = request.getProjection() == SummaryProjection.SUMMARY_PROJECTION_STATS_ONLY;
+        Optional<Iterator<FileCoverage>> files = dataStore.fileCoverages(query, afterPath, statsOnly);
+        if (files.isEmpty()) {
+            responseObserver.onError(Status.NOT_FOUND
+                    .withDescription("Unknown session " + query.getSessionId())
+                    .asRuntimeException());
+            return;
+        }
+        new SummaryStreamer(query.getSessionId(), files.get(), dataStore.overallStats(query).orElseThrow(),
+                request.getMaxFiles(), request.getFilesPerChunk(), responseObserver).start();
+    }
+
+    @Override
+    public void getImpactedTests(ImpactedTestsRequest request, StreamObserver<ImpactedTestsResponse> responseObserver) {
+        if (cluster != null && !cluster.self().equals(cluster.owner(request.getSessionId()))) {
+            cluster.relayImpactedTests(request, responseObserver);
+            return;
+        }
+        dataStore.impactedTests(request).ifPresentOrElse(result -> {
+            responseObserver.onNext(result);
+            responseObserver.onCompleted();
+        }, () -> responseObserver.onError(Status.NOT_FOUND
+                .withDescription("Unknown session " + request.getSessionId())
+                .asRuntimeException()));
+    }
+
+    @Override
+    public void snapshotCoverage(SnapshotRequest request, StreamObserver<SnapshotResponse> responseObserver) {
+        if (cluster != null && !cluster.self().equals(cluster.owner(request.getSessionId()))) {
+            // agents stream to the node that owns their session
+            cluster.relaySnapshot(request, responseObserver);
+            return;
+        }
+        if (!agents.containsKey(request.getSessionId()) && !dataStore.hasSession(request.getSessionId())) {
+            responseObserver.onError(Status.NOT_FOUND
+                    .withDescription("Unknown session " + request.getSessionId())
+                    .asRuntimeException());
+            return;
+        }
+        long snapshotId = snapshotIds.incrementAndGet();
+        CoverageResponse snapshot = CoverageResponse.newBuilder()
+                .setSuccess(true)
+                .setSnapshotId(snapshotId)
+                .build();
+        int notified = 0;
+        for (AgentStream agent : sessionStreams.getOrDefault(request.getSessionId(), Set.of())) {
+            if (agent.send(snapshot)) {
+                notified++;
+            }
+        }
+        logger.info("Requested coverage snapshot {} of session {} from {} agents", snapshotId,
+                request.getSessionId(), notified);
+        responseObserver.onNext(SnapshotResponse.newBuilder()
+                .setSessionId(request.getSessionId())
+                .setSnapshotId(snapshotId)
+                .setAgentsNotified(notified)
+                .build());
+        responseObserver.onCompleted();
+    }
+
+    private static String sessionOf(CoverageData data) {
+        return data.getSessionId().isEmpty() ? data.getAgentId() : data.getSessionId();
+    }
+
+    /**
+     * The response side of one coverage stream. Replies to batches come from the stream's own
+     * callbacks, snapshot requests from other calls, so sends are serialised here, and nothing is
+     * sent once the stream has ended.
+     */
+    private static final class AgentStream {
+
+        private final StreamObserver<CoverageResponse> responses;
+        private boolean ended;
+
+        AgentStream(StreamObserver<CoverageResponse> responses) {
+            this.responses = responses;
+        }
+
+        synchronized boolean send(CoverageResponse response) {
+            if (ended) {
+                return false;
+            }
+            try {
+                responses.onNext(response);
+                return true;
+            } catch (RuntimeException e) {
+                // cancelled by the agent; its own callbacks close the stream
+                logger.debug("Coverage response not delivered: {}", e.toString());
+                return false;
+            }
+        }
+
+        synchronized void fail(Throwable error) {
+            if (!ended) {
+                ended = true;
+                responses.onError(error);
+            }
+        }
+
+        synchronized void complete() {
+            if (!ended) {
+                ended = true;
+                responses.onCompleted();
+            }
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package dev.billybriggs.coverage.collector;
+
+import dev.billybriggs.coverage.common.proto.CoverageProto.CoverageStats;
+import dev.billybriggs.coverage.common.proto.CoverageProto.CoverageType;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Coverable and covered probe counts by coverage type, kept up to date as slots are allocated and
+ * first hit, so that {@link CoverageStats} never needs a scan of the probes.
+ */
+final class CoverageTally {
+
+    static final int TYPES = CoverageType.COVERAGE_TYPE_CLASS_VALUE + 1;
+
+    private final AtomicIntegerArray total = new AtomicIntegerArray(TYPES);
+    private final AtomicIntegerArray covered = new AtomicIntegerArray(TYPES);
+
+    void declared(int type) {
+        total.incrementAndGet(type);
+    }
+
+    void covered(int type) {
+        covered.incrementAndGet(type);
+    }
+
+    int total(int type) {
+        return total.get(type);
+    }
+
+    void clearCovered() {
+        for (int type = 0; type < TYPES; type++) {
+            covered.set(type, 0);
+        }
+    }
+
+    /**
+     * Adds this tally to running totals indexed by type number.
+     */
+    void addTo(int[] totals, int[] covereds) {
+        for (int type = 0; type < TYPES; type++) {
+            totals[type] += total.get(type);
+            covereds[type] += covered.get(type);
+        }
+    }
+
+    CoverageStats stats(CoverageType filter) {
+        int[] totals = new int[TYPES];
+        int[] covereds = new int[TYPES];
+        addTo(totals, covereds);
+        return stats(totals, covereds, filter);
+    }
+
+    /**
+     * Same figures as {@link CoverageDataStore#stats} over the points {@code filter} selects.
+     */
+    static CoverageStats stats(int[] totals, int[] covereds, CoverageType filter) {
+        int line = CoverageType.COVERAGE_TYPE_LINE_VALUE;
+        int branch = CoverageType.COVERAGE_TYPE_BRANCH_VALUE;
+        int method = CoverageType.COVERAGE_TYPE_METHOD_VALUE;
+        boolean all = filter == CoverageType.COVERAGE_TYPE_UNSPECIFIED;
+        boolean lines = all || filter == CoverageType.COVERAGE_TYPE_LINE;
+        boolean branches = all || filter == CoverageType.COVERAGE_TYPE_BRANCH;
+        boolean methods = all || filter == CoverageType.COVERAGE_TYPE_METHOD;
+        int totalLines = lines ? totals[line] : 0;
+        int coveredLines = lines ? covereds[line] : 0;
+        int totalBranches = branches ? totals[branch] : 0;
+        int coveredBranches = branches ? covereds[branch] : 0;
+        int totalMethods = methods ? totals[method] : 0;
+        int coveredMethods = methods ? covereds[method] : 0;
+        return CoverageStats.newBuilder()
+                .setTotalLines(totalLines)
+                .setCoveredLines(coveredLines)
+                .setTotalBranches(totalBranches)
+                .setCoveredBranches(coveredBranches)
+                .setTotalMethods(totalMethods)
+                .setCoveredMethods(coveredMethods)
+                .setLineCoveragePercentage(CoverageDataStore.percentage(coveredLines, totalLines))
+                .setBranchCoveragePercentage(CoverageDataStore.percentage(coveredBranches, totalBranches))
+                .setMethodCoveragePercentage(CoverageDataStore.percentage(coveredMethods, totalMethods))
+                .build();
+    }
+}
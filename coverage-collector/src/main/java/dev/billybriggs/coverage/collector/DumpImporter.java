@@ -0,0 +1,83 @@
+package dev.billybriggs.coverage.collector;
+
+import dev.billybriggs.coverage.common.wire.CoverageDumpReader;
+import dev.billybriggs.coverage.common.wire.DictionaryDecoder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Imports coverage dumps written by agents with {@code output.format: binary} into a store:
+ * {@code java -cp coverage-collector.jar dev.billybriggs.coverage.collector.DumpImporter
+ * <store_path> [--session <id>] <dump>...}.
+ *
+ * <p>Each dump is replayed like one {@code StreamCoverageData} stream, into a session named after the
+ * dump file unless {@code --session} merges them all into one. A collector started on the same
+ * {@code store_path} serves the imported sessions.
+ */
+public final class DumpImporter {
+
+    private static final Logger logger = LoggerFactory.getLogger(DumpImporter.class);
+
+    private DumpImporter() {
+    }
+
+    /**
+     * Merges one dump into {@code sessionId}, journaling each batch as the collector would.
+     *
+     * @return the number of points decoded, layout declarations included
+     * @throws IOException if the dump cannot be read or does not decode
+     */
+    public static long importDump(CoverageDataStore store, String sessionId, Path dump) throws IOException {
+        DictionaryDecoder decoder = new DictionaryDecoder();
+        CoverageDataStore.Writer writer = store.writer(sessionId);
+        long[] points = new long[1];
+        try {
+            CoverageDumpReader.read(dump, batch -> {
+                points[0] += decoder.decode(batch, writer);
+                writer.commit();
+            });
+        } catch (IllegalArgumentException e) {
+            writer.commit();
+            throw new IOException("Coverage dump " + dump + " does not decode: " + e.getMessage(), e);
+        }
+        return points[0];
+    }
+
+    /**
+     * Session a dump is imported into by default: its file name without the extension.
+     */
+    static String sessionFor(Path dump) {
+        String name = dump.getFileName().toString();
+        int dot = name.lastIndexOf('.');
+        return dot > 0 ? name.substring(0, dot) : name;
+    }
+
+    public static void main(String[] args) throws IOException {
+        String session = null;
+        List<Path> dumps = new ArrayList<>();
+        for (int i = 1; i < args.length; i++) {
+            if (args[i].equals("--session") && i + 1 < args.length) {
+                session = args[++i];
+            } else {
+                dumps.add(Path.of(args[i]));
+            }
+        }
+        if (dumps.isEmpty()) {
+            System.err.println("Usage: DumpImporter <store_path> [--session <id>] <dump>...");
+            System.exit(2);
+        }
+        try (CoverageDataStore store = CoverageDataStore.open(Path.of(args[0]), false)) {
+            for (Path dump : dumps) {
+                String target = session != null ? session : sessionFor(dump);
+                long points = importDump(store, target, dump);
+                logger.info("Imported {} points from {} into session {}", points, dump, target);
+            }
+            store.checkpoint();
+        }
+    }
+}
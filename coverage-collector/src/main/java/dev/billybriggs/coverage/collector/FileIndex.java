@@ -0,0 +1,113 @@
+package dev.billybriggs.coverage.collector;
+
+import dev.billybriggs.coverage.common.proto.CoverageProto.CoverageType;
+import dev.billybriggs.coverage.common.proto.CoverageProto.ExecutionPoint;
+import dev.billybriggs.coverage.common.proto.CoverageProto.FileCoverage;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Everything a session holds for one source file: its classes, a {@link CoverageTally}, and the
+ * last {@link FileCoverage} built for each type filter.
+ *
+ * <p>Writers mark the file dirty after every merge; that costs a volatile read, and a write only on
+ * the first merge after a snapshot. A snapshot clears the flag before reading the counters, so a
+ * merge it misses marks the file dirty again and the next snapshot rebuilds it. Files nobody wrote
+ * to since the last summary are served from the cache.
+ */
+final class FileIndex {
+
+    private final String filePath;
+    private final CoverageTally tally = new CoverageTally();
+    private final List<ClassCoverage> classes = new CopyOnWriteArrayList<>();
+    private volatile boolean dirty = true;
+
+    /** Guarded by {@code this}. */
+    private long version;
+    private final FileCoverage[] snapshots = new FileCoverage[CoverageTally.TYPES];
+    private final long[] snapshotVersions = new long[CoverageTally.TYPES];
+
+    FileIndex(String filePath) {
+        this.filePath = filePath;
+    }
+
+    String filePath() {
+        return filePath;
+    }
+
+    CoverageTally tally() {
+        return tally;
+    }
+
+    List<ClassCoverage> classes() {
+        return classes;
+    }
+
+    void addClass(ClassCoverage coverage) {
+        classes.add(coverage);
+        touch();
+    }
+
+    void touch() {
+        if (!dirty) {
+            dirty = true;
+        }
+    }
+
+    /**
+     * The file's path and statistics without its points; reads only the tally.
+     */
+    FileCoverage stats(CoverageType filter) {
+        return FileCoverage.newBuilder()
+                .setFilePath(filePath)
+                .setStats(tally.stats(filter))
+                .build();
+    }
+
+    /**
+     * The file's points of the {@code filter} type (all types when unspecified), sorted, with stats.
+     */
+    synchronized FileCoverage snapshot(CoverageType filter, SymbolInterner symbols) {
+        if (dirty) {
+            dirty = false;
+            version++;
+        }
+        int index = filter.getNumber();
+        FileCoverage cached = snapshots[index];
+        if (cached != null && snapshotVersions[index] == version) {
+            return cached;
+        }
+        List<ExecutionPoint> points = new ArrayList<>();
+        // the tally tells which files have no points of the filtered type without scanning them
+        if (filter == CoverageType.COVERAGE_TYPE_UNSPECIFIED || tally.total(index) > 0) {
+            for (ClassCoverage classCoverage : classes) {
+                String className = symbols.name(classCoverage.classId());
+                classCoverage.forEachProbe((key, hits) -> {
+                    CoverageType type = ClassCoverage.type(key);
+                    if (filter != CoverageType.COVERAGE_TYPE_UNSPECIFIED && filter != type) {
+                        return;
+                    }
+                    points.add(ExecutionPoint.newBuilder()
+                            .setFilePath(filePath)
+                            .setClassName(className)
+                            .setMethodName(symbols.name(ClassCoverage.methodId(key)))
+                            .setLineNumber(ClassCoverage.lineNumber(key))
+                            .setType(type)
+                            .setHitCount(hits)
+                            .build());
+                });
+            }
+            points.sort(CoverageDataStore.POINT_ORDER);
+        }
+        FileCoverage snapshot = FileCoverage.newBuilder()
+                .setFilePath(filePath)
+                .addAllExecutionPoints(points)
+                .setStats(tally.stats(filter))
+                .build();
+        snapshots[index] = snapshot;
+        snapshotVersions[index] = version;
+        return snapshot;
+    }
+}
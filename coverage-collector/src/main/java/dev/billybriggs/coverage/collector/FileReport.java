@@ -0,0 +1,179 @@
+package dev.billybriggs.coverage.collector;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+/**
+ * The probes of one source file arranged the way report formats list them: per class, its methods,
+ * its line hit counts and its branch edges, read straight from the counters without going through
+ * the {@link FileIndex} snapshot cache.
+ *
+ * <p>Branch probes named {@code method#k}, as the Java agent names them, are paired into jumps:
+ * edge {@code k} is the taken edge of jump {@code k / 2} when even and its fall-through when odd.
+ * Branch probes named any other way are each a jump of their own. Jumps are numbered in order
+ * through the file.
+ */
+final class FileReport {
+
+    /**
+     * A method probe, placed at the first line its method has a line probe on, or 0.
+     */
+    record Method(String name, int line, long hits) {
+    }
+
+    /**
+     * One edge of a jump.
+     */
+    record Edge(int line, int jump, int branch, long hits) {
+    }
+
+    record ClassReport(String name, List<Method> methods, NavigableMap<Integer, Long> lines, List<Edge> edges) {
+
+        long coveredLines() {
+            return lines.values().stream().filter(hits -> hits > 0).count();
+        }
+
+        long coveredEdges() {
+            return edges.stream().filter(edge -> edge.hits() > 0).count();
+        }
+    }
+
+    private record BranchProbe(String method, int edge, int line, long hits) {
+    }
+
+    private static final Comparator<BranchProbe> BRANCH_ORDER = Comparator
+            .comparingInt(BranchProbe::line)
+            .thenComparing(BranchProbe::method)
+            .thenComparingInt(BranchProbe::edge);
+
+    private final String filePath;
+    private final List<ClassReport> classes;
+
+    private FileReport(String filePath, List<ClassReport> classes) {
+        this.filePath = filePath;
+        this.classes = classes;
+    }
+
+    static FileReport of(FileIndex file, SymbolInterner symbols) {
+        List<ClassReport> classes = new ArrayList<>();
+        int[] jumps = new int[1];
+        List<ClassCoverage> sorted = new ArrayList<>(file.classes());
+        sorted.sort(Comparator.comparing(coverage -> symbols.name(coverage.classId())));
+        for (ClassCoverage coverage : sorted) {
+            NavigableMap<Integer, Long> lines = new TreeMap<>();
+            Map<String, Integer> firstLines = new TreeMap<>();
+            Map<String, Long> methodHits = new TreeMap<>();
+            List<BranchProbe> branches = new ArrayList<>();
+            coverage.forEachProbe((key, hits) -> {
+                String method = symbols.name(ClassCoverage.methodId(key));
+                int line = ClassCoverage.lineNumber(key);
+                switch (ClassCoverage.type(key)) {
+                    case COVERAGE_TYPE_LINE -> {
+                        lines.merge(line, hits, Long::sum);
+                        firstLines.merge(method, line, Math::min);
+                    }
+                    case COVERAGE_TYPE_METHOD -> methodHits.merge(method, hits, Long::sum);
+                    case COVERAGE_TYPE_BRANCH -> branches.add(branchProbe(method, line, hits));
+                    default -> {
+                    }
+                }
+            });
+            List<Method> methods = new ArrayList<>(methodHits.size());
+            methodHits.forEach((name, hits) -> methods.add(new Method(name, firstLines.getOrDefault(name, 0), hits)));
+            classes.add(new ClassReport(symbols.name(coverage.classId()), methods, lines, edges(branches, jumps)));
+        }
+        return new FileReport(file.filePath(), classes);
+    }
+
+    private static BranchProbe branchProbe(String name, int line, long hits) {
+        int hash = name.lastIndexOf('#');
+        if (hash > 0) {
+            try {
+                return new BranchProbe(name.substring(0, hash), Integer.parseInt(name.substring(hash + 1)), line, hits);
+            } catch (NumberFormatException e) {
+                // not an edge number
+            }
+        }
+        return new BranchProbe(name, -1, line, hits);
+    }
+
+    private static List<Edge> edges(List<BranchProbe> branches, int[] jumps) {
+        branches.sort(BRANCH_ORDER);
+        List<Edge> edges = new ArrayList<>(branches.size());
+        BranchProbe previous = null;
+        for (BranchProbe probe : branches) {
+            boolean sameJump = previous != null && probe.edge() >= 0 && previous.edge() >= 0
+                    && probe.method().equals(previous.method()) && probe.line() == previous.line()
+                    && probe.edge() / 2 == previous.edge() / 2;
+            if (!sameJump) {
+                jumps[0]++;
+            }
+            edges.add(new Edge(probe.line(), jumps[0] - 1, probe.edge() >= 0 ? probe.edge() % 2 : 0, probe.hits()));
+            previous = probe;
+        }
+        return edges;
+    }
+
+    String filePath() {
+        return filePath;
+    }
+
+    /**
+     * Classes in name order.
+     */
+    List<ClassReport> classes() {
+        return classes;
+    }
+
+    /**
+     * Hit counts by line, summed over the file's classes.
+     */
+    NavigableMap<Integer, Long> lines() {
+        if (classes.size() == 1) {
+            return classes.get(0).lines();
+        }
+        NavigableMap<Integer, Long> lines = new TreeMap<>();
+        for (ClassReport report : classes) {
+            report.lines().forEach((line, hits) -> lines.merge(line, hits, Long::sum));
+        }
+        return lines;
+    }
+
+    /**
+     * Branch edges of all classes, by line, each line's edges in jump order.
+     */
+    NavigableMap<Integer, List<Edge>> edgesByLine() {
+        if (classes.size() == 1) {
+            return byLine(classes.get(0).edges());
+        }
+        List<Edge> edges = new ArrayList<>();
+        for (ClassReport report : classes) {
+            edges.addAll(report.edges());
+        }
+        return byLine(edges);
+    }
+
+    static NavigableMap<Integer, List<Edge>> byLine(List<Edge> edges) {
+        NavigableMap<Integer, List<Edge>> byLine = new TreeMap<>();
+        for (Edge edge : edges) {
+            byLine.computeIfAbsent(edge.line(), line -> new ArrayList<>()).add(edge);
+        }
+        return byLine;
+    }
+
+    /**
+     * Directory part of the path, empty for a file at the root.
+     */
+    static String directory(String filePath) {
+        int slash = filePath.lastIndexOf('/');
+        return slash < 0 ? "" : filePath.substring(0, slash);
+    }
+
+    static String fileName(String filePath) {
+        return filePath.substring(filePath.lastIndexOf('/') + 1);
+    }
+}
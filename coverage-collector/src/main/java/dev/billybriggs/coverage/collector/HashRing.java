@@ -0,0 +1,77 @@
+package dev.billybriggs.coverage.collector;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Consistent hash ring mapping keys to nodes. Each node is placed at {@code virtualNodes} points on
+ * a 64-bit ring and a key belongs to the first point at or after its hash, so adding or removing a
+ * node only moves the keys between its points and their predecessors.
+ */
+final class HashRing {
+
+    static final int DEFAULT_VIRTUAL_NODES = 128;
+
+    private final List<String> nodes;
+    private final long[] points;
+    private final String[] owners;
+
+    HashRing(List<String> nodes, int virtualNodes) {
+        if (nodes.isEmpty()) {
+            throw new IllegalArgumentException("A hash ring needs at least one node");
+        }
+        this.nodes = List.copyOf(nodes);
+        long[][] placed = new long[nodes.size() * virtualNodes][];
+        int index = 0;
+        for (int node = 0; node < nodes.size(); node++) {
+            for (int replica = 0; replica < virtualNodes; replica++) {
+                placed[index++] = new long[] {hash(nodes.get(node) + "#" + replica), node};
+            }
+        }
+        // ties are broken by node order so every collector builds the same ring
+        Arrays.sort(placed, (a, b) -> a[0] != b[0] ? Long.compareUnsigned(a[0], b[0]) : Long.compare(a[1], b[1]));
+        points = new long[placed.length];
+        owners = new String[placed.length];
+        for (int i = 0; i < placed.length; i++) {
+            points[i] = placed[i][0];
+            owners[i] = nodes.get((int) placed[i][1]);
+        }
+    }
+
+    List<String> nodes() {
+        return nodes;
+    }
+
+    String owner(String key) {
+        long hash = hash(key);
+        int low = 0;
+        int high = points.length;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (Long.compareUnsigned(points[middle], hash) < 0) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return owners[low == points.length ? 0 : low];
+    }
+
+    /**
+     * FNV-1a over the UTF-8 bytes, finished with the MurmurHash3 mixer so that similar keys spread
+     * over the whole ring.
+     */
+    static long hash(String key) {
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : key.getBytes(StandardCharsets.UTF_8)) {
+            hash = (hash ^ (b & 0xff)) * 0x100000001b3L;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+}
@@ -0,0 +1,48 @@
+package dev.billybriggs.coverage.collector;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Heap-backed {@link ProbeCounters}. Counters live in fixed-size {@link AtomicLongArray} segments
+ * so growing never copies or blocks existing counters; adds are a single atomic {@code getAndAdd}
+ * on the slot.
+ */
+final class HeapProbeCounters implements ProbeCounters {
+
+    private static final int SEGMENT_BITS = 10;
+    private static final int SEGMENT_SIZE = 1 << SEGMENT_BITS;
+    private static final int SEGMENT_MASK = SEGMENT_SIZE - 1;
+
+    private volatile AtomicLongArray[] segments = {new AtomicLongArray(SEGMENT_SIZE)};
+
+    @Override
+    public long add(int slot, long delta) {
+        return segments[slot >>> SEGMENT_BITS].addAndGet(slot & SEGMENT_MASK, delta);
+    }
+
+    @Override
+    public long get(int slot) {
+        AtomicLongArray[] current = segments;
+        int segment = slot >>> SEGMENT_BITS;
+        return segment < current.length ? current[segment].get(slot & SEGMENT_MASK) : 0;
+    }
+
+    @Override
+    public void ensureCapacity(int slot) {
+        int segment = slot >>> SEGMENT_BITS;
+        if (segment < segments.length) {
+            return;
+        }
+        synchronized (this) {
+            AtomicLongArray[] current = segments;
+            if (segment >= current.length) {
+                AtomicLongArray[] grown = Arrays.copyOf(current, Math.max(segment + 1, current.length * 2));
+                for (int i = current.length; i < grown.length; i++) {
+                    grown[i] = new AtomicLongArray(SEGMENT_SIZE);
+                }
+                segments = grown;
+            }
+        }
+    }
+}
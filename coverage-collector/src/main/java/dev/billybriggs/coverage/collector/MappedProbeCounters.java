@@ -0,0 +1,115 @@
+package dev.billybriggs.coverage.collector;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * {@link ProbeCounters} kept in a memory-mapped file, so counters live off-heap and survive a
+ * collector process crash in the page cache. The file grows in fixed-size mapped segments; adds
+ * are atomic {@code getAndAdd} operations on the mapping through a {@link VarHandle}.
+ *
+ * <p>Values are little-endian longs at {@code slot * 8}.
+ */
+final class MappedProbeCounters implements ProbeCounters {
+
+    private static final int SEGMENT_BITS = 16;
+    private static final int SEGMENT_SIZE = 1 << SEGMENT_BITS;
+    private static final int SEGMENT_MASK = SEGMENT_SIZE - 1;
+    private static final long SEGMENT_BYTES = (long) SEGMENT_SIZE * Long.BYTES;
+
+    private static final VarHandle LONGS = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+
+    private final FileChannel channel;
+    private volatile MappedByteBuffer[] segments;
+
+    MappedProbeCounters(FileChannel channel) throws IOException {
+        this.channel = channel;
+        int existing = (int) Math.max(1, (channel.size() + SEGMENT_BYTES - 1) / SEGMENT_BYTES);
+        MappedByteBuffer[] mapped = new MappedByteBuffer[existing];
+        for (int i = 0; i < existing; i++) {
+            mapped[i] = map(i);
+        }
+        segments = mapped;
+    }
+
+    @Override
+    public long add(int slot, long delta) {
+        return (long) LONGS.getAndAdd(segments[slot >>> SEGMENT_BITS], offset(slot), delta) + delta;
+    }
+
+    @Override
+    public long get(int slot) {
+        MappedByteBuffer[] current = segments;
+        int segment = slot >>> SEGMENT_BITS;
+        return segment < current.length ? (long) LONGS.getVolatile(current[segment], offset(slot)) : 0;
+    }
+
+    /**
+     * Raises a slot to at least {@code value}. Counters only grow, so replaying absolute values
+     * this way is idempotent.
+     */
+    void raiseTo(int slot, long value) {
+        MappedByteBuffer segment = segments[slot >>> SEGMENT_BITS];
+        int offset = offset(slot);
+        long current;
+        do {
+            current = (long) LONGS.getVolatile(segment, offset);
+        } while (current < value && !LONGS.compareAndSet(segment, offset, current, value));
+    }
+
+    void clear(int slot) {
+        LONGS.setVolatile(segments[slot >>> SEGMENT_BITS], offset(slot), 0L);
+    }
+
+    /**
+     * Number of slots currently backed by the file.
+     */
+    int capacity() {
+        return segments.length * SEGMENT_SIZE;
+    }
+
+    @Override
+    public void ensureCapacity(int slot) {
+        int segment = slot >>> SEGMENT_BITS;
+        if (segment < segments.length) {
+            return;
+        }
+        synchronized (this) {
+            MappedByteBuffer[] current = segments;
+            if (segment >= current.length) {
+                MappedByteBuffer[] grown = Arrays.copyOf(current, Math.max(segment + 1, current.length * 2));
+                try {
+                    for (int i = current.length; i < grown.length; i++) {
+                        grown[i] = map(i);
+                    }
+                } catch (IOException e) {
+                    throw new UncheckedIOException("Failed to grow counter file", e);
+                }
+                segments = grown;
+            }
+        }
+    }
+
+    /**
+     * Writes every dirty counter page to the file.
+     */
+    void force() {
+        for (MappedByteBuffer segment : segments) {
+            segment.force();
+        }
+    }
+
+    private MappedByteBuffer map(int segment) throws IOException {
+        return channel.map(FileChannel.MapMode.READ_WRITE, segment * SEGMENT_BYTES, SEGMENT_BYTES);
+    }
+
+    private static int offset(int slot) {
+        return (slot & SEGMENT_MASK) << 3;
+    }
+}
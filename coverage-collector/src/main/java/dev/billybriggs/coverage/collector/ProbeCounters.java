@@ -0,0 +1,19 @@
+package dev.billybriggs.coverage.collector;
+
+/**
+ * Growable array of atomic hit counters addressed by slot.
+ */
+interface ProbeCounters {
+
+    /**
+     * Atomically adds {@code delta} to a slot and returns the new value.
+     */
+    long add(int slot, long delta);
+
+    long get(int slot);
+
+    /**
+     * Makes {@code slot} addressable. Must happen before the slot is published to writers.
+     */
+    void ensureCapacity(int slot);
+}
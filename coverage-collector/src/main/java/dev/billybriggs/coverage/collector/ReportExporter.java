@@ -0,0 +1,262 @@
+package dev.billybriggs.coverage.collector;
+
+import dev.billybriggs.coverage.common.proto.CoverageProto.CoverageStats;
+import dev.billybriggs.coverage.common.proto.CoverageProto.CoverageType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/**
+ * Writes the coverage of a session as an LCOV, Cobertura or JaCoCo XML report (see
+ * {@link ReportFormat}): {@code java -cp coverage-collector.jar
+ * dev.billybriggs.coverage.collector.ReportExporter <store_path> <session> <format> <output>
+ * [--parallelism <n>]}. A collector with one of these formats as {@code output.format} writes a
+ * report of each session into {@code output.file_path} when it stops.
+ *
+ * <p>Each source file is rendered by its own task straight from the session's counters, in
+ * parallel, and written in order through one buffered {@link FileChannel}. Tasks run at most
+ * {@value #FILES_AHEAD_PER_THREAD} files per thread ahead of the writer, so memory is bounded by a
+ * few rendered files per thread whatever the size of the session. Statistics of the report and its
+ * packages come from the session's tallies, so nothing has to be totalled before the first file is
+ * written. The report goes to a temporary file first and is moved into place once complete, so a
+ * reader never sees half a report.
+ *
+ * <p>Files are written a directory at a time, each directory's files in name order. Plain path
+ * order would split a directory, since {@code /} sorts before letters and digits:
+ * {@code com/acme/api/Bar.kt} falls between {@code com/acme/Foo.kt} and {@code com/acme/util.kt}.
+ */
+public final class ReportExporter {
+
+    private static final Logger logger = LoggerFactory.getLogger(ReportExporter.class);
+
+    static final int FILES_AHEAD_PER_THREAD = 4;
+    static final int BUFFER_BYTES = 1 << 16;
+
+    private static final Comparator<FileIndex> PACKAGE_ORDER = Comparator
+            .comparing((FileIndex file) -> FileReport.directory(file.filePath()))
+            .thenComparing(file -> FileReport.fileName(file.filePath()));
+
+    private ReportExporter() {
+    }
+
+    /**
+     * Writes the report of {@code sessionId} to {@code output}, replacing any previous one.
+     *
+     * @return the number of source files in the report
+     * @throws IllegalArgumentException if the store has no such session
+     */
+    public static int export(CoverageDataStore store, String sessionId, ReportFormat format, Path output,
+                             ForkJoinPool pool) throws IOException {
+        SessionCoverage session = store.existingSession(sessionId);
+        if (session == null) {
+            throw new IllegalArgumentException("Unknown session " + sessionId);
+        }
+        SymbolInterner symbols = store.symbols();
+        List<FileIndex> files = new ArrayList<>(session.files((String) null));
+        files.sort(PACKAGE_ORDER);
+        Path partial = output.resolveSibling(output.getFileName() + ".partial");
+        int window = Math.max(1, pool.getParallelism()) * FILES_AHEAD_PER_THREAD;
+        Deque<Future<byte[]>> rendering = new ArrayDeque<>();
+        try (ReportChannel out = new ReportChannel(partial)) {
+            CoverageStats overall = session.tally().stats(CoverageType.COVERAGE_TYPE_UNSPECIFIED);
+            StringBuilder text = new StringBuilder();
+            format.header(sessionId, overall, System.currentTimeMillis(), text);
+            out.write(text);
+            int next = 0;
+            String directory = null;
+            CoverageStats packageStats = null;
+            for (int i = 0; i < files.size(); i++) {
+                while (next < files.size() && next - i < window) {
+                    FileIndex file = files.get(next++);
+                    rendering.add(pool.submit(() -> render(format, sessionId, file, symbols)));
+                }
+                String fileDirectory = FileReport.directory(files.get(i).filePath());
+                if (!fileDirectory.equals(directory)) {
+                    text.setLength(0);
+                    if (directory != null) {
+                        format.closePackage(directory, packageStats, text);
+                    }
+                    directory = fileDirectory;
+                    packageStats = packageStats(files, i);
+                    format.openPackage(directory, packageStats, text);
+                    out.write(text);
+                }
+                out.write(await(rendering.poll()));
+            }
+            text.setLength(0);
+            if (directory != null) {
+                format.closePackage(directory, packageStats, text);
+            }
+            format.footer(overall, text);
+            out.write(text);
+        } catch (IOException | RuntimeException e) {
+            rendering.forEach(task -> task.cancel(true));
+            Files.deleteIfExists(partial);
+            throw e;
+        }
+        Files.move(partial, output, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return files.size();
+    }
+
+    private static byte[] render(ReportFormat format, String sessionId, FileIndex file, SymbolInterner symbols) {
+        StringBuilder text = new StringBuilder();
+        format.file(sessionId, FileReport.of(file, symbols), text);
+        return text.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Statistics of the files from {@code from} on that share its directory, which are consecutive
+     * since files are in {@link #PACKAGE_ORDER}.
+     */
+    private static CoverageStats packageStats(List<FileIndex> files, int from) {
+        String directory = FileReport.directory(files.get(from).filePath());
+        int[] totals = new int[CoverageTally.TYPES];
+        int[] covereds = new int[CoverageTally.TYPES];
+        for (int i = from; i < files.size() && FileReport.directory(files.get(i).filePath()).equals(directory); i++) {
+            files.get(i).tally().addTo(totals, covereds);
+        }
+        return CoverageTally.stats(totals, covereds, CoverageType.COVERAGE_TYPE_UNSPECIFIED);
+    }
+
+    private static byte[] await(Future<byte[]> task) throws IOException {
+        try {
+            return task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Report export interrupted");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof UncheckedIOException io) {
+                throw io.getCause();
+            }
+            if (e.getCause() instanceof RuntimeException runtime) {
+                throw runtime;
+            }
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    /**
+     * Report file name of a session in a directory: the session id with characters unsafe in file
+     * names replaced, plus the format's extension.
+     */
+    static Path reportPath(Path directory, String sessionId, ReportFormat format) {
+        return directory.resolve(sessionId.replaceAll("[^A-Za-z0-9._-]", "_") + format.extension());
+    }
+
+    /**
+     * Writes a report of every session in the store into {@code directory}.
+     *
+     * @return the number of reports written
+     */
+    public static int exportAll(CoverageDataStore store, ReportFormat format, Path directory, ForkJoinPool pool)
+            throws IOException {
+        Files.createDirectories(directory);
+        int reports = 0;
+        for (String sessionId : store.sessionIds()) {
+            long startedAt = System.nanoTime();
+            Path output = reportPath(directory, sessionId, format);
+            int files = export(store, sessionId, format, output, pool);
+            logger.info("Wrote {} report of session {} ({} files) to {} in {} ms", format.formatName(), sessionId,
+                    files, output, (System.nanoTime() - startedAt) / 1_000_000);
+            reports++;
+        }
+        return reports;
+    }
+
+    /**
+     * Appends to a file through a direct buffer, writing to the channel only when it fills up.
+     */
+    private static final class ReportChannel implements Closeable {
+
+        private final FileChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_BYTES);
+
+        ReportChannel(Path path) throws IOException {
+            channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING);
+        }
+
+        void write(StringBuilder text) throws IOException {
+            if (!text.isEmpty()) {
+                write(text.toString().getBytes(StandardCharsets.UTF_8));
+            }
+        }
+
+        void write(byte[] bytes) throws IOException {
+            if (bytes.length > buffer.remaining()) {
+                drain();
+            }
+            if (bytes.length > buffer.capacity()) {
+                ByteBuffer large = ByteBuffer.wrap(bytes);
+                while (large.hasRemaining()) {
+                    channel.write(large);
+                }
+            } else {
+                buffer.put(bytes);
+            }
+        }
+
+        private void drain() throws IOException {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            buffer.clear();
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                drain();
+            } finally {
+                channel.close();
+            }
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        int parallelism = Runtime.getRuntime().availableProcessors();
+        List<String> positional = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--parallelism") && i + 1 < args.length) {
+                parallelism = Integer.parseInt(args[++i]);
+            } else {
+                positional.add(args[i]);
+            }
+        }
+        ReportFormat format = positional.size() == 4 ? ReportFormat.forName(positional.get(2)).orElse(null) : null;
+        if (format == null) {
+            System.err.println("Usage: ReportExporter <store_path> <session> <lcov|cobertura|jacoco> <output>"
+                    + " [--parallelism <n>]");
+            System.exit(2);
+        }
+        long startedAt = System.nanoTime();
+        ForkJoinPool pool = new ForkJoinPool(Math.max(1, parallelism));
+        try (CoverageDataStore store = CoverageDataStore.open(Path.of(positional.get(0)), false)) {
+            int files = export(store, positional.get(1), format, Path.of(positional.get(3)), pool);
+            logger.info("Wrote {} report of {} files to {} in {} ms", format.formatName(), files, positional.get(3),
+                    (System.nanoTime() - startedAt) / 1_000_000);
+        } finally {
+            pool.shutdown();
+        }
+    }
+}
@@ -0,0 +1,346 @@
+package dev.billybriggs.coverage.collector;
+
+import dev.billybriggs.coverage.common.proto.CoverageProto.CoverageStats;
+
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Optional;
+import java.util.TreeSet;
+
+/**
+ * Report file formats CI tools read, rendered piece by piece so that {@link ReportExporter} can
+ * stream them: a header, then each source file, grouped into packages by directory, then a
+ * footer. Statistics passed to the header, packages and footer come from the store's tallies.
+ *
+ * <p>JaCoCo's XML report is written rather than its {@code .exec} execution data, which identifies
+ * classes by a checksum of their class files and records JaCoCo's own probes, neither of which the
+ * collector has. The XML lists one instruction per line, so its instruction counters match its line
+ * counters.
+ */
+public enum ReportFormat {
+
+    /** LCOV tracefile, as read by genhtml, Codecov and most CI coverage plugins. */
+    LCOV("lcov", ".info") {
+        @Override
+        void header(String sessionId, CoverageStats overall, long timestamp, StringBuilder out) {
+        }
+
+        @Override
+        void file(String sessionId, FileReport file, StringBuilder out) {
+            out.append("TN:").append(sessionId.replaceAll("[^A-Za-z0-9_]", "_")).append('\n');
+            out.append("SF:").append(file.filePath()).append('\n');
+            int methods = 0;
+            int methodsHit = 0;
+            for (FileReport.ClassReport report : file.classes()) {
+                for (FileReport.Method method : report.methods()) {
+                    out.append("FN:").append(method.line()).append(',').append(report.name()).append('.')
+                            .append(method.name()).append('\n');
+                }
+            }
+            for (FileReport.ClassReport report : file.classes()) {
+                for (FileReport.Method method : report.methods()) {
+                    out.append("FNDA:").append(method.hits()).append(',').append(report.name()).append('.')
+                            .append(method.name()).append('\n');
+                    methods++;
+                    methodsHit += method.hits() > 0 ? 1 : 0;
+                }
+            }
+            out.append("FNF:").append(methods).append('\n');
+            out.append("FNH:").append(methodsHit).append('\n');
+            NavigableMap<Integer, Long> lines = file.lines();
+            int edges = 0;
+            int edgesHit = 0;
+            for (List<FileReport.Edge> lineEdges : file.edgesByLine().values()) {
+                for (FileReport.Edge edge : lineEdges) {
+                    // "-" marks an edge on a line that never ran
+                    boolean lineRan = edge.hits() > 0 || lines.getOrDefault(edge.line(), 0L) > 0;
+                    out.append("BRDA:").append(edge.line()).append(',').append(edge.jump()).append(',')
+                            .append(edge.branch()).append(',');
+                    if (lineRan) {
+                        out.append(edge.hits());
+                    } else {
+                        out.append('-');
+                    }
+                    out.append('\n');
+                    edges++;
+                    edgesHit += edge.hits() > 0 ? 1 : 0;
+                }
+            }
+            out.append("BRF:").append(edges).append('\n');
+            out.append("BRH:").append(edgesHit).append('\n');
+            int linesHit = 0;
+            for (Map.Entry<Integer, Long> line : lines.entrySet()) {
+                out.append("DA:").append(line.getKey()).append(',').append(line.getValue()).append('\n');
+                linesHit += line.getValue() > 0 ? 1 : 0;
+            }
+            out.append("LF:").append(lines.size()).append('\n');
+            out.append("LH:").append(linesHit).append('\n');
+            out.append("end_of_record\n");
+        }
+
+        @Override
+        void footer(CoverageStats overall, StringBuilder out) {
+        }
+    },
+
+    /** Cobertura XML, as read by Jenkins, GitLab and Azure DevOps. */
+    COBERTURA("cobertura", ".cobertura.xml") {
+        @Override
+        void header(String sessionId, CoverageStats overall, long timestamp, StringBuilder out) {
+            out.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n")
+                    .append("<!DOCTYPE coverage SYSTEM \"http://cobertura.sourceforge.net/xml/coverage-04.dtd\">\n")
+                    .append("<coverage line-rate=\"").append(rate(overall.getCoveredLines(), overall.getTotalLines()))
+                    .append("\" branch-rate=\"").append(rate(overall.getCoveredBranches(), overall.getTotalBranches()))
+                    .append("\" lines-covered=\"").append(overall.getCoveredLines())
+                    .append("\" lines-valid=\"").append(overall.getTotalLines())
+                    .append("\" branches-covered=\"").append(overall.getCoveredBranches())
+                    .append("\" branches-valid=\"").append(overall.getTotalBranches())
+                    .append("\" complexity=\"0\" version=\"0\" timestamp=\"").append(timestamp).append("\">\n")
+                    .append("<sources><source>.</source></sources>\n<packages>\n");
+        }
+
+        @Override
+        void openPackage(String directory, CoverageStats stats, StringBuilder out) {
+            out.append("<package name=\"").append(escape(directory.replace('/', '.')))
+                    .append("\" line-rate=\"").append(rate(stats.getCoveredLines(), stats.getTotalLines()))
+                    .append("\" branch-rate=\"").append(rate(stats.getCoveredBranches(), stats.getTotalBranches()))
+                    .append("\" complexity=\"0\">\n<classes>\n");
+        }
+
+        @Override
+        void closePackage(String directory, CoverageStats stats, StringBuilder out) {
+            out.append("</classes>\n</package>\n");
+        }
+
+        @Override
+        void file(String sessionId, FileReport file, StringBuilder out) {
+            String fileName = escape(file.filePath());
+            for (FileReport.ClassReport report : file.classes()) {
+                out.append("<class name=\"").append(escape(report.name()))
+                        .append("\" filename=\"").append(fileName)
+                        .append("\" line-rate=\"").append(rate(report.coveredLines(), report.lines().size()))
+                        .append("\" branch-rate=\"").append(rate(report.coveredEdges(), report.edges().size()))
+                        .append("\" complexity=\"0\">\n<methods>\n");
+                for (FileReport.Method method : report.methods()) {
+                    String covered = method.hits() > 0 ? "1" : "0";
+                    out.append("<method name=\"").append(escape(method.name()))
+                            .append("\" signature=\"\" line-rate=\"").append(covered)
+                            .append("\" branch-rate=\"").append(covered).append("\" complexity=\"0\"><lines>");
+                    if (method.line() > 0) {
+                        out.append("<line number=\"").append(method.line()).append("\" hits=\"")
+                                .append(method.hits()).append("\" branch=\"false\"/>");
+                    }
+                    out.append("</lines></method>\n");
+                }
+                out.append("</methods>\n<lines>\n");
+                NavigableMap<Integer, List<FileReport.Edge>> edges = FileReport.byLine(report.edges());
+                TreeSet<Integer> lines = new TreeSet<>(report.lines().keySet());
+                lines.addAll(edges.keySet());
+                for (int line : lines) {
+                    out.append("<line number=\"").append(line).append("\" hits=\"")
+                            .append(report.lines().getOrDefault(line, 0L));
+                    List<FileReport.Edge> lineEdges = edges.get(line);
+                    if (lineEdges == null) {
+                        out.append("\" branch=\"false\"/>\n");
+                        continue;
+                    }
+                    long covered = lineEdges.stream().filter(edge -> edge.hits() > 0).count();
+                    out.append("\" branch=\"true\" condition-coverage=\"")
+                            .append(covered * 100 / lineEdges.size()).append("% (").append(covered).append('/')
+                            .append(lineEdges.size()).append(")\"/>\n");
+                }
+                out.append("</lines>\n</class>\n");
+            }
+        }
+
+        @Override
+        void footer(CoverageStats overall, StringBuilder out) {
+            out.append("</packages>\n</coverage>\n");
+        }
+    },
+
+    /** JaCoCo XML report, as read by SonarQube, Codecov and the Jenkins coverage plugin. */
+    JACOCO("jacoco", ".jacoco.xml") {
+        @Override
+        void header(String sessionId, CoverageStats overall, long timestamp, StringBuilder out) {
+            out.append("<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"yes\"?>\n")
+                    .append("<!DOCTYPE report PUBLIC \"-//JACOCO//DTD Report 1.1//EN\" \"report.dtd\">\n")
+                    .append("<report name=\"").append(escape(sessionId)).append("\">\n")
+                    .append("<sessioninfo id=\"").append(escape(sessionId)).append("\" start=\"").append(timestamp)
+                    .append("\" dump=\"").append(timestamp).append("\"/>\n");
+        }
+
+        @Override
+        void openPackage(String directory, CoverageStats stats, StringBuilder out) {
+            out.append("<package name=\"").append(escape(directory)).append("\">\n");
+        }
+
+        @Override
+        void closePackage(String directory, CoverageStats stats, StringBuilder out) {
+            counters(stats, out);
+            out.append("</package>\n");
+        }
+
+        @Override
+        void file(String sessionId, FileReport file, StringBuilder out) {
+            String sourceFile = escape(FileReport.fileName(file.filePath()));
+            for (FileReport.ClassReport report : file.classes()) {
+                out.append("<class name=\"").append(escape(report.name().replace('.', '/')))
+                        .append("\" sourcefilename=\"").append(sourceFile).append("\">\n");
+                int methodsHit = 0;
+                for (FileReport.Method method : report.methods()) {
+                    int hit = method.hits() > 0 ? 1 : 0;
+                    methodsHit += hit;
+                    out.append("<method name=\"").append(escape(method.name())).append("\" desc=\"\"");
+                    if (method.line() > 0) {
+                        out.append(" line=\"").append(method.line()).append('"');
+                    }
+                    out.append('>');
+                    counter("METHOD", 1 - hit, hit, out);
+                    out.append("</method>\n");
+                }
+                long linesHit = report.coveredLines();
+                long edgesHit = report.coveredEdges();
+                counter("INSTRUCTION", report.lines().size() - linesHit, linesHit, out);
+                counter("BRANCH", report.edges().size() - edgesHit, edgesHit, out);
+                counter("LINE", report.lines().size() - linesHit, linesHit, out);
+                counter("METHOD", report.methods().size() - methodsHit, methodsHit, out);
+                int classHit = linesHit > 0 || methodsHit > 0 ? 1 : 0;
+                counter("CLASS", 1 - classHit, classHit, out);
+                out.append("</class>\n");
+            }
+            out.append("<sourcefile name=\"").append(sourceFile).append("\">\n");
+            NavigableMap<Integer, Long> lines = file.lines();
+            NavigableMap<Integer, List<FileReport.Edge>> edges = file.edgesByLine();
+            TreeSet<Integer> numbers = new TreeSet<>(lines.keySet());
+            numbers.addAll(edges.keySet());
+            long linesHit = 0;
+            long edgeCount = 0;
+            long edgesHit = 0;
+            for (int line : numbers) {
+                int hit = lines.getOrDefault(line, 0L) > 0 ? 1 : 0;
+                List<FileReport.Edge> lineEdges = edges.getOrDefault(line, List.of());
+                long covered = lineEdges.stream().filter(edge -> edge.hits() > 0).count();
+                out.append("<line nr=\"").append(line).append("\" mi=\"").append(1 - hit).append("\" ci=\"").append(hit)
+                        .append("\" mb=\"").append(lineEdges.size() - covered).append("\" cb=\"").append(covered)
+                        .append("\"/>\n");
+                linesHit += hit;
+                edgeCount += lineEdges.size();
+                edgesHit += covered;
+            }
+            counter("INSTRUCTION", lines.size() - linesHit, linesHit, out);
+            counter("BRANCH", edgeCount - edgesHit, edgesHit, out);
+            counter("LINE", lines.size() - linesHit, linesHit, out);
+            out.append("</sourcefile>\n");
+        }
+
+        @Override
+        void footer(CoverageStats overall, StringBuilder out) {
+            counters(overall, out);
+            out.append("</report>\n");
+        }
+    };
+
+    private final String formatName;
+    private final String extension;
+
+    ReportFormat(String formatName, String extension) {
+        this.formatName = formatName;
+        this.extension = extension;
+    }
+
+    /**
+     * The name used for this format in {@code output.format}.
+     */
+    public String formatName() {
+        return formatName;
+    }
+
+    /**
+     * File name suffix of reports in this format.
+     */
+    public String extension() {
+        return extension;
+    }
+
+    /**
+     * The format named by {@code output.format}, or empty for formats that are not reports.
+     */
+    public static Optional<ReportFormat> forName(String name) {
+        for (ReportFormat format : values()) {
+            if (format.formatName.equalsIgnoreCase(name)) {
+                return Optional.of(format);
+            }
+        }
+        return Optional.empty();
+    }
+
+    /**
+     * @param timestamp export time, in milliseconds since the epoch
+     */
+    abstract void header(String sessionId, CoverageStats overall, long timestamp, StringBuilder out);
+
+    /**
+     * Starts the package of the files in {@code directory}, which all follow before it is closed.
+     */
+    void openPackage(String directory, CoverageStats stats, StringBuilder out) {
+    }
+
+    void closePackage(String directory, CoverageStats stats, StringBuilder out) {
+    }
+
+    /**
+     * Renders one source file. Runs on the exporter's worker threads.
+     */
+    abstract void file(String sessionId, FileReport file, StringBuilder out);
+
+    abstract void footer(CoverageStats overall, StringBuilder out);
+
+    private static void counters(CoverageStats stats, StringBuilder out) {
+        counter("INSTRUCTION", stats.getTotalLines() - stats.getCoveredLines(), stats.getCoveredLines(), out);
+        counter("BRANCH", stats.getTotalBranches() - stats.getCoveredBranches(), stats.getCoveredBranches(), out);
+        counter("LINE", stats.getTotalLines() - stats.getCoveredLines(), stats.getCoveredLines(), out);
+        counter("METHOD", stats.getTotalMethods() - stats.getCoveredMethods(), stats.getCoveredMethods(), out);
+    }
+
+    /**
+     * A JaCoCo counter; like JaCoCo, counters with nothing to count are left out.
+     */
+    private static void counter(String type, long missed, long covered, StringBuilder out) {
+        if (missed + covered > 0) {
+            out.append("<counter type=\"").append(type).append("\" missed=\"").append(missed)
+                    .append("\" covered=\"").append(covered).append("\"/>");
+        }
+    }
+
+    private static String rate(long covered, long total) {
+        return total == 0 ? "0" : String.format(Locale.ROOT, "%.4f", (double) covered / total);
+    }
+
+    static String escape(String text) {
+        StringBuilder escaped = null;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            String replacement = switch (c) {
+                case '&' -> "&amp;";
+                case '<' -> "&lt;";
+                case '>' -> "&gt;";
+                case '"' -> "&quot;";
+                default -> null;
+            };
+            if (replacement != null && escaped == null) {
+                escaped = new StringBuilder(text.length() + 16).append(text, 0, i);
+            }
+            if (escaped != null) {
+                if (replacement != null) {
+                    escaped.append(replacement);
+                } else {
+                    escaped.append(c);
+                }
+            }
+        }
+        return escaped != null ? escaped.toString() : text;
+    }
+}
@@ -0,0 +1,217 @@
+package dev.billybriggs.coverage.collector;
+
+import dev.billybriggs.coverage.common.proto.CoverageProto.CoverageType;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Coverage of one session: per-class probe slots, keyed by interned class id, over a single
+ * session-wide {@link ProbeCounters}.
+ *
+ * <p>A stream binds each declared class layout once to an array of slots, after which every probe
+ * delta is a single atomic add with no hashing, string handling or locking. When the session is
+ * persistent, slot allocations are recorded in its {@link SessionJournal} before the slot is used.
+ *
+ * <p>Classes are also indexed by source file in path order, and each slot remembers its file and
+ * coverage type. Allocating a slot counts it as coverable, and the add that takes a slot from zero
+ * counts it as covered, in both its file's and the session's {@link CoverageTally}; summaries read
+ * those instead of scanning probes. A {@link TestIndex} maps slots to the tests that executed them.
+ */
+final class SessionCoverage {
+
+    private static final int SEGMENT_BITS = 10;
+    private static final int SEGMENT_SIZE = 1 << SEGMENT_BITS;
+    private static final int SEGMENT_MASK = SEGMENT_SIZE - 1;
+
+    private final String sessionId;
+    private final SymbolInterner symbols;
+    private final ProbeCounters counters;
+    private final SessionJournal journal;
+    private final Map<Integer, ClassCoverage> classes = new ConcurrentHashMap<>();
+    private final AtomicInteger nextSlot = new AtomicInteger();
+    private final NavigableMap<String, FileIndex> files = new ConcurrentSkipListMap<>();
+    private final CoverageTally tally = new CoverageTally();
+    private final TestIndex tests = new TestIndex();
+    /** File and type number of each slot, in segments that are never copied once allocated. */
+    private volatile FileIndex[][] slotFiles = {new FileIndex[SEGMENT_SIZE]};
+    private volatile byte[][] slotTypes = {new byte[SEGMENT_SIZE]};
+
+    SessionCoverage(String sessionId, SymbolInterner symbols, ProbeCounters counters, SessionJournal journal) {
+        this.sessionId = sessionId;
+        this.symbols = symbols;
+        this.counters = counters;
+        this.journal = journal;
+    }
+
+    SessionCoverage(String sessionId, SymbolInterner symbols) {
+        this(sessionId, symbols, new HeapProbeCounters(), null);
+    }
+
+    String sessionId() {
+        return sessionId;
+    }
+
+    /**
+     * The session's journal, or {@code null} for in-memory sessions.
+     */
+    SessionJournal journal() {
+        return journal;
+    }
+
+    int slot(String filePath, String className, String methodName, int lineNumber, CoverageType type) {
+        return classCoverage(filePath, className).slot(symbols.intern(methodName), lineNumber, type);
+    }
+
+    /**
+     * Resolves a class layout to one slot per agent-side probe index.
+     */
+    int[] bindLayout(String filePath, String className, String[] methodNames, int[] lineNumbers, CoverageType[] types) {
+        ClassCoverage coverage = classCoverage(filePath, className);
+        int[] slots = new int[methodNames.length];
+        for (int i = 0; i < slots.length; i++) {
+            slots[i] = coverage.slot(symbols.intern(methodNames[i]), lineNumbers[i], types[i]);
+        }
+        return slots;
+    }
+
+    /**
+     * Adds hits to a slot and returns its new count.
+     */
+    long add(int slot, long hits) {
+        long value = counters.add(slot, hits);
+        FileIndex file = slotFiles[slot >>> SEGMENT_BITS][slot & SEGMENT_MASK];
+        if (value == hits && hits > 0) {
+            // only the add that lifts the slot from zero sees its own delta as the total
+            int type = slotTypes[slot >>> SEGMENT_BITS][slot & SEGMENT_MASK];
+            file.tally().covered(type);
+            tally.covered(type);
+        }
+        file.touch();
+        return value;
+    }
+
+    long count(int slot) {
+        return counters.get(slot);
+    }
+
+    Collection<ClassCoverage> classes() {
+        return classes.values();
+    }
+
+    CoverageTally tally() {
+        return tally;
+    }
+
+    /**
+     * Tests that reported coverage in this session, by the slots they executed.
+     */
+    TestIndex tests() {
+        return tests;
+    }
+
+    /**
+     * The files whose paths sort after {@code afterPath}, in path order; all of them if it is null.
+     */
+    Collection<FileIndex> files(String afterPath) {
+        return afterPath == null ? files.values() : files.tailMap(afterPath, false).values();
+    }
+
+    /**
+     * The files among {@code filePaths} that the session has, in path order.
+     */
+    List<FileIndex> files(Collection<String> filePaths) {
+        List<FileIndex> selected = new ArrayList<>(filePaths.size());
+        for (String filePath : new TreeSet<>(filePaths)) {
+            FileIndex file = files.get(filePath);
+            if (file != null) {
+                selected.add(file);
+            }
+        }
+        return selected;
+    }
+
+    int allocateSlot(ClassCoverage owner, long key) {
+        int slot = nextSlot.getAndIncrement();
+        counters.ensureCapacity(slot);
+        if (journal != null) {
+            journal.recordSlot(slot, symbols.name(owner.fileId()), symbols.name(owner.classId()),
+                    symbols.name(ClassCoverage.methodId(key)), ClassCoverage.lineNumber(key), ClassCoverage.type(key));
+        }
+        index(slot, owner.file(), ClassCoverage.type(key));
+        return slot;
+    }
+
+    /**
+     * Records a slot's file and type and counts it as coverable. Runs before the slot is published.
+     */
+    private synchronized void index(int slot, FileIndex file, CoverageType type) {
+        int segment = slot >>> SEGMENT_BITS;
+        if (segment >= slotFiles.length) {
+            int length = Math.max(segment + 1, slotFiles.length * 2);
+            FileIndex[][] grownFiles = Arrays.copyOf(slotFiles, length);
+            byte[][] grownTypes = Arrays.copyOf(slotTypes, length);
+            for (int i = slotFiles.length; i < length; i++) {
+                grownFiles[i] = new FileIndex[SEGMENT_SIZE];
+                grownTypes[i] = new byte[SEGMENT_SIZE];
+            }
+            slotTypes = grownTypes;
+            slotFiles = grownFiles;
+        }
+        slotFiles[segment][slot & SEGMENT_MASK] = file;
+        slotTypes[segment][slot & SEGMENT_MASK] = (byte) type.getNumber();
+        file.tally().declared(type.getNumber());
+        tally.declared(type.getNumber());
+        file.touch();
+    }
+
+    /**
+     * Recounts covered slots from the counters, after recovery has restored them.
+     */
+    synchronized void recountCovered() {
+        tally.clearCovered();
+        files.values().forEach(file -> file.tally().clearCovered());
+        for (int slot = 0; slot < nextSlot.get(); slot++) {
+            FileIndex file = slotFiles[slot >>> SEGMENT_BITS][slot & SEGMENT_MASK];
+            if (file != null && counters.get(slot) > 0) {
+                int type = slotTypes[slot >>> SEGMENT_BITS][slot & SEGMENT_MASK];
+                file.tally().covered(type);
+                tally.covered(type);
+                file.touch();
+            }
+        }
+    }
+
+    /**
+     * Re-attaches a slot recorded by a previous run; later allocations continue after it.
+     */
+    void restoreSlot(int slot, String filePath, String className, String methodName, int lineNumber, CoverageType type) {
+        counters.ensureCapacity(slot);
+        ClassCoverage owner = classCoverage(filePath, className);
+        owner.restoreSlot(ClassCoverage.probeKey(symbols.intern(methodName), lineNumber, type), slot);
+        index(slot, owner.file(), type);
+        nextSlot.accumulateAndGet(slot + 1, Math::max);
+    }
+
+    private ClassCoverage classCoverage(String filePath, String className) {
+        int classId = symbols.intern(className);
+        ClassCoverage coverage = classes.get(classId);
+        if (coverage == null) {
+            coverage = classes.computeIfAbsent(classId, id -> {
+                FileIndex file = files.computeIfAbsent(filePath, FileIndex::new);
+                ClassCoverage created = new ClassCoverage(this, id, symbols.intern(filePath), file);
+                file.addClass(created);
+                return created;
+            });
+        }
+        return coverage;
+    }
+}
@@ -0,0 +1,251 @@
+package dev.billybriggs.coverage.collector;
+
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.CodedOutputStream;
+import dev.billybriggs.coverage.common.proto.CoverageProto.CoverageType;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.BitSet;
+import java.util.zip.CRC32;
+
+/**
+ * On-disk state of one persistent session:
+ * <ul>
+ *   <li>{@code counters.dat}: the session's {@link MappedProbeCounters};</li>
+ *   <li>{@code slots.log}: append-only record of every slot allocation (file, class, method, line,
+ *       type), from which the slot maps are rebuilt on restart;</li>
+ *   <li>{@code batches.log}: append-only record of merged batches since the last checkpoint, as the
+ *       absolute counter values each batch produced.</li>
+ * </ul>
+ *
+ * <p>After a process crash the mapped counters are intact in the page cache. After an operating
+ * system crash they are only guaranteed as of the last {@link #checkpoint()}, and recovery replays
+ * the batch log over them. Because counters only grow and the log holds absolute values, replay
+ * raises each slot to its logged value and is exact whether or not a write had already reached the
+ * counter file. With {@code syncWrites} every batch is forced to disk before it is acknowledged;
+ * otherwise an operating system crash may lose batches merged since the last checkpoint.
+ *
+ * <p>Log records are framed as {@code length, crc32, payload}; a torn tail is discarded.
+ */
+final class SessionJournal implements Closeable {
+
+    static final String COUNTERS = "counters.dat";
+    static final String SLOTS = "slots.log";
+    static final String BATCHES = "batches.log";
+
+    private static final int HEADER_BYTES = Integer.BYTES * 2;
+
+    private final Path directory;
+    private final boolean syncWrites;
+    private final FileChannel countersFile;
+    private final FileChannel slotLog;
+    private final FileChannel batchLog;
+    private final MappedProbeCounters counters;
+    private boolean slotsDirty;
+
+    private SessionJournal(Path directory, boolean syncWrites) throws IOException {
+        this.directory = directory;
+        this.syncWrites = syncWrites;
+        Files.createDirectories(directory);
+        countersFile = FileChannel.open(directory.resolve(COUNTERS),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        slotLog = FileChannel.open(directory.resolve(SLOTS),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        batchLog = FileChannel.open(directory.resolve(BATCHES),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        counters = new MappedProbeCounters(countersFile);
+    }
+
+    /**
+     * Opens (creating if needed) the journal in {@code directory}. Call {@link #recover} before use.
+     */
+    static SessionJournal open(Path directory, boolean syncWrites) throws IOException {
+        return new SessionJournal(directory, syncWrites);
+    }
+
+    Path directory() {
+        return directory;
+    }
+
+    MappedProbeCounters counters() {
+        return counters;
+    }
+
+    /**
+     * Rebuilds a session from the slot log, replays the batch log over the mapped counters and
+     * checkpoints the result.
+     */
+    synchronized void recover(SessionCoverage session) throws IOException {
+        BitSet known = new BitSet();
+        long slotsEnd = readRecords(slotLog, payload -> {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+            int slot = in.readInt();
+            String filePath = in.readUTF();
+            String className = in.readUTF();
+            String methodName = in.readUTF();
+            int lineNumber = in.readInt();
+            CoverageType type = CoverageType.forNumber(in.readUnsignedByte());
+            session.restoreSlot(slot, filePath, className, methodName, lineNumber,
+                    type != null ? type : CoverageType.COVERAGE_TYPE_UNSPECIFIED);
+            known.set(slot);
+        });
+        slotLog.truncate(slotsEnd);
+        slotLog.position(slotsEnd);
+
+        readRecords(batchLog, payload -> {
+            CodedInputStream in = CodedInputStream.newInstance(payload);
+            int count = in.readUInt32();
+            for (int i = 0; i < count; i++) {
+                int slot = in.readUInt32();
+                long value = in.readUInt64();
+                if (known.get(slot)) {
+                    counters.raiseTo(slot, value);
+                }
+            }
+        });
+
+        // slots whose allocation record was lost hold stale counts; they are never reused
+        for (int slot = known.nextClearBit(0); slot < counters.capacity(); slot = known.nextClearBit(slot + 1)) {
+            counters.clear(slot);
+        }
+        checkpoint();
+    }
+
+    /**
+     * Records a newly allocated slot. Called before the slot is handed to writers.
+     */
+    synchronized void recordSlot(int slot, String filePath, String className, String methodName,
+                                 int lineNumber, CoverageType type) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeInt(slot);
+            out.writeUTF(filePath);
+            out.writeUTF(className);
+            out.writeUTF(methodName);
+            out.writeInt(lineNumber);
+            out.writeByte(type.getNumber());
+            append(slotLog, bytes.toByteArray());
+            slotsDirty = true;
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to record slot in " + directory, e);
+        }
+    }
+
+    /**
+     * Records the counter values a merged batch produced.
+     */
+    synchronized void recordBatch(int[] slots, long[] values, int count) {
+        if (count == 0) {
+            return;
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(count * 6 + 4);
+        CodedOutputStream out = CodedOutputStream.newInstance(bytes);
+        try {
+            out.writeUInt32NoTag(count);
+            for (int i = 0; i < count; i++) {
+                out.writeUInt32NoTag(slots[i]);
+                out.writeUInt64NoTag(values[i]);
+            }
+            out.flush();
+            append(batchLog, bytes.toByteArray());
+            if (syncWrites) {
+                if (slotsDirty) {
+                    slotLog.force(false);
+                    slotsDirty = false;
+                }
+                batchLog.force(false);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to record batch in " + directory, e);
+        }
+    }
+
+    /**
+     * Forces counters and slot allocations to disk, then discards the batch log they now cover.
+     */
+    synchronized void checkpoint() throws IOException {
+        counters.force();
+        slotLog.force(false);
+        slotsDirty = false;
+        batchLog.truncate(0);
+        batchLog.position(0);
+        batchLog.force(false);
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        try {
+            checkpoint();
+        } finally {
+            try (countersFile; slotLog; batchLog) {
+                // mappings stay valid until collected; closing the channels releases the descriptors
+            }
+        }
+    }
+
+    private static void append(FileChannel log, byte[] payload) throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        ByteBuffer record = ByteBuffer.allocate(HEADER_BYTES + payload.length)
+                .putInt(payload.length)
+                .putInt((int) crc.getValue())
+                .put(payload)
+                .flip();
+        while (record.hasRemaining()) {
+            log.write(record);
+        }
+    }
+
+    @FunctionalInterface
+    private interface RecordHandler {
+        void accept(byte[] payload) throws IOException;
+    }
+
+    /**
+     * Feeds every intact record to {@code handler} and returns the offset just past the last one.
+     */
+    private static long readRecords(FileChannel log, RecordHandler handler) throws IOException {
+        long size = log.size();
+        long position = 0;
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+        while (position + HEADER_BYTES <= size) {
+            header.clear();
+            readFully(log, header, position);
+            header.flip();
+            int length = header.getInt();
+            int checksum = header.getInt();
+            if (length < 0 || position + HEADER_BYTES + length > size) {
+                break;
+            }
+            ByteBuffer payload = ByteBuffer.allocate(length);
+            readFully(log, payload, position + HEADER_BYTES);
+            CRC32 crc = new CRC32();
+            crc.update(payload.array());
+            if ((int) crc.getValue() != checksum) {
+                break;
+            }
+            handler.accept(payload.array());
+            position += HEADER_BYTES + length;
+        }
+        return position;
+    }
+
+    private static void readFully(FileChannel log, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (log.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Unexpected end of " + log);
+            }
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package dev.billybriggs.coverage.collector;
+
+import dev.billybriggs.coverage.common.proto.CoverageProto.CoverageType;
+
+import java.util.Arrays;
+
+/**
+ * {@link CoverageDataStore.Writer} for one session. Merges go straight to the session counters; for
+ * persistent sessions the resulting values are also buffered and appended to the session journal
+ * as one batch on {@link #commit()}. Per-test coverage goes to the session's {@link TestIndex}
+ * as it arrives.
+ *
+ * <p>Not thread-safe: each stream owns its writer.
+ */
+final class SessionWriter implements CoverageDataStore.Writer {
+
+    private final SessionCoverage session;
+    private final SessionJournal journal;
+    private int[] slots = new int[64];
+    private long[] values = new long[64];
+    private int size;
+
+    SessionWriter(SessionCoverage session) {
+        this.session = session;
+        this.journal = session.journal();
+    }
+
+    @Override
+    public void visit(String filePath, String className, String methodName, int lineNumber, CoverageType type, long hitCount) {
+        merge(session.slot(filePath, className, methodName, lineNumber, type), hitCount);
+    }
+
+    @Override
+    public Object bindLayout(String filePath, String className, String[] methodNames, int[] lineNumbers, CoverageType[] types) {
+        return session.bindLayout(filePath, className, methodNames, lineNumbers, types);
+    }
+
+    @Override
+    public void visitProbe(Object binding, int probe, long hitCount) {
+        merge(((int[]) binding)[probe], hitCount);
+    }
+
+    @Override
+    public void visitTestProbes(String testId, Object binding, int[] probes) {
+        session.tests().record(testId, (int[]) binding, probes);
+    }
+
+    @Override
+    public void commit() {
+        if (journal != null && size > 0) {
+            journal.recordBatch(slots, values, size);
+            size = 0;
+        }
+    }
+
+    void merge(int slot, long hits) {
+        if (hits == 0) {
+            return;
+        }
+        long value = session.add(slot, hits);
+        if (journal != null) {
+            if (size == slots.length) {
+                slots = Arrays.copyOf(slots, size * 2);
+                values = Arrays.copyOf(values, size * 2);
+            }
+            slots[size] = slot;
+            values[size] = value;
+            size++;
+        }
+    }
+}
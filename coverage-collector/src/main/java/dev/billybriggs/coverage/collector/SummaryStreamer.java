@@ -0,0 +1,99 @@
+package dev.billybriggs.coverage.collector;
+
+import dev.billybriggs.coverage.common.proto.CoverageProto.CoverageStats;
+import dev.billybriggs.coverage.common.proto.CoverageProto.CoverageSummaryChunk;
+import dev.billybriggs.coverage.common.proto.CoverageProto.FileCoverage;
+import io.grpc.stub.ServerCallStreamObserver;
+import io.grpc.stub.StreamObserver;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Iterator;
+
+/**
+ * Sends one {@code StreamCoverageSummary} response: files are snapshotted one at a time as chunks
+ * are filled, and chunks are produced only while the call is ready for more, so neither the
+ * collector nor a slow client ever holds more than about one chunk of the summary.
+ *
+ * <p>A chunk closes after {@code filesPerChunk} files or once it reaches {@link #CHUNK_BYTES},
+ * keeping messages well under gRPC's default size limit; a single file larger than that is sent in
+ * a chunk of its own. Resume tokens encode the path of a chunk's last file.
+ */
+final class SummaryStreamer {
+
+    static final int CHUNK_BYTES = 1 << 20;
+    static final int DEFAULT_FILES_PER_CHUNK = 256;
+
+    private final String sessionId;
+    private final Iterator<FileCoverage> files;
+    private final CoverageStats overallStats;
+    private final int filesPerChunk;
+    private final StreamObserver<CoverageSummaryChunk> responses;
+    private final ServerCallStreamObserver<CoverageSummaryChunk> call;
+    private int remaining;
+    private boolean done;
+    private volatile boolean cancelled;
+
+    /**
+     * @param maxFiles files to send before ending the stream, or 0 for all
+     */
+    SummaryStreamer(String sessionId, Iterator<FileCoverage> files, CoverageStats overallStats,
+                    int maxFiles, int filesPerChunk, StreamObserver<CoverageSummaryChunk> responses) {
+        this.sessionId = sessionId;
+        this.files = files;
+        this.overallStats = overallStats;
+        this.remaining = maxFiles > 0 ? maxFiles : Integer.MAX_VALUE;
+        this.filesPerChunk = filesPerChunk > 0 ? filesPerChunk : DEFAULT_FILES_PER_CHUNK;
+        this.responses = responses;
+        this.call = responses instanceof ServerCallStreamObserver<CoverageSummaryChunk> server ? server : null;
+    }
+
+    /**
+     * Starts sending; with a gRPC call the rest follows from its ready callbacks.
+     */
+    void start() {
+        if (call != null) {
+            call.setOnCancelHandler(() -> cancelled = true);
+            call.setOnReadyHandler(this::drain);
+        }
+        drain();
+    }
+
+    static String resumeToken(String filePath) {
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(filePath.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * @throws IllegalArgumentException if the token was not issued by {@link #resumeToken}
+     */
+    static String resumeAfter(String token) {
+        return token.isEmpty() ? null : new String(Base64.getUrlDecoder().decode(token), StandardCharsets.UTF_8);
+    }
+
+    private synchronized void drain() {
+        while (!done && !cancelled && (call == null || call.isReady())) {
+            CoverageSummaryChunk.Builder chunk = CoverageSummaryChunk.newBuilder().setSessionId(sessionId);
+            int bytes = 0;
+            String last = null;
+            while (remaining > 0 && chunk.getFileCoveragesCount() < filesPerChunk && bytes < CHUNK_BYTES
+                    && files.hasNext()) {
+                FileCoverage file = files.next();
+                chunk.addFileCoverages(file);
+                bytes += file.getSerializedSize();
+                last = file.getFilePath();
+                remaining--;
+            }
+            if (last != null) {
+                chunk.setResumeToken(resumeToken(last));
+            }
+            boolean complete = !files.hasNext();
+            if (complete || remaining == 0) {
+                done = true;
+                responses.onNext(chunk.setComplete(complete).setOverallStats(overallStats).build());
+                responses.onCompleted();
+            } else {
+                responses.onNext(chunk.build());
+            }
+        }
+    }
+}
@@ -0,0 +1,46 @@
+package dev.billybriggs.coverage.collector;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Maps file, class and method names to dense integer ids shared by every session.
+ * Lookups of known names are lock-free; only the first sighting of a name takes a lock.
+ */
+final class SymbolInterner {
+
+    private final Map<String, Integer> ids = new ConcurrentHashMap<>();
+    private volatile String[] names = new String[1024];
+    private int size;
+
+    int intern(String name) {
+        Integer id = ids.get(name);
+        if (id != null) {
+            return id;
+        }
+        synchronized (this) {
+            id = ids.get(name);
+            if (id == null) {
+                id = size;
+                String[] table = names;
+                if (id == table.length) {
+                    table = Arrays.copyOf(table, id * 2);
+                }
+                table[id] = name;
+                names = table;
+                size = id + 1;
+                ids.put(name, id);
+            }
+            return id;
+        }
+    }
+
+    String name(int id) {
+        return names[id];
+    }
+
+    synchronized int size() {
+        return size;
+    }
+}
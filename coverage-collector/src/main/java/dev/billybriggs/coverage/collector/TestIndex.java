@@ -0,0 +1,124 @@
+package dev.billybriggs.coverage.collector;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Per-test coverage of one session, inverted: for each slot, the tests that executed it.
+ *
+ * <p>Test ids are interned to dense ordinals in arrival order, and each slot keeps the ordinals of
+ * its tests as a posting list. A posting starts as a sorted array and turns into a bitmap over
+ * ordinals once that is smaller, so probes only a few tests reach cost a few ints while probes
+ * every test runs cost one bit per test. Asking which tests touch a set of slots is then a union of
+ * their postings, independent of how many probes each test executed.
+ *
+ * <p>A test reported more than once, such as a repeated or parameterized test, keeps the union of
+ * its runs. The index lives in memory only; it is not journaled, so a restarted collector answers
+ * for tests reported since.
+ */
+final class TestIndex {
+
+    private final Map<String, Integer> ordinals = new HashMap<>();
+    private final List<String> testIds = new ArrayList<>();
+    private Posting[] postings = new Posting[64];
+
+    /**
+     * Records that {@code testId} executed {@code slots[probe]} for each of {@code probes}.
+     */
+    synchronized void record(String testId, int[] slots, int[] probes) {
+        Integer ordinal = ordinals.get(testId);
+        if (ordinal == null) {
+            ordinal = testIds.size();
+            ordinals.put(testId, ordinal);
+            testIds.add(testId);
+        }
+        for (int probe : probes) {
+            int slot = slots[probe];
+            if (slot >= postings.length) {
+                postings = Arrays.copyOf(postings, Math.max(slot + 1, postings.length * 2));
+            }
+            Posting posting = postings[slot];
+            if (posting == null) {
+                posting = postings[slot] = new Posting();
+            }
+            posting.add(ordinal);
+        }
+    }
+
+    /**
+     * Ids of the tests that executed any of {@code slots}, sorted.
+     */
+    synchronized List<String> touching(BitSet slots) {
+        BitSet tests = new BitSet(testIds.size());
+        for (int slot = slots.nextSetBit(0); slot >= 0 && slot < postings.length; slot = slots.nextSetBit(slot + 1)) {
+            if (postings[slot] != null) {
+                postings[slot].addTo(tests);
+            }
+        }
+        List<String> touching = new ArrayList<>(tests.cardinality());
+        for (int ordinal = tests.nextSetBit(0); ordinal >= 0; ordinal = tests.nextSetBit(ordinal + 1)) {
+            touching.add(testIds.get(ordinal));
+        }
+        touching.sort(null);
+        return touching;
+    }
+
+    /**
+     * Number of tests with recorded coverage.
+     */
+    synchronized int size() {
+        return testIds.size();
+    }
+
+    /**
+     * Ordinals of the tests that executed one slot.
+     */
+    private static final class Posting {
+        private int[] ordinals = new int[2];
+        private int size;
+        private BitSet bits;
+
+        void add(int ordinal) {
+            if (bits != null) {
+                bits.set(ordinal);
+                return;
+            }
+            // ordinals mostly arrive in increasing order, so this is usually an append
+            int at = size > 0 && ordinals[size - 1] < ordinal ? -size - 1 : Arrays.binarySearch(ordinals, 0, size, ordinal);
+            if (at >= 0) {
+                return;
+            }
+            at = -at - 1;
+            if (size == ordinals.length) {
+                // an int per test outgrows a bit per test up to the highest ordinal
+                if ((size + 1) * (long) Integer.SIZE > Math.max(ordinal, ordinals[size - 1]) + 1L) {
+                    bits = new BitSet();
+                    for (int i = 0; i < size; i++) {
+                        bits.set(ordinals[i]);
+                    }
+                    bits.set(ordinal);
+                    ordinals = null;
+                    return;
+                }
+                ordinals = Arrays.copyOf(ordinals, size * 2);
+            }
+            System.arraycopy(ordinals, at, ordinals, at + 1, size - at);
+            ordinals[at] = ordinal;
+            size++;
+        }
+
+        void addTo(BitSet tests) {
+            if (bits != null) {
+                tests.or(bits);
+                return;
+            }
+            for (int i = 0; i < size; i++) {
+                tests.set(ordinals[i]);
+            }
+        }
+    }
+}
@@ -0,0 +1,104 @@
+package dev.billybriggs.coverage.collector;
+
+import dev.billybriggs.coverage.common.proto.CoverageProto.ClassLayout;
+import dev.billybriggs.coverage.common.proto.CoverageProto.CoverageData;
+import dev.billybriggs.coverage.common.proto.CoverageProto.CoverageSummary;
+import dev.billybriggs.coverage.common.proto.CoverageProto.CoverageSummaryRequest;
+import dev.billybriggs.coverage.common.proto.CoverageProto.CoverageType;
+import dev.billybriggs.coverage.common.wire.CoverageDumpWriter;
+import dev.billybriggs.coverage.common.wire.DictionaryEncoder;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * Unit tests for BulkMerge.
+ */
+class BulkMergeTest {
+
+    private static final int SHARDS = 50;
+    private static final int CLASSES = 4;
+    private static final int PROBES = 16;
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void treeReduceMatchesSequentialImport() throws IOException {
+        Path shards = Files.createDirectory(directory.resolve("shards"));
+        for (int shard = 0; shard < SHARDS; shard++) {
+            writeShard(shards.resolve("shard-" + shard + ".cvd"), shard);
+        }
+        List<Path> dumps = BulkMerge.dumps(List.of(shards));
+        assertEquals(SHARDS, dumps.size());
+
+        CoverageDataStore store = new CoverageDataStore();
+        ForkJoinPool pool = new ForkJoinPool(4);
+        long hits;
+        try {
+            hits = BulkMerge.merge(store, "merged", dumps, pool);
+        } finally {
+            pool.shutdown();
+        }
+        for (Path dump : dumps) {
+            DumpImporter.importDump(store, "sequential", dump);
+        }
+
+        CoverageSummary merged = summary(store, "merged");
+        assertEquals(summary(store, "sequential").getFileCoveragesList(), merged.getFileCoveragesList());
+        assertEquals(CLASSES * PROBES, merged.getOverallStats().getTotalLines());
+        // probe p of every class is hit (shard % 3) + 1 times by shards where p % 4 == shard % 4, the rest not at all
+        assertEquals(CLASSES * PROBES, merged.getOverallStats().getCoveredLines());
+        long expected = 0;
+        for (int shard = 0; shard < SHARDS; shard++) {
+            expected += (long) CLASSES * (PROBES / 4) * (shard % 3 + 1);
+        }
+        assertEquals(expected, hits);
+    }
+
+    @Test
+    void unreadableDumpFailsTheMerge() throws IOException {
+        Path bad = Files.writeString(directory.resolve("bad.cvd"), "not a dump");
+        ForkJoinPool pool = new ForkJoinPool(2);
+        try {
+            assertThrows(IOException.class, () -> BulkMerge.merge(new CoverageDataStore(), "merged", List.of(bad), pool));
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    private static CoverageSummary summary(CoverageDataStore store, String sessionId) {
+        return store.summary(CoverageSummaryRequest.newBuilder().setSessionId(sessionId).build()).orElseThrow();
+    }
+
+    private static void writeShard(Path path, int shard) throws IOException {
+        DictionaryEncoder encoder = new DictionaryEncoder();
+        try (CoverageDumpWriter writer = CoverageDumpWriter.create(path)) {
+            for (int c = 0; c < CLASSES; c++) {
+                // shards declare classes in different orders, so their class keys and symbol ids differ
+                int classId = (c + shard) % CLASSES;
+                ClassLayout.Builder layout = encoder.newLayout(c, "com/example/C" + classId + ".java", "com.example.C" + classId);
+                int[] probes = new int[PROBES / 4];
+                long[] counts = new long[PROBES / 4];
+                for (int p = 0; p < PROBES; p++) {
+                    layout.addMethodIds(encoder.symbol("m" + p)).addLineNumbers(p + 1).addTypes(CoverageType.COVERAGE_TYPE_LINE);
+                    if (p % 4 == shard % 4) {
+                        probes[p / 4] = p;
+                        counts[p / 4] = shard % 3 + 1;
+                    }
+                }
+                encoder.addLayout(layout);
+                encoder.addDelta(c, probes, counts, probes.length);
+                writer.write(encoder.finish(CoverageData.newBuilder().setAgentId("shard").setSequence(c + 1)).build());
+            }
+        }
+    }
+}
@@ -0,0 +1,227 @@
+package dev.billybriggs.coverage.collector;
+
+import dev.billybriggs.coverage.common.proto.CoverageProto.AgentRegistration;
+import dev.billybriggs.coverage.common.proto.CoverageProto.AgentRegistrationResponse;
+import dev.billybriggs.coverage.common.proto.CoverageProto.CoverageData;
+import dev.billybriggs.coverage.common.proto.CoverageProto.CoverageResponse;
+import dev.billybriggs.coverage.common.proto.CoverageProto.CoverageSummary;
+import dev.billybriggs.coverage.common.proto.CoverageProto.CoverageSummaryChunk;
+import dev.billybriggs.coverage.common.proto.CoverageProto.CoverageSummaryRequest;
+import dev.billybriggs.coverage.common.proto.CoverageProto.CoverageType;
+import dev.billybriggs.coverage.common.proto.CoverageProto.ExecutionPoint;
+import dev.billybriggs.coverage.common.proto.CoverageProto.StreamCoverageSummaryRequest;
+import dev.billybriggs.coverage.common.proto.CoverageServiceGrpc;
+import io.grpc.CallOptions;
+import io.grpc.Channel;
+import io.grpc.ClientCall;
+import io.grpc.ClientInterceptor;
+import io.grpc.ForwardingClientCall;
+import io.grpc.ForwardingClientCallListener;
+import io.grpc.ManagedChannel;
+import io.grpc.Metadata;
+import io.grpc.MethodDescriptor;
+import io.grpc.Server;
+import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
+import io.grpc.inprocess.InProcessChannelBuilder;
+import io.grpc.inprocess.InProcessServerBuilder;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Runs three in-process collectors as one cluster.
+ */
+class CollectorClusterTest {
+
+    private final List<String> nodes = List.of(
+            InProcessServerBuilder.generateName(), InProcessServerBuilder.generateName(), InProcessServerBuilder.generateName());
+    private final Map<String, CoverageDataStore> stores = new LinkedHashMap<>();
+    private final List<CollectorCluster> clusters = new ArrayList<>();
+    private final List<Server> servers = new ArrayList<>();
+    private final List<ManagedChannel> clients = new ArrayList<>();
+    private final OutstandingChunks summaryRequests = new OutstandingChunks();
+
+    @BeforeEach
+    void startCluster() throws IOException {
+        for (String node : nodes) {
+            CoverageDataStore store = new CoverageDataStore();
+            CollectorCluster cluster = new CollectorCluster(node, nodes,
+                    address -> InProcessChannelBuilder.forName(address).directExecutor().intercept(summaryRequests).build(),
+                    5000);
+            stores.put(node, store);
+            clusters.add(cluster);
+            servers.add(InProcessServerBuilder.forName(node)
+                    .addService(new CoverageServiceImpl(store, 1024, 0, cluster))
+                    .build()
+                    .start());
+        }
+    }
+
+    @AfterEach
+    void stopCluster() {
+        clients.forEach(ManagedChannel::shutdownNow);
+        clusters.forEach(CollectorCluster::close);
+        servers.forEach(Server::shutdownNow);
+    }
+
+    @Test
+    void registrationNamesTheOwnerAndSessionsSpreadOverAllNodes() {
+        CoverageServiceGrpc.CoverageServiceBlockingStub seed = client(nodes.get(0));
+        Set<String> owners = new HashSet<>();
+        for (int i = 0; i < 60; i++) {
+            AgentRegistrationResponse response = seed.registerAgent(AgentRegistration.newBuilder().setAgentId("agent-" + i).build());
+            assertEquals(clusters.get(0).owner(response.getSessionId()), response.getOwnerAddress());
+            assertEquals(clusters.get(2).owner(response.getSessionId()), response.getOwnerAddress());
+            owners.add(response.getOwnerAddress());
+        }
+        assertEquals(Set.copyOf(nodes), owners);
+    }
+
+    @Test
+    void summariesAreGatheredFromEveryShard() {
+        AgentRegistrationResponse registration = client(nodes.get(1))
+                .registerAgent(AgentRegistration.newBuilder().setAgentId("agent").build());
+        String session = registration.getSessionId();
+        String owner = registration.getOwnerAddress();
+        String other = nodes.stream().filter(node -> !node.equals(owner)).findFirst().orElseThrow();
+
+        stores.get(owner).merge(session, "com/example/Calculator.java", "com.example.Calculator", "add", 10,
+                CoverageType.COVERAGE_TYPE_LINE, 3);
+        stores.get(owner).merge(session, "com/example/Calculator.java", "com.example.Calculator", "add", 11,
+                CoverageType.COVERAGE_TYPE_LINE, 0);
+        // a batch streamed to the wrong node still counts
+        stores.get(other).merge(session, "com/example/Calculator.java", "com.example.Calculator", "add", 10,
+                CoverageType.COVERAGE_TYPE_LINE, 2);
+        stores.get(other).merge(session, "com/example/Main.java", "com.example.Main", "main", 5,
+                CoverageType.COVERAGE_TYPE_LINE, 1);
+
+        for (String node : nodes) {
+            CoverageSummary summary = client(node).getCoverageSummary(
+                    CoverageSummaryRequest.newBuilder().setSessionId(session).build());
+            assertEquals(2, summary.getFileCoveragesCount());
+            ExecutionPoint line10 = summary.getFileCoverages(0).getExecutionPoints(0);
+            assertEquals(10, line10.getLineNumber());
+            assertEquals(5, line10.getHitCount());
+            assertEquals(3, summary.getOverallStats().getTotalLines());
+            assertEquals(2, summary.getOverallStats().getCoveredLines());
+        }
+
+        CoverageSummary shard = client(other).getCoverageSummary(
+                CoverageSummaryRequest.newBuilder().setSessionId(session).setLocalOnly(true).build());
+        assertEquals(2, shard.getOverallStats().getTotalLines());
+    }
+
+    @Test
+    void unknownSessionIsNotFoundAndUnreachablePeerFailsTheSummary() {
+        StatusRuntimeException missing = assertThrows(StatusRuntimeException.class, () -> client(nodes.get(0))
+                .getCoverageSummary(CoverageSummaryRequest.newBuilder().setSessionId("missing").build()));
+        assertEquals(Status.Code.NOT_FOUND, missing.getStatus().getCode());
+
+        stores.get(nodes.get(0)).merge("s", "A.java", "A", "run", 1, CoverageType.COVERAGE_TYPE_LINE, 1);
+        servers.get(2).shutdownNow();
+        StatusRuntimeException unavailable = assertThrows(StatusRuntimeException.class, () -> client(nodes.get(0))
+                .getCoverageSummary(CoverageSummaryRequest.newBuilder().setSessionId("s").build()));
+        assertEquals(Status.Code.UNAVAILABLE, unavailable.getStatus().getCode());
+    }
+
+    @Test
+    void streamedBatchesLandOnTheNodeTheyAreSentTo() {
+        String session = client(nodes.get(0)).registerAgent(AgentRegistration.newBuilder().setAgentId("a").build()).getSessionId();
+        CoverageServiceImplTest.RecordingObserver<CoverageResponse> responses = new CoverageServiceImplTest.RecordingObserver<>();
+        String owner = clusters.get(0).owner(session);
+        var stream = CoverageServiceGrpc.newStub(channel(owner)).streamCoverageData(responses);
+        stream.onNext(CoverageData.newBuilder().setSessionId(session).setSequence(1)
+                .addExecutionPoints(ExecutionPoint.newBuilder().setFilePath("A.java").setClassName("A")
+                        .setMethodName("run").setLineNumber(1).setType(CoverageType.COVERAGE_TYPE_LINE).setHitCount(4))
+                .build());
+        stream.onCompleted();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (!responses.completed && System.nanoTime() < deadline) {
+            Thread.onSpinWait();
+        }
+
+        assertEquals(Set.of(session), stores.get(owner).sessionIds());
+        assertEquals(4, client(nodes.get(2)).getCoverageSummary(CoverageSummaryRequest.newBuilder().setSessionId(session).build())
+                .getFileCoverages(0).getExecutionPoints(0).getHitCount());
+    }
+
+    @Test
+    void relayedSummaryStreamPullsOneChunkAtATimeFromTheOwner() {
+        String session = client(nodes.get(0)).registerAgent(AgentRegistration.newBuilder().setAgentId("a").build()).getSessionId();
+        String owner = clusters.get(0).owner(session);
+        String other = nodes.stream().filter(node -> !node.equals(owner)).findFirst().orElseThrow();
+        for (int file = 0; file < 10; file++) {
+            stores.get(owner).merge(session, "com/example/F" + file + ".java", "com.example.F" + file, "run", 1,
+                    CoverageType.COVERAGE_TYPE_LINE, 1);
+        }
+
+        List<CoverageSummaryChunk> chunks = new ArrayList<>();
+        client(other).streamCoverageSummary(StreamCoverageSummaryRequest.newBuilder()
+                .setQuery(CoverageSummaryRequest.newBuilder().setSessionId(session))
+                .setFilesPerChunk(1).build()).forEachRemaining(chunks::add);
+
+        assertEquals(10, chunks.stream().mapToInt(CoverageSummaryChunk::getFileCoveragesCount).sum());
+        assertTrue(chunks.get(chunks.size() - 1).getComplete());
+        assertEquals(1, summaryRequests.max.get());
+    }
+
+    /**
+     * Tracks the most summary chunks a node has requested from a peer and not yet received.
+     */
+    private static final class OutstandingChunks implements ClientInterceptor {
+
+        final AtomicInteger max = new AtomicInteger();
+        private final AtomicInteger outstanding = new AtomicInteger();
+
+        @Override
+        public <Q, R> ClientCall<Q, R> interceptCall(MethodDescriptor<Q, R> method, CallOptions options, Channel next) {
+            ClientCall<Q, R> call = next.newCall(method, options);
+            if (!method.equals(CoverageServiceGrpc.getStreamCoverageSummaryMethod())) {
+                return call;
+            }
+            return new ForwardingClientCall.SimpleForwardingClientCall<>(call) {
+                @Override
+                public void start(Listener<R> listener, Metadata headers) {
+                    super.start(new ForwardingClientCallListener.SimpleForwardingClientCallListener<>(listener) {
+                        @Override
+                        public void onMessage(R message) {
+                            outstanding.decrementAndGet();
+                            super.onMessage(message);
+                        }
+                    }, headers);
+                }
+
+                @Override
+                public void request(int messages) {
+                    max.accumulateAndGet(outstanding.addAndGet(messages), Math::max);
+                    super.request(messages);
+                }
+            };
+        }
+    }
+
+    private CoverageServiceGrpc.CoverageServiceBlockingStub client(String node) {
+        return CoverageServiceGrpc.newBlockingStub(channel(node));
+    }
+
+    private ManagedChannel channel(String node) {
+        ManagedChannel channel = InProcessChannelBuilder.forName(node).directExecutor().build();
+        clients.add(channel);
+        return channel;
+    }
+}
@@ -0,0 +1,226 @@
+package dev.billybriggs.coverage.collector;
+
+import dev.billybriggs.coverage.common.proto.CoverageProto.CoverageStats;
+import dev.billybriggs.coverage.common.proto.CoverageProto.CoverageSummary;
+import dev.billybriggs.coverage.common.proto.CoverageProto.CoverageSummaryRequest;
+import dev.billybriggs.coverage.common.proto.CoverageProto.CoverageType;
+import dev.billybriggs.coverage.common.proto.CoverageProto.ExecutionPoint;
+import dev.billybriggs.coverage.common.proto.CoverageProto.FileCoverage;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Unit tests for CoverageDataStore.
+ */
+class CoverageDataStoreTest {
+
+    private static final int THREADS = 8;
+    private static final int PROBES = 256;
+
+    @Test
+    void concurrentMergesAreNotLost() throws Exception {
+        CoverageDataStore store = new CoverageDataStore();
+        int iterations = 20_000;
+        runConcurrently(THREADS, thread -> {
+            for (int i = 0; i < iterations; i++) {
+                store.merge("s", "com/example/Calculator.java", "com.example.Calculator",
+                        "add", i % 16, CoverageType.COVERAGE_TYPE_LINE, 1);
+            }
+        });
+
+        CoverageSummary summary = store.summary(CoverageSummaryRequest.newBuilder().setSessionId("s").build()).orElseThrow();
+        List<ExecutionPoint> points = summary.getFileCoverages(0).getExecutionPointsList();
+        assertEquals(16, points.size());
+        long total = points.stream().mapToLong(ExecutionPoint::getHitCount).sum();
+        assertEquals((long) THREADS * iterations, total);
+        assertEquals(16, summary.getOverallStats().getCoveredLines());
+    }
+
+    @Test
+    void boundLayoutMergesFromConcurrentStreamsAreNotLost() throws Exception {
+        CoverageDataStore store = new CoverageDataStore();
+        String[] methods = new String[PROBES];
+        int[] lines = new int[PROBES];
+        CoverageType[] types = new CoverageType[PROBES];
+        for (int i = 0; i < PROBES; i++) {
+            methods[i] = "m" + (i % 8);
+            lines[i] = i + 1;
+            types[i] = CoverageType.COVERAGE_TYPE_LINE;
+        }
+        int mergesPerThread = 200_000;
+        // one writer per thread, as each agent stream owns one; throughput is measured by StoreMergeBenchmark
+        runConcurrently(THREADS, thread -> {
+            CoverageDataStore.Writer writer = store.writer("s");
+            Object binding = writer.bindLayout("com/example/Hot.java", "com.example.Hot", methods, lines, types);
+            mergeLoop(writer, binding, thread, mergesPerThread);
+            writer.commit();
+        });
+
+        long total = 0;
+        for (ExecutionPoint point : store.summary(CoverageSummaryRequest.newBuilder().setSessionId("s").build())
+                .orElseThrow().getFileCoverages(0).getExecutionPointsList()) {
+            total += point.getHitCount();
+        }
+        assertEquals((long) THREADS * mergesPerThread, total);
+    }
+
+    @Test
+    void reopeningPersistentStoreRestoresSessions(@TempDir Path directory) throws IOException {
+        try (CoverageDataStore store = CoverageDataStore.open(directory, false)) {
+            store.merge("s", "com/example/Calculator.java", "com.example.Calculator", "add", 10, CoverageType.COVERAGE_TYPE_LINE, 3);
+            store.merge("s", "com/example/Calculator.java", "com.example.Calculator", "add", 11, CoverageType.COVERAGE_TYPE_LINE, 0);
+        }
+
+        try (CoverageDataStore reopened = CoverageDataStore.open(directory, false)) {
+            assertTrue(reopened.hasSession("s"));
+            reopened.merge("s", "com/example/Calculator.java", "com.example.Calculator", "add", 10, CoverageType.COVERAGE_TYPE_LINE, 2);
+            reopened.merge("s", "com/example/Calculator.java", "com.example.Calculator", "sub", 20, CoverageType.COVERAGE_TYPE_LINE, 1);
+
+            List<ExecutionPoint> points = points(reopened, "s");
+            assertEquals(3, points.size());
+            assertEquals(5, points.get(0).getHitCount());
+            assertEquals(0, points.get(1).getHitCount());
+            assertEquals("sub", points.get(2).getMethodName());
+            assertEquals(1, points.get(2).getHitCount());
+            CoverageStats stats = reopened.summary(CoverageSummaryRequest.newBuilder().setSessionId("s").build())
+                    .orElseThrow().getOverallStats();
+            assertEquals(3, stats.getTotalLines());
+            assertEquals(2, stats.getCoveredLines());
+        }
+    }
+
+    @Test
+    void summaryStatsAreMaintainedAsBatchesMerge() {
+        CoverageDataStore store = new CoverageDataStore();
+        store.merge("s", "com/example/A.java", "com.example.A", "run", 1, CoverageType.COVERAGE_TYPE_LINE, 2);
+        store.merge("s", "com/example/A.java", "com.example.A", "run", 2, CoverageType.COVERAGE_TYPE_LINE, 0);
+        store.merge("s", "com/example/A.java", "com.example.A", "run", 2, CoverageType.COVERAGE_TYPE_BRANCH, 0);
+        store.merge("s", "com/example/A.java", "com.example.A", "run", 0, CoverageType.COVERAGE_TYPE_METHOD, 1);
+        store.merge("s", "com/example/B.java", "com.example.B", "call", 7, CoverageType.COVERAGE_TYPE_LINE, 5);
+        store.merge("s", "com/example/B.java", "com.example.B$Inner", "call", 9, CoverageType.COVERAGE_TYPE_BRANCH, 1);
+
+        CoverageSummaryRequest all = CoverageSummaryRequest.newBuilder().setSessionId("s").build();
+        CoverageSummary summary = store.summary(all).orElseThrow();
+        assertStatsMatchPoints(summary);
+        assertEquals(3, summary.getOverallStats().getTotalLines());
+        assertEquals(2, summary.getOverallStats().getCoveredLines());
+        assertEquals(50.0, summary.getOverallStats().getBranchCoveragePercentage(), 0.001);
+
+        // unchanged files are served from the previous snapshot; a merge rebuilds only its own file
+        store.merge("s", "com/example/A.java", "com.example.A", "run", 2, CoverageType.COVERAGE_TYPE_BRANCH, 3);
+        CoverageSummary next = store.summary(all).orElseThrow();
+        assertNotSame(summary.getFileCoverages(0), next.getFileCoverages(0));
+        assertSame(summary.getFileCoverages(1), next.getFileCoverages(1));
+        assertStatsMatchPoints(next);
+        assertEquals(2, next.getOverallStats().getCoveredBranches());
+
+        CoverageSummary filtered = store.summary(all.toBuilder()
+                .addFilePaths("com/example/B.java").addFilePaths("com/example/Missing.java")
+                .setTypeFilter(CoverageType.COVERAGE_TYPE_BRANCH).build()).orElseThrow();
+        assertEquals(1, filtered.getFileCoveragesCount());
+        assertEquals(1, filtered.getFileCoverages(0).getExecutionPointsCount());
+        assertStatsMatchPoints(filtered);
+        assertEquals(0, filtered.getOverallStats().getTotalLines());
+        assertEquals(1, filtered.getOverallStats().getTotalBranches());
+    }
+
+    private static void assertStatsMatchPoints(CoverageSummary summary) {
+        List<ExecutionPoint> all = new ArrayList<>();
+        for (FileCoverage file : summary.getFileCoveragesList()) {
+            assertEquals(CoverageDataStore.stats(file.getExecutionPointsList()), file.getStats());
+            all.addAll(file.getExecutionPointsList());
+        }
+        assertEquals(CoverageDataStore.stats(all), summary.getOverallStats());
+    }
+
+    @Test
+    void recoveryReplaysBatchLogOverCheckpointedCounters(@TempDir Path directory) throws IOException {
+        Path sessionDirectory = directory.resolve(CoverageDataStore.encodeSessionId("s"));
+        CoverageDataStore store = CoverageDataStore.open(directory, true);
+        CoverageDataStore.Writer writer = store.writer("s");
+        Object binding = writer.bindLayout("com/example/Hot.java", "com.example.Hot",
+                new String[]{"a", "b"}, new int[]{1, 2},
+                new CoverageType[]{CoverageType.COVERAGE_TYPE_LINE, CoverageType.COVERAGE_TYPE_LINE});
+        writer.visitProbe(binding, 0, 4);
+        writer.commit();
+        store.checkpoint();
+        byte[] checkpointed = Files.readAllBytes(sessionDirectory.resolve(SessionJournal.COUNTERS));
+        writer.visitProbe(binding, 0, 1);
+        writer.visitProbe(binding, 1, 7);
+        writer.commit();
+
+        // simulate an operating system crash: counter pages written after the checkpoint are lost,
+        // and the log ends in a torn record
+        Path crashed = directory.resolve("crashed");
+        Path crashedSession = crashed.resolve(sessionDirectory.getFileName());
+        Files.createDirectories(crashedSession);
+        Files.write(crashedSession.resolve(SessionJournal.COUNTERS), checkpointed);
+        Files.copy(sessionDirectory.resolve(SessionJournal.SLOTS), crashedSession.resolve(SessionJournal.SLOTS));
+        Files.copy(sessionDirectory.resolve(SessionJournal.BATCHES), crashedSession.resolve(SessionJournal.BATCHES));
+        Files.write(crashedSession.resolve(SessionJournal.BATCHES), new byte[]{0, 0, 0, 9, 1, 2}, StandardOpenOption.APPEND);
+        store.close();
+
+        try (CoverageDataStore recovered = CoverageDataStore.open(crashed, false)) {
+            List<ExecutionPoint> points = points(recovered, "s");
+            assertEquals(5, points.get(0).getHitCount());
+            assertEquals(7, points.get(1).getHitCount());
+        }
+        assertEquals(0, Files.size(crashedSession.resolve(SessionJournal.BATCHES)));
+    }
+
+    private static List<ExecutionPoint> points(CoverageDataStore store, String sessionId) {
+        return store.summary(CoverageSummaryRequest.newBuilder().setSessionId(sessionId).build())
+                .orElseThrow().getFileCoverages(0).getExecutionPointsList();
+    }
+
+    private static void mergeLoop(CoverageDataStore.Writer writer, Object binding, int thread, int merges) {
+        int probe = thread * 31;
+        for (int i = 0; i < merges; i++) {
+            writer.visitProbe(binding, probe & (PROBES - 1), 1);
+            probe += 7;
+        }
+    }
+
+    private interface Worker {
+        void run(int thread);
+    }
+
+    private static void runConcurrently(int threads, Worker worker) throws Exception {
+        CountDownLatch ready = new CountDownLatch(1);
+        List<Thread> started = new ArrayList<>();
+        List<Throwable> failures = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            int thread = t;
+            Thread runner = new Thread(() -> {
+                try {
+                    ready.await();
+                    worker.run(thread);
+                } catch (Throwable e) {
+                    synchronized (failures) {
+                        failures.add(e);
+                    }
+                }
+            });
+            runner.start();
+            started.add(runner);
+        }
+        ready.countDown();
+        for (Thread runner : started) {
+            runner.join();
+        }
+        assertTrue(failures.isEmpty(), () -> "worker failed: " + failures);
+    }
+}
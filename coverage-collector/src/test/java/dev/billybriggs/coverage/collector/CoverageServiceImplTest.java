@@ -0,0 +1,305 @@
+package dev.billybriggs.coverage.collector;
+
+import dev.billybriggs.coverage.common.proto.CoverageProto.AgentRegistration;
+import dev.billybriggs.coverage.common.proto.CoverageProto.AgentRegistrationResponse;
+import dev.billybriggs.coverage.common.proto.CoverageProto.ChangedLines;
+import dev.billybriggs.coverage.common.proto.CoverageProto.ClassLayout;
+import dev.billybriggs.coverage.common.proto.CoverageProto.CoverageData;
+import dev.billybriggs.coverage.common.proto.CoverageProto.CoverageResponse;
+import dev.billybriggs.coverage.common.proto.CoverageProto.CoverageSummary;
+import dev.billybriggs.coverage.common.proto.CoverageProto.CoverageSummaryChunk;
+import dev.billybriggs.coverage.common.proto.CoverageProto.CoverageSummaryRequest;
+import dev.billybriggs.coverage.common.proto.CoverageProto.CoverageType;
+import dev.billybriggs.coverage.common.proto.CoverageProto.ExecutionPoint;
+import dev.billybriggs.coverage.common.proto.CoverageProto.ImpactedTestsRequest;
+import dev.billybriggs.coverage.common.proto.CoverageProto.ImpactedTestsResponse;
+import dev.billybriggs.coverage.common.proto.CoverageProto.SnapshotRequest;
+import dev.billybriggs.coverage.common.proto.CoverageProto.SnapshotResponse;
+import dev.billybriggs.coverage.common.proto.CoverageProto.StreamCoverageSummaryRequest;
+import dev.billybriggs.coverage.common.proto.CoverageProto.SummaryProjection;
+import dev.billybriggs.coverage.common.wire.DictionaryEncoder;
+import io.grpc.Status;
+import io.grpc.stub.StreamObserver;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Unit tests for CoverageServiceImpl.
+ */
+class CoverageServiceImplTest {
+
+    private final CoverageDataStore dataStore = new CoverageDataStore();
+    private final CoverageServiceImpl service = new CoverageServiceImpl(dataStore);
+
+    @Test
+    void decodesLegacyAndDictionaryBatchesIntoOneSession() {
+        String sessionId = register();
+        RecordingObserver<CoverageResponse> responses = new RecordingObserver<>();
+        StreamObserver<CoverageData> stream = service.streamCoverageData(responses);
+
+        stream.onNext(CoverageData.newBuilder()
+                .setSessionId(sessionId)
+                .addExecutionPoints(point("divide", 34, 2))
+                .build());
+
+        DictionaryEncoder encoder = new DictionaryEncoder();
+        encoder.add("com/example/Calculator.java", "com.example.Calculator", "divide", 34, CoverageType.COVERAGE_TYPE_LINE, 3);
+        encoder.add("com/example/Calculator.java", "com.example.Calculator", "divide", 35, CoverageType.COVERAGE_TYPE_LINE, 0);
+        stream.onNext(encoder.finish(CoverageData.newBuilder().setSessionId(sessionId)).build());
+        stream.onCompleted();
+
+        assertEquals(2, responses.values.size());
+        assertEquals(1, responses.values.get(0).getPointsProcessed());
+        assertEquals(2, responses.values.get(1).getPointsProcessed());
+        assertTrue(responses.completed);
+
+        RecordingObserver<CoverageSummary> summary = new RecordingObserver<>();
+        service.getCoverageSummary(CoverageSummaryRequest.newBuilder().setSessionId(sessionId).build(), summary);
+        CoverageSummary result = summary.values.get(0);
+        assertEquals(1, result.getFileCoveragesCount());
+        assertEquals(5, result.getFileCoverages(0).getExecutionPoints(0).getHitCount());
+        assertEquals(2, result.getOverallStats().getTotalLines());
+        assertEquals(1, result.getOverallStats().getCoveredLines());
+        assertEquals(50.0, result.getOverallStats().getLineCoveragePercentage(), 0.001);
+    }
+
+    @Test
+    void mergesDeltaBatchesAndAcknowledgesTheirSequence() {
+        String sessionId = register();
+        RecordingObserver<CoverageResponse> responses = new RecordingObserver<>();
+        StreamObserver<CoverageData> stream = service.streamCoverageData(responses);
+
+        DictionaryEncoder encoder = new DictionaryEncoder();
+        ClassLayout.Builder layout = encoder.newLayout(7, "com/example/Calculator.java", "com.example.Calculator");
+        for (String method : List.of("add", "divide", "isPrime")) {
+            layout.addMethodIds(encoder.symbol(method)).addLineNumbers(0).addTypes(CoverageType.COVERAGE_TYPE_METHOD);
+        }
+        encoder.addLayout(layout);
+        encoder.addDelta(7, new int[]{0, 2}, new long[]{4, 1}, 2);
+        stream.onNext(encoder.finish(CoverageData.newBuilder().setSessionId(sessionId).setSequence(1)).build());
+
+        encoder.addDelta(7, new int[]{2}, null, 1);
+        stream.onNext(encoder.finish(CoverageData.newBuilder().setSessionId(sessionId).setSequence(2)).build());
+
+        assertEquals(1, responses.values.get(0).getAcknowledgedSequence());
+        assertEquals(2, responses.values.get(1).getAcknowledgedSequence());
+
+        CollectorMetrics metrics = service.metrics();
+        assertEquals(2, metrics.getBatchesReceived());
+        assertEquals(1, metrics.getOpenStreams());
+        assertEquals(2, metrics.mergeLatency().count());
+        assertTrue(metrics.getAgentIngestRates().get(sessionId) > 0);
+        assertTrue(metrics.toText().contains("coverage_collector_agent_points_total{agent=\"" + sessionId + "\"} "
+                + metrics.getPointsReceived() + "\n"));
+
+        RecordingObserver<CoverageSummary> summary = new RecordingObserver<>();
+        service.getCoverageSummary(CoverageSummaryRequest.newBuilder().setSessionId(sessionId).build(), summary);
+        CoverageSummary result = summary.values.get(0);
+        assertEquals(3, result.getOverallStats().getTotalMethods());
+        assertEquals(2, result.getOverallStats().getCoveredMethods());
+        assertEquals(2, result.getFileCoverages(0).getExecutionPointsList().stream()
+                .filter(point -> point.getMethodName().equals("isPrime"))
+                .findFirst().orElseThrow().getHitCount());
+    }
+
+    @Test
+    void responsesShareTheFlowControlWindowAcrossOpenStreams() {
+        CoverageServiceImpl limited = new CoverageServiceImpl(dataStore, 8, 250);
+        RecordingObserver<CoverageResponse> first = new RecordingObserver<>();
+        RecordingObserver<CoverageResponse> second = new RecordingObserver<>();
+        StreamObserver<CoverageData> firstStream = limited.streamCoverageData(first);
+        StreamObserver<CoverageData> secondStream = limited.streamCoverageData(second);
+        assertEquals(2, limited.openStreams());
+
+        firstStream.onNext(CoverageData.newBuilder().setAgentId("a").setSequence(1).addExecutionPoints(point("add", 1, 1)).build());
+        assertEquals(4, first.values.get(0).getWindowBatches());
+        assertEquals(250, first.values.get(0).getMaxBatchPoints());
+
+        secondStream.onCompleted();
+        assertEquals(1, limited.openStreams());
+        firstStream.onNext(CoverageData.newBuilder().setAgentId("a").setSequence(2).addExecutionPoints(point("add", 1, 1)).build());
+        assertEquals(8, first.values.get(1).getWindowBatches());
+
+        firstStream.onError(new IllegalStateException("agent went away"));
+        assertEquals(0, limited.openStreams());
+        assertEquals(1, limited.windowFor(100));
+    }
+
+    @Test
+    void unknownSymbolsFailTheStream() {
+        RecordingObserver<CoverageResponse> responses = new RecordingObserver<>();
+        StreamObserver<CoverageData> stream = service.streamCoverageData(responses);
+
+        DictionaryEncoder encoder = new DictionaryEncoder();
+        encoder.add("A.java", "A", "run", 1, CoverageType.COVERAGE_TYPE_LINE, 1);
+        stream.onNext(encoder.finish(CoverageData.newBuilder().setAgentId("a")).build().toBuilder().clearSymbols().build());
+
+        assertNotNull(responses.error);
+        assertTrue(responses.values.isEmpty());
+    }
+
+    @Test
+    void unknownSessionSummaryIsNotFound() {
+        RecordingObserver<CoverageSummary> summary = new RecordingObserver<>();
+        service.getCoverageSummary(CoverageSummaryRequest.newBuilder().setSessionId("missing").build(), summary);
+        assertNotNull(summary.error);
+        assertTrue(summary.values.isEmpty());
+    }
+
+    @Test
+    void summaryStreamResumesFromTheLastChunkToken() {
+        String sessionId = register();
+        StreamObserver<CoverageData> stream = service.streamCoverageData(new RecordingObserver<>());
+        CoverageData.Builder batch = CoverageData.newBuilder().setSessionId(sessionId);
+        for (int file = 0; file < 10; file++) {
+            batch.addExecutionPoints(point("add", 1, file % 2).toBuilder()
+                    .setFilePath("com/example/F" + file + ".java").setClassName("com.example.F" + file));
+        }
+        stream.onNext(batch.build());
+
+        CoverageSummaryRequest query = CoverageSummaryRequest.newBuilder().setSessionId(sessionId).build();
+        RecordingObserver<CoverageSummaryChunk> first = new RecordingObserver<>();
+        service.streamCoverageSummary(StreamCoverageSummaryRequest.newBuilder()
+                .setQuery(query).setFilesPerChunk(3).setMaxFiles(4).build(), first);
+        assertTrue(first.completed);
+        assertEquals(List.of(3, 1), first.values.stream().map(CoverageSummaryChunk::getFileCoveragesCount).toList());
+        CoverageSummaryChunk last = first.values.get(1);
+        assertFalse(last.getComplete());
+        assertEquals(10, last.getOverallStats().getTotalLines());
+        assertEquals(5, last.getOverallStats().getCoveredLines());
+        assertFalse(first.values.get(0).hasOverallStats());
+
+        RecordingObserver<CoverageSummaryChunk> rest = new RecordingObserver<>();
+        service.streamCoverageSummary(StreamCoverageSummaryRequest.newBuilder()
+                .setQuery(query).setResumeToken(last.getResumeToken())
+                .setProjection(SummaryProjection.SUMMARY_PROJECTION_STATS_ONLY).build(), rest);
+        CoverageSummaryChunk tail = rest.values.get(0);
+        assertTrue(tail.getComplete());
+        assertEquals(6, tail.getFileCoveragesCount());
+        assertEquals("com/example/F4.java", tail.getFileCoverages(0).getFilePath());
+        assertEquals(0, tail.getFileCoverages(0).getExecutionPointsCount());
+        assertEquals(1, tail.getFileCoverages(1).getStats().getCoveredLines());
+    }
+
+    @Test
+    void malformedResumeTokenIsRejected() {
+        String sessionId = register();
+        RecordingObserver<CoverageSummaryChunk> chunks = new RecordingObserver<>();
+        service.streamCoverageSummary(StreamCoverageSummaryRequest.newBuilder()
+                .setQuery(CoverageSummaryRequest.newBuilder().setSessionId(sessionId))
+                .setResumeToken("not base64!").build(), chunks);
+        assertEquals(Status.Code.INVALID_ARGUMENT, Status.fromThrowable(chunks.error).getCode());
+    }
+
+    @Test
+    void impactedTestsAreThoseWhoseCoverageTouchesTheChangedLines() {
+        String sessionId = register();
+        StreamObserver<CoverageData> stream = service.streamCoverageData(new RecordingObserver<>());
+        DictionaryEncoder encoder = new DictionaryEncoder();
+        ClassLayout.Builder layout = encoder.newLayout(3, "com/example/Calculator.java", "com.example.Calculator");
+        for (int line : new int[]{10, 11, 20}) {
+            layout.addMethodIds(encoder.symbol("divide")).addLineNumbers(line).addTypes(CoverageType.COVERAGE_TYPE_LINE);
+        }
+        encoder.addLayout(layout);
+        encoder.addDelta(3, new int[]{0, 1, 2}, null, 3);
+        encoder.addTestCoverage("CalculatorTest#add", new int[]{3}, new int[][]{{0}});
+        encoder.addTestCoverage("CalculatorTest#divide", new int[]{3}, new int[][]{{0, 1}});
+        encoder.addTestCoverage("CalculatorTest#divideByZero", new int[]{3}, new int[][]{{2}});
+        stream.onNext(encoder.finish(CoverageData.newBuilder().setSessionId(sessionId).setSequence(1)).build());
+
+        assertEquals(List.of("CalculatorTest#divide"), impacted(sessionId, "com/example/Calculator.java", 11));
+        assertEquals(List.of("CalculatorTest#add", "CalculatorTest#divide"),
+                impacted(sessionId, "com/example/Calculator.java", 10, 12));
+        assertEquals(List.of("CalculatorTest#add", "CalculatorTest#divide", "CalculatorTest#divideByZero"),
+                impacted(sessionId, "com/example/Calculator.java"));
+        assertEquals(List.of(), impacted(sessionId, "com/example/Other.java"));
+
+        RecordingObserver<ImpactedTestsResponse> unknown = new RecordingObserver<>();
+        service.getImpactedTests(ImpactedTestsRequest.newBuilder().setSessionId("missing").build(), unknown);
+        assertEquals(Status.Code.NOT_FOUND, Status.fromThrowable(unknown.error).getCode());
+    }
+
+    @Test
+    void snapshotRequestsReachTheSessionsOpenStreams() {
+        String sessionId = register();
+        RecordingObserver<CoverageResponse> responses = new RecordingObserver<>();
+        StreamObserver<CoverageData> stream = service.streamCoverageData(responses);
+        stream.onNext(CoverageData.newBuilder().setSessionId(sessionId).setSequence(1).addExecutionPoints(point("add", 10, 1)).build());
+
+        RecordingObserver<SnapshotResponse> snapshot = new RecordingObserver<>();
+        service.snapshotCoverage(SnapshotRequest.newBuilder().setSessionId(sessionId).build(), snapshot);
+        assertEquals(1, snapshot.values.get(0).getAgentsNotified());
+        long snapshotId = snapshot.values.get(0).getSnapshotId();
+        assertTrue(snapshotId > 0);
+        CoverageResponse request = responses.values.get(1);
+        assertEquals(snapshotId, request.getSnapshotId());
+        assertEquals(0, request.getAcknowledgedSequence());
+
+        stream.onCompleted();
+        snapshot = new RecordingObserver<>();
+        service.snapshotCoverage(SnapshotRequest.newBuilder().setSessionId(sessionId).build(), snapshot);
+        assertEquals(0, snapshot.values.get(0).getAgentsNotified());
+        assertEquals(2, responses.values.size());
+
+        snapshot = new RecordingObserver<>();
+        service.snapshotCoverage(SnapshotRequest.newBuilder().setSessionId("missing").build(), snapshot);
+        assertEquals(Status.Code.NOT_FOUND, Status.fromThrowable(snapshot.error).getCode());
+    }
+
+    private List<String> impacted(String sessionId, String filePath, Integer... lines) {
+        RecordingObserver<ImpactedTestsResponse> response = new RecordingObserver<>();
+        service.getImpactedTests(ImpactedTestsRequest.newBuilder()
+                .setSessionId(sessionId)
+                .addChanges(ChangedLines.newBuilder().setFilePath(filePath).addAllLineNumbers(List.of(lines)))
+                .build(), response);
+        assertEquals(3, response.values.get(0).getTestsIndexed());
+        return response.values.get(0).getTestIdsList();
+    }
+
+    private String register() {
+        RecordingObserver<AgentRegistrationResponse> response = new RecordingObserver<>();
+        service.registerAgent(AgentRegistration.newBuilder().setAgentId("test-agent").setLanguage("java").build(), response);
+        assertNull(response.error);
+        return response.values.get(0).getSessionId();
+    }
+
+    private static ExecutionPoint point(String method, int line, long hits) {
+        return ExecutionPoint.newBuilder()
+                .setFilePath("com/example/Calculator.java")
+                .setClassName("com.example.Calculator")
+                .setMethodName(method)
+                .setLineNumber(line)
+                .setType(CoverageType.COVERAGE_TYPE_LINE)
+                .setHitCount(hits)
+                .build();
+    }
+
+    static final class RecordingObserver<T> implements StreamObserver<T> {
+        final List<T> values = new ArrayList<>();
+        volatile Throwable error;
+        volatile boolean completed;
+
+        @Override
+        public void onNext(T value) {
+            values.add(value);
+        }
+
+        @Override
+        public void onError(Throwable t) {
+            error = t;
+        }
+
+        @Override
+        public void onCompleted() {
+            completed = true;
+        }
+    }
+}
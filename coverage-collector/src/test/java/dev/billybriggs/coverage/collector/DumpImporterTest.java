@@ -0,0 +1,70 @@
+package dev.billybriggs.coverage.collector;
+
+import dev.billybriggs.coverage.common.proto.CoverageProto.ClassLayout;
+import dev.billybriggs.coverage.common.proto.CoverageProto.CoverageData;
+import dev.billybriggs.coverage.common.proto.CoverageProto.CoverageStats;
+import dev.billybriggs.coverage.common.proto.CoverageProto.CoverageSummaryRequest;
+import dev.billybriggs.coverage.common.proto.CoverageProto.CoverageType;
+import dev.billybriggs.coverage.common.wire.CoverageDumpWriter;
+import dev.billybriggs.coverage.common.wire.DictionaryEncoder;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Unit tests for DumpImporter.
+ */
+class DumpImporterTest {
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void importedDumpsBecomeServableSessions() throws IOException {
+        Path dump = directory.resolve("shard-1.cvd");
+        writeDump(dump);
+
+        Path storePath = directory.resolve("store");
+        DumpImporter.main(new String[]{storePath.toString(), dump.toString()});
+
+        try (CoverageDataStore store = CoverageDataStore.open(storePath, false)) {
+            CoverageStats stats = store.summary(CoverageSummaryRequest.newBuilder().setSessionId("shard-1").build())
+                    .orElseThrow().getOverallStats();
+            assertEquals(3, stats.getTotalMethods());
+            assertEquals(2, stats.getCoveredMethods());
+        }
+    }
+
+    @Test
+    void dumpsMergeIntoOneSession() throws IOException {
+        Path first = directory.resolve("a.cvd");
+        Path second = directory.resolve("b.cvd");
+        writeDump(first);
+        writeDump(second);
+
+        CoverageDataStore store = new CoverageDataStore();
+        assertEquals(6, DumpImporter.importDump(store, "merged", first));
+        DumpImporter.importDump(store, "merged", second);
+        assertEquals(8, store.summary(CoverageSummaryRequest.newBuilder().setSessionId("merged").build())
+                .orElseThrow().getFileCoverages(0).getExecutionPoints(0).getHitCount());
+    }
+
+    private static void writeDump(Path path) throws IOException {
+        DictionaryEncoder encoder = new DictionaryEncoder();
+        ClassLayout.Builder layout = encoder.newLayout(0, "com/example/Calculator.java", "com.example.Calculator");
+        for (String method : new String[]{"add", "divide", "isPrime"}) {
+            layout.addMethodIds(encoder.symbol(method)).addLineNumbers(0).addTypes(CoverageType.COVERAGE_TYPE_METHOD);
+        }
+        encoder.addLayout(layout);
+        try (CoverageDumpWriter writer = CoverageDumpWriter.create(path)) {
+            encoder.addDelta(0, new int[]{0, 2}, new long[]{3, 1}, 2);
+            writer.write(encoder.finish(CoverageData.newBuilder().setAgentId("agent").setSequence(1)).build());
+            encoder.addDelta(0, new int[]{0}, new long[]{1}, 1);
+            writer.write(encoder.finish(CoverageData.newBuilder().setAgentId("agent").setSequence(2)).build());
+        }
+    }
+}
@@ -0,0 +1,53 @@
+package dev.billybriggs.coverage.collector;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Unit tests for HashRing.
+ */
+class HashRingTest {
+
+    @Test
+    void spreadsKeysEvenlyAndMovesFewWhenANodeJoins() {
+        List<String> three = List.of("collector-1:9090", "collector-2:9090", "collector-3:9090");
+        HashRing ring = new HashRing(three, HashRing.DEFAULT_VIRTUAL_NODES);
+        HashRing grown = new HashRing(List.of("collector-1:9090", "collector-2:9090", "collector-3:9090", "collector-4:9090"),
+                HashRing.DEFAULT_VIRTUAL_NODES);
+
+        int keys = 30_000;
+        Map<String, Integer> owned = new HashMap<>();
+        int moved = 0;
+        for (int i = 0; i < keys; i++) {
+            String session = UUID.nameUUIDFromBytes(("session-" + i).getBytes()).toString();
+            String owner = ring.owner(session);
+            owned.merge(owner, 1, Integer::sum);
+            String newOwner = grown.owner(session);
+            if (!newOwner.equals(owner)) {
+                // keys only ever move to the new node
+                assertEquals("collector-4:9090", newOwner);
+                moved++;
+            }
+        }
+        for (String node : three) {
+            assertTrue(Math.abs(owned.get(node) - keys / 3) < keys / 10, node + " owns " + owned.get(node));
+        }
+        assertTrue(Math.abs(moved - keys / 4) < keys / 10, moved + " keys moved");
+    }
+
+    @Test
+    void everyNodeBuildsTheSameRing() {
+        HashRing a = new HashRing(List.of("a:1", "b:1"), 16);
+        HashRing b = new HashRing(List.of("a:1", "b:1"), 16);
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(a.owner("key-" + i), b.owner("key-" + i));
+        }
+    }
+}
@@ -0,0 +1,173 @@
+package dev.billybriggs.coverage.collector;
+
+import dev.billybriggs.coverage.common.proto.CoverageProto.CoverageType;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Unit tests for ReportExporter and the report formats it streams.
+ */
+class ReportExporterTest {
+
+    private static final String CALCULATOR = "com/example/Calculator.java";
+
+    private final CoverageDataStore store = new CoverageDataStore();
+    private ForkJoinPool pool;
+
+    @TempDir
+    Path directory;
+
+    @BeforeEach
+    void mergeCoverage() {
+        merge(CALCULATOR, "com.example.Calculator", "divide", 0, CoverageType.COVERAGE_TYPE_METHOD, 3);
+        merge(CALCULATOR, "com.example.Calculator", "divide", 34, CoverageType.COVERAGE_TYPE_LINE, 3);
+        merge(CALCULATOR, "com.example.Calculator", "divide", 35, CoverageType.COVERAGE_TYPE_LINE, 0);
+        merge(CALCULATOR, "com.example.Calculator", "divide#0", 34, CoverageType.COVERAGE_TYPE_BRANCH, 0);
+        merge(CALCULATOR, "com.example.Calculator", "divide#1", 34, CoverageType.COVERAGE_TYPE_BRANCH, 3);
+        merge(CALCULATOR, "com.example.Calculator", "add", 0, CoverageType.COVERAGE_TYPE_METHOD, 0);
+        merge(CALCULATOR, "com.example.Calculator", "add", 10, CoverageType.COVERAGE_TYPE_LINE, 0);
+        merge("org/other/Util.java", "org.other.Util", "run", 5, CoverageType.COVERAGE_TYPE_LINE, 1);
+        pool = new ForkJoinPool(2);
+    }
+
+    @AfterEach
+    void stopPool() {
+        pool.shutdown();
+    }
+
+    @Test
+    void lcovListsFunctionsBranchPairsAndLinesPerFile() throws Exception {
+        Path output = directory.resolve("session.info");
+        assertEquals(2, ReportExporter.export(store, "session", ReportFormat.LCOV, output, pool));
+
+        String report = Files.readString(output);
+        assertTrue(report.startsWith("""
+                TN:session
+                SF:com/example/Calculator.java
+                FN:10,com.example.Calculator.add
+                FN:34,com.example.Calculator.divide
+                FNDA:0,com.example.Calculator.add
+                FNDA:3,com.example.Calculator.divide
+                FNF:2
+                FNH:1
+                BRDA:34,0,0,0
+                BRDA:34,0,1,3
+                BRF:2
+                BRH:1
+                DA:10,0
+                DA:34,3
+                DA:35,0
+                LF:3
+                LH:1
+                end_of_record
+                TN:session
+                SF:org/other/Util.java
+                """), report);
+        assertTrue(report.endsWith("DA:5,1\nLF:1\nLH:1\nend_of_record\n"));
+        assertFalse(Files.exists(directory.resolve("session.info.partial")));
+    }
+
+    @Test
+    void xmlReportsGroupFilesIntoPackagesWithTallyStatistics() throws Exception {
+        Path cobertura = ReportExporter.reportPath(directory, "session", ReportFormat.COBERTURA);
+        ReportExporter.export(store, "session", ReportFormat.COBERTURA, cobertura, pool);
+        Element coverage = parse(cobertura).getDocumentElement();
+        assertEquals("4", coverage.getAttribute("lines-valid"));
+        assertEquals("2", coverage.getAttribute("lines-covered"));
+        NodeList packages = coverage.getElementsByTagName("package");
+        assertEquals(2, packages.getLength());
+        assertEquals("com.example", ((Element) packages.item(0)).getAttribute("name"));
+        assertEquals("0.3333", ((Element) packages.item(0)).getAttribute("line-rate"));
+        Element branchLine = line(coverage, "number", "34", "condition-coverage");
+        assertEquals("50% (1/2)", branchLine.getAttribute("condition-coverage"));
+
+        Path jacoco = ReportExporter.reportPath(directory, "session", ReportFormat.JACOCO);
+        ReportExporter.export(store, "session", ReportFormat.JACOCO, jacoco, pool);
+        Element report = parse(jacoco).getDocumentElement();
+        Element sourceLine = line(report, "nr", "34", "mb");
+        assertEquals("1", sourceLine.getAttribute("mb"));
+        assertEquals("1", sourceLine.getAttribute("cb"));
+        assertEquals("com/example/Calculator",
+                ((Element) report.getElementsByTagName("class").item(0)).getAttribute("name"));
+        // report totals close the document: INSTRUCTION, BRANCH, LINE, METHOD
+        NodeList counters = report.getElementsByTagName("counter");
+        Element lines = (Element) counters.item(counters.getLength() - 2);
+        assertEquals("LINE", lines.getAttribute("type"));
+        assertEquals("2", lines.getAttribute("missed"));
+        assertEquals("2", lines.getAttribute("covered"));
+    }
+
+    @Test
+    void filesOfADirectoryShareOnePackageAroundItsSubdirectories() throws Exception {
+        // in path order com/acme/api/Bar.kt sorts between com/acme/Foo.kt and com/acme/util.kt
+        merge("com/acme/Foo.kt", "com.acme.Foo", "run", 1, CoverageType.COVERAGE_TYPE_LINE, 1);
+        merge("com/acme/api/Bar.kt", "com.acme.api.Bar", "run", 1, CoverageType.COVERAGE_TYPE_LINE, 1);
+        merge("com/acme/util.kt", "com.acme.UtilKt", "run", 1, CoverageType.COVERAGE_TYPE_LINE, 0);
+
+        for (ReportFormat format : new ReportFormat[]{ReportFormat.COBERTURA, ReportFormat.JACOCO}) {
+            Path output = ReportExporter.reportPath(directory, "session", format);
+            ReportExporter.export(store, "session", format, output, pool);
+            NodeList packages = parse(output).getDocumentElement().getElementsByTagName("package");
+            List<String> names = new ArrayList<>();
+            for (int i = 0; i < packages.getLength(); i++) {
+                names.add(((Element) packages.item(i)).getAttribute("name"));
+            }
+            assertEquals(names.stream().distinct().toList(), names, format.formatName());
+            assertEquals(4, names.size(), format.formatName());
+        }
+        Path cobertura = ReportExporter.reportPath(directory, "session", ReportFormat.COBERTURA);
+        NodeList packages = parse(cobertura).getDocumentElement().getElementsByTagName("package");
+        Element acme = (Element) packages.item(0);
+        assertEquals("com.acme", acme.getAttribute("name"));
+        assertEquals("0.5000", acme.getAttribute("line-rate"));
+        assertEquals(2, acme.getElementsByTagName("class").getLength());
+    }
+
+    @Test
+    void unknownSessionIsRejected() {
+        assertThrows(IllegalArgumentException.class,
+                () -> ReportExporter.export(store, "missing", ReportFormat.LCOV, directory.resolve("missing.info"), pool));
+    }
+
+    private void merge(String filePath, String className, String methodName, int line, CoverageType type, long hits) {
+        store.merge("session", filePath, className, methodName, line, type, hits);
+    }
+
+    private static Document parse(Path report) throws Exception {
+        DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+        // the DOCTYPEs name DTDs that are not shipped with the report
+        factory.setFeature("http://apache.org/xml/features/nonvalidating/load-external-dtd", false);
+        return factory.newDocumentBuilder().parse(report.toFile());
+    }
+
+    /**
+     * The first {@code <line>} whose {@code attribute} is {@code value} and that has {@code required}.
+     */
+    private static Element line(Element root, String attribute, String value, String required) {
+        NodeList lines = root.getElementsByTagName("line");
+        for (int i = 0; i < lines.getLength(); i++) {
+            Element line = (Element) lines.item(i);
+            if (value.equals(line.getAttribute(attribute)) && line.hasAttribute(required)) {
+                return line;
+            }
+        }
+        throw new AssertionError("No line with " + attribute + "=" + value + " and " + required);
+    }
+}
@@ -0,0 +1,674 @@
+package dev.billybriggs.coverage.common;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.yaml.YAMLFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Language-agnostic configuration shared by agents and the collector.
+ * Mirrors the layout of {@code coverage-agent.yml} and {@code coverage-collector.yml}.
+ */
+@JsonIgnoreProperties(ignoreUnknown = true)
+public class CoverageConfig {
+
+    private static final ObjectMapper YAML = new ObjectMapper(new YAMLFactory());
+
+    @JsonProperty("agent")
+    private AgentSettings agent = new AgentSettings();
+
+    @JsonProperty("collector")
+    private CollectorSettings collector = new CollectorSettings();
+
+    @JsonProperty("instrumentation")
+    private InstrumentationSettings instrumentation = new InstrumentationSettings();
+
+    @JsonProperty("output")
+    private OutputSettings output = new OutputSettings();
+
+    /**
+     * Loads configuration from a YAML file on disk.
+     */
+    public static CoverageConfig load(Path path) throws IOException {
+        try (InputStream in = Files.newInputStream(path)) {
+            return load(in);
+        }
+    }
+
+    /**
+     * Loads configuration from a YAML stream.
+     */
+    public static CoverageConfig load(InputStream in) throws IOException {
+        CoverageConfig config = YAML.readValue(in, CoverageConfig.class);
+        return config != null ? config : new CoverageConfig();
+    }
+
+    /**
+     * Loads configuration from a classpath resource, falling back to defaults when absent.
+     */
+    public static CoverageConfig loadResource(String resource, ClassLoader classLoader) throws IOException {
+        try (InputStream in = classLoader.getResourceAsStream(resource)) {
+            return in != null ? load(in) : new CoverageConfig();
+        }
+    }
+
+    /**
+     * Applies {@code COVERAGE_COLLECTOR_HOST} / {@code COVERAGE_COLLECTOR_PORT} style overrides.
+     */
+    public CoverageConfig applyEnvironment(Map<String, String> env) {
+        String host = env.get("COVERAGE_COLLECTOR_HOST");
+        if (host != null && !host.isBlank()) {
+            collector.setHost(host);
+        }
+        String port = env.get("COVERAGE_COLLECTOR_PORT");
+        if (port != null && !port.isBlank()) {
+            collector.setPort(Integer.parseInt(port.trim()));
+        }
+        return this;
+    }
+
+    public AgentSettings getAgent() {
+        return agent;
+    }
+
+    public void setAgent(AgentSettings agent) {
+        this.agent = agent;
+    }
+
+    public CollectorSettings getCollector() {
+        return collector;
+    }
+
+    public void setCollector(CollectorSettings collector) {
+        this.collector = collector;
+    }
+
+    public InstrumentationSettings getInstrumentation() {
+        return instrumentation;
+    }
+
+    public void setInstrumentation(InstrumentationSettings instrumentation) {
+        this.instrumentation = instrumentation;
+    }
+
+    public OutputSettings getOutput() {
+        return output;
+    }
+
+    public void setOutput(OutputSettings output) {
+        this.output = output;
+    }
+
+    /**
+     * Identity of the agent (or collector) process.
+     */
+    @JsonIgnoreProperties(ignoreUnknown = true)
+    public static class AgentSettings {
+        @JsonProperty("id")
+        private String id = "java-agent";
+
+        @JsonProperty("language")
+        private String language = "java";
+
+        @JsonProperty("version")
+        private String version = "1.0.0";
+
+        @JsonProperty("enabled")
+        private boolean enabled = true;
+
+        @JsonProperty("metadata")
+        private Map<String, String> metadata = new HashMap<>();
+
+        /** Port serving the agent's {@code /metrics} and {@code /health} as plain text; 0 disables it. */
+        @JsonProperty("metrics_port")
+        private int metricsPort = 0;
+
+        public String getId() {
+            return id;
+        }
+
+        public void setId(String id) {
+            this.id = id;
+        }
+
+        public String getLanguage() {
+            return language;
+        }
+
+        public void setLanguage(String language) {
+            this.language = language;
+        }
+
+        public String getVersion() {
+            return version;
+        }
+
+        public void setVersion(String version) {
+            this.version = version;
+        }
+
+        public boolean isEnabled() {
+            return enabled;
+        }
+
+        public void setEnabled(boolean enabled) {
+            this.enabled = enabled;
+        }
+
+        public Map<String, String> getMetadata() {
+            return metadata;
+        }
+
+        public void setMetadata(Map<String, String> metadata) {
+            this.metadata = metadata;
+        }
+
+        public int getMetricsPort() {
+            return metricsPort;
+        }
+
+        public void setMetricsPort(int metricsPort) {
+            this.metricsPort = metricsPort;
+        }
+    }
+
+    /**
+     * Connection and batching settings for the collector endpoint.
+     */
+    @JsonIgnoreProperties(ignoreUnknown = true)
+    public static class CollectorSettings {
+        @JsonProperty("host")
+        private String host = "localhost";
+
+        @JsonProperty("port")
+        private int port = 9090;
+
+        @JsonProperty("tls_enabled")
+        private boolean tlsEnabled = false;
+
+        @JsonProperty("connection_timeout_ms")
+        private long connectionTimeoutMs = 5000;
+
+        @JsonProperty("retry_attempts")
+        private int retryAttempts = 3;
+
+        @JsonProperty("batch_size")
+        private int batchSize = 100;
+
+        @JsonProperty("flush_interval_ms")
+        private long flushIntervalMs = 1000;
+
+        /**
+         * {@code delta} (changed probes as bitmaps), {@code dictionary} (symbol table plus packed
+         * columns) or {@code legacy} (one message per point).
+         */
+        @JsonProperty("wire_format")
+        private String wireFormat = "delta";
+
+        /** In delta mode, send hit count increments; when false only newly covered probes are sent. */
+        @JsonProperty("count_deltas")
+        private boolean countDeltas = true;
+
+        /** Off-heap buffer between the flush and the thread writing to the collector stream. */
+        @JsonProperty("buffer_bytes")
+        private int bufferBytes = 4 * 1024 * 1024;
+
+        /**
+         * What a flush does while the send buffer is at least half full: {@code coalesce} (defer to a
+         * later flush), {@code bits_only} (send only newly covered probes) or {@code drop} (discard
+         * hit counts of probes already reported as covered).
+         */
+        @JsonProperty("overflow_policy")
+        private String overflowPolicy = "coalesce";
+
+        /**
+         * Unix domain socket of a host-local coverage relay. Agents send batches there instead of
+         * opening their own collector connection; the relay listens on it.
+         */
+        @JsonProperty("relay_socket")
+        private String relaySocket = "";
+
+        /** Directory of the collector's persistent store; empty keeps aggregation in memory only. */
+        @JsonProperty("store_path")
+        private String storePath = "";
+
+        @JsonProperty("checkpoint_interval_ms")
+        private long checkpointIntervalMs = 30000;
+
+        /** Force every merged batch to disk before acknowledging it. */
+        @JsonProperty("sync_writes")
+        private boolean syncWrites = false;
+
+        /**
+         * Batches all agents together may have in flight to a collector; each open stream is granted
+         * an equal share, and at least one.
+         */
+        @JsonProperty("flow_control_window")
+        private int flowControlWindow = 1024;
+
+        /**
+         * Addresses ({@code host:port}) of every collector in the cluster, this one included.
+         * Sessions are partitioned across them by consistent hashing; empty runs a single collector.
+         */
+        @JsonProperty("cluster_nodes")
+        private List<String> clusterNodes = new ArrayList<>();
+
+        /** This collector's entry in {@code cluster_nodes}; defaults to {@code host:port}. */
+        @JsonProperty("node_address")
+        private String nodeAddress = "";
+
+        /** Port of the collector's HTTP {@code /health} and {@code /metrics} endpoint; 0 disables it. */
+        @JsonProperty("health_port")
+        private int healthPort = 8081;
+
+        public String getHost() {
+            return host;
+        }
+
+        public void setHost(String host) {
+            this.host = host;
+        }
+
+        public int getPort() {
+            return port;
+        }
+
+        public void setPort(int port) {
+            this.port = port;
+        }
+
+        public boolean isTlsEnabled() {
+            return tlsEnabled;
+        }
+
+        public void setTlsEnabled(boolean tlsEnabled) {
+            this.tlsEnabled = tlsEnabled;
+        }
+
+        public long getConnectionTimeoutMs() {
+            return connectionTimeoutMs;
+        }
+
+        public void setConnectionTimeoutMs(long connectionTimeoutMs) {
+            this.connectionTimeoutMs = connectionTimeoutMs;
+        }
+
+        public int getRetryAttempts() {
+            return retryAttempts;
+        }
+
+        public void setRetryAttempts(int retryAttempts) {
+            this.retryAttempts = retryAttempts;
+        }
+
+        public int getBatchSize() {
+            return batchSize;
+        }
+
+        public void setBatchSize(int batchSize) {
+            this.batchSize = batchSize;
+        }
+
+        public long getFlushIntervalMs() {
+            return flushIntervalMs;
+        }
+
+        public void setFlushIntervalMs(long flushIntervalMs) {
+            this.flushIntervalMs = flushIntervalMs;
+        }
+
+        public String getWireFormat() {
+            return wireFormat;
+        }
+
+        public void setWireFormat(String wireFormat) {
+            this.wireFormat = wireFormat;
+        }
+
+        @JsonIgnore
+        public boolean isDictionaryWireFormat() {
+            return "dictionary".equalsIgnoreCase(wireFormat);
+        }
+
+        @JsonIgnore
+        public boolean isDeltaWireFormat() {
+            return !"dictionary".equalsIgnoreCase(wireFormat) && !"legacy".equalsIgnoreCase(wireFormat);
+        }
+
+        public boolean isCountDeltas() {
+            return countDeltas;
+        }
+
+        public void setCountDeltas(boolean countDeltas) {
+            this.countDeltas = countDeltas;
+        }
+
+        public int getBufferBytes() {
+            return bufferBytes;
+        }
+
+        public void setBufferBytes(int bufferBytes) {
+            this.bufferBytes = bufferBytes;
+        }
+
+        public String getOverflowPolicy() {
+            return overflowPolicy;
+        }
+
+        public void setOverflowPolicy(String overflowPolicy) {
+            this.overflowPolicy = overflowPolicy;
+        }
+
+        public String getRelaySocket() {
+            return relaySocket;
+        }
+
+        public void setRelaySocket(String relaySocket) {
+            this.relaySocket = relaySocket;
+        }
+
+        public String getStorePath() {
+            return storePath;
+        }
+
+        public void setStorePath(String storePath) {
+            this.storePath = storePath;
+        }
+
+        public long getCheckpointIntervalMs() {
+            return checkpointIntervalMs;
+        }
+
+        public void setCheckpointIntervalMs(long checkpointIntervalMs) {
+            this.checkpointIntervalMs = checkpointIntervalMs;
+        }
+
+        public boolean isSyncWrites() {
+            return syncWrites;
+        }
+
+        public void setSyncWrites(boolean syncWrites) {
+            this.syncWrites = syncWrites;
+        }
+
+        public int getFlowControlWindow() {
+            return flowControlWindow;
+        }
+
+        public void setFlowControlWindow(int flowControlWindow) {
+            this.flowControlWindow = flowControlWindow;
+        }
+
+        public List<String> getClusterNodes() {
+            return clusterNodes;
+        }
+
+        public void setClusterNodes(List<String> clusterNodes) {
+            this.clusterNodes = clusterNodes;
+        }
+
+        public int getHealthPort() {
+            return healthPort;
+        }
+
+        public void setHealthPort(int healthPort) {
+            this.healthPort = healthPort;
+        }
+
+        public String getNodeAddress() {
+            return nodeAddress;
+        }
+
+        public void setNodeAddress(String nodeAddress) {
+            this.nodeAddress = nodeAddress;
+        }
+    }
+
+    /**
+     * Which classes are instrumented and how.
+     */
+    @JsonIgnoreProperties(ignoreUnknown = true)
+    public static class InstrumentationSettings {
+        @JsonProperty("enabled")
+        private boolean enabled = true;
+
+        @JsonProperty("include_patterns")
+        private List<String> includePatterns = new ArrayList<>();
+
+        @JsonProperty("exclude_patterns")
+        private List<String> excludePatterns = new ArrayList<>();
+
+        @JsonProperty("coverage_types")
+        private List<String> coverageTypes = new ArrayList<>(List.of("line", "branch", "method"));
+
+        @JsonProperty("sampling_rate")
+        private double samplingRate = 1.0;
+
+        @JsonProperty("sampling_window_ms")
+        private long samplingWindowMs = 1000;
+
+        @JsonProperty("sampling_pause_ms")
+        private long samplingPauseMs = 0;
+
+        /**
+         * Retransform classes in the background to drop probes that have already fired. Coverage is
+         * unaffected; hit counts of removed probes stop growing.
+         */
+        @JsonProperty("deinstrument_saturated")
+        private boolean deinstrumentSaturated = false;
+
+        @JsonProperty("saturation_scan_interval_ms")
+        private long saturationScanIntervalMs = 10000;
+
+        @JsonProperty("lazy")
+        private boolean lazy = false;
+
+        @JsonProperty("bytecode_cache_path")
+        private String bytecodeCachePath = "";
+
+        /**
+         * On dynamic attach, threads retransforming the classes already loaded, each a batch at a
+         * time with a pause after every batch.
+         */
+        @JsonProperty("attach_threads")
+        private int attachThreads = 2;
+
+        @JsonProperty("attach_batch_size")
+        private int attachBatchSize = 50;
+
+        @JsonProperty("attach_batch_pause_ms")
+        private long attachBatchPauseMs = 100;
+
+        @JsonProperty("bytecode_cache_read_only")
+        private boolean bytecodeCacheReadOnly = false;
+
+        public boolean isEnabled() {
+            return enabled;
+        }
+
+        public void setEnabled(boolean enabled) {
+            this.enabled = enabled;
+        }
+
+        public List<String> getIncludePatterns() {
+            return includePatterns;
+        }
+
+        public void setIncludePatterns(List<String> includePatterns) {
+            this.includePatterns = includePatterns;
+        }
+
+        public List<String> getExcludePatterns() {
+            return excludePatterns;
+        }
+
+        public void setExcludePatterns(List<String> excludePatterns) {
+            this.excludePatterns = excludePatterns;
+        }
+
+        public List<String> getCoverageTypes() {
+            return coverageTypes;
+        }
+
+        public void setCoverageTypes(List<String> coverageTypes) {
+            this.coverageTypes = coverageTypes;
+        }
+
+        public double getSamplingRate() {
+            return samplingRate;
+        }
+
+        public void setSamplingRate(double samplingRate) {
+            this.samplingRate = samplingRate;
+        }
+
+        public long getSamplingWindowMs() {
+            return samplingWindowMs;
+        }
+
+        public void setSamplingWindowMs(long samplingWindowMs) {
+            this.samplingWindowMs = samplingWindowMs;
+        }
+
+        public long getSamplingPauseMs() {
+            return samplingPauseMs;
+        }
+
+        public void setSamplingPauseMs(long samplingPauseMs) {
+            this.samplingPauseMs = samplingPauseMs;
+        }
+
+        public boolean isDeinstrumentSaturated() {
+            return deinstrumentSaturated;
+        }
+
+        public void setDeinstrumentSaturated(boolean deinstrumentSaturated) {
+            this.deinstrumentSaturated = deinstrumentSaturated;
+        }
+
+        public long getSaturationScanIntervalMs() {
+            return saturationScanIntervalMs;
+        }
+
+        public void setSaturationScanIntervalMs(long saturationScanIntervalMs) {
+            this.saturationScanIntervalMs = saturationScanIntervalMs;
+        }
+
+        public boolean isLazy() {
+            return lazy;
+        }
+
+        public void setLazy(boolean lazy) {
+            this.lazy = lazy;
+        }
+
+        public String getBytecodeCachePath() {
+            return bytecodeCachePath;
+        }
+
+        public void setBytecodeCachePath(String bytecodeCachePath) {
+            this.bytecodeCachePath = bytecodeCachePath;
+        }
+
+        public boolean isBytecodeCacheReadOnly() {
+            return bytecodeCacheReadOnly;
+        }
+
+        public void setBytecodeCacheReadOnly(boolean bytecodeCacheReadOnly) {
+            this.bytecodeCacheReadOnly = bytecodeCacheReadOnly;
+        }
+
+        public int getAttachThreads() {
+            return attachThreads;
+        }
+
+        public void setAttachThreads(int attachThreads) {
+            this.attachThreads = attachThreads;
+        }
+
+        public int getAttachBatchSize() {
+            return attachBatchSize;
+        }
+
+        public void setAttachBatchSize(int attachBatchSize) {
+            this.attachBatchSize = attachBatchSize;
+        }
+
+        public long getAttachBatchPauseMs() {
+            return attachBatchPauseMs;
+        }
+
+        public void setAttachBatchPauseMs(long attachBatchPauseMs) {
+            this.attachBatchPauseMs = attachBatchPauseMs;
+        }
+    }
+
+    /**
+     * Report output settings.
+     */
+    @JsonIgnoreProperties(ignoreUnknown = true)
+    public static class OutputSettings {
+        @JsonProperty("format")
+        private String format = "json";
+
+        @JsonProperty("file_path")
+        private String filePath = "";
+
+        @JsonProperty("console_enabled")
+        private boolean consoleEnabled = true;
+
+        @JsonProperty("detailed")
+        private boolean detailed = false;
+
+        public String getFormat() {
+            return format;
+        }
+
+        public void setFormat(String format) {
+            this.format = format;
+        }
+
+        public String getFilePath() {
+            return filePath;
+        }
+
+        public void setFilePath(String filePath) {
+            this.filePath = filePath;
+        }
+
+        public boolean isConsoleEnabled() {
+            return consoleEnabled;
+        }
+
+        public void setConsoleEnabled(boolean consoleEnabled) {
+            this.consoleEnabled = consoleEnabled;
+        }
+
+        public boolean isDetailed() {
+            return detailed;
+        }
+
+        /**
+         * Agents write coverage to a binary dump at {@code file_path} instead of streaming it to the
+         * collector. {@code {pid}} in the path is replaced with the process id.
+         */
+        @JsonIgnore
+        public boolean isBinaryDump() {
+            return "binary".equalsIgnoreCase(format) && filePath != null && !filePath.isBlank();
+        }
+
+        public void setDetailed(boolean detailed) {
+            this.detailed = detailed;
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package dev.billybriggs.coverage.common.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free histogram of durations in power-of-two microsecond buckets, from under 1 µs to over
+ * 2<sup>{@value #BUCKETS}-2</sup> µs (about 18 minutes). Recording is one array increment and two
+ * adder updates, cheap enough for every merged batch; quantiles are accurate to the bucket.
+ */
+public final class LatencyHistogram {
+
+    static final int BUCKETS = 32;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sumNanos = new LongAdder();
+
+    public void record(long nanos) {
+        long micros = Math.max(0, nanos) / 1000;
+        int bucket = Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros));
+        buckets.incrementAndGet(bucket);
+        count.increment();
+        sumNanos.add(nanos);
+    }
+
+    public long count() {
+        return count.sum();
+    }
+
+    public long sumNanos() {
+        return sumNanos.sum();
+    }
+
+    public double meanMillis() {
+        long n = count();
+        return n == 0 ? 0 : sumNanos() / 1e6 / n;
+    }
+
+    /**
+     * Upper bound in milliseconds of the bucket holding the {@code q} quantile, 0 when empty.
+     */
+    public double quantileMillis(double q) {
+        long n = count();
+        if (n == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(q * n);
+        long seen = 0;
+        for (int bucket = 0; bucket < BUCKETS; bucket++) {
+            seen += buckets.get(bucket);
+            if (seen >= Math.max(1, rank)) {
+                return upperBoundMicros(bucket) / 1000.0;
+            }
+        }
+        return upperBoundMicros(BUCKETS - 1) / 1000.0;
+    }
+
+    /**
+     * Exclusive upper bound of a bucket in microseconds; the last bucket is unbounded.
+     */
+    static long upperBoundMicros(int bucket) {
+        return 1L << bucket;
+    }
+
+    /**
+     * Appends the histogram in Prometheus form, with {@code le} bounds in seconds.
+     */
+    public void appendTo(MetricsText text, String name, String help) {
+        text.type(name, "histogram", help);
+        long cumulative = 0;
+        for (int bucket = 0; bucket < BUCKETS - 1; bucket++) {
+            cumulative += buckets.get(bucket);
+            text.sample(name + "_bucket", "le", String.valueOf(upperBoundMicros(bucket) / 1e6), cumulative);
+        }
+        cumulative += buckets.get(BUCKETS - 1);
+        text.sample(name + "_bucket", "le", "+Inf", cumulative);
+        text.sample(name + "_sum", sumNanos() / 1e9);
+        text.sample(name + "_count", cumulative);
+    }
+}
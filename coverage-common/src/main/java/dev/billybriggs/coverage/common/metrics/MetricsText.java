@@ -0,0 +1,59 @@
+package dev.billybriggs.coverage.common.metrics;
+
+/**
+ * Builds metrics in the Prometheus text exposition format, which is also readable as plain text.
+ */
+public final class MetricsText {
+
+    private final StringBuilder text = new StringBuilder(1024);
+
+    public MetricsText counter(String name, String help, double value) {
+        return type(name, "counter", help).sample(name, value);
+    }
+
+    public MetricsText gauge(String name, String help, double value) {
+        return type(name, "gauge", help).sample(name, value);
+    }
+
+    public MetricsText type(String name, String type, String help) {
+        text.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        text.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+        return this;
+    }
+
+    public MetricsText sample(String name, double value) {
+        text.append(name).append(' ');
+        return value(value);
+    }
+
+    public MetricsText sample(String name, String label, String labelValue, double value) {
+        text.append(name).append('{').append(label).append("=\"");
+        for (int i = 0; i < labelValue.length(); i++) {
+            char c = labelValue.charAt(i);
+            if (c == '\\' || c == '"') {
+                text.append('\\').append(c);
+            } else if (c == '\n') {
+                text.append("\\n");
+            } else {
+                text.append(c);
+            }
+        }
+        text.append("\"} ");
+        return value(value);
+    }
+
+    private MetricsText value(double value) {
+        if (value == Math.rint(value) && Math.abs(value) < 1e15) {
+            text.append((long) value);
+        } else {
+            text.append(value);
+        }
+        text.append('\n');
+        return this;
+    }
+
+    @Override
+    public String toString() {
+        return text.toString();
+    }
+}
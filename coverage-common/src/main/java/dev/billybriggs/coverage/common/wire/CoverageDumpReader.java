@@ -0,0 +1,81 @@
+package dev.billybriggs.coverage.common.wire;
+
+import dev.billybriggs.coverage.common.proto.CoverageProto.CoverageData;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.function.Consumer;
+
+/**
+ * Reads the batches of a dump written by {@link CoverageDumpWriter}, in order. The file is
+ * memory-mapped a window at a time, like the writer maps it, and each batch is parsed straight from
+ * the mapping as it is handed on, so reading holds one batch at a time whatever the dump's size. A
+ * window starts at a frame and is remapped further along when the next frame does not fit, so
+ * offsets are longs and dumps past 2 GiB read like any other.
+ */
+public final class CoverageDumpReader {
+
+    static final int WINDOW_BYTES = 1 << 26;
+
+    private CoverageDumpReader() {
+    }
+
+    /**
+     * @return the number of batches read
+     * @throws IOException if the file is not a coverage dump or a frame is corrupt
+     */
+    public static int read(Path path, Consumer<CoverageData> batches) throws IOException {
+        return read(path, batches, WINDOW_BYTES);
+    }
+
+    static int read(Path path, Consumer<CoverageData> batches, int windowBytes) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long length = channel.size();
+            if (length < CoverageDumpWriter.HEADER_BYTES) {
+                throw new IOException(path + " is not a coverage dump");
+            }
+            MappedByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+                    Math.min(length, Math.max(windowBytes, CoverageDumpWriter.HEADER_BYTES)));
+            long windowStart = 0;
+            if (window.getInt(0) != CoverageDumpWriter.MAGIC) {
+                throw new IOException(path + " is not a coverage dump");
+            }
+            if (window.getInt(4) != CoverageDumpWriter.VERSION) {
+                throw new IOException("Unsupported coverage dump version " + window.getInt(4) + " in " + path);
+            }
+            long offset = CoverageDumpWriter.HEADER_BYTES;
+            int count = 0;
+            while (length - offset >= CoverageDumpWriter.FRAME_HEADER_BYTES) {
+                if (offset + CoverageDumpWriter.FRAME_HEADER_BYTES > windowStart + window.capacity()) {
+                    windowStart = offset;
+                    window = channel.map(FileChannel.MapMode.READ_ONLY, windowStart,
+                            Math.min(length - offset, Math.max(windowBytes, CoverageDumpWriter.FRAME_HEADER_BYTES)));
+                }
+                int size = window.getInt((int) (offset - windowStart));
+                if (size == 0) {
+                    // end of an unclosed dump: the rest of the last window was never written
+                    break;
+                }
+                if (size < 0 || size > Integer.MAX_VALUE - CoverageDumpWriter.FRAME_HEADER_BYTES
+                        || size > length - offset - CoverageDumpWriter.FRAME_HEADER_BYTES) {
+                    throw new IOException("Corrupt frame at offset " + offset + " of " + path);
+                }
+                int frameBytes = CoverageDumpWriter.FRAME_HEADER_BYTES + size;
+                if (offset + frameBytes > windowStart + window.capacity()) {
+                    // frames can outgrow the window, as the writer maps a larger one for them
+                    windowStart = offset;
+                    window = channel.map(FileChannel.MapMode.READ_ONLY, windowStart,
+                            Math.min(length - offset, Math.max(windowBytes, frameBytes)));
+                }
+                int payload = (int) (offset - windowStart) + CoverageDumpWriter.FRAME_HEADER_BYTES;
+                batches.accept(CoverageData.parseFrom(window.slice(payload, size)));
+                offset += frameBytes;
+                count++;
+            }
+            return count;
+        }
+    }
+}
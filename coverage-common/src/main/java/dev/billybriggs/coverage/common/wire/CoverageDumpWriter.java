@@ -0,0 +1,120 @@
+package dev.billybriggs.coverage.common.wire;
+
+import com.google.protobuf.CodedOutputStream;
+import dev.billybriggs.coverage.common.proto.CoverageProto.CoverageData;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Writes {@link CoverageData} batches to a coverage dump file, for agents that run without a collector.
+ *
+ * <p>Layout: an 8-byte header ({@link #MAGIC}, {@link #VERSION}) followed by frames of a 4-byte
+ * big-endian length and the serialized batch. Frames go straight into a memory-mapped window of the
+ * file, remapped further along as it fills, so writing costs no copies through the heap or system
+ * calls per batch. The payload is written before its length, and the unwritten rest of a window is
+ * zero, so a reader stops cleanly at the last complete frame even if the process died mid-write.
+ *
+ * <p>Batches keep the wire format they were encoded in: one dump is read like one
+ * {@code StreamCoverageData} stream, with symbols and class layouts declared once and referenced by
+ * every later batch. Not thread-safe.
+ */
+public final class CoverageDumpWriter implements Closeable {
+
+    /** {@code "CVDP"}. */
+    public static final int MAGIC = 0x43564450;
+    public static final int VERSION = 1;
+    static final int HEADER_BYTES = 8;
+    static final int FRAME_HEADER_BYTES = 4;
+    private static final int WINDOW_BYTES = 1 << 20;
+
+    private final FileChannel channel;
+    private MappedByteBuffer window;
+    private long windowStart;
+    private long position;
+    private int frames;
+
+    private CoverageDumpWriter(FileChannel channel) {
+        this.channel = channel;
+    }
+
+    /**
+     * Creates or truncates the dump at {@code path}.
+     */
+    public static CoverageDumpWriter create(Path path) throws IOException {
+        Path parent = path.toAbsolutePath().getParent();
+        if (parent != null) {
+            Files.createDirectories(parent);
+        }
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        CoverageDumpWriter writer = new CoverageDumpWriter(channel);
+        try {
+            writer.reserve(HEADER_BYTES);
+            writer.window.putInt(0, MAGIC).putInt(4, VERSION);
+            writer.position = HEADER_BYTES;
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+        return writer;
+    }
+
+    public void write(CoverageData data) throws IOException {
+        int size = data.getSerializedSize();
+        reserve(FRAME_HEADER_BYTES + size);
+        int offset = (int) (position - windowStart);
+        CodedOutputStream out = CodedOutputStream.newInstance(window.slice(offset + FRAME_HEADER_BYTES, size));
+        data.writeTo(out);
+        out.flush();
+        window.putInt(offset, size);
+        position += FRAME_HEADER_BYTES + size;
+        frames++;
+    }
+
+    /** Frames written so far. */
+    public int frames() {
+        return frames;
+    }
+
+    /** Bytes written so far, header included. */
+    public long size() {
+        return position;
+    }
+
+    /**
+     * Forces the frames written so far to disk.
+     */
+    public void sync() {
+        if (window != null) {
+            window.force();
+        }
+    }
+
+    private void reserve(int bytes) throws IOException {
+        if (window == null || position + bytes > windowStart + window.capacity()) {
+            // the new window starts at the next frame, so no gap is left behind
+            windowStart = position;
+            window = channel.map(FileChannel.MapMode.READ_WRITE, windowStart, Math.max(WINDOW_BYTES, bytes));
+        }
+    }
+
+    /**
+     * Syncs the dump and trims the unused end of the last window.
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            sync();
+            window = null;
+            channel.truncate(position);
+        } finally {
+            channel.close();
+        }
+    }
+}
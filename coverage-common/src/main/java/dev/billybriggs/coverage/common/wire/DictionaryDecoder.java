@@ -0,0 +1,182 @@
+package dev.billybriggs.coverage.common.wire;
+
+import dev.billybriggs.coverage.common.proto.CoverageProto.ClassLayout;
+import dev.billybriggs.coverage.common.proto.CoverageProto.CoverageData;
+import dev.billybriggs.coverage.common.proto.CoverageProto.CoverageType;
+import dev.billybriggs.coverage.common.proto.CoverageProto.ExecutionPoint;
+import dev.billybriggs.coverage.common.proto.CoverageProto.PackedExecutionPoints;
+import dev.billybriggs.coverage.common.proto.CoverageProto.ProbeDelta;
+import dev.billybriggs.coverage.common.proto.CoverageProto.SymbolTable;
+import dev.billybriggs.coverage.common.proto.CoverageProto.TestCoverage;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Decodes {@link CoverageData} batches received on one stream, in the original string-per-point
+ * form or the dictionary- and delta-encoded forms produced by {@link DictionaryEncoder}.
+ * Keeps the per-stream symbol table and class layouts; create one decoder per stream. Not thread-safe.
+ *
+ * <p>A class layout is visited as one zero-count point per probe, which declares the probes as
+ * coverable. Probe deltas are visited with their count increment, or with a count of one when the
+ * agent reports coverage bits only. A {@link ProbeVisitor} instead binds each layout once and
+ * receives deltas by probe index, and also receives per-test coverage.
+ */
+public final class DictionaryDecoder {
+
+    private final List<String> symbols = new ArrayList<>();
+    private final Map<Integer, Layout> layouts = new HashMap<>();
+
+    private static final class Layout {
+        final String filePath;
+        final String className;
+        final String[] methods;
+        final int[] lines;
+        final CoverageType[] types;
+        ProbeVisitor boundTo;
+        Object binding;
+
+        Layout(String filePath, String className, String[] methods, int[] lines, CoverageType[] types) {
+            this.filePath = filePath;
+            this.className = className;
+            this.methods = methods;
+            this.lines = lines;
+            this.types = types;
+        }
+
+        Object bindingFor(ProbeVisitor visitor) {
+            if (boundTo != visitor) {
+                binding = visitor.bindLayout(filePath, className, methods, lines, types);
+                boundTo = visitor;
+            }
+            return binding;
+        }
+    }
+
+    /**
+     * Feeds every point of {@code data} to {@code visitor} and returns the number of points visited.
+     *
+     * @throws IllegalArgumentException if the batch references unknown symbols or its columns disagree in length
+     */
+    public int decode(CoverageData data, PointVisitor visitor) {
+        if (data.hasSymbols()) {
+            learn(data.getSymbols());
+        }
+
+        for (ExecutionPoint point : data.getExecutionPointsList()) {
+            visitor.visit(point.getFilePath(), point.getClassName(), point.getMethodName(),
+                    point.getLineNumber(), point.getType(), point.getHitCount());
+        }
+        int count = data.getExecutionPointsCount();
+
+        if (data.hasPackedPoints()) {
+            PackedExecutionPoints packed = data.getPackedPoints();
+            int size = packed.getHitCountsCount();
+            if (packed.getFileIdsCount() != size || packed.getClassIdsCount() != size
+                    || packed.getMethodIdsCount() != size || packed.getLineNumbersCount() != size
+                    || packed.getTypesCount() != size) {
+                throw new IllegalArgumentException("Packed execution point columns differ in length");
+            }
+            for (int i = 0; i < size; i++) {
+                visitor.visit(symbol(packed.getFileIds(i)), symbol(packed.getClassIds(i)), symbol(packed.getMethodIds(i)),
+                        packed.getLineNumbers(i), packed.getTypes(i), packed.getHitCounts(i));
+            }
+            count += size;
+        }
+
+        for (ClassLayout layout : data.getClassLayoutsList()) {
+            count += declare(layout, visitor);
+        }
+        for (ProbeDelta delta : data.getProbeDeltasList()) {
+            count += apply(delta, visitor);
+        }
+        if (visitor instanceof ProbeVisitor probeVisitor) {
+            for (TestCoverage test : data.getTestCoveragesList()) {
+                attribute(test, probeVisitor);
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Resolves a symbol id received on this stream.
+     */
+    public String symbol(int id) {
+        if (id < 0 || id >= symbols.size()) {
+            throw new IllegalArgumentException("Unknown symbol id " + id);
+        }
+        return symbols.get(id);
+    }
+
+    private int declare(ClassLayout layout, PointVisitor visitor) {
+        int size = layout.getMethodIdsCount();
+        if (layout.getLineNumbersCount() != size || layout.getTypesCount() != size) {
+            throw new IllegalArgumentException("Class layout columns differ in length");
+        }
+        String[] methods = new String[size];
+        int[] lines = new int[size];
+        CoverageType[] types = new CoverageType[size];
+        for (int i = 0; i < size; i++) {
+            methods[i] = symbol(layout.getMethodIds(i));
+            lines[i] = layout.getLineNumbers(i);
+            types[i] = layout.getTypes(i);
+        }
+        Layout decoded = new Layout(symbol(layout.getFileId()), symbol(layout.getClassId()), methods, lines, types);
+        layouts.put(layout.getClassKey(), decoded);
+        if (visitor instanceof ProbeVisitor probeVisitor) {
+            decoded.bindingFor(probeVisitor);
+        } else {
+            for (int i = 0; i < size; i++) {
+                visitor.visit(decoded.filePath, decoded.className, methods[i], lines[i], types[i], 0);
+            }
+        }
+        return size;
+    }
+
+    private int apply(ProbeDelta delta, PointVisitor visitor) {
+        Layout layout = layouts.get(delta.getClassKey());
+        if (layout == null) {
+            throw new IllegalArgumentException("Unknown class key " + delta.getClassKey());
+        }
+        int[] probes = ProbeBitmap.decode(delta.getProbes(), layout.methods.length);
+        boolean counted = delta.getCountDeltasCount() > 0;
+        if (counted && delta.getCountDeltasCount() != probes.length) {
+            throw new IllegalArgumentException("Probe delta has " + probes.length + " probes but "
+                    + delta.getCountDeltasCount() + " counts");
+        }
+        ProbeVisitor probeVisitor = visitor instanceof ProbeVisitor v ? v : null;
+        Object binding = probeVisitor != null ? layout.bindingFor(probeVisitor) : null;
+        for (int i = 0; i < probes.length; i++) {
+            int probe = probes[i];
+            long hits = counted ? delta.getCountDeltas(i) : 1;
+            if (probeVisitor != null) {
+                probeVisitor.visitProbe(binding, probe, hits);
+            } else {
+                visitor.visit(layout.filePath, layout.className, layout.methods[probe], layout.lines[probe],
+                        layout.types[probe], hits);
+            }
+        }
+        return probes.length;
+    }
+
+    private void attribute(TestCoverage test, ProbeVisitor visitor) {
+        for (ProbeDelta probes : test.getProbesList()) {
+            Layout layout = layouts.get(probes.getClassKey());
+            if (layout == null) {
+                throw new IllegalArgumentException("Unknown class key " + probes.getClassKey());
+            }
+            int[] indexes = ProbeBitmap.decode(probes.getProbes(), layout.methods.length);
+            visitor.visitTestProbes(test.getTestId(), layout.bindingFor(visitor), indexes);
+        }
+    }
+
+    private void learn(SymbolTable table) {
+        if (table.getBaseId() != symbols.size()) {
+            throw new IllegalArgumentException("Symbol table starts at " + table.getBaseId()
+                    + " but " + symbols.size() + " symbols are known");
+        }
+        symbols.addAll(table.getSymbolsList());
+    }
+}
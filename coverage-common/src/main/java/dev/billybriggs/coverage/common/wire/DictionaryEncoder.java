@@ -0,0 +1,177 @@
+package dev.billybriggs.coverage.common.wire;
+
+import dev.billybriggs.coverage.common.proto.CoverageProto.ClassLayout;
+import dev.billybriggs.coverage.common.proto.CoverageProto.CoverageData;
+import dev.billybriggs.coverage.common.proto.CoverageProto.CoverageType;
+import dev.billybriggs.coverage.common.proto.CoverageProto.PackedExecutionPoints;
+import dev.billybriggs.coverage.common.proto.CoverageProto.ProbeDelta;
+import dev.billybriggs.coverage.common.proto.CoverageProto.SymbolTable;
+import dev.billybriggs.coverage.common.proto.CoverageProto.TestCoverage;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Builds dictionary-encoded {@link CoverageData} batches for one stream.
+ *
+ * <p>Each distinct file, class or method name is assigned an id the first time it is written and is
+ * shipped in the {@link SymbolTable} of that batch only; later batches refer to it by id. An encoder
+ * must be {@link #reset() reset} whenever the underlying stream is reopened, since the receiver keeps
+ * one dictionary per stream. Not thread-safe.
+ */
+public final class DictionaryEncoder {
+
+    private final Map<String, Integer> ids = new HashMap<>();
+    private final List<String> pendingSymbols = new ArrayList<>();
+    private int pendingBaseId;
+
+    private PackedExecutionPoints.Builder points = PackedExecutionPoints.newBuilder();
+    private final List<ClassLayout> layouts = new ArrayList<>();
+    private final List<ProbeDelta> deltas = new ArrayList<>();
+    private int layoutProbeCount;
+    private int deltaProbeCount;
+    private final List<TestCoverage> tests = new ArrayList<>();
+    private int testProbeCount;
+
+    /**
+     * Returns the id of a symbol, scheduling it for transmission if it has not been sent on this stream.
+     */
+    public int symbol(String value) {
+        Integer id = ids.get(value);
+        if (id == null) {
+            id = ids.size();
+            ids.put(value, id);
+            pendingSymbols.add(value);
+        }
+        return id;
+    }
+
+    public void add(String filePath, String className, String methodName, int lineNumber, CoverageType type, long hitCount) {
+        add(symbol(filePath), symbol(className), symbol(methodName), lineNumber, type, hitCount);
+    }
+
+    /**
+     * Adds a point whose symbols were already obtained through {@link #symbol(String)}.
+     */
+    public void add(int fileId, int classId, int methodId, int lineNumber, CoverageType type, long hitCount) {
+        points.addFileIds(fileId)
+                .addClassIds(classId)
+                .addMethodIds(methodId)
+                .addLineNumbers(lineNumber)
+                .addTypes(type)
+                .addHitCounts(hitCount);
+    }
+
+    public int pointCount() {
+        return points.getHitCountsCount();
+    }
+
+    /**
+     * Starts a layout declaration with the file and class symbols resolved; the caller appends one
+     * method id (via {@link #symbol(String)}), line number and type per probe and passes it to
+     * {@link #addLayout(ClassLayout.Builder)}.
+     */
+    public ClassLayout.Builder newLayout(int classKey, String filePath, String className) {
+        return ClassLayout.newBuilder()
+                .setClassKey(classKey)
+                .setFileId(symbol(filePath))
+                .setClassId(symbol(className));
+    }
+
+    public void addLayout(ClassLayout.Builder layout) {
+        layouts.add(layout.build());
+        layoutProbeCount += layout.getMethodIdsCount();
+    }
+
+    /**
+     * Adds the changed probes of one class.
+     *
+     * @param probes      strictly increasing probe indexes; only the first {@code count} are used
+     * @param countDeltas hit count increments aligned with {@code probes}, or {@code null} for bits only
+     */
+    public void addDelta(int classKey, int[] probes, long[] countDeltas, int count) {
+        ProbeDelta.Builder delta = ProbeDelta.newBuilder()
+                .setClassKey(classKey)
+                .setProbes(ProbeBitmap.encode(probes, count));
+        if (countDeltas != null) {
+            for (int i = 0; i < count; i++) {
+                delta.addCountDeltas(countDeltas[i]);
+            }
+        }
+        deltas.add(delta.build());
+        deltaProbeCount += count;
+    }
+
+    /**
+     * Adds the probes one test executed, per class key of a layout declared on this stream.
+     *
+     * @param probes strictly increasing probe indexes per class, aligned with {@code classKeys}
+     */
+    public void addTestCoverage(String testId, int[] classKeys, int[][] probes) {
+        TestCoverage.Builder test = TestCoverage.newBuilder().setTestId(testId);
+        for (int i = 0; i < classKeys.length; i++) {
+            test.addProbes(ProbeDelta.newBuilder()
+                    .setClassKey(classKeys[i])
+                    .setProbes(ProbeBitmap.encode(probes[i], probes[i].length)));
+            testProbeCount += probes[i].length;
+        }
+        tests.add(test.build());
+    }
+
+    /**
+     * Number of points, declared probes, changed probes and test probes added since the last {@link #finish}.
+     */
+    public int pendingCount() {
+        return pointCount() + layoutProbeCount + deltaProbeCount + testProbeCount;
+    }
+
+    /**
+     * Whether {@link #finish} would add anything to a batch.
+     */
+    public boolean hasPending() {
+        return pendingCount() > 0 || !pendingSymbols.isEmpty() || !layouts.isEmpty() || !tests.isEmpty();
+    }
+
+    /**
+     * Moves the pending symbols, points, layouts, deltas and test coverage into {@code data} and starts a new batch.
+     */
+    public CoverageData.Builder finish(CoverageData.Builder data) {
+        if (!pendingSymbols.isEmpty()) {
+            data.setSymbols(SymbolTable.newBuilder()
+                    .setBaseId(pendingBaseId)
+                    .addAllSymbols(pendingSymbols));
+            pendingBaseId += pendingSymbols.size();
+            pendingSymbols.clear();
+        }
+        if (pointCount() > 0) {
+            data.setPackedPoints(points);
+            points = PackedExecutionPoints.newBuilder();
+        }
+        data.addAllClassLayouts(layouts).addAllProbeDeltas(deltas).addAllTestCoverages(tests);
+        layouts.clear();
+        deltas.clear();
+        tests.clear();
+        layoutProbeCount = 0;
+        deltaProbeCount = 0;
+        testProbeCount = 0;
+        return data;
+    }
+
+    /**
+     * Forgets every symbol; the next batch re-sends the ones it uses.
+     */
+    public void reset() {
+        ids.clear();
+        pendingSymbols.clear();
+        pendingBaseId = 0;
+        points = PackedExecutionPoints.newBuilder();
+        layouts.clear();
+        deltas.clear();
+        tests.clear();
+        layoutProbeCount = 0;
+        deltaProbeCount = 0;
+        testProbeCount = 0;
+    }
+}
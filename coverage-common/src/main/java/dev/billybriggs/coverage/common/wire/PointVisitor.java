@@ -0,0 +1,12 @@
+package dev.billybriggs.coverage.common.wire;
+
+import dev.billybriggs.coverage.common.proto.CoverageProto.CoverageType;
+
+/**
+ * Receives decoded execution points without materializing {@code ExecutionPoint} messages.
+ */
+@FunctionalInterface
+public interface PointVisitor {
+
+    void visit(String filePath, String className, String methodName, int lineNumber, CoverageType type, long hitCount);
+}
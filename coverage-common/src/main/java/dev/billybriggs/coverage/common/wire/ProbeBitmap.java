@@ -0,0 +1,244 @@
+package dev.billybriggs.coverage.common.wire;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.CodedOutputStream;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
+
+/**
+ * Compressed set of non-negative probe indexes, in the spirit of Roaring bitmaps.
+ *
+ * <p>Indexes are split into containers by their high 16 bits. Each container is written in whichever
+ * of three encodings is smallest for its contents:
+ * <ul>
+ *   <li>{@code ARRAY}: varint gaps between consecutive indexes, for sparse sets;</li>
+ *   <li>{@code BITMAP}: raw 64-bit words up to the highest set bit, for dense sets;</li>
+ *   <li>{@code RUN}: varint (gap, length) pairs, for long consecutive ranges.</li>
+ * </ul>
+ * Layout: {@code containerCount, (key, kind, payload)*}, all integers as unsigned varints.
+ */
+public final class ProbeBitmap {
+
+    private static final int ARRAY = 0;
+    private static final int BITMAP = 1;
+    private static final int RUN = 2;
+
+    private ProbeBitmap() {
+    }
+
+    /**
+     * Encodes the first {@code length} entries of {@code sortedIndexes}, which must be strictly increasing.
+     */
+    public static ByteString encode(int[] sortedIndexes, int length) {
+        ByteString.Output bytes = ByteString.newOutput(Math.max(16, length));
+        CodedOutputStream out = CodedOutputStream.newInstance(bytes);
+        try {
+            out.writeUInt32NoTag(containerCount(sortedIndexes, length));
+            int start = 0;
+            while (start < length) {
+                int key = sortedIndexes[start] >>> 16;
+                int end = start;
+                while (end < length && sortedIndexes[end] >>> 16 == key) {
+                    end++;
+                }
+                writeContainer(out, key, sortedIndexes, start, end);
+                start = end;
+            }
+            out.flush();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return bytes.toByteString();
+    }
+
+    public static ByteString encode(int[] sortedIndexes) {
+        return encode(sortedIndexes, sortedIndexes.length);
+    }
+
+    /**
+     * Decodes a bitmap into its strictly increasing indexes.
+     *
+     * @param limit bound on the indexes, the probe count of the class the bitmap describes; the
+     *              counts a bitmap declares are checked against it before anything is allocated for
+     *              them, so a malformed one cannot make the decoder run out of memory
+     * @throws IllegalArgumentException if the bytes are not a valid bitmap of indexes below {@code limit}
+     */
+    public static int[] decode(ByteString bitmap, int limit) {
+        CodedInputStream in = bitmap.newCodedInput();
+        try {
+            int containers = in.readUInt32();
+            int[] result = new int[16];
+            int size = 0;
+            int previousKey = -1;
+            for (int c = 0; c < containers; c++) {
+                int key = in.readUInt32();
+                if (key <= previousKey || limit <= 0 || key > (limit - 1) >>> 16) {
+                    throw new IllegalArgumentException("Bitmap container " + key + " out of order or beyond " + limit);
+                }
+                previousKey = key;
+                int high = key << 16;
+                // the most indexes this container can hold below the limit
+                int room = Math.min(1 << 16, limit - high);
+                int kind = in.readUInt32();
+                switch (kind) {
+                    case ARRAY -> {
+                        int cardinality = checkCount(in.readUInt32(), room, "indexes");
+                        int value = -1;
+                        for (int i = 0; i < cardinality; i++) {
+                            value += checkCount(in.readUInt32(), room - 1, "gap") + 1;
+                            result = append(result, size++, checkIndex(high, value, room));
+                        }
+                    }
+                    case BITMAP -> {
+                        int words = checkCount(in.readUInt32(), (room + 63) >>> 6, "words");
+                        for (int w = 0; w < words; w++) {
+                            long word = in.readFixed64();
+                            while (word != 0) {
+                                int bit = Long.numberOfTrailingZeros(word);
+                                result = append(result, size++, checkIndex(high, w << 6 | bit, room));
+                                word &= word - 1;
+                            }
+                        }
+                    }
+                    case RUN -> {
+                        int runs = checkCount(in.readUInt32(), room, "runs");
+                        int next = 0;
+                        for (int r = 0; r < runs; r++) {
+                            int runStart = next + checkCount(in.readUInt32(), room, "run gap");
+                            int runLength = checkCount(in.readUInt32(), room - 1, "run length") + 1;
+                            checkIndex(high, runStart + runLength - 1, room);
+                            for (int i = 0; i < runLength; i++) {
+                                result = append(result, size++, high | (runStart + i));
+                            }
+                            next = runStart + runLength;
+                        }
+                    }
+                    default -> throw new IllegalArgumentException("Unknown bitmap container kind " + kind);
+                }
+            }
+            return Arrays.copyOf(result, size);
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Malformed probe bitmap", e);
+        }
+    }
+
+    /**
+     * Returns a count read from the wire, an unsigned varint, if it is at most {@code max}.
+     */
+    private static int checkCount(int count, int max, String what) {
+        if (count < 0 || count > max) {
+            throw new IllegalArgumentException("Bitmap container " + what + " " + Integer.toUnsignedString(count)
+                    + " exceeds " + max);
+        }
+        return count;
+    }
+
+    private static int checkIndex(int high, int low, int room) {
+        if (low < 0 || low >= room) {
+            throw new IllegalArgumentException("Bitmap index " + (high + low) + " out of range");
+        }
+        return high | low;
+    }
+
+    private static int containerCount(int[] sorted, int length) {
+        int count = 0;
+        int previousKey = -1;
+        for (int i = 0; i < length; i++) {
+            int key = sorted[i] >>> 16;
+            if (key != previousKey) {
+                count++;
+                previousKey = key;
+            }
+        }
+        return count;
+    }
+
+    private static void writeContainer(CodedOutputStream out, int key, int[] sorted, int start, int end) throws IOException {
+        int arraySize = CodedOutputStream.computeUInt32SizeNoTag(end - start);
+        int runCount = 0;
+        int previous = -1;
+        for (int i = start; i < end; i++) {
+            int low = sorted[i] & 0xFFFF;
+            arraySize += CodedOutputStream.computeUInt32SizeNoTag(low - previous - 1);
+            if (i == start || low != previous + 1) {
+                runCount++;
+            }
+            previous = low;
+        }
+        int runSize = runSize(sorted, start, end, runCount);
+        int words = ((sorted[end - 1] & 0xFFFF) >>> 6) + 1;
+        int bitmapSize = CodedOutputStream.computeUInt32SizeNoTag(words) + words * Long.BYTES;
+
+        out.writeUInt32NoTag(key);
+        if (runSize < arraySize && runSize < bitmapSize) {
+            out.writeUInt32NoTag(RUN);
+            writeRuns(out, sorted, start, end, runCount);
+        } else if (bitmapSize < arraySize) {
+            out.writeUInt32NoTag(BITMAP);
+            long[] bits = new long[words];
+            for (int i = start; i < end; i++) {
+                int low = sorted[i] & 0xFFFF;
+                bits[low >>> 6] |= 1L << low;
+            }
+            out.writeUInt32NoTag(words);
+            for (long word : bits) {
+                out.writeFixed64NoTag(word);
+            }
+        } else {
+            out.writeUInt32NoTag(ARRAY);
+            out.writeUInt32NoTag(end - start);
+            int last = -1;
+            for (int i = start; i < end; i++) {
+                int low = sorted[i] & 0xFFFF;
+                out.writeUInt32NoTag(low - last - 1);
+                last = low;
+            }
+        }
+    }
+
+    private static int runSize(int[] sorted, int start, int end, int runCount) {
+        int size = CodedOutputStream.computeUInt32SizeNoTag(runCount);
+        int next = 0;
+        int i = start;
+        while (i < end) {
+            int runStart = sorted[i] & 0xFFFF;
+            int j = i + 1;
+            while (j < end && (sorted[j] & 0xFFFF) == (sorted[j - 1] & 0xFFFF) + 1) {
+                j++;
+            }
+            size += CodedOutputStream.computeUInt32SizeNoTag(runStart - next)
+                    + CodedOutputStream.computeUInt32SizeNoTag(j - i - 1);
+            next = runStart + (j - i);
+            i = j;
+        }
+        return size;
+    }
+
+    private static void writeRuns(CodedOutputStream out, int[] sorted, int start, int end, int runCount) throws IOException {
+        out.writeUInt32NoTag(runCount);
+        int next = 0;
+        int i = start;
+        while (i < end) {
+            int runStart = sorted[i] & 0xFFFF;
+            int j = i + 1;
+            while (j < end && (sorted[j] & 0xFFFF) == (sorted[j - 1] & 0xFFFF) + 1) {
+                j++;
+            }
+            out.writeUInt32NoTag(runStart - next);
+            out.writeUInt32NoTag(j - i - 1);
+            next = runStart + (j - i);
+            i = j;
+        }
+    }
+
+    private static int[] append(int[] values, int index, int value) {
+        if (index == values.length) {
+            values = Arrays.copyOf(values, values.length * 2);
+        }
+        values[index] = value;
+        return values;
+    }
+}
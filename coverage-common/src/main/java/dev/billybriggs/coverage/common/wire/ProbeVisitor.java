@@ -0,0 +1,27 @@
+package dev.billybriggs.coverage.common.wire;
+
+import dev.billybriggs.coverage.common.proto.CoverageProto.CoverageType;
+
+/**
+ * {@link PointVisitor} that can resolve a declared class layout once per stream and then receive
+ * probe deltas by index, so merging a delta needs no per-point string handling.
+ */
+public interface ProbeVisitor extends PointVisitor {
+
+    /**
+     * Called when a class layout is declared on the stream. The returned binding is handed back to
+     * {@link #visitProbe} for every delta of that class.
+     */
+    Object bindLayout(String filePath, String className, String[] methodNames, int[] lineNumbers, CoverageType[] types);
+
+    void visitProbe(Object binding, int probe, long hitCount);
+
+    /**
+     * Called with the probes of a class that one test executed. Ignored unless the visitor keeps
+     * per-test coverage.
+     *
+     * @param probes strictly increasing probe indexes
+     */
+    default void visitTestProbes(String testId, Object binding, int[] probes) {
+    }
+}
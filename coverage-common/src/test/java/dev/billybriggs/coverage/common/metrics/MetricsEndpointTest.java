@@ -0,0 +1,63 @@
+package dev.billybriggs.coverage.common.metrics;
+
+import org.junit.jupiter.api.Test;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Unit tests for MetricsEndpoint, MetricsText and LatencyHistogram.
+ */
+class MetricsEndpointTest {
+
+    @Test
+    void histogramQuantilesAreBoundedByTheirBucket() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 0; i < 98; i++) {
+            histogram.record(300_000);
+        }
+        histogram.record(40_000_000);
+        histogram.record(40_000_000);
+
+        assertEquals(100, histogram.count());
+        assertEquals(0.512, histogram.quantileMillis(0.5), 1e-9);
+        assertEquals(65.536, histogram.quantileMillis(0.99), 1e-9);
+        assertEquals((98 * 0.3 + 2 * 40) / 100, histogram.meanMillis(), 1e-9);
+
+        MetricsText text = new MetricsText();
+        histogram.appendTo(text, "merge_seconds", "Merge time");
+        String exposition = text.toString();
+        assertTrue(exposition.contains("# TYPE merge_seconds histogram\n"));
+        assertTrue(exposition.contains("merge_seconds_bucket{le=\"5.12E-4\"} 98\n"));
+        assertTrue(exposition.contains("merge_seconds_bucket{le=\"+Inf\"} 100\n"));
+        assertTrue(exposition.contains("merge_seconds_count 100\n"));
+    }
+
+    @Test
+    void servesMetricsAndHealthAsPlainText() throws Exception {
+        AtomicBoolean healthy = new AtomicBoolean(true);
+        try (MetricsEndpoint endpoint = MetricsEndpoint.start("127.0.0.1", 0,
+                () -> new MetricsText().counter("batches_total", "Batches", 3).sample("rate", "agent", "a\"b", 1.5).toString(),
+                healthy::get)) {
+            HttpClient client = HttpClient.newHttpClient();
+            HttpResponse<String> metrics = client.send(request(endpoint, "/metrics"), HttpResponse.BodyHandlers.ofString());
+            assertEquals(200, metrics.statusCode());
+            assertEquals("# HELP batches_total Batches\n# TYPE batches_total counter\nbatches_total 3\n"
+                    + "rate{agent=\"a\\\"b\"} 1.5\n", metrics.body());
+
+            assertEquals(200, client.send(request(endpoint, "/health"), HttpResponse.BodyHandlers.ofString()).statusCode());
+            healthy.set(false);
+            assertEquals(503, client.send(request(endpoint, "/health"), HttpResponse.BodyHandlers.ofString()).statusCode());
+        }
+    }
+
+    private static HttpRequest request(MetricsEndpoint endpoint, String path) {
+        return HttpRequest.newBuilder(URI.create("http://127.0.0.1:" + endpoint.port() + path)).build();
+    }
+}
@@ -0,0 +1,82 @@
+package dev.billybriggs.coverage.common.wire;
+
+import dev.billybriggs.coverage.common.proto.CoverageProto.CoverageData;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * Unit tests for CoverageDumpWriter and CoverageDumpReader.
+ */
+class CoverageDumpTest {
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void readsBackEveryBatchAcrossWindows() throws IOException {
+        Path path = directory.resolve("coverage.cvd");
+        String padding = "x".repeat(300_000);
+        try (CoverageDumpWriter writer = CoverageDumpWriter.create(path)) {
+            for (int sequence = 1; sequence <= 10; sequence++) {
+                writer.write(CoverageData.newBuilder().setSequence(sequence).setAgentId(padding).build());
+            }
+            assertEquals(10, writer.frames());
+        }
+
+        List<CoverageData> batches = new ArrayList<>();
+        assertEquals(10, CoverageDumpReader.read(path, batches::add));
+        assertEquals(10, batches.get(9).getSequence());
+        assertEquals(padding, batches.get(4).getAgentId());
+        assertEquals(Files.size(path), 8 + 10 * (4 + batches.get(0).getSerializedSize()));
+    }
+
+    @Test
+    void readerRemapsAtFramesThatCrossOrOutgrowItsWindow() throws IOException {
+        Path path = directory.resolve("windows.cvd");
+        try (CoverageDumpWriter writer = CoverageDumpWriter.create(path)) {
+            for (int sequence = 1; sequence <= 50; sequence++) {
+                writer.write(CoverageData.newBuilder().setSequence(sequence).setAgentId("x".repeat(sequence * 7)).build());
+            }
+        }
+
+        // windows far smaller than the file stand in for a dump past 2 GiB read with the default
+        for (int windowBytes : new int[]{1, 64, 1_000}) {
+            List<CoverageData> batches = new ArrayList<>();
+            assertEquals(50, CoverageDumpReader.read(path, batches::add, windowBytes));
+            for (int i = 0; i < 50; i++) {
+                assertEquals(i + 1, batches.get(i).getSequence());
+                assertEquals((i + 1) * 7, batches.get(i).getAgentId().length());
+            }
+        }
+    }
+
+    @Test
+    void unclosedDumpEndsAtTheLastCompleteBatch() throws IOException {
+        Path path = directory.resolve("crashed.cvd");
+        CoverageDumpWriter writer = CoverageDumpWriter.create(path);
+        writer.write(CoverageData.newBuilder().setSequence(1).build());
+        writer.write(CoverageData.newBuilder().setSequence(2).build());
+        writer.sync();
+
+        // as a reader sees it after the agent died: no close, the rest of the window still zero
+        List<CoverageData> batches = new ArrayList<>();
+        assertEquals(2, CoverageDumpReader.read(path, batches::add));
+        assertEquals(2, batches.get(1).getSequence());
+        writer.close();
+    }
+
+    @Test
+    void rejectsFilesThatAreNotDumps() throws IOException {
+        Path path = Files.writeString(directory.resolve("report.json"), "{\"coverage\": []}");
+        assertThrows(IOException.class, () -> CoverageDumpReader.read(path, batch -> { }));
+    }
+}
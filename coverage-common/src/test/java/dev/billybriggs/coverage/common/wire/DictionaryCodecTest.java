@@ -0,0 +1,83 @@
+package dev.billybriggs.coverage.common.wire;
+
+import dev.billybriggs.coverage.common.proto.CoverageProto.CoverageData;
+import dev.billybriggs.coverage.common.proto.CoverageProto.CoverageType;
+import dev.billybriggs.coverage.common.proto.CoverageProto.ExecutionPoint;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Round-trip tests for the dictionary-encoded wire format.
+ */
+class DictionaryCodecTest {
+
+    @Test
+    void symbolsAreSentOncePerStream() {
+        DictionaryEncoder encoder = new DictionaryEncoder();
+        DictionaryDecoder decoder = new DictionaryDecoder();
+
+        encoder.add("com/example/Calculator.java", "com.example.Calculator", "add", 14, CoverageType.COVERAGE_TYPE_LINE, 3);
+        encoder.add("com/example/Calculator.java", "com.example.Calculator", "subtract", 19, CoverageType.COVERAGE_TYPE_LINE, 1);
+        CoverageData first = encoder.finish(CoverageData.newBuilder()).build();
+        assertEquals(4, first.getSymbols().getSymbolsCount());
+
+        encoder.add("com/example/Calculator.java", "com.example.Calculator", "add", 15, CoverageType.COVERAGE_TYPE_LINE, 7);
+        CoverageData second = encoder.finish(CoverageData.newBuilder()).build();
+        assertFalse(second.hasSymbols());
+
+        List<ExecutionPoint> points = new ArrayList<>();
+        assertEquals(2, decoder.decode(first, collect(points)));
+        assertEquals(1, decoder.decode(second, collect(points)));
+
+        assertEquals("subtract", points.get(1).getMethodName());
+        assertEquals(19, points.get(1).getLineNumber());
+        assertEquals("com.example.Calculator", points.get(2).getClassName());
+        assertEquals(7, points.get(2).getHitCount());
+    }
+
+    @Test
+    void legacyAndPackedPointsDecodeTogether() {
+        DictionaryEncoder encoder = new DictionaryEncoder();
+        encoder.add("A.java", "A", "run", 3, CoverageType.COVERAGE_TYPE_BRANCH, 1);
+        CoverageData data = encoder.finish(CoverageData.newBuilder()
+                .addExecutionPoints(ExecutionPoint.newBuilder()
+                        .setFilePath("B.java").setClassName("B").setMethodName("go")
+                        .setType(CoverageType.COVERAGE_TYPE_METHOD).setHitCount(2)))
+                .build();
+
+        List<ExecutionPoint> points = new ArrayList<>();
+        assertEquals(2, new DictionaryDecoder().decode(data, collect(points)));
+        assertTrue(points.stream().anyMatch(p -> p.getClassName().equals("B")));
+        assertTrue(points.stream().anyMatch(p -> p.getClassName().equals("A")));
+    }
+
+    @Test
+    void resetEncoderResendsSymbolsAndUnknownIdsAreRejected() {
+        DictionaryEncoder encoder = new DictionaryEncoder();
+        encoder.add("A.java", "A", "run", 1, CoverageType.COVERAGE_TYPE_LINE, 1);
+        encoder.finish(CoverageData.newBuilder());
+        encoder.reset();
+
+        encoder.add("A.java", "A", "run", 1, CoverageType.COVERAGE_TYPE_LINE, 1);
+        CoverageData afterReset = encoder.finish(CoverageData.newBuilder()).build();
+        assertEquals(0, afterReset.getSymbols().getBaseId());
+        assertEquals(3, afterReset.getSymbols().getSymbolsCount());
+
+        CoverageData withoutSymbols = afterReset.toBuilder().clearSymbols().build();
+        assertThrows(IllegalArgumentException.class,
+                () -> new DictionaryDecoder().decode(withoutSymbols, collect(new ArrayList<>())));
+    }
+
+    private static PointVisitor collect(List<ExecutionPoint> points) {
+        return (file, className, method, line, type, hits) -> points.add(ExecutionPoint.newBuilder()
+                .setFilePath(file).setClassName(className).setMethodName(method)
+                .setLineNumber(line).setType(type).setHitCount(hits).build());
+    }
+}
@@ -0,0 +1,74 @@
+package dev.billybriggs.coverage.common.wire;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedOutputStream;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Round-trip, size and validation tests for ProbeBitmap.
+ */
+class ProbeBitmapTest {
+
+    @Test
+    void roundTripsSparseDenseAndRunContainers() {
+        int[] sparse = {3, 900, 40_000};
+        int[] dense = IntStream.range(0, 2000).filter(i -> i % 3 != 0).toArray();
+        int[] runs = IntStream.concat(IntStream.range(10, 5000), IntStream.range(6000, 9000)).toArray();
+        int[] multiContainer = {1, 2, 65_535, 65_536, 70_000, 200_000};
+
+        for (int[] indexes : new int[][]{sparse, dense, runs, multiContainer, new int[0]}) {
+            assertArrayEquals(indexes, ProbeBitmap.decode(ProbeBitmap.encode(indexes), 200_001));
+        }
+    }
+
+    @Test
+    void picksCompactEncodings() {
+        int[] runs = IntStream.range(0, 10_000).toArray();
+        assertTrue(ProbeBitmap.encode(runs).size() < 10);
+
+        int[] dense = IntStream.range(0, 4096).filter(i -> i % 2 == 0).toArray();
+        assertTrue(ProbeBitmap.encode(dense).size() <= 4096 / 8 + 8);
+
+        ByteString single = ProbeBitmap.encode(new int[]{5});
+        assertEquals(5, single.size());
+    }
+
+    @Test
+    void encodesPrefixOnly() {
+        int[] indexes = {1, 4, 9, 0, 0};
+        assertArrayEquals(new int[]{1, 4, 9}, ProbeBitmap.decode(ProbeBitmap.encode(indexes, 3), 10));
+    }
+
+    @Test
+    void rejectsBitmapsDeclaringMoreThanTheLimitAllows() throws IOException {
+        assertArrayEquals(new int[]{3, 9}, ProbeBitmap.decode(ProbeBitmap.encode(new int[]{3, 9}), 10));
+        assertThrows(IllegalArgumentException.class, () -> ProbeBitmap.decode(ProbeBitmap.encode(new int[]{3, 10}), 10));
+        assertThrows(IllegalArgumentException.class, () -> ProbeBitmap.decode(ProbeBitmap.encode(new int[]{70_000}), 10));
+
+        // a few bytes claiming billions of indexes are rejected before any are decoded
+        ByteString run = bitmap(1, 0, 2, 1, 0, Integer.MAX_VALUE);
+        assertThrows(IllegalArgumentException.class, () -> ProbeBitmap.decode(run, 10));
+        ByteString array = bitmap(1, 0, 0, 1_000_000_000);
+        assertThrows(IllegalArgumentException.class, () -> ProbeBitmap.decode(array, 10));
+        ByteString words = bitmap(1, 0, 1, -1);
+        assertThrows(IllegalArgumentException.class, () -> ProbeBitmap.decode(words, 10));
+    }
+
+    private static ByteString bitmap(int... varints) throws IOException {
+        ByteString.Output bytes = ByteString.newOutput();
+        CodedOutputStream out = CodedOutputStream.newInstance(bytes);
+        for (int value : varints) {
+            out.writeUInt32NoTag(value);
+        }
+        out.flush();
+        return bytes.toByteString();
+    }
+}